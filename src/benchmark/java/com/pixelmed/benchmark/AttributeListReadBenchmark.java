@@ -0,0 +1,125 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.benchmark;
+
+import com.pixelmed.dicom.*;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Measure {@link com.pixelmed.dicom.AttributeList#read(DicomInputStream) AttributeList.read()} of
+ * synthetic data sets held in memory, so that only parsing, and not the file system, is measured.</p>
+ *
+ * <p>The kinds of data set are a small header without Pixel Data, a large uncompressed multi-frame image,
+ * the same image deflated, and the same image with encapsulated Pixel Data.</p>
+ *
+ * <p>For comparison, the same data sets are also parsed with {@link com.pixelmed.dicom.DicomStreamParser DicomStreamParser},
+ * both reporting every value and extracting only the few attributes an indexer needs.</p>
+ *
+ * @author	dclunie
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AttributeListReadBenchmark {
+
+	/***/
+	@Param({"header", "uncompressed", "deflate", "encapsulated"})
+	public String kind;
+
+	/***/
+	@Param({"512"})
+	public int size;
+
+	/***/
+	@Param({"16"})
+	public int frames;
+
+	/***/
+	private byte[] bytes;
+
+	/***/
+	private Set tagsWanted;
+
+	/**
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	@Setup(Level.Trial)
+	public void createDataSet() throws DicomException, IOException {
+		if (kind.equals("header")) {
+			bytes = SyntheticDatasets.toPart10Bytes(SyntheticDatasets.createHeaderOnly(1),TransferSyntax.ExplicitVRLittleEndian);
+		}
+		else if (kind.equals("uncompressed")) {
+			bytes = SyntheticDatasets.toPart10Bytes(SyntheticDatasets.createImage(1,size,size,frames),TransferSyntax.ExplicitVRLittleEndian);
+		}
+		else if (kind.equals("deflate")) {
+			bytes = SyntheticDatasets.toPart10Bytes(SyntheticDatasets.createImage(1,size,size,frames),TransferSyntax.DeflatedExplicitVRLittleEndian);
+		}
+		else if (kind.equals("encapsulated")) {
+			bytes = SyntheticDatasets.createEncapsulatedPart10Bytes(1,size,size,frames);
+		}
+		else {
+			throw new IllegalArgumentException("Unrecognized kind of data set "+kind);
+		}
+		tagsWanted = new HashSet();
+		tagsWanted.add(TagFromName.SOPInstanceUID);
+		tagsWanted.add(TagFromName.PatientID);
+		tagsWanted.add(TagFromName.StudyInstanceUID);
+		tagsWanted.add(TagFromName.SeriesInstanceUID);
+	}
+
+	/**
+	 * <p>A handler that touches every value, without decoding it.</p>
+	 */
+	private static class CountingHandler extends DicomStreamHandler {
+		/***/
+		long count;
+
+		public void value(AttributeTag tag,DicomStreamValue value) {
+			count+=value.getLength();
+		}
+	}
+
+	/**
+	 * @return	the list read, so that the work is not eliminated
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	@Benchmark
+	public AttributeList read() throws DicomException, IOException {
+		AttributeList list = new AttributeList();
+		list.read(new DicomInputStream(new ByteArrayInputStream(bytes)));
+		return list;
+	}
+
+	/**
+	 * @return	the number of value bytes seen, so that the work is not eliminated
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	@Benchmark
+	public long parse() throws DicomException, IOException {
+		CountingHandler handler = new CountingHandler();
+		new DicomStreamParser(new DicomInputStream(new ByteArrayInputStream(bytes)),handler).parse();
+		return handler.count;
+	}
+
+	/**
+	 * @return	the list of selected attributes, so that the work is not eliminated
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	@Benchmark
+	public AttributeList readSelectedAttributes() throws DicomException, IOException {
+		return DicomStreamParser.readSelectedAttributes(new DicomInputStream(new ByteArrayInputStream(bytes)),tagsWanted,null);
+	}
+}
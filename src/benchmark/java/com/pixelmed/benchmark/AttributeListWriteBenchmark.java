@@ -0,0 +1,70 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.benchmark;
+
+import com.pixelmed.dicom.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Measure {@link com.pixelmed.dicom.AttributeList#write(OutputStream,String,boolean,boolean) AttributeList.write()} of
+ * a synthetic image in various transfer syntaxes, to an output stream that discards what is written.</p>
+ *
+ * @author	dclunie
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AttributeListWriteBenchmark {
+
+	/***/
+	@Param({TransferSyntax.ImplicitVRLittleEndian, TransferSyntax.ExplicitVRLittleEndian, TransferSyntax.DeflatedExplicitVRLittleEndian})
+	public String transferSyntaxUID;
+
+	/***/
+	@Param({"512"})
+	public int size;
+
+	/***/
+	@Param({"16"})
+	public int frames;
+
+	/***/
+	private AttributeList list;
+
+	/**
+	 * <p>An output stream that counts and discards what is written.</p>
+	 */
+	static class DiscardingOutputStream extends OutputStream {
+		long count;
+		public void write(int b) { ++count; }
+		public void write(byte[] b,int off,int len) { count+=len; }
+	}
+
+	/**
+	 * @exception	DicomException
+	 */
+	@Setup(Level.Trial)
+	public void createDataSet() throws DicomException {
+		list = SyntheticDatasets.createImage(1,size,size,frames);
+		FileMetaInformation.addFileMetaInformation(list,transferSyntaxUID,"BENCHMARK");
+	}
+
+	/**
+	 * @return	the number of bytes written, so that the work is not eliminated
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	@Benchmark
+	public long write() throws DicomException, IOException {
+		DiscardingOutputStream out = new DiscardingOutputStream();
+		list.write(out,transferSyntaxUID,true/*useMeta*/,true/*useBufferedStream*/);
+		return out.count;
+	}
+}
@@ -0,0 +1,139 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.benchmark;
+
+import com.pixelmed.dicom.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Measure {@link com.pixelmed.dicom.BinaryInputStream#readUnsigned16(short[],int,int) BinaryInputStream.readUnsigned16()}
+ * and {@link com.pixelmed.dicom.BinaryInputStream#readFloat(float[],int) BinaryInputStream.readFloat()}
+ * of a frame's worth of values, in both byte orders, from memory and from a file.</p>
+ *
+ * <p>For comparison, the same words are also converted one at a time from bytes, which is how arrays were read
+ * before values were converted in bulk through a {@link java.nio.ByteBuffer ByteBuffer}.</p>
+ *
+ * @author	dclunie
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BinaryInputStreamBenchmark {
+
+	/***/
+	@Param({"false", "true"})
+	public boolean bigEndian;
+
+	/***/
+	@Param({"512", "4096"})
+	public int size;
+
+	/***/
+	@Param({"memory", "file"})
+	public String source;
+
+	/***/
+	private byte[] bytes;
+
+	/***/
+	private File file;
+
+	/***/
+	private short[] words;
+
+	/***/
+	private float[] floats;
+
+	/**
+	 * @exception	IOException
+	 */
+	@Setup(Level.Trial)
+	public void createValues() throws IOException {
+		words = new short[size*size];
+		floats = new float[words.length/2];
+		bytes = new byte[words.length*2];
+		short[] values = SyntheticDatasets.createPixelValues(size,size,1);
+		for (int i=0; i<values.length; ++i) {
+			bytes[i*2]   = (byte)(bigEndian ? values[i] >> 8 : values[i]);
+			bytes[i*2+1] = (byte)(bigEndian ? values[i] : values[i] >> 8);
+		}
+		if (source.equals("file")) {
+			file = File.createTempFile("benchmark",".raw");
+			OutputStream out = new FileOutputStream(file);
+			out.write(bytes);
+			out.close();
+		}
+	}
+
+	/***/
+	@TearDown(Level.Trial)
+	public void deleteFile() {
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * @return	a new stream from the start of the values
+	 * @exception	IOException
+	 */
+	private BinaryInputStream getStream() throws IOException {
+		return file == null ? new BinaryInputStream(new ByteArrayInputStream(bytes),bigEndian) : new BinaryInputStream(file,bigEndian);
+	}
+
+	/**
+	 * @return	the words read, so that the work is not eliminated
+	 * @exception	IOException
+	 */
+	@Benchmark
+	public short[] readUnsigned16() throws IOException {
+		BinaryInputStream in = getStream();
+		in.readUnsigned16(words,0,words.length);
+		in.close();
+		return words;
+	}
+
+	/**
+	 * @return	the words read, so that the work is not eliminated
+	 * @exception	IOException
+	 */
+	@Benchmark
+	public short[] readUnsigned16Bytewise() throws IOException {
+		BinaryInputStream in = getStream();
+		int len = words.length;
+		byte[] b = new byte[len*2];
+		in.readInsistently(b,0,b.length);
+		in.close();
+		int bcount = 0;
+		if (bigEndian) {
+			for (int wcount=0; wcount<len; ++wcount) {
+				words[wcount]=(short)((b[bcount++]<<8) + (b[bcount++]&0xff));
+			}
+		}
+		else {
+			for (int wcount=0; wcount<len; ++wcount) {
+				words[wcount]=(short)((b[bcount++]&0xff) + (b[bcount++]<<8));
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * @return	the floats read, so that the work is not eliminated
+	 * @exception	IOException
+	 */
+	@Benchmark
+	public float[] readFloat() throws IOException {
+		BinaryInputStream in = getStream();
+		in.readFloat(floats,floats.length);
+		in.close();
+		return floats;
+	}
+}
@@ -0,0 +1,133 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.benchmark;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.PatientStudySeriesConcatenationInstanceModel;
+import com.pixelmed.dicom.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Measure the rate at which the attributes of instances can be inserted into a
+ * {@link com.pixelmed.database.DatabaseInformationModel DatabaseInformationModel},
+ * either one at a time or within a batch insert.</p>
+ *
+ * <p>Each iteration inserts a fresh set of instances, distributed across studies and series, into a new empty database,
+ * which is either in memory or in files in a temporary folder. The time reported is per instance.</p>
+ *
+ * @author	dclunie
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseInsertBenchmark {
+
+	/***/
+	private static final int instancesPerInvocation = 1000;
+	/***/
+	private static final int instancesPerSeries = 100;
+	/***/
+	private static final int seriesPerStudy = 5;
+
+	/***/
+	@Param({"mem", "file"})
+	public String storage;
+
+	/***/
+	@Param({"0", "1000"})
+	public int batchCommitInterval;
+
+	/***/
+	private AttributeList[] lists;
+	/***/
+	private String[] fileNames;
+	/***/
+	private DatabaseInformationModel databaseInformationModel;
+	/***/
+	private File folder;
+	/***/
+	private static int databaseCount;
+
+	/**
+	 * @exception	DicomException
+	 */
+	@Setup(Level.Trial)
+	public void createDataSets() throws DicomException {
+		lists = new AttributeList[instancesPerInvocation];
+		fileNames = new String[instancesPerInvocation];
+		for (int i=0; i<instancesPerInvocation; ++i) {
+			AttributeList list = SyntheticDatasets.createHeaderOnly(i+1);
+			int series = i/instancesPerSeries;
+			int study = series/seriesPerStudy;
+			list.get(TagFromName.StudyInstanceUID).setValue("1.3.6.1.4.1.5962.99.1.1."+study);
+			list.get(TagFromName.SeriesInstanceUID).setValue("1.3.6.1.4.1.5962.99.1.2."+series);
+			list.get(TagFromName.SeriesNumber).setValue(Integer.toString(series+1));
+			lists[i] = list;
+			fileNames[i] = "/nonexistent/IMG"+(i+1)+".dcm";
+		}
+	}
+
+	/**
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	@Setup(Level.Iteration)
+	public void createDatabase() throws DicomException, IOException {
+		String databaseName = "benchmark"+(++databaseCount);
+		if (storage.equals("mem")) {
+			databaseInformationModel = new PatientStudySeriesConcatenationInstanceModel("mem:"+databaseName);
+		}
+		else {
+			folder = File.createTempFile("pixelmedbenchmark","");
+			folder.delete();
+			folder.mkdir();
+			databaseInformationModel = new PatientStudySeriesConcatenationInstanceModel("file:"+new File(folder,databaseName).getPath());
+		}
+	}
+
+	/***/
+	@TearDown(Level.Iteration)
+	public void closeDatabase() {
+		databaseInformationModel.close();
+		if (folder != null) {
+			File[] files = folder.listFiles();
+			if (files != null) {
+				for (int i=0; i<files.length; ++i) {
+					File[] nested = files[i].listFiles();
+					if (nested != null) {
+						for (int j=0; j<nested.length; ++j) {
+							nested[j].delete();
+						}
+					}
+					files[i].delete();
+				}
+			}
+			folder.delete();
+			folder = null;
+		}
+	}
+
+	/**
+	 * @exception	DicomException
+	 */
+	@Benchmark
+	@OperationsPerInvocation(instancesPerInvocation)
+	public void insert() throws DicomException {
+		if (batchCommitInterval > 0) {
+			databaseInformationModel.beginBatchInsert(batchCommitInterval);
+		}
+		for (int i=0; i<instancesPerInvocation; ++i) {
+			databaseInformationModel.insertObject(lists[i],fileNames[i],DatabaseInformationModel.FILE_REFERENCED);
+		}
+		if (batchCommitInterval > 0) {
+			databaseInformationModel.endBatchInsert();
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.benchmark;
+
+import com.pixelmed.dicom.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Measure {@link com.pixelmed.dicom.DicomStreamCopier DicomStreamCopier} copying a synthetic image
+ * held in memory from explicit to implicit VR, as is done when sending with a different transfer syntax.</p>
+ *
+ * @author	dclunie
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DicomStreamCopierBenchmark {
+
+	/***/
+	@Param({TransferSyntax.ImplicitVRLittleEndian, TransferSyntax.ExplicitVRLittleEndian})
+	public String outputTransferSyntaxUID;
+
+	/***/
+	@Param({"512"})
+	public int size;
+
+	/***/
+	@Param({"16"})
+	public int frames;
+
+	/***/
+	private byte[] bytes;
+
+	/**
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	@Setup(Level.Trial)
+	public void createDataSet() throws DicomException, IOException {
+		bytes = SyntheticDatasets.toPart10Bytes(SyntheticDatasets.createImage(1,size,size,frames),TransferSyntax.ExplicitVRLittleEndian);
+	}
+
+	/**
+	 * @return	the number of bytes written, so that the work is not eliminated
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	@Benchmark
+	public long copy() throws DicomException, IOException {
+		AttributeListWriteBenchmark.DiscardingOutputStream out = new AttributeListWriteBenchmark.DiscardingOutputStream();
+		DicomInputStream din = new DicomInputStream(new ByteArrayInputStream(bytes));
+		new DicomStreamCopier(din,new DicomOutputStream(out,TransferSyntax.ExplicitVRLittleEndian,outputTransferSyntaxUID));
+		return out.count;
+	}
+}
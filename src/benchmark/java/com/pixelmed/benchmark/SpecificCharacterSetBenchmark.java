@@ -0,0 +1,64 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.benchmark;
+
+import com.pixelmed.dicom.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Measure {@link com.pixelmed.dicom.SpecificCharacterSet#translateByteArrayToString(byte[],int,int) SpecificCharacterSet.translateByteArrayToString()}
+ * for single byte, UTF-8 and ISO 2022 escaped (Japanese) person names.</p>
+ *
+ * @author	dclunie
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpecificCharacterSetBenchmark {
+
+	/***/
+	@Param({"ASCII", "ISO_IR 100", "ISO_IR 192", "ISO 2022 IR 87"})
+	public String specificCharacterSet;
+
+	/***/
+	private SpecificCharacterSet decoder;
+
+	/***/
+	private byte[] bytes;
+
+	/**
+	 * @exception	UnsupportedEncodingException
+	 */
+	@Setup(Level.Trial)
+	public void createValue() throws UnsupportedEncodingException {
+		String value;
+		if (specificCharacterSet.equals("ASCII")) {
+			decoder = new SpecificCharacterSet((String[])null);
+			value = "Yamada^Tarou";
+		}
+		else if (specificCharacterSet.equals("ISO 2022 IR 87")) {
+			decoder = new SpecificCharacterSet(new String[] { "", specificCharacterSet });
+			value = "Yamada^Tarou=山田^太郎=やまだ^たろう";
+		}
+		else {
+			decoder = new SpecificCharacterSet(new String[] { specificCharacterSet });
+			value = "Müller^Jürgen^François";
+		}
+		bytes = decoder.translateStringToByteArray(value);
+	}
+
+	/**
+	 * @return	the decoded string, so that the work is not eliminated
+	 */
+	@Benchmark
+	public String decode() {
+		return decoder.translateByteArrayToString(bytes,0,bytes.length);
+	}
+}
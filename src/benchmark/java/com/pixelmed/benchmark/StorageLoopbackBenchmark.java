@@ -0,0 +1,151 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.benchmark;
+
+import com.pixelmed.dicom.*;
+import com.pixelmed.network.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Measure sending a set of synthetic images with {@link com.pixelmed.network.StorageSOPClassSCU StorageSOPClassSCU}
+ * to a {@link com.pixelmed.network.StorageSOPClassSCPDispatcher StorageSOPClassSCPDispatcher} running in the same process,
+ * over the loopback interface, on a single association per invocation.</p>
+ *
+ * <p>The SCP either discards what it receives, or stores it in a temporary folder, so that the network
+ * code can be measured with and without the cost of writing files.</p>
+ *
+ * @author	dclunie
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageLoopbackBenchmark {
+
+	/***/
+	@Param({"32"})
+	public int numberOfFiles;
+
+	/***/
+	@Param({"512"})
+	public int size;
+
+	/***/
+	@Param({"false", "true"})
+	public boolean store;
+
+	/** the Asynchronous Operations Window to propose, where 1 is not to propose one */
+	@Param({"1", "16"})
+	public int maximumOperationsInvoked;
+
+	/***/
+	private File sourceFolder;
+	/***/
+	private File receivedFolder;
+	/***/
+	private SetOfDicomFiles dicomFiles;
+	/***/
+	private StorageSOPClassSCPDispatcher dispatcher;
+	/***/
+	private Thread dispatcherThread;
+	/***/
+	private int port;
+
+	/**
+	 * @param	prefix
+	 * @return		a new empty temporary folder
+	 * @exception	IOException
+	 */
+	private static File createTemporaryFolder(String prefix) throws IOException {
+		File folder = File.createTempFile(prefix,"");
+		if (!folder.delete() || !folder.mkdir()) {
+			throw new IOException("Cannot create temporary folder "+folder);
+		}
+		return folder;
+	}
+
+	/**
+	 * @param	folder	the folder to remove, with everything in it
+	 */
+	private static void deleteRecursively(File folder) {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (int i=0; i<files.length; ++i) {
+				deleteRecursively(files[i]);
+			}
+		}
+		folder.delete();
+	}
+
+	/**
+	 * @exception	DicomException
+	 * @exception	DicomNetworkException
+	 * @exception	IOException
+	 * @exception	InterruptedException
+	 */
+	@Setup(Level.Trial)
+	public void startSCP() throws DicomException, DicomNetworkException, IOException, InterruptedException {
+		sourceFolder = createTemporaryFolder("benchmarksrc");
+		dicomFiles = SyntheticDatasets.writeImageFiles(sourceFolder,numberOfFiles,size,size);
+		receivedFolder = store ? createTemporaryFolder("benchmarkrcv") : null;
+		{
+			ServerSocket probe = new ServerSocket(0);
+			port = probe.getLocalPort();
+			probe.close();
+		}
+		AssociationFactory.setDefaultMaximumOperationsInvoked(maximumOperationsInvoked);
+		ReceivedObjectHandler receivedObjectHandler = new ReceivedObjectHandler() {
+			public void sendReceivedObjectIndication(String fileName,String transferSyntax,String callingAETitle) {}
+		};
+		dispatcher = new StorageSOPClassSCPDispatcher(port,"STORESCP",receivedFolder,receivedObjectHandler,0/*debugLevel*/);
+		dispatcherThread = new Thread(dispatcher);
+		dispatcherThread.setDaemon(true);
+		dispatcherThread.start();
+		// wait until the SCP is listening and accepting associations
+		for (int tries=0; ; ++tries) {
+			try {
+				new VerificationSOPClassSCU("localhost",port,"STORESCP","STORESCU",false/*secureTransport*/,0/*debugLevel*/);
+				break;
+			}
+			catch (Exception e) {
+				if (tries > 100) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * @exception	InterruptedException
+	 */
+	@TearDown(Level.Trial)
+	public void stopSCP() throws InterruptedException {
+		dispatcher.shutdown();
+		dispatcherThread.join(10000);
+		AssociationFactory.setDefaultMaximumOperationsInvoked(1);
+		deleteRecursively(sourceFolder);
+		if (receivedFolder != null) {
+			deleteRecursively(receivedFolder);
+		}
+	}
+
+	/**
+	 * @return	true if all the files were sent successfully
+	 */
+	@Benchmark
+	public boolean sendSet() {
+		StorageSOPClassSCU scu = new StorageSOPClassSCU("localhost",port,"STORESCP","STORESCU",dicomFiles,0/*compressionLevel*/,null/*multipleInstanceTransferStatusHandler*/,0/*debugLevel*/);
+		if (scu.encounteredTrappedExceptions()) {
+			throw new IllegalStateException("Exception during loopback C-STORE");
+		}
+		return true;
+	}
+}
@@ -0,0 +1,225 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.benchmark;
+
+import com.pixelmed.dicom.*;
+
+import java.io.*;
+
+/**
+ * <p>A class of static methods to generate synthetic data sets for benchmarking.</p>
+ *
+ * <p>The values are derived only from the parameters supplied, including the UIDs, so that
+ * the same data sets, and hence comparable results, are obtained on every run.</p>
+ *
+ * @author	dclunie
+ */
+public class SyntheticDatasets {
+
+	/***/
+	private static final String uidRoot = "1.3.6.1.4.1.5962.99.1";
+
+	private SyntheticDatasets() {}
+
+	/**
+	 * <p>Create an attribute list with the patient, study, series and instance attributes of a typical CT image, but no Pixel Data.</p>
+	 *
+	 * @param	instanceNumber	distinguishes instances, which otherwise share the same study and series
+	 * @return			the list
+	 * @exception	DicomException
+	 */
+	public static AttributeList createHeaderOnly(int instanceNumber) throws DicomException {
+		AttributeList list = new AttributeList();
+		list.putNewAttribute(TagFromName.SpecificCharacterSet).addValue("ISO_IR 100");
+		list.putNewAttribute(TagFromName.ImageType).addValue("ORIGINAL");
+		list.putNewAttribute(TagFromName.SOPClassUID).addValue(SOPClass.CTImageStorage);
+		list.putNewAttribute(TagFromName.SOPInstanceUID).addValue(uidRoot+".3."+instanceNumber);
+		list.putNewAttribute(TagFromName.StudyDate).addValue("20110101");
+		list.putNewAttribute(TagFromName.StudyTime).addValue("120000");
+		list.putNewAttribute(TagFromName.AccessionNumber).addValue("A0001");
+		list.putNewAttribute(TagFromName.Modality).addValue("CT");
+		list.putNewAttribute(TagFromName.Manufacturer).addValue("PixelMed");
+		list.putNewAttribute(TagFromName.ReferringPhysicianName).addValue("Smith^John");
+		list.putNewAttribute(TagFromName.StudyDescription).addValue("Synthetic Benchmark Study");
+		list.putNewAttribute(TagFromName.SeriesDescription).addValue("Synthetic Benchmark Series");
+		list.putNewAttribute(TagFromName.PatientName).addValue("Müller^Jürgen");
+		list.putNewAttribute(TagFromName.PatientID).addValue("P0001");
+		list.putNewAttribute(TagFromName.PatientBirthDate).addValue("19600101");
+		list.putNewAttribute(TagFromName.PatientSex).addValue("M");
+		list.putNewAttribute(TagFromName.SliceThickness).addValue("1.25");
+		list.putNewAttribute(TagFromName.KVP).addValue("120");
+		list.putNewAttribute(TagFromName.StudyInstanceUID).addValue(uidRoot+".1");
+		list.putNewAttribute(TagFromName.SeriesInstanceUID).addValue(uidRoot+".2");
+		list.putNewAttribute(TagFromName.StudyID).addValue("1");
+		list.putNewAttribute(TagFromName.SeriesNumber).addValue("1");
+		list.putNewAttribute(TagFromName.InstanceNumber).addValue(Integer.toString(instanceNumber));
+		{ Attribute a = list.putNewAttribute(TagFromName.ImagePositionPatient); a.addValue(-125.0); a.addValue(-125.0); a.addValue(1.25*instanceNumber); }
+		{ Attribute a = list.putNewAttribute(TagFromName.ImageOrientationPatient); a.addValue(1.0); a.addValue(0.0); a.addValue(0.0); a.addValue(0.0); a.addValue(1.0); a.addValue(0.0); }
+		list.putNewAttribute(TagFromName.FrameOfReferenceUID).addValue(uidRoot+".4");
+		list.putNewAttribute(TagFromName.SliceLocation).addValue(Double.toString(1.25*instanceNumber));
+		{ Attribute a = list.putNewAttribute(TagFromName.PixelSpacing); a.addValue(0.48828125); a.addValue(0.48828125); }
+		list.putNewAttribute(TagFromName.RescaleIntercept).addValue("-1024");
+		list.putNewAttribute(TagFromName.RescaleSlope).addValue("1");
+		list.putNewAttribute(TagFromName.WindowCenter).addValue("40");
+		list.putNewAttribute(TagFromName.WindowWidth).addValue("400");
+		return list;
+	}
+
+	/**
+	 * <p>Add the image pixel module attributes for 16 bit unsigned grayscale images, other than the Pixel Data itself.</p>
+	 *
+	 * @param	list	the list to add to
+	 * @param	rows
+	 * @param	columns
+	 * @param	frames
+	 * @exception	DicomException
+	 */
+	private static void addImagePixelDescription(AttributeList list,int rows,int columns,int frames) throws DicomException {
+		list.putNewAttribute(TagFromName.SamplesPerPixel).addValue(1);
+		list.putNewAttribute(TagFromName.PhotometricInterpretation).addValue("MONOCHROME2");
+		if (frames > 1) {
+			list.putNewAttribute(TagFromName.NumberOfFrames).addValue(frames);
+		}
+		list.putNewAttribute(TagFromName.Rows).addValue(rows);
+		list.putNewAttribute(TagFromName.Columns).addValue(columns);
+		list.putNewAttribute(TagFromName.BitsAllocated).addValue(16);
+		list.putNewAttribute(TagFromName.BitsStored).addValue(12);
+		list.putNewAttribute(TagFromName.HighBit).addValue(11);
+		list.putNewAttribute(TagFromName.PixelRepresentation).addValue(0);
+	}
+
+	/**
+	 * <p>Create pixel values that vary smoothly with some noise, like an image, rather than constant values that would compress unrealistically well.</p>
+	 *
+	 * @param	rows
+	 * @param	columns
+	 * @param	frames
+	 * @return		the pixel values, frame by frame
+	 */
+	public static short[] createPixelValues(int rows,int columns,int frames) {
+		short[] values = new short[rows*columns*frames];
+		int seed = 12345;
+		int i = 0;
+		for (int f=0; f<frames; ++f) {
+			for (int r=0; r<rows; ++r) {
+				for (int c=0; c<columns; ++c) {
+					seed = seed * 1103515245 + 12345;		// fixed linear congruential sequence, so always the same values
+					int noise = (seed >>> 16) & 0x3f;
+					values[i++] = (short)((((r + c + f * 7) * 4) & 0x0fff) ^ noise);
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * <p>Create an attribute list containing a complete uncompressed image.</p>
+	 *
+	 * @param	instanceNumber	distinguishes instances, which otherwise share the same study and series
+	 * @param	rows
+	 * @param	columns
+	 * @param	frames
+	 * @return			the list
+	 * @exception	DicomException
+	 */
+	public static AttributeList createImage(int instanceNumber,int rows,int columns,int frames) throws DicomException {
+		AttributeList list = createHeaderOnly(instanceNumber);
+		addImagePixelDescription(list,rows,columns,frames);
+		Attribute a = new OtherWordAttribute(TagFromName.PixelData);
+		a.setValues(createPixelValues(rows,columns,frames));
+		list.put(a);
+		return list;
+	}
+
+	/**
+	 * <p>Encode an attribute list as a DICOM Part 10 file in memory.</p>
+	 *
+	 * @param	list			the list, which will have the meta information header added or replaced
+	 * @param	transferSyntaxUID	the transfer syntax with which to encode the data set
+	 * @return				the bytes of the Part 10 file
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	public static byte[] toPart10Bytes(AttributeList list,String transferSyntaxUID) throws DicomException, IOException {
+		FileMetaInformation.addFileMetaInformation(list,transferSyntaxUID,"BENCHMARK");
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		list.write(bout,transferSyntaxUID,true/*useMeta*/,true/*useBufferedStream*/);
+		return bout.toByteArray();
+	}
+
+	/**
+	 * <p>Create a DICOM Part 10 file in memory containing a complete image with encapsulated Pixel Data.</p>
+	 *
+	 * <p>The PixelMed Encapsulated Raw Little Endian transfer syntax is used, with one fragment per frame,
+	 * so that the parsing of the encapsulation is measured without depending on which image codecs are installed.</p>
+	 *
+	 * @param	instanceNumber	distinguishes instances, which otherwise share the same study and series
+	 * @param	rows
+	 * @param	columns
+	 * @param	frames
+	 * @return			the bytes of the Part 10 file
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	public static byte[] createEncapsulatedPart10Bytes(int instanceNumber,int rows,int columns,int frames) throws DicomException, IOException {
+		AttributeList list = createHeaderOnly(instanceNumber);
+		addImagePixelDescription(list,rows,columns,frames);
+		String transferSyntaxUID = TransferSyntax.PixelMedEncapsulatedRawLittleEndian;
+		FileMetaInformation.addFileMetaInformation(list,transferSyntaxUID,"BENCHMARK");
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		list.write(bout,transferSyntaxUID,true/*useMeta*/,true/*useBufferedStream*/);
+
+		BinaryOutputStream out = new BinaryOutputStream(bout,false/*big*/);
+		out.writeUnsigned16(0x7fe0);			// Pixel Data
+		out.writeUnsigned16(0x0010);
+		out.write('O');
+		out.write('B');
+		out.writeUnsigned16(0);
+		out.writeUnsigned32(0xffffffffl);		// undefined length
+		out.writeUnsigned16(0xfffe);			// empty Basic Offset Table item
+		out.writeUnsigned16(0xe000);
+		out.writeUnsigned32(0);
+		short[] values = createPixelValues(rows,columns,frames);
+		int wordsPerFrame = rows*columns;
+		byte[] fragment = new byte[wordsPerFrame*2];
+		for (int f=0; f<frames; ++f) {
+			for (int i=0,j=f*wordsPerFrame; i<fragment.length; i+=2,++j) {
+				short value = values[j];
+				fragment[i]   = (byte)value;
+				fragment[i+1] = (byte)(value >> 8);
+			}
+			out.writeUnsigned16(0xfffe);		// fragment item
+			out.writeUnsigned16(0xe000);
+			out.writeUnsigned32(fragment.length);
+			out.write(fragment);
+		}
+		out.writeUnsigned16(0xfffe);			// Sequence Delimitation Item
+		out.writeUnsigned16(0xe0dd);
+		out.writeUnsigned32(0);
+		out.flush();
+		return bout.toByteArray();
+	}
+
+	/**
+	 * <p>Write a set of distinct uncompressed images as DICOM Part 10 files.</p>
+	 *
+	 * @param	folder		the folder in which to create the files, which must already exist
+	 * @param	count		the number of files
+	 * @param	rows
+	 * @param	columns
+	 * @return			the set of files
+	 * @exception	DicomException
+	 * @exception	IOException
+	 */
+	public static SetOfDicomFiles writeImageFiles(File folder,int count,int rows,int columns) throws DicomException, IOException {
+		SetOfDicomFiles dicomFiles = new SetOfDicomFiles();
+		for (int i=1; i<=count; ++i) {
+			AttributeList list = createImage(i,rows,columns,1);
+			File file = new File(folder,"IMG"+i+".dcm");
+			FileMetaInformation.addFileMetaInformation(list,TransferSyntax.ExplicitVRLittleEndian,"BENCHMARK");
+			list.write(file,TransferSyntax.ExplicitVRLittleEndian,true/*useMeta*/,true/*useBufferedStream*/);
+			dicomFiles.add(file.getPath(),SOPClass.CTImageStorage,Attribute.getSingleStringValueOrNull(list,TagFromName.SOPInstanceUID),TransferSyntax.ExplicitVRLittleEndian);
+		}
+		return dicomFiles;
+	}
+}
@@ -0,0 +1,115 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.benchmark;
+
+import com.pixelmed.display.WindowCenterAndWidth;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ByteLookupTable;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.LookupOp;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Measure {@link com.pixelmed.display.WindowCenterAndWidth#applyWindowCenterAndWidthLinear(BufferedImage,double,double,boolean,boolean,double,double,boolean,int,int,BufferedImage)
+ * WindowCenterAndWidth.applyWindowCenterAndWidthLinear()} of a 16 bit gray image, which applies the lookup table to bands of rows in parallel,
+ * both allocating a new destination each time and reusing the destination from the previous call, as when the user is dragging to adjust the window.</p>
+ *
+ * <p>For comparison, the same lookup table is also computed and applied with a {@link java.awt.image.LookupOp LookupOp},
+ * which is how windows were applied before.</p>
+ *
+ * @author	dclunie
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WindowCenterAndWidthBenchmark {
+
+	/***/
+	@Param({"512", "4096"})
+	public int size;
+
+	/***/
+	private BufferedImage src;
+
+	/***/
+	private BufferedImage dst;
+
+	/***/
+	private double center;
+
+	/***/
+	private double width;
+
+	/***/
+	private ColorModel dstColorModel;
+
+	/***/
+	@Setup(Level.Trial)
+	public void createImage() {
+		src = new BufferedImage(size,size,BufferedImage.TYPE_USHORT_GRAY);
+		short[] values = SyntheticDatasets.createPixelValues(size,size,1);
+		System.arraycopy(values,0,((DataBufferUShort)(src.getRaster().getDataBuffer())).getData(),0,values.length);
+		int min = 65535;
+		int max = 0;
+		for (int i=0; i<values.length; ++i) {
+			int value = values[i] & 0xffff;
+			if (value < min) min = value;
+			if (value > max) max = value;
+		}
+		center = (min + max)/2.0;
+		width = max - min + 1;
+		dstColorModel = new ComponentColorModel(
+			ColorSpace.getInstance(ColorSpace.CS_GRAY),
+			new int[] {8},
+			false,		// has alpha
+			false,		// alpha premultipled
+			Transparency.OPAQUE,
+			DataBuffer.TYPE_BYTE
+		);
+	}
+
+	/**
+	 * @return	the windowed image, so that the work is not eliminated
+	 */
+	@Benchmark
+	public BufferedImage applyWindowCenterAndWidthLinear() {
+		return WindowCenterAndWidth.applyWindowCenterAndWidthLinear(src,center,width,false,false,1,0,false,0,0,null);
+	}
+
+	/**
+	 * @return	the windowed image, so that the work is not eliminated
+	 */
+	@Benchmark
+	public BufferedImage applyWindowCenterAndWidthLinearReusingDestination() {
+		dst = WindowCenterAndWidth.applyWindowCenterAndWidthLinear(src,center,width,false,false,1,0,false,0,0,dst);
+		return dst;
+	}
+
+	/**
+	 * @return	the windowed image, so that the work is not eliminated
+	 */
+	@Benchmark
+	public BufferedImage applyWindowCenterAndWidthLinearWithLookupOp() {
+		double cmp5 = center - 0.5;
+		double wm1 = width - 1.0;
+		double bottom = cmp5 - wm1/2.0;
+		double top = cmp5 + wm1/2.0;
+		byte lut[] = new byte[65536];
+		for (int x=0; x<65536; ++x) {
+			lut[x] = x <= bottom ? 0 : (x > top ? (byte)255 : (byte)(((x-cmp5)/wm1 + 0.5)*255));
+		}
+		LookupOp lookup = new LookupOp(new ByteLookupTable(0,lut),null);
+		return lookup.filter(src,lookup.createCompatibleDestImage(src,dstColorModel));
+	}
+}
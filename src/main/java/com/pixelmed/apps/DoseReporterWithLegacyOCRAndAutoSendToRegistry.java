@@ -843,12 +843,14 @@ if (applicationDebugLevel > 1) System.err.println("Starting up DICOM association
 			int port = networkApplicationProperties.getListeningPort();
 			int storageSCPDebugLevel = networkApplicationProperties.getStorageSCPDebugLevel();
 			int queryDebugLevel = networkApplicationProperties.getQueryDebugLevel();
-			new Thread(new StorageSOPClassSCPDispatcher(port,ourCalledAETitle,savedImagesFolder,storedFilePathStrategy,new OurReceivedObjectHandler(),
+			StorageSOPClassSCPDispatcher dispatcher = new StorageSOPClassSCPDispatcher(port,ourCalledAETitle,savedImagesFolder,storedFilePathStrategy,new OurReceivedObjectHandler(),
 					this.databaseInformationModel.getQueryResponseGeneratorFactory(queryDebugLevel),
 					this.databaseInformationModel.getRetrieveResponseGeneratorFactory(queryDebugLevel),
 					networkApplicationInformation,
 					false/*secureTransport*/,
-					storageSCPDebugLevel)).start();
+					storageSCPDebugLevel);
+			dispatcher.setMaximumConcurrentAssociations(networkApplicationProperties.getStorageSCPMaximumConcurrentAssociations());
+			new Thread(dispatcher).start();
 		}
 		
 		new Thread(new WatchDatabaseAndSendToRegistry()).start();
@@ -437,6 +437,7 @@ System.err.println("Starting up DICOM association listener on port "+port+" AET
 					new OurPresentationContextSelectionPolicy(),
 					false/*secureTransport*/,
 					storageSCPDebugLevel);
+				storageSOPClassSCPDispatcher.setMaximumConcurrentAssociations(networkApplicationProperties.getStorageSCPMaximumConcurrentAssociations());
 				new Thread(storageSOPClassSCPDispatcher).start();
 			}
 		}
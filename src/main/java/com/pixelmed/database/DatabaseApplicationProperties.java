@@ -7,6 +7,7 @@ import com.pixelmed.utils.FileUtilities;
 import java.io.File; 
 import java.io.IOException; 
 import java.util.Properties; 
+import java.util.StringTokenizer; 
 
 /**
  * <p>This class provides common support to applications requiring properties related to database services.</p>
@@ -15,7 +16,12 @@ import java.util.Properties;
  *
  * <p><code>Application.DatabaseFileName</code> - where to save the database files</p>
  * <p><code>Application.SavedImagesFolderName</code> - where to save incoming images referenced by the database</p>
+ * <p><code>Application.AdditionalSavedImagesFolderNames</code> - white space separated list of other folders, such as on other volumes, across which to spread incoming images as well as the saved images folder (only the saved images folder will be used if this property is absent)</p>
+ * <p><code>Application.SavedImagesFolderSelection</code> - how to choose the folder for each incoming image when there are additional folders, either ROUNDROBIN or FREESPACE (the default)</p>
+ * <p><code>Application.SavedImagesFolderCheckForExisting</code> - whether to look in every folder for a file already saved for each incoming image when there are additional folders, so that an image received again replaces it, either TRUE (the default) or FALSE, which avoids the cost of looking when the folders are on slow, e.g., network, volumes</p>
  * <p><code>Application.DatabaseServerName</code> - name to use for external TCP access to database (such a server will not be started if this property is absent)</p>
+ * <p><code>Application.DatabaseConnectionPoolSize</code> - the number of read-only connections to use for concurrent queries (a single shared connection will be used if this property is absent or zero)</p>
+ * <p><code>Application.DatabaseIndexCacheSize</code> - the number of instance records whose values are kept in an in-memory index of the database (no index will be used if this property is absent or zero)</p>
  *
  * @author	dclunie
  */
@@ -25,15 +31,29 @@ public class DatabaseApplicationProperties {
 
 	private static final String defaultDatabaseFileName  = ".com.pixelmed.display.DicomImageViewer.database";
 	private static final String defaultSavedImagesFolderName  = ".com.pixelmed.display.DicomImageViewer.images";
+	private static final String defaultSavedImagesFolderSelection  = "FREESPACE";
+	private static final boolean defaultSavedImagesFolderCheckForExisting  = true;
 	private static final String defaultDatabaseServerName  = null;	// i.e., do not start external access server
+	private static final int defaultDatabaseConnectionPoolSize  = 0;	// i.e., do not use pooled connections
+	private static final int defaultDatabaseIndexCacheSize  = 0;	// i.e., do not use an in-memory index
 
 	public static final String propertyName_DatabaseFileName = "Application.DatabaseFileName";
 	public static final String propertyName_SavedImagesFolderName = "Application.SavedImagesFolderName";
+	public static final String propertyName_AdditionalSavedImagesFolderNames = "Application.AdditionalSavedImagesFolderNames";
+	public static final String propertyName_SavedImagesFolderSelection = "Application.SavedImagesFolderSelection";
+	public static final String propertyName_SavedImagesFolderCheckForExisting = "Application.SavedImagesFolderCheckForExisting";
 	public static final String propertyName_DatabaseServerName = "Application.DatabaseServerName";
+	public static final String propertyName_DatabaseConnectionPoolSize = "Application.DatabaseConnectionPoolSize";
+	public static final String propertyName_DatabaseIndexCacheSize = "Application.DatabaseIndexCacheSize";
 	
 	private String dataBaseFileName = defaultDatabaseFileName;
 	private String savedImagesFolderName = defaultSavedImagesFolderName;
+	private String[] additionalSavedImagesFolderNames = new String[0];
+	private String savedImagesFolderSelection = defaultSavedImagesFolderSelection;
+	private boolean savedImagesFolderCheckForExisting = defaultSavedImagesFolderCheckForExisting;
 	private String databaseServerName = defaultDatabaseServerName;
+	private int databaseConnectionPoolSize = defaultDatabaseConnectionPoolSize;
+	private int databaseIndexCacheSize = defaultDatabaseIndexCacheSize;
 
 	/**
 	 * <p>Extract the DICOM network properties from the supplied properties.</p>
@@ -49,10 +69,45 @@ public class DatabaseApplicationProperties {
 		if (savedImagesFolderName == null) {
 			savedImagesFolderName=defaultSavedImagesFolderName;
 		}
+		String additionalSavedImagesFolderNamesString=properties.getProperty(propertyName_AdditionalSavedImagesFolderNames);
+		if (additionalSavedImagesFolderNamesString != null) {
+			StringTokenizer st = new StringTokenizer(additionalSavedImagesFolderNamesString);
+			additionalSavedImagesFolderNames = new String[st.countTokens()];
+			for (int i=0; i<additionalSavedImagesFolderNames.length; ++i) {
+				additionalSavedImagesFolderNames[i]=st.nextToken();
+			}
+		}
+		savedImagesFolderSelection=properties.getProperty(propertyName_SavedImagesFolderSelection);
+		if (savedImagesFolderSelection == null || savedImagesFolderSelection.trim().length() == 0) {
+			savedImagesFolderSelection=defaultSavedImagesFolderSelection;
+		}
+		savedImagesFolderSelection=savedImagesFolderSelection.trim().toUpperCase();
+		String savedImagesFolderCheckForExistingString=properties.getProperty(propertyName_SavedImagesFolderCheckForExisting);
+		if (savedImagesFolderCheckForExistingString != null && savedImagesFolderCheckForExistingString.trim().length() > 0) {
+			savedImagesFolderCheckForExisting=!savedImagesFolderCheckForExistingString.trim().equalsIgnoreCase("FALSE");
+		}
 		databaseServerName=properties.getProperty(propertyName_DatabaseServerName);
 		if (databaseServerName == null) {
 			databaseServerName=defaultDatabaseServerName;
 		}
+		String databaseConnectionPoolSizeString=properties.getProperty(propertyName_DatabaseConnectionPoolSize);
+		if (databaseConnectionPoolSizeString != null && databaseConnectionPoolSizeString.trim().length() > 0) {
+			try {
+				databaseConnectionPoolSize=Integer.parseInt(databaseConnectionPoolSizeString.trim());
+			}
+			catch (NumberFormatException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+		String databaseIndexCacheSizeString=properties.getProperty(propertyName_DatabaseIndexCacheSize);
+		if (databaseIndexCacheSizeString != null && databaseIndexCacheSizeString.trim().length() > 0) {
+			try {
+				databaseIndexCacheSize=Integer.parseInt(databaseIndexCacheSizeString.trim());
+			}
+			catch (NumberFormatException e) {
+				e.printStackTrace(System.err);
+			}
+		}
 	}
 	
 	/**
@@ -78,27 +133,80 @@ public class DatabaseApplicationProperties {
 	 */
 	public File getSavedImagesFolderCreatingItIfNecessary() throws IOException {
 //System.err.println("DatabaseApplicationProperties.getSavedImagesFolderCreatingItIfNecessary(): requesting savedImagesFolderName = "+savedImagesFolderName);
-		File savedImagesFolder = new File(savedImagesFolderName);
-		if (savedImagesFolder.isAbsolute()) {
-			if (!savedImagesFolder.isDirectory() && !savedImagesFolder.mkdirs()) {
-				throw new IOException("Cannot find or create absolute path "+savedImagesFolder);
+		File savedImagesFolder = getFolderCreatingItIfNecessary(savedImagesFolderName);
+//System.err.println("DatabaseApplicationProperties.getSavedImagesFolderCreatingItIfNecessary(): using savedImagesFolder = "+savedImagesFolder);
+		return savedImagesFolder;
+	}
+
+	/**
+	 * @param	folderName
+	 * @return			the folder
+	 * @exception	IOException	if the folder does not exist and cannot be created
+	 */
+	private static File getFolderCreatingItIfNecessary(String folderName) throws IOException {
+		File folder = new File(folderName);
+		if (folder.isAbsolute()) {
+			if (!folder.isDirectory() && !folder.mkdirs()) {
+				throw new IOException("Cannot find or create absolute path "+folder);
 			}
 		}
 		else {
-			savedImagesFolder = new File(FileUtilities.makePathToFileInUsersHomeDirectory(savedImagesFolderName));
-			if (!savedImagesFolder.isDirectory() && !savedImagesFolder.mkdirs()) {
-				throw new IOException("Cannot find or create home directory relative path "+savedImagesFolder);
+			folder = new File(FileUtilities.makePathToFileInUsersHomeDirectory(folderName));
+			if (!folder.isDirectory() && !folder.mkdirs()) {
+				throw new IOException("Cannot find or create home directory relative path "+folder);
 			}
 		}
-//System.err.println("DatabaseApplicationProperties.getSavedImagesFolderCreatingItIfNecessary(): using savedImagesFolder = "+savedImagesFolder);
-		return savedImagesFolder;
+		return folder;
 	}
 
+	/**
+	 * <p>Return the additional folders across which to spread incoming images, creating them if necessary.</p>
+	 *
+	 * <p>If not absolute paths, will be sought or created relative to the current user's home directory.</p>
+	 *
+	 * @return	the additional folders, which will be empty if there are none
+	 */
+	public File[] getAdditionalSavedImagesFoldersCreatingThemIfNecessary() throws IOException {
+		File[] folders = new File[additionalSavedImagesFolderNames.length];
+		for (int i=0; i<folders.length; ++i) {
+			folders[i]=getFolderCreatingItIfNecessary(additionalSavedImagesFolderNames[i]);
+		}
+		return folders;
+	}
+
+	/**
+	 * <p>Return how to choose the folder for each incoming image when there are additional folders.</p>
+	 *
+	 * @return	ROUNDROBIN or FREESPACE
+	 */
+	public String getSavedImagesFolderSelection() { return savedImagesFolderSelection; }
+
+	/**
+	 * <p>Return whether to look in every folder for a file already saved for each incoming image when there are additional folders.</p>
+	 *
+	 * @return	true if every folder is to be checked
+	 */
+	public boolean getSavedImagesFolderCheckForExisting() { return savedImagesFolderCheckForExisting; }
+
 	/**
 	 * <p>Return the database server name for external access.</p>
 	 *
 	 * @return	the database server name
 	 */
 	public String getDatabaseServerName() { return databaseServerName; }
+
+	/**
+	 * <p>Return the number of pooled read-only connections to use for queries.</p>
+	 *
+	 * @return	the number of connections, or 0 if a single shared connection is to be used
+	 */
+	public int getDatabaseConnectionPoolSize() { return databaseConnectionPoolSize; }
+
+	/**
+	 * <p>Return the number of instance records whose values are kept in an in-memory index of the database.</p>
+	 *
+	 * @return	the number of records, or 0 if no index is to be used
+	 */
+	public int getDatabaseIndexCacheSize() { return databaseIndexCacheSize; }
 }
 
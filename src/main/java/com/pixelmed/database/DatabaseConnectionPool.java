@@ -0,0 +1,314 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Properties;
+
+/**
+ * <p>A bounded pool of read-only JDBC connections, used by {@link com.pixelmed.database.DatabaseInformationModel DatabaseInformationModel}
+ * so that queries may proceed concurrently with each other and with insertions through the model's own connection.</p>
+ *
+ * <p>Each pooled connection keeps a single {@link java.sql.Statement Statement} open for reuse. The statements handed out by
+ * {@link #createStatement() createStatement()} are wrappers around it that, when closed, close any result sets obtained from them
+ * and return the connection to the pool rather than closing it. A thread is given back the connection it used most recently
+ * if that connection is idle, so that repeated queries from the same thread reuse the same connection and statement.</p>
+ *
+ * <p>Each pooled connection also keeps a {@link com.pixelmed.database.PreparedStatementCache PreparedStatementCache}, from which
+ * {@link #prepareStatement(String) prepareStatement()} hands out statements in the same manner.</p>
+ *
+ * <p>If all connections are in use, a request waits until one is returned, for no longer than the specified timeout.</p>
+ *
+ * @author	dclunie
+ */
+class DatabaseConnectionPool {
+
+	/***/
+	private String url;
+	/***/
+	private Properties properties;
+	/***/
+	private int maximumNumberOfConnections;
+	/***/
+	private long timeoutInMilliseconds;
+
+	/***/
+	private LinkedList idleConnections;
+	/***/
+	private ArrayList allConnections;
+	/***/
+	private boolean closed;
+
+	/***/
+	private ThreadLocal mostRecentlyUsedConnection = new ThreadLocal();
+
+	/***/
+	private static final int maximumNumberOfPreparedStatementsPerConnection = 64;
+
+	/**
+	 * <p>A connection in the pool, together with its reusable statement.</p>
+	 */
+	private static class PooledConnection {
+		/***/
+		final Connection connection;
+		/***/
+		final Statement statement;
+		/***/
+		final PreparedStatementCache preparedStatements;
+
+		PooledConnection(Connection connection) throws SQLException {
+			this.connection=connection;
+			this.statement=connection.createStatement();
+			this.preparedStatements=new PreparedStatementCache(connection,maximumNumberOfPreparedStatementsPerConnection);
+		}
+
+		void close() {
+			preparedStatements.close();
+			try {
+				statement.close();
+			}
+			catch (SQLException e) {
+			}
+			try {
+				connection.close();
+			}
+			catch (SQLException e) {
+			}
+		}
+	}
+
+	/**
+	 * <p>Intercepts the closing of a borrowed statement, and the obtaining of result sets from it.</p>
+	 */
+	private class BorrowedStatementHandler implements InvocationHandler {
+		/***/
+		private PooledConnection pooledConnection;
+		/***/
+		private Statement statement;
+		/***/
+		private boolean closeStatement;
+		/***/
+		private ArrayList resultSets = new ArrayList();
+
+		/**
+		 * @param	pooledConnection	the borrowed connection
+		 * @param	statement		the statement on the connection to which to delegate
+		 * @param	closeStatement		whether to close the statement when the borrowed statement is closed, as for one from the prepared statement cache
+		 */
+		BorrowedStatementHandler(PooledConnection pooledConnection,Statement statement,boolean closeStatement) {
+			this.pooledConnection=pooledConnection;
+			this.statement=statement;
+			this.closeStatement=closeStatement;
+		}
+
+		public Object invoke(Object proxy,Method method,Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				returnConnection();
+				return null;
+			}
+			else if (name.equals("isClosed")) {
+				return Boolean.valueOf(pooledConnection == null);
+			}
+			else if (name.equals("equals")) {
+				return Boolean.valueOf(proxy == args[0]);
+			}
+			else if (name.equals("hashCode")) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			else if (name.equals("toString")) {
+				return "BorrowedStatement "+(pooledConnection == null ? "(closed)" : statement.toString());
+			}
+			if (pooledConnection == null) {
+				throw new SQLException("Statement is closed");
+			}
+			try {
+				Object result = method.invoke(statement,args);
+				if (result instanceof ResultSet) {
+					resultSets.add(result);
+				}
+				return result;
+			}
+			catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		/***/
+		private void returnConnection() {
+			if (pooledConnection != null) {
+				for (int i=0; i<resultSets.size(); ++i) {
+					try {
+						((ResultSet)(resultSets.get(i))).close();
+					}
+					catch (SQLException e) {
+					}
+				}
+				resultSets.clear();
+				if (closeStatement) {
+					try {
+						statement.close();
+					}
+					catch (SQLException e) {
+					}
+				}
+				release(pooledConnection);
+				pooledConnection=null;
+				statement=null;
+			}
+		}
+	}
+
+	/**
+	 * <p>Construct a pool, without yet opening any connections.</p>
+	 *
+	 * @param	url				the JDBC URL of the database
+	 * @param	properties			the properties with which to open each connection
+	 * @param	maximumNumberOfConnections	the most connections that will be open at once
+	 * @param	timeoutInMilliseconds		how long to wait for a connection when all are in use
+	 */
+	DatabaseConnectionPool(String url,Properties properties,int maximumNumberOfConnections,long timeoutInMilliseconds) {
+		this.url=url;
+		this.properties=properties;
+		this.maximumNumberOfConnections=maximumNumberOfConnections > 0 ? maximumNumberOfConnections : 1;
+		this.timeoutInMilliseconds=timeoutInMilliseconds;
+		idleConnections = new LinkedList();
+		allConnections = new ArrayList();
+		closed = false;
+	}
+
+	/**
+	 * <p>Get a read-only statement on a connection from the pool.</p>
+	 *
+	 * <p>The statement must be closed when finished with, in order to return the connection to the pool.</p>
+	 *
+	 * @return			the statement
+	 * @exception	SQLException	if a connection cannot be opened, the pool is closed, or none became available in time
+	 */
+	Statement createStatement() throws SQLException {
+		PooledConnection pooledConnection = borrow();
+		return (Statement)Proxy.newProxyInstance(Statement.class.getClassLoader(),new Class[] { Statement.class },new BorrowedStatementHandler(pooledConnection,pooledConnection.statement,false));
+	}
+
+	/**
+	 * <p>Get a read-only prepared statement on a connection from the pool, reusing one already prepared on that connection for the same SQL if possible.</p>
+	 *
+	 * <p>The statement must be closed when finished with, in order to return it and the connection to the pool.</p>
+	 *
+	 * @param	sql			the SQL, with ? for each parameter
+	 * @return				the statement
+	 * @exception	SQLException	if a connection cannot be opened or the statement prepared, the pool is closed, or no connection became available in time
+	 */
+	PreparedStatement prepareStatement(String sql) throws SQLException {
+		PooledConnection pooledConnection = borrow();
+		PreparedStatement preparedStatement;
+		try {
+			preparedStatement = pooledConnection.preparedStatements.prepareStatement(sql);
+		}
+		catch (SQLException e) {
+			release(pooledConnection);
+			throw e;
+		}
+		return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),new Class[] { PreparedStatement.class },new BorrowedStatementHandler(pooledConnection,preparedStatement,true));
+	}
+
+	/**
+	 * @return			an idle connection, preferably the one most recently used by this thread, or a new one if there are fewer than the maximum
+	 * @exception	SQLException
+	 */
+	private synchronized PooledConnection borrow() throws SQLException {
+		long giveUpTime = System.currentTimeMillis() + timeoutInMilliseconds;
+		while (true) {
+			if (closed) {
+				throw new SQLException("Connection pool is closed");
+			}
+			Object preferred = mostRecentlyUsedConnection.get();
+			if (preferred != null && idleConnections.remove(preferred)) {
+				return (PooledConnection)preferred;
+			}
+			if (!idleConnections.isEmpty()) {
+				return (PooledConnection)(idleConnections.removeLast());
+			}
+			if (allConnections.size() < maximumNumberOfConnections) {
+				PooledConnection pooledConnection = open();
+				allConnections.add(pooledConnection);
+				return pooledConnection;
+			}
+			long remaining = giveUpTime - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new SQLException("Timed out waiting for one of "+maximumNumberOfConnections+" database connections");
+			}
+			try {
+				wait(remaining);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted waiting for a database connection");
+			}
+		}
+	}
+
+	/**
+	 * @return			a new read-only connection
+	 * @exception	SQLException
+	 */
+	private PooledConnection open() throws SQLException {
+//System.err.println("DatabaseConnectionPool.open(): opening connection "+(allConnections.size()+1)+" of "+maximumNumberOfConnections);
+		Connection connection = DriverManager.getConnection(url,properties);
+		try {
+			connection.setReadOnly(true);
+			connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			return new PooledConnection(connection);
+		}
+		catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param	pooledConnection	a connection previously borrowed
+	 */
+	private synchronized void release(PooledConnection pooledConnection) {
+		if (closed) {
+			pooledConnection.close();
+		}
+		else {
+			idleConnections.addLast(pooledConnection);
+			mostRecentlyUsedConnection.set(pooledConnection);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * <p>Close all idle connections, and any borrowed connections as they are returned.</p>
+	 */
+	synchronized void close() {
+		closed = true;
+		while (!idleConnections.isEmpty()) {
+			((PooledConnection)(idleConnections.removeFirst())).close();
+		}
+		allConnections.clear();
+		notifyAll();
+	}
+
+	/**
+	 * @return	the number of connections currently open
+	 */
+	synchronized int getNumberOfConnections() {
+		return allConnections.size();
+	}
+}
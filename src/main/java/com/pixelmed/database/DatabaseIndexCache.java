@@ -0,0 +1,338 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import com.pixelmed.dicom.InformationEntity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>An in-memory index of the records in the tables of a {@link com.pixelmed.database.DatabaseInformationModel DatabaseInformationModel},
+ * used to answer requests for the children of a record, for records with a particular UID, and for a record with a particular
+ * primary key, without querying the database.</p>
+ *
+ * <p>Every record in the database is present in the index, with its primary key, its parent's primary key, its UID (if the entity has one)
+ * and a list of its children, so that the hierarchy can be navigated and UIDs looked up entirely in memory. The values of all
+ * the columns of each record are kept too, except for the records of the lowest entity in the model (typically the instances), of which there may be very many;
+ * the column values of only the most recently used of those are kept, up to a specified number, and the rest must be fetched from the database when needed.</p>
+ *
+ * <p>The index is maintained by the model as records are inserted, updated and deleted, and all methods are synchronized.
+ * Those that return records return copies, or null if the index cannot answer without the database, in which case
+ * the model queries the database and supplies the result with {@link #put(InformationEntity,Map) put()}.</p>
+ *
+ * @author	dclunie
+ */
+class DatabaseIndexCache {
+
+	/**
+	 * <p>A record in the index.</p>
+	 */
+	private static class Record {
+		/***/
+		final InformationEntity ie;
+		/***/
+		final String primaryKey;
+		/***/
+		final String parentKey;
+		/***/
+		final String uid;
+		/***/
+		final boolean leaf;
+		/***/
+		Map columnValues;		// null if not (or no longer) held
+		/***/
+		ArrayList children;		// of Record; null if none
+
+		Record(InformationEntity ie,String primaryKey,String parentKey,String uid,boolean leaf) {
+			this.ie=ie;
+			this.primaryKey=primaryKey;
+			this.parentKey=parentKey;
+			this.uid=uid;
+			this.leaf=leaf;
+		}
+	}
+
+	/***/
+	private DatabaseInformationModel databaseInformationModel;
+	/***/
+	private int maximumNumberOfLeafRecordsWithColumnValues;
+
+	/***/
+	private HashMap recordsByPrimaryKey;
+	/***/
+	private HashMap recordsByEntityAndUID;		// key is InformationEntity, value is HashMap of UID to Record or ArrayList of Record if more than one
+	/***/
+	private ArrayList rootRecords;
+	/***/
+	private LinkedHashMap leafRecordsWithColumnValues;	// in order of access, least recently used first
+
+	/**
+	 * <p>Construct an empty index.</p>
+	 *
+	 * @param	databaseInformationModel			the model whose tables are indexed, used for the names of the key and UID columns
+	 * @param	maximumNumberOfLeafRecordsWithColumnValues	the number of records of the lowest entity for which the column values are kept
+	 */
+	DatabaseIndexCache(DatabaseInformationModel databaseInformationModel,int maximumNumberOfLeafRecordsWithColumnValues) {
+		this.databaseInformationModel=databaseInformationModel;
+		this.maximumNumberOfLeafRecordsWithColumnValues=maximumNumberOfLeafRecordsWithColumnValues;
+		recordsByPrimaryKey = new HashMap();
+		recordsByEntityAndUID = new HashMap();
+		rootRecords = new ArrayList();
+		leafRecordsWithColumnValues = new LinkedHashMap(16,0.75f,true/*accessOrder*/);
+	}
+
+	/**
+	 * @param	ie
+	 * @return		true if the entity is the lowest in the model
+	 */
+	private boolean isLeaf(InformationEntity ie) {
+		return databaseInformationModel.getChildTypeForParent(ie) == null;
+	}
+
+	/**
+	 * <p>Add a record, without its column values, or do nothing if it is already present.</p>
+	 *
+	 * @param	ie		the entity
+	 * @param	primaryKey	the primary key of the record
+	 * @param	parentKey	the primary key of the parent record, or null if the entity is the root
+	 * @param	uid		the UID of the record, or null if none
+	 */
+	synchronized void add(InformationEntity ie,String primaryKey,String parentKey,String uid) {
+		if (primaryKey != null && recordsByPrimaryKey.get(primaryKey) == null) {
+			Record record = new Record(ie,primaryKey,parentKey,uid,isLeaf(ie));
+			recordsByPrimaryKey.put(primaryKey,record);
+			if (uid != null && uid.length() > 0) {
+				HashMap recordsByUID = (HashMap)(recordsByEntityAndUID.get(ie));
+				if (recordsByUID == null) {
+					recordsByUID = new HashMap();
+					recordsByEntityAndUID.put(ie,recordsByUID);
+				}
+				Object existing = recordsByUID.get(uid);
+				if (existing == null) {
+					recordsByUID.put(uid,record);
+				}
+				else if (existing instanceof ArrayList) {
+					((ArrayList)existing).add(record);
+				}
+				else {
+					ArrayList duplicates = new ArrayList();		// should not happen, since UIDs are supposed to be unique, but can
+					duplicates.add(existing);
+					duplicates.add(record);
+					recordsByUID.put(uid,duplicates);
+				}
+			}
+			if (parentKey == null) {
+				rootRecords.add(record);
+			}
+			else {
+				Record parent = (Record)(recordsByPrimaryKey.get(parentKey));
+				if (parent != null) {
+					if (parent.children == null) {
+						parent.children = new ArrayList();
+					}
+					parent.children.add(record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Add or replace the column values of a record, adding the record itself if it is not already present.</p>
+	 *
+	 * @param	ie		the entity
+	 * @param	columnValues	the values of all the columns of the record, indexed by upper case column name, as returned by the model's find methods
+	 */
+	synchronized void put(InformationEntity ie,Map columnValues) {
+		String primaryKey = (String)(columnValues.get(databaseInformationModel.getLocalPrimaryKeyColumnName(ie)));
+		if (primaryKey != null) {
+			Record record = (Record)(recordsByPrimaryKey.get(primaryKey));
+			if (record == null) {
+				String uidColumnName = databaseInformationModel.getUIDColumnNameForInformationEntity(ie);
+				add(ie,primaryKey,
+					(String)(columnValues.get(databaseInformationModel.getLocalParentReferenceColumnName(ie))),
+					uidColumnName == null ? null : (String)(columnValues.get(uidColumnName)));
+				record = (Record)(recordsByPrimaryKey.get(primaryKey));
+			}
+			record.columnValues = new TreeMap(columnValues);
+			if (record.leaf) {
+				leafRecordsWithColumnValues.put(record,record);
+				Iterator i = leafRecordsWithColumnValues.keySet().iterator();
+				while (leafRecordsWithColumnValues.size() > maximumNumberOfLeafRecordsWithColumnValues && i.hasNext()) {
+					Record eldest = (Record)(i.next());
+					eldest.columnValues = null;
+					i.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Discard the column values of a record, because they have changed in the database.</p>
+	 *
+	 * @param	primaryKey	the primary key of the record
+	 */
+	synchronized void invalidate(String primaryKey) {
+		Record record = (Record)(recordsByPrimaryKey.get(primaryKey));
+		if (record != null) {
+			record.columnValues = null;
+			leafRecordsWithColumnValues.remove(record);
+		}
+	}
+
+	/**
+	 * <p>Remove a record, but not its children, as when it is deleted from the database.</p>
+	 *
+	 * @param	primaryKey	the primary key of the record
+	 */
+	synchronized void remove(String primaryKey) {
+		Record record = (Record)(recordsByPrimaryKey.remove(primaryKey));
+		if (record != null) {
+			leafRecordsWithColumnValues.remove(record);
+			if (record.uid != null) {
+				HashMap recordsByUID = (HashMap)(recordsByEntityAndUID.get(record.ie));
+				if (recordsByUID != null) {
+					Object existing = recordsByUID.get(record.uid);
+					if (existing == record) {
+						recordsByUID.remove(record.uid);
+					}
+					else if (existing instanceof ArrayList) {
+						((ArrayList)existing).remove(record);
+					}
+				}
+			}
+			if (record.parentKey == null) {
+				rootRecords.remove(record);
+			}
+			else {
+				Record parent = (Record)(recordsByPrimaryKey.get(record.parentKey));
+				if (parent != null && parent.children != null) {
+					parent.children.remove(record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param	records		a list of Record
+	 * @param	ie		the entity of the records wanted, or null if any
+	 * @return			a list of copies of the column values of the records, or null if the values of any are not held
+	 */
+	private static ArrayList copyColumnValues(ArrayList records,InformationEntity ie) {
+		ArrayList result = new ArrayList();
+		if (records != null) {
+			for (int i=0; i<records.size(); ++i) {
+				Record record = (Record)(records.get(i));
+				if (ie == null || record.ie == ie) {
+					if (record.columnValues == null) {
+						return null;
+					}
+					result.add(new TreeMap(record.columnValues));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param	records		a list of Record
+	 */
+	private void touch(ArrayList records) {
+		if (records != null) {
+			for (int i=0; i<records.size(); ++i) {
+				Record record = (Record)(records.get(i));
+				if (record.leaf) {
+					leafRecordsWithColumnValues.get(record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Get the records of an entity with the specified parent.</p>
+	 *
+	 * @param	ie		the entity of the records wanted
+	 * @param	parentKey	the primary key of the parent record, ignored if the entity is the root
+	 * @return			a list of the column values of each record, or null if the parent or the column values of any of its children are not held
+	 */
+	synchronized ArrayList getChildren(InformationEntity ie,String parentKey) {
+		ArrayList records;
+		if (ie == databaseInformationModel.getRootInformationEntity() || parentKey == null) {
+			records = rootRecords;
+		}
+		else {
+			Record parent = (Record)(recordsByPrimaryKey.get(parentKey));
+			if (parent == null) {
+				return null;		// may be children left by deleting their parent, so let the database decide
+			}
+			records = parent.children;
+		}
+		ArrayList result = copyColumnValues(records,ie);
+		if (result != null) {
+			touch(records);
+		}
+		return result;
+	}
+
+	/**
+	 * <p>Get the records of an entity with the specified UID.</p>
+	 *
+	 * @param	ie		the entity of the records wanted
+	 * @param	uid		the UID
+	 * @return			a list of the column values of each record, or null if the column values of any are not held
+	 */
+	synchronized ArrayList getRecordsWithUID(InformationEntity ie,String uid) {
+		HashMap recordsByUID = (HashMap)(recordsByEntityAndUID.get(ie));
+		Object existing = recordsByUID == null ? null : recordsByUID.get(uid);
+		ArrayList records = new ArrayList();
+		if (existing instanceof ArrayList) {
+			records.addAll((ArrayList)existing);
+		}
+		else if (existing != null) {
+			records.add(existing);
+		}
+		ArrayList result = copyColumnValues(records,null);
+		if (result != null) {
+			touch(records);
+		}
+		return result;
+	}
+
+	/**
+	 * <p>Get a record with the specified primary key.</p>
+	 *
+	 * @param	primaryKey	the primary key
+	 * @return			a copy of the column values of the record, an empty map if there is no such record, or null if its column values are not held
+	 */
+	synchronized Map getRecord(String primaryKey) {
+		Record record = (Record)(recordsByPrimaryKey.get(primaryKey));
+		if (record == null) {
+			return new TreeMap();
+		}
+		if (record.columnValues == null) {
+			return null;
+		}
+		if (record.leaf) {
+			leafRecordsWithColumnValues.get(record);
+		}
+		return new TreeMap(record.columnValues);
+	}
+
+	/**
+	 * @return	the number of records in the index
+	 */
+	synchronized int size() {
+		return recordsByPrimaryKey.size();
+	}
+
+	/**
+	 * @return	the number of records of the lowest entity whose column values are held
+	 */
+	synchronized int getNumberOfLeafRecordsWithColumnValues() {
+		return leafRecordsWithColumnValues.size();
+	}
+}
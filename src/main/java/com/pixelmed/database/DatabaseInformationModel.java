@@ -107,8 +107,32 @@ public abstract class DatabaseInformationModel
 
   protected HashMap additionalIndexMapOfColumnsToTables;
 
+  protected LinkedHashMap secondaryIndexes;	// key is index name, value is String[] of table name followed by column names
+
+  private volatile Thread secondaryIndexBuilder;
+
+  private IndexAdvisor indexAdvisor = new IndexAdvisor();
+
   protected Connection databaseConnection;
 
+  protected String databaseURL;
+
+  protected java.util.Properties databaseConnectionProperties;
+
+  /**
+   * <p>
+   * How long a query waits for a pooled connection when all are in use, in milliseconds.</p>
+   */
+  protected static final long databaseConnectionPoolTimeout = 60000;
+
+  private volatile DatabaseConnectionPool readOnlyConnectionPool;
+
+  private volatile DatabaseIndexCache indexCache;
+
+  private PreparedStatementCache preparedStatementCache;
+
+  private static final int maximumNumberOfCachedPreparedStatements = 64;
+
   protected org.hsqldb.Server externalServerInstance;
 
   protected DicomDictionary dictionary;
@@ -129,6 +153,26 @@ public abstract class DatabaseInformationModel
 
   private HashSet localColumnExcludeList;
 
+  /**
+   * <p>
+   * The default number of objects inserted during a batch insert after which the transaction is committed.</p>
+   */
+  public static final int defaultBatchInsertCommitInterval = 1000;
+
+  /**
+   * <p>
+   * The maximum number of patient, study, series (etc.) primary keys remembered during a batch insert.</p>
+   */
+  protected static final int maximumBatchInsertPrimaryKeyCacheSize = 10000;
+
+  private int batchInsertCommitInterval;
+
+  private int objectsInsertedSinceLastCommit;
+
+  private Statement batchInsertStatement;
+
+  private Map batchInsertPrimaryKeyCache;
+
   HashSet getLocalColumnExcludeList()
   {			// package scope ... used by DatabaseTreeBrowser
     return localColumnExcludeList;
@@ -263,6 +307,8 @@ public abstract class DatabaseInformationModel
 //		}
     listsOfAttributesByInformationEntity = new HashMap(6);
     additionalIndexMapOfColumnsToTables = new HashMap();
+    secondaryIndexes = new LinkedHashMap();
+    declareSecondaryIndexes();
     makeLocalColumnExcludeList();
     try
     {
@@ -273,7 +319,9 @@ public abstract class DatabaseInformationModel
       properties.put("hsqldb.cache_file_scale", "8");			// default is only 2GB; must be set BEFORE any cached tables are created
       properties.put("sql.enforce_size", "FALSE");				// default is true with 2.x
       properties.put("sql.enforce_strict_size", "FALSE");		// default is true with 2.x
-      databaseConnection = DriverManager.getConnection("jdbc:hsqldb:" + databaseFileName, properties);
+      databaseURL = "jdbc:hsqldb:" + databaseFileName;
+      databaseConnectionProperties = properties;
+      databaseConnection = DriverManager.getConnection(databaseURL, properties);
 //System.err.println("DatabaseInformationModel(): first call to primeListsOfAttributesByInformationEntityFromExistingMetaData() to see if tables exist");
       primeListsOfAttributesByInformationEntityFromExistingMetaData();
       if(listsOfAttributesByInformationEntity.size() == 0)
@@ -283,6 +331,10 @@ public abstract class DatabaseInformationModel
 //System.err.println("DatabaseInformationModel(): second call to primeListsOfAttributesByInformationEntityFromExistingMetaData() now that we have added our tables");
         primeListsOfAttributesByInformationEntityFromExistingMetaData();
       }
+      else
+      {
+        startBuildingMissingSecondaryIndexes();
+      }
       createDescriptiveNameMap();
     }
     catch(Exception e)
@@ -321,6 +373,34 @@ public abstract class DatabaseInformationModel
    */
   public void close()
   {
+    try
+    {
+      waitForSecondaryIndexes();	// cannot shut down while an index is being built
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    disablePooledConnections();
+    synchronized(this)
+    {
+      if(preparedStatementCache != null)
+      {
+        preparedStatementCache.close();
+        preparedStatementCache = null;
+      }
+    }
+    if(batchInsertStatement != null)
+    {
+      try
+      {
+        endBatchInsert();
+      }
+      catch(DicomException e)
+      {
+        e.printStackTrace(System.err);
+      }
+    }
     if(externalServerInstance != null)
     {
 //System.err.println("DatabaseInformationModel.close(): externalServerInstance shutdown start");
@@ -359,10 +439,260 @@ public abstract class DatabaseInformationModel
     close();
   }
 
+  /**
+   * <p>
+   * Create a statement with which to perform a query.</p>
+   *
+   * <p>
+   * If pooled connections are enabled, the statement is read-only and uses a connection from the pool,
+   * which is returned to the pool when the statement is closed, so the statement must always be closed.
+   * Otherwise the statement shares the single connection used for insertion and deletion.</p>
+   *
+   * @return	the statement
+   * @exception	SQLException	if a statement cannot be created, or no pooled connection became available in time
+   */
   Statement createStatement()
      throws java.sql.SQLException
   {
-    return databaseConnection.createStatement();
+    DatabaseConnectionPool pool = readOnlyConnectionPool;
+    return pool == null ? databaseConnection.createStatement() : pool.createStatement();
+  }
+
+  /**
+   * <p>
+   * Create a prepared statement with which to perform a query, reusing one previously prepared for the same SQL if possible.</p>
+   *
+   * <p>
+   * Prepared statements are cached by their SQL text, so that queries that differ only in the values of their parameters
+   * are parsed and planned by the database only once. As for {@link #createStatement() createStatement()}, if pooled connections
+   * are enabled the statement is read-only and uses a connection from the pool. The statement must always be closed,
+   * which returns it to the cache.</p>
+   *
+   * @param	sql	the SQL, with ? for each parameter
+   * @return	the statement
+   * @exception	SQLException	if a statement cannot be prepared, or no pooled connection became available in time
+   */
+  PreparedStatement prepareStatement(String sql)
+     throws java.sql.SQLException
+  {
+    DatabaseConnectionPool pool = readOnlyConnectionPool;
+    if(pool != null)
+    {
+      return pool.prepareStatement(sql);
+    }
+    return prepareInsertionStatement(sql);
+  }
+
+  /**
+   * <p>
+   * Create a prepared statement that uses the single connection used for insertion and deletion, even if pooled connections are enabled,
+   * reusing one previously prepared for the same SQL if possible.</p>
+   *
+   * <p>
+   * Used to look up existing records while inserting, which must see insertions not yet committed by a batch insert.
+   * The statement must always be closed, which returns it to the cache.</p>
+   *
+   * @param	sql	the SQL, with ? for each parameter
+   * @return	the statement
+   * @exception	SQLException	if a statement cannot be prepared
+   */
+  private PreparedStatement prepareInsertionStatement(String sql)
+     throws java.sql.SQLException
+  {
+    PreparedStatementCache cache;
+    synchronized(this)
+    {
+      if(preparedStatementCache == null)
+      {
+        preparedStatementCache = new PreparedStatementCache(databaseConnection, maximumNumberOfCachedPreparedStatements);
+      }
+      cache = preparedStatementCache;
+    }
+    return cache.prepareStatement(sql);
+  }
+
+  /**
+   * <p>
+   * Use a bounded pool of read-only connections for queries, rather than the single connection used for insertion and deletion.</p>
+   *
+   * <p>
+   * This allows queries, such as those performed by C-FIND and web requests, to proceed concurrently with each other and with insertions, such as by C-STORE,
+   * rather than waiting for each other.</p>
+   *
+   * <p>
+   * The database is switched to multi-version concurrency control, so that queries see only committed records and are not blocked by a
+   * batch insert that is in progress (see {@link #beginBatchInsert(int) beginBatchInsert()}).</p>
+   *
+   * <p>
+   * Connections are opened as they are first needed.</p>
+   *
+   * @param	maximumNumberOfConnections	the most read-only connections that will be open at once
+   * @exception	DicomException	thrown if the database cannot be switched to multi-version concurrency control
+   */
+  public synchronized void enablePooledConnections(int maximumNumberOfConnections)
+     throws DicomException
+  {
+    disablePooledConnections();
+    try
+    {
+      Statement s = databaseConnection.createStatement();
+      s.execute("SET DATABASE TRANSACTION CONTROL MVCC;");
+      s.close();
+    }
+    catch(SQLException e)
+    {
+      throw new DicomException("Cannot enable multi-version concurrency control: " + e);
+    }
+    readOnlyConnectionPool = new DatabaseConnectionPool(databaseURL, databaseConnectionProperties, maximumNumberOfConnections, databaseConnectionPoolTimeout);
+  }
+
+  /**
+   * <p>
+   * Close any pooled read-only connections, and perform subsequent queries using the single connection.</p>
+   */
+  public synchronized void disablePooledConnections()
+  {
+    if(readOnlyConnectionPool != null)
+    {
+      readOnlyConnectionPool.close();
+      readOnlyConnectionPool = null;
+    }
+  }
+
+  /**
+   * <p>
+   * Keep an index of all the records in memory, so that finding the children of a record, the records with a UID, or a record with a primary key,
+   * does not require a query of the database.</p>
+   *
+   * <p>
+   * Used by {@link #findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedParent(InformationEntity,String) findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedParent()},
+   * {@link #findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedUID(InformationEntity,String) findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedUID()}
+   * and {@link #findAllAttributeValuesForSelectedRecord(InformationEntity,String) findAllAttributeValuesForSelectedRecord()},
+   * as used when browsing the database tree, listing patients, studies and series for web requests, and retrieving.</p>
+   *
+   * <p>
+   * All the records in the database are read when the index is enabled. All the column values of the records of every entity except the lowest (e.g., the instances)
+   * are kept in memory; for the lowest, only the primary key, parent and UID are kept, together with the column values of the specified number of most recently used records.</p>
+   *
+   * <p>
+   * The index is maintained as records are inserted, updated and deleted through this model, but not if the database is changed through external access.</p>
+   *
+   * @param	maximumNumberOfInstanceRecords	the number of records of the lowest entity for which all column values are kept in memory
+   * @exception	DicomException	thrown if the records cannot be read
+   */
+  public synchronized void enableIndexCache(int maximumNumberOfInstanceRecords)
+     throws DicomException
+  {
+    DatabaseIndexCache cache = new DatabaseIndexCache(this, maximumNumberOfInstanceRecords);
+    try
+    {
+      Statement s = databaseConnection.createStatement();
+      try
+      {
+        InformationEntity ie = rootInformationEntity;
+        while(ie != null)
+        {
+          InformationEntity childIE = getChildTypeForParent(ie);
+          String tableName = getTableNameForInformationEntity(ie);
+          String uidColumnName = getUIDColumnNameForInformationEntity(ie);
+          if(childIE == null)
+          {				// lowest entity, so only the keys
+            StringBuffer b = new StringBuffer();
+            b.append("SELECT ");
+            b.append(localPrimaryKeyColumnName);
+            b.append(",");
+            b.append(localParentReferenceColumnName);
+            if(uidColumnName != null)
+            {
+              b.append(",");
+              b.append(uidColumnName);
+            }
+            b.append(" FROM ");
+            b.append(tableName);
+            b.append(";");
+            ResultSet r = s.executeQuery(b.toString());
+            while(r.next())
+            {
+              cache.add(ie, r.getString(1), r.getString(2), uidColumnName == null ? null : r.getString(3));
+            }
+            r.close();
+          }
+          else
+          {
+            ResultSet r = s.executeQuery("SELECT * FROM " + tableName + ";");
+            String[] columnNames = getArrayOfColumnNamesForSpecifiedInformationEntity(ie, r);
+            while(r.next())
+            {
+              TreeMap map = new TreeMap();
+              for(int i = 1; i <= columnNames.length; ++i)
+              {
+                map.put(columnNames[i - 1], r.getString(i));
+              }
+              cache.put(ie, map);
+            }
+            r.close();
+          }
+          ie = childIE;
+        }
+      }
+      finally
+      {
+        s.close();
+      }
+    }
+    catch(SQLException e)
+    {
+      throw new DicomException("Cannot read records into index: " + e);
+    }
+//System.err.println("DatabaseInformationModel.enableIndexCache(): "+cache.size()+" records");
+    indexCache = cache;
+  }
+
+  /**
+   * <p>
+   * Discard any in-memory index of the records, and query the database for all subsequent requests.</p>
+   */
+  public synchronized void disableIndexCache()
+  {
+    indexCache = null;
+  }
+
+  /**
+   * <p>
+   * Is an in-memory index of the records being used ?</p>
+   *
+   * @return	true if the index is enabled
+   */
+  public boolean isIndexCacheEnabled()
+  {
+    return indexCache != null;
+  }
+
+  /**
+   * @param	ie	the entity of the records
+   * @param	records	the column values of records just read from the database, to be added to the index if enabled
+   */
+  private void putInIndexCache(InformationEntity ie, ArrayList records)
+  {
+    DatabaseIndexCache cache = indexCache;
+    if(cache != null)
+    {
+      for(int i = 0; i < records.size(); ++i)
+      {
+        cache.put(ie, (Map) (records.get(i)));
+      }
+    }
+  }
+
+  /**
+   * <p>
+   * Are queries being performed using pooled read-only connections ?</p>
+   *
+   * @return	true if pooled connections are enabled
+   */
+  public boolean isPooledConnectionsEnabled()
+  {
+    return readOnlyConnectionPool != null;
   }
 
   /**
@@ -526,6 +856,14 @@ public abstract class DatabaseInformationModel
       ie = getChildTypeForParent(ie);
     }
     createAdditionalIndexes();
+    try
+    {
+      createSecondaryIndexes(databaseConnection, new HashSet());
+    }
+    catch(SQLException e)
+    {
+      throw new DicomException("Cannot create secondary index in database: " + e);
+    }
   }
 
   /**
@@ -589,44 +927,294 @@ public abstract class DatabaseInformationModel
 
   /**
    * <p>
-   * Create any additional indexes to optimize queries, for example for UIDs.</p>
+   * Create any additional indexes to optimize queries, for example for UIDs.</p>
+   *
+   * <p>
+   * Called after creating tables and default indexes.</p>
+   */
+  protected void createAdditionalIndexes()
+     throws DicomException
+  {
+//System.err.println("DatabaseInformationModel.createAdditionalIndexes():");
+    if(additionalIndexMapOfColumnsToTables != null)
+    {
+      Iterator i = additionalIndexMapOfColumnsToTables.keySet().iterator();
+      while(i.hasNext())
+      {
+        String columnName = (String) (i.next());
+        String tableName = (String) (additionalIndexMapOfColumnsToTables.get(columnName));
+        try
+        {
+          StringBuffer b = new StringBuffer();
+          b.append("CREATE INDEX ");
+          b.append(tableName);
+          b.append("_");
+          b.append(columnName);
+          b.append("_IDX ON ");
+          b.append(tableName);
+          b.append(" (");
+          b.append(columnName);
+          b.append(")");
+          Statement s = databaseConnection.createStatement();
+          s.execute(b.toString());	// no ResultSet expected
+          s.close();
+        }
+        catch(Exception e)
+        {
+          throw new DicomException("Cannot create index of " + columnName + " for " + tableName + " in database: " + e);
+        }
+      }
+    }
+  }
+
+  /**
+   * <p>
+   * Declare any secondary indexes, each possibly on more than one column, to optimize queries that match on those columns.</p>
+   *
+   * <p>
+   * Called by the constructor before the tables are created. The default implementation declares none; models override it to call
+   * {@link #declareSecondaryIndex(InformationEntity,String[]) declareSecondaryIndex()} for each index.</p>
+   *
+   * <p>
+   * The declared indexes are created together with the tables in a new database. In an existing database, any that do not yet exist
+   * are built in the background after the model has been constructed, so that newly declared indexes are added to databases created
+   * by earlier versions without delaying startup; queries and insertions that use a table wait while an index on it is being built.</p>
+   */
+  protected void declareSecondaryIndexes()
+  {
+  }
+
+  /**
+   * <p>
+   * Declare a secondary index.</p>
+   *
+   * <p>
+   * The index is named after its table and columns. The order of the columns matters, since a query can use the index
+   * only if it matches on the first column, such as the parent reference of a table followed by a column often matched together with it.</p>
+   *
+   * @param	ie		the entity whose table is to be indexed
+   * @param	columnNames	the upper case names of the columns, in order
+   */
+  protected void declareSecondaryIndex(InformationEntity ie, String[] columnNames)
+  {
+    String tableName = getTableNameForInformationEntity(ie);
+    String[] tableAndColumnNames = new String[columnNames.length + 1];
+    tableAndColumnNames[0] = tableName;
+    StringBuffer b = new StringBuffer();
+    b.append(tableName);
+    for(int i = 0; i < columnNames.length; ++i)
+    {
+      tableAndColumnNames[i + 1] = columnNames[i];
+      b.append("_");
+      b.append(columnNames[i]);
+    }
+    b.append("_IDX");
+    secondaryIndexes.put(b.toString(), tableAndColumnNames);
+  }
+
+  /**
+   * @param	connection
+   * @param	tableNames	the tables, all if null
+   * @return	the upper case names of the indexes that exist on the tables
+   * @exception	SQLException
+   */
+  private static Set getExistingIndexNames(Connection connection, Collection tableNames)
+     throws SQLException
+  {
+    Set indexNames = new HashSet();
+    DatabaseMetaData md = connection.getMetaData();
+    Iterator i = tableNames.iterator();
+    while(i.hasNext())
+    {
+      ResultSet r = md.getIndexInfo(null, null, (String) (i.next()), false, true);
+      while(r.next())
+      {
+        String indexName = r.getString("INDEX_NAME");
+        if(indexName != null)
+        {
+          indexNames.add(indexName.toUpperCase(java.util.Locale.US));
+        }
+      }
+      r.close();
+    }
+    return indexNames;
+  }
+
+  /**
+   * @return	the names of the tables on which secondary indexes are declared
+   */
+  private Set getTableNamesWithSecondaryIndexes()
+  {
+    Set tableNames = new HashSet();
+    Iterator i = secondaryIndexes.values().iterator();
+    while(i.hasNext())
+    {
+      tableNames.add(((String[]) (i.next()))[0]);
+    }
+    return tableNames;
+  }
+
+  /**
+   * @param	connection
+   * @param	existingIndexNames	the indexes not to create because they already exist
+   * @exception	SQLException
+   */
+  private void createSecondaryIndexes(Connection connection, Set existingIndexNames)
+     throws SQLException
+  {
+    Iterator i = secondaryIndexes.entrySet().iterator();
+    while(i.hasNext())
+    {
+      Map.Entry entry = (Map.Entry) (i.next());
+      String indexName = (String) (entry.getKey());
+      if(!existingIndexNames.contains(indexName))
+      {
+        String[] tableAndColumnNames = (String[]) (entry.getValue());
+        StringBuffer b = new StringBuffer();
+        b.append("CREATE INDEX ");
+        b.append(indexName);
+        b.append(" ON ");
+        b.append(tableAndColumnNames[0]);
+        b.append(" (");
+        for(int c = 1; c < tableAndColumnNames.length; ++c)
+        {
+          if(c > 1)
+          {
+            b.append(",");
+          }
+          b.append(tableAndColumnNames[c]);
+        }
+        b.append(")");
+//System.err.println("DatabaseInformationModel.createSecondaryIndexes(): "+b);
+        Statement s = connection.createStatement();
+        try
+        {
+          s.execute(b.toString());	// no ResultSet expected
+        }
+        finally
+        {
+          s.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * <p>
+   * If any declared secondary indexes do not exist, start building them in the background, on a connection of their own.</p>
+   */
+  private void startBuildingMissingSecondaryIndexes()
+  {
+    final Set existingIndexNames;
+    try
+    {
+      existingIndexNames = getExistingIndexNames(databaseConnection, getTableNamesWithSecondaryIndexes());
+    }
+    catch(SQLException e)
+    {
+      e.printStackTrace(System.err);
+      return;
+    }
+    if(!existingIndexNames.containsAll(secondaryIndexes.keySet()))
+    {
+      Thread builder = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            Connection connection = DriverManager.getConnection(databaseURL, databaseConnectionProperties);
+            try
+            {
+              createSecondaryIndexes(connection, existingIndexNames);
+            }
+            finally
+            {
+              connection.close();
+            }
+          }
+          catch(SQLException e)
+          {
+            System.err.println("DatabaseInformationModel: Cannot build secondary index in database: " + e);
+          }
+        }
+      }, "DatabaseInformationModel secondary index builder");
+      builder.setDaemon(true);
+      secondaryIndexBuilder = builder;
+      builder.start();
+    }
+  }
+
+  /**
+   * <p>
+   * Wait until any declared secondary indexes that were missing from an existing database have been built.</p>
+   *
+   * @exception	InterruptedException	if interrupted while waiting
+   */
+  public void waitForSecondaryIndexes()
+     throws InterruptedException
+  {
+    Thread builder = secondaryIndexBuilder;
+    if(builder != null)
+    {
+      builder.join();
+      secondaryIndexBuilder = null;
+    }
+  }
+
+  /**
+   * <p>
+   * Count the columns matched by a query, for the index advice.</p>
+   *
+   * @param	columnNamesByTableName	for each table, the Set of names of the columns that the query matched
+   */
+  void recordMatchingKeys(Map columnNamesByTableName)
+  {
+    indexAdvisor.recordQuery(columnNamesByTableName);
+  }
+
+  /**
+   * <p>
+   * Describe which columns of which tables have been matched by queries so far, and whether they are indexed.</p>
    *
    * <p>
-   * Called after creating tables and default indexes.</p>
+   * Columns that are frequently matched but for which no index begins with any of the matched columns of a table
+   * are candidates for {@link #declareSecondaryIndex(InformationEntity,String[]) declareSecondaryIndex()}.</p>
+   *
+   * @return	a line for each combination of table and columns matched, most frequent first
+   * @exception	DicomException	if the existing indexes cannot be determined
    */
-  protected void createAdditionalIndexes()
+  public String getIndexAdvice()
      throws DicomException
   {
-//System.err.println("DatabaseInformationModel.createAdditionalIndexes():");
-    if(additionalIndexMapOfColumnsToTables != null)
+    Map leadingColumnNamesByTableName = new HashMap();
+    try
     {
-      Iterator i = additionalIndexMapOfColumnsToTables.keySet().iterator();
-      while(i.hasNext())
+      DatabaseMetaData md = databaseConnection.getMetaData();
+      InformationEntity ie = rootInformationEntity;
+      while(ie != null)
       {
-        String columnName = (String) (i.next());
-        String tableName = (String) (additionalIndexMapOfColumnsToTables.get(columnName));
-        try
-        {
-          StringBuffer b = new StringBuffer();
-          b.append("CREATE INDEX ");
-          b.append(tableName);
-          b.append("_");
-          b.append(columnName);
-          b.append("_IDX ON ");
-          b.append(tableName);
-          b.append(" (");
-          b.append(columnName);
-          b.append(")");
-          Statement s = databaseConnection.createStatement();
-          s.execute(b.toString());	// no ResultSet expected
-          s.close();
-        }
-        catch(Exception e)
+        String tableName = getTableNameForInformationEntity(ie);
+        Set leadingColumnNames = new HashSet();
+        leadingColumnNames.add(localPrimaryKeyColumnName);
+        ResultSet r = md.getIndexInfo(null, null, tableName, false, true);
+        while(r.next())
         {
-          throw new DicomException("Cannot create index of " + columnName + " for " + tableName + " in database: " + e);
+          if(r.getInt("ORDINAL_POSITION") == 1)
+          {
+            leadingColumnNames.add(r.getString("COLUMN_NAME").toUpperCase(java.util.Locale.US));
+          }
         }
+        r.close();
+        leadingColumnNamesByTableName.put(tableName, leadingColumnNames);
+        ie = getChildTypeForParent(ie);
       }
     }
+    catch(SQLException e)
+    {
+      throw new DicomException("Cannot get indexes from database: " + e);
+    }
+    return indexAdvisor.getAdvice(leadingColumnNamesByTableName);
   }
 
   /**
@@ -892,6 +1480,17 @@ public abstract class DatabaseInformationModel
 //System.err.println("DatabaseInformationModel.deleteRecord(): Statement to execute = "+ss);
         s.execute(ss);	// no ResultSet expected
         s.close();
+        synchronized(this)
+        {
+          if(batchInsertPrimaryKeyCache != null)
+          {
+            batchInsertPrimaryKeyCache.clear();		// the deleted record may have been remembered as the parent of subsequent insertions
+          }
+          if(indexCache != null)
+          {
+            indexCache.remove(localPrimaryKeyValue);
+          }
+        }
       }
       catch(Exception e)
       {
@@ -970,17 +1569,29 @@ public abstract class DatabaseInformationModel
    * @param	fileReferenceType	"C" for copied (i.e., delete on purge), "R" for referenced (i.e., do not delete on purge)
    * @exception	DicomException	thrown if there are problems extracting the DICOM attributes
    */
-  public void insertObject(AttributeList list, String fileName, String fileReferenceType)
+  public synchronized void insertObject(AttributeList list, String fileName, String fileReferenceType)
      throws DicomException
   {
 //System.err.println("DatabaseInformationModel.insertObject(): fileName="+fileName);
     // iterate through information entities, extracting matching keys, checking for a match, inserting new if not ...
+    boolean batching = batchInsertStatement != null;
+    Savepoint savepoint = null;
+    ArrayList insertedPrimaryKeys = null;	// of this object, to be forgotten if the batch insertion of the object is rolled back
+    ArrayList rememberedSelectStatements = null;
     try
     {
+      if(batching)
+      {
+        savepoint = databaseConnection.setSavepoint();
+        insertedPrimaryKeys = new ArrayList();
+        rememberedSelectStatements = new ArrayList();
+      }
       InformationEntity ie = rootInformationEntity;
       String localParentReference = null;
       while(ie != null)
       {
+        InformationEntity childIE = getChildTypeForParent(ie, list);
+        boolean useCache = batching && childIE != null;		// instance level keys are never reused, so not worth remembering
         String tableName = getTableNameForInformationEntity(ie);
         StringBuffer b = new StringBuffer();
         b.append("SELECT ");
@@ -1000,17 +1611,41 @@ public abstract class DatabaseInformationModel
         }
         extendStatementStringWithMatchingAttributesForSelectedInformationEntity(b, list, ie);
 
-        Statement s = databaseConnection.createStatement();
+        Statement s = batching ? batchInsertStatement : databaseConnection.createStatement();
         String ss = b.toString();
-//System.err.println("DatabaseInformationModel.insertObject(): Statement to execute = "+ss);
-        ResultSet r = s.executeQuery(ss);
+        String selectStatement = ss;
 
-        String entityPrimaryKey = null;
+        String entityPrimaryKey = useCache ? (String) batchInsertPrimaryKeyCache.get(selectStatement) : null;
         int count = 0;
-        while(r.next())
+        if(entityPrimaryKey != null)
         {
-          entityPrimaryKey = r.getString(localPrimaryKeyColumnName).trim();		// since CHAR not VARCHAR, returns trailing spaces :(
-          ++count;
+//System.err.println("DatabaseInformationModel.insertObject(): Using remembered primary key for "+ss);
+          count = 1;
+        }
+        else
+        {
+//System.err.println("DatabaseInformationModel.insertObject(): Statement to execute = "+ss);
+          // the values are passed as parameters, so that the lookup for each entity is parsed and planned only once for each combination of present and absent keys
+          ArrayList parameters = new ArrayList();
+          PreparedStatement ps = prepareInsertionStatement(replaceLiteralsWithParameters(ss, parameters));
+          try
+          {
+            for(int i = 0; i < parameters.size(); ++i)
+            {
+              ps.setString(i + 1, (String) parameters.get(i));
+            }
+            ResultSet r = ps.executeQuery();
+            while(r.next())
+            {
+              entityPrimaryKey = r.getString(localPrimaryKeyColumnName).trim();		// since CHAR not VARCHAR, returns trailing spaces :(
+              ++count;
+            }
+            r.close();
+          }
+          finally
+          {
+            ps.close();
+          }
         }
 //System.err.println("DatabaseInformationModel.insertObject(): ie="+ie+" count="+count+" entityPrimaryKey="+entityPrimaryKey);
         if(count != 1 || entityPrimaryKey == null)
@@ -1054,19 +1689,274 @@ public abstract class DatabaseInformationModel
           ss = b.toString();
 //System.err.println("DatabaseInformationModel.insertObject(): Statement to execute = "+ss);
           s.execute(ss);	// no ResultSet expected
+          if(insertedPrimaryKeys != null)
+          {
+            insertedPrimaryKeys.add(entityPrimaryKey);
+          }
+          if(indexCache != null)
+          {
+            String uidColumnName = getUIDColumnNameForInformationEntity(ie);
+            AttributeTag uidTag = uidColumnName == null ? null : getAttributeTagFromDatabaseColumnName(uidColumnName);
+            indexCache.add(ie, entityPrimaryKey, ie == rootInformationEntity ? null : localParentReference,
+               uidTag == null ? null : Attribute.getSingleStringValueOrNull(list, uidTag));
+          }
         }
 
-        s.close();
+        if(useCache)
+        {
+          batchInsertPrimaryKeyCache.put(selectStatement, entityPrimaryKey);
+          rememberedSelectStatements.add(selectStatement);
+        }
+        if(!batching)
+        {
+          s.close();
+        }
 //System.err.println("DatabaseInformationModel.insertObject(): Done "+tableName+" entityPrimaryKey="+entityPrimaryKey+" localParentReference="+localParentReference);
         localParentReference = entityPrimaryKey;
-        ie = getChildTypeForParent(ie, list);
+        ie = childIE;
+      }
+      if(savepoint != null)
+      {
+        databaseConnection.releaseSavepoint(savepoint);
       }
     }
     catch(Exception e)
     {
       e.printStackTrace(System.err);
+      if(savepoint != null)
+      {
+        rollBackBatchInsertOfObject(savepoint, insertedPrimaryKeys, rememberedSelectStatements);
+      }
       throw new DicomException("Cannot perform selection: " + e);
     }
+    if(batching && ++objectsInsertedSinceLastCommit >= batchInsertCommitInterval)
+    {
+      commitBatchInsert();
+    }
+  }
+
+  /**
+   * <p>
+   * Undo the insertion of the records for an object that failed part way through during a batch insert,
+   * so that the parents inserted for it are not committed without it, and forget their primary keys.</p>
+   *
+   * @param	savepoint			the savepoint set before the object was inserted
+   * @param	insertedPrimaryKeys		the primary keys of the records inserted for the object
+   * @param	rememberedSelectStatements	the lookups whose primary keys were remembered while inserting the object
+   */
+  private void rollBackBatchInsertOfObject(Savepoint savepoint, List insertedPrimaryKeys, List rememberedSelectStatements)
+  {
+    try
+    {
+      databaseConnection.rollback(savepoint);
+    }
+    catch(SQLException e)
+    {
+      e.printStackTrace(System.err);
+    }
+    for(int i = 0; i < rememberedSelectStatements.size(); ++i)
+    {
+      batchInsertPrimaryKeyCache.remove(rememberedSelectStatements.get(i));
+    }
+    if(indexCache != null)
+    {
+      for(int i = 0; i < insertedPrimaryKeys.size(); ++i)
+      {
+        indexCache.remove((String) insertedPrimaryKeys.get(i));
+      }
+    }
+  }
+
+  /**
+   * <p>
+   * Replace the quoted string and numeric literal values in a SQL statement with ? parameters.</p>
+   *
+   * <p>
+   * Quoted strings are recognized anywhere, with doubled single quotes as escaped quotes; unquoted numbers only immediately after =.</p>
+   *
+   * @param	sql		the statement with literal values
+   * @param	parameters	to which the values are added in order, unquoted and unescaped
+   * @return		the statement with a ? in place of each value
+   */
+  static String replaceLiteralsWithParameters(String sql, List parameters)
+  {
+    StringBuffer b = new StringBuffer(sql.length());
+    int length = sql.length();
+    int i = 0;
+    while(i < length)
+    {
+      char c = sql.charAt(i);
+      if(c == '\'')
+      {
+        StringBuffer value = new StringBuffer();
+        ++i;
+        while(i < length)
+        {
+          c = sql.charAt(i++);
+          if(c == '\'')
+          {
+            if(i < length && sql.charAt(i) == '\'')
+            {
+              value.append(c);		// escaped quote
+              ++i;
+            }
+            else
+            {
+              break;
+            }
+          }
+          else
+          {
+            value.append(c);
+          }
+        }
+        parameters.add(value.toString());
+        b.append("?");
+      }
+      else if(c == '=')
+      {
+        b.append(c);
+        ++i;
+        while(i < length && sql.charAt(i) == ' ')
+        {
+          b.append(' ');
+          ++i;
+        }
+        int start = i;
+        if(i < length && sql.charAt(i) == '-')
+        {
+          ++i;
+        }
+        if(i < length && Character.isDigit(sql.charAt(i)))
+        {
+          while(i < length && (Character.isDigit(c = sql.charAt(i)) || c == '.' || c == 'E' || c == 'e'
+             || ((c == '-' || c == '+') && (sql.charAt(i - 1) == 'E' || sql.charAt(i - 1) == 'e'))))
+          {
+            ++i;
+          }
+          parameters.add(sql.substring(start, i));
+          b.append("?");
+        }
+        else
+        {
+          i = start;
+        }
+      }
+      else
+      {
+        b.append(c);
+        ++i;
+      }
+    }
+    return b.toString();
+  }
+
+  /**
+   * <p>
+   * Start inserting a large number of objects, such as when rebuilding the database or importing media.</p>
+   *
+   * <p>
+   * Until {@link #endBatchInsert() endBatchInsert()} is called, {@link #insertObject(AttributeList,String,String) insertObject()}
+   * reuses the same statement, remembers the primary keys of the patients, studies, series and so on that have already been
+   * matched or inserted so that they need not be selected again for each subsequent object, and commits the insertions
+   * as a single transaction for every commitInterval objects, rather than for every statement. If the insertion of an object fails,
+   * the records already inserted for it are rolled back, so that its parents are not committed without it.</p>
+   *
+   * <p>
+   * Insertions that have not yet been committed are visible to all other methods of this class (which share the same connection),
+   * but not to external access to the database through the server, if any.</p>
+   *
+   * @param	commitInterval	the number of objects to insert between commits, e.g., {@link #defaultBatchInsertCommitInterval defaultBatchInsertCommitInterval}
+   * @exception	DicomException	thrown if there are problems starting a transaction
+   */
+  public synchronized void beginBatchInsert(int commitInterval)
+     throws DicomException
+  {
+    if(batchInsertStatement == null)
+    {
+      try
+      {
+        databaseConnection.setAutoCommit(false);
+        batchInsertStatement = databaseConnection.createStatement();
+      }
+      catch(SQLException e)
+      {
+        throw new DicomException("Cannot begin batch insertion: " + e);
+      }
+      batchInsertPrimaryKeyCache = new LinkedHashMap(16, 0.75f, true/*accessOrder*/)
+      {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+          return size() > maximumBatchInsertPrimaryKeyCacheSize;
+        }
+      };
+      objectsInsertedSinceLastCommit = 0;
+    }
+    batchInsertCommitInterval = commitInterval > 0 ? commitInterval : 1;
+  }
+
+  /**
+   * <p>
+   * Commit the objects inserted so far during a batch insert, without ending it.</p>
+   *
+   * @exception	DicomException	thrown if there are problems committing the transaction
+   */
+  public synchronized void commitBatchInsert()
+     throws DicomException
+  {
+    if(batchInsertStatement != null)
+    {
+      try
+      {
+//System.err.println("DatabaseInformationModel.commitBatchInsert(): committing "+objectsInsertedSinceLastCommit+" objects");
+        databaseConnection.commit();
+      }
+      catch(SQLException e)
+      {
+        throw new DicomException("Cannot commit batch insertion: " + e);
+      }
+      objectsInsertedSinceLastCommit = 0;
+    }
+  }
+
+  /**
+   * <p>
+   * Commit any remaining objects and stop batch insertion, reverting to committing every statement.</p>
+   *
+   * @exception	DicomException	thrown if there are problems committing the transaction
+   */
+  public synchronized void endBatchInsert()
+     throws DicomException
+  {
+    if(batchInsertStatement != null)
+    {
+      try
+      {
+        commitBatchInsert();
+      }
+      finally
+      {
+        try
+        {
+          batchInsertStatement.close();
+          databaseConnection.setAutoCommit(true);
+        }
+        catch(SQLException e)
+        {
+          e.printStackTrace(System.err);
+        }
+        batchInsertStatement = null;
+        batchInsertPrimaryKeyCache = null;
+      }
+    }
+  }
+
+  /**
+   * @return	true if between {@link #beginBatchInsert(int) beginBatchInsert()} and {@link #endBatchInsert() endBatchInsert()}
+   */
+  public synchronized boolean isBatchInsertInProgress()
+  {
+    return batchInsertStatement != null;
   }
 
   /**
@@ -1378,6 +2268,11 @@ public abstract class DatabaseInformationModel
         Statement s = databaseConnection.createStatement();
         s.execute(b.toString());	// no ResultSet expected
         s.close();
+        DatabaseIndexCache cache = indexCache;
+        if(cache != null && localPrimaryKeyValue != null)
+        {
+          cache.invalidate(localPrimaryKeyValue);
+        }
       }
     }
     catch(Exception e)
@@ -1403,6 +2298,15 @@ public abstract class DatabaseInformationModel
      throws DicomException
   {
     TreeMap map = new TreeMap();
+    DatabaseIndexCache cache = indexCache;
+    if(cache != null && ie != null && localPrimaryKeyValue != null)
+    {
+      Map cachedMap = cache.getRecord(localPrimaryKeyValue);
+      if(cachedMap != null)
+      {
+        return cachedMap;
+      }
+    }
     try
     {
       if(ie != null)
@@ -1421,21 +2325,27 @@ public abstract class DatabaseInformationModel
           b.append("\'");
         }
         b.append(";");
-        Statement s = databaseConnection.createStatement();
-        ResultSet r = s.executeQuery(b.toString());
-        ResultSetMetaData md = r.getMetaData();
-        int numberOfColumns = md.getColumnCount();
-        if(r.next())
-        {							// there should be exactly one
-          for(int i = 1; i <= numberOfColumns; ++i)
-          {
-            String key = md.getColumnName(i);	// will be upper case
-            String value = r.getString(i);
+        Statement s = createStatement();
+        try
+        {
+          ResultSet r = s.executeQuery(b.toString());
+          ResultSetMetaData md = r.getMetaData();
+          int numberOfColumns = md.getColumnCount();
+          if(r.next())
+          {							// there should be exactly one
+            for(int i = 1; i <= numberOfColumns; ++i)
+            {
+              String key = md.getColumnName(i);	// will be upper case
+              String value = r.getString(i);
 //System.err.println("findAllAttributeValuesForSelectedRecord: ["+i+"] key = "+key+" value = "+value);
-            map.put(key, value);
+              map.put(key, value);
+            }
           }
         }
-        s.close();
+        finally
+        {
+          s.close();
+        }
       }
     }
     catch(Exception e)
@@ -1443,6 +2353,10 @@ public abstract class DatabaseInformationModel
       e.printStackTrace(System.err);
       throw new DicomException("Cannot perform selection: " + e);
     }
+    if(cache != null && localPrimaryKeyValue != null && map.size() > 0)
+    {
+      cache.put(ie, map);
+    }
     return map;
   }
 
@@ -1472,23 +2386,29 @@ public abstract class DatabaseInformationModel
         b.append("SELECT * FROM ");
         b.append(tableName);
         b.append(";");
-        Statement s = databaseConnection.createStatement();
-        ResultSet r = s.executeQuery(b.toString());
-        ResultSetMetaData md = r.getMetaData();
-        int numberOfColumns = md.getColumnCount();
-        while(r.next())
+        Statement s = createStatement();
+        try
         {
-          TreeMap map = new TreeMap();
-          for(int i = 1; i <= numberOfColumns; ++i)
+          ResultSet r = s.executeQuery(b.toString());
+          ResultSetMetaData md = r.getMetaData();
+          int numberOfColumns = md.getColumnCount();
+          while(r.next())
           {
-            String key = md.getColumnName(i);	// will be upper case
-            String value = r.getString(i);
+            TreeMap map = new TreeMap();
+            for(int i = 1; i <= numberOfColumns; ++i)
+            {
+              String key = md.getColumnName(i);	// will be upper case
+              String value = r.getString(i);
 //System.err.println("findAllAttributeValuesForAllRecordsForThisInformationEntity: ["+i+"] key = "+key+" value = "+value);
-            map.put(key, value);
+              map.put(key, value);
+            }
+            recordsAsMapsOfStrings.add(map);
           }
-          recordsAsMapsOfStrings.add(map);
         }
-        s.close();
+        finally
+        {
+          s.close();
+        }
       }
     }
     catch(Exception e)
@@ -1544,6 +2464,16 @@ public abstract class DatabaseInformationModel
   {
 //long startTime=System.currentTimeMillis();
     ArrayList recordsAsMapsOfStrings = new ArrayList();
+    DatabaseIndexCache cache = indexCache;
+    boolean useCache = cache != null && ie != null && keyName != null && keyValue != null && keyName.equalsIgnoreCase(getUIDColumnNameForInformationEntity(ie));
+    if(useCache)
+    {
+      ArrayList cachedRecords = cache.getRecordsWithUID(ie, keyValue);
+      if(cachedRecords != null)
+      {
+        return cachedRecords;
+      }
+    }
     try
     {
       if(ie != null && keyName != null && keyValue != null)
@@ -1559,23 +2489,29 @@ public abstract class DatabaseInformationModel
         b.append(keyValue);
         b.append("\'");
         b.append(";");
-        Statement s = databaseConnection.createStatement();
-        ResultSet r = s.executeQuery(b.toString());
-        ResultSetMetaData md = r.getMetaData();
-        int numberOfColumns = md.getColumnCount();
-        while(r.next())
+        Statement s = createStatement();
+        try
         {
-          TreeMap map = new TreeMap();
-          for(int i = 1; i <= numberOfColumns; ++i)
+          ResultSet r = s.executeQuery(b.toString());
+          ResultSetMetaData md = r.getMetaData();
+          int numberOfColumns = md.getColumnCount();
+          while(r.next())
           {
-            String key = md.getColumnName(i);	// will be upper case
-            String value = r.getString(i);
+            TreeMap map = new TreeMap();
+            for(int i = 1; i <= numberOfColumns; ++i)
+            {
+              String key = md.getColumnName(i);	// will be upper case
+              String value = r.getString(i);
 //System.err.println("findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedKeyValue: ["+i+"] key = "+key+" value = "+value);
-            map.put(key, value);
+              map.put(key, value);
+            }
+            recordsAsMapsOfStrings.add(map);
           }
-          recordsAsMapsOfStrings.add(map);
         }
-        s.close();
+        finally
+        {
+          s.close();
+        }
       }
     }
     catch(Exception e)
@@ -1584,18 +2520,18 @@ public abstract class DatabaseInformationModel
       throw new DicomException("Cannot perform selection: " + e);
     }
 //System.err.println("Select all values for all records of "+ie.toString()+" time "+(System.currentTimeMillis()-startTime)+" milliseconds");
+    if(useCache)
+    {
+      putInIndexCache(ie, recordsAsMapsOfStrings);
+    }
     return recordsAsMapsOfStrings;
   }
 
-  private HashMap mapOfInformationEntitiesToColumnNames;
+  private Map mapOfInformationEntitiesToColumnNames = new java.util.concurrent.ConcurrentHashMap();	// may be used by concurrent queries
 
   private final String[] getArrayOfColumnNamesForSpecifiedInformationEntity(InformationEntity ie, ResultSet r)
      throws java.sql.SQLException
   {
-    if(mapOfInformationEntitiesToColumnNames == null)
-    {
-      mapOfInformationEntitiesToColumnNames = new HashMap();
-    }
     String[] columnNames = (String[]) (mapOfInformationEntitiesToColumnNames.get(ie));
     if(columnNames == null)
     {
@@ -1633,6 +2569,15 @@ public abstract class DatabaseInformationModel
   {
 //long startTime=System.currentTimeMillis();
     ArrayList recordsAsMapsOfStrings = new ArrayList();
+    DatabaseIndexCache cache = ie == null ? null : indexCache;
+    if(cache != null)
+    {
+      ArrayList cachedRecords = cache.getChildren(ie, localParentReference);
+      if(cachedRecords != null)
+      {
+        return cachedRecords;
+      }
+    }
     try
     {
       if(ie != null)
@@ -1651,36 +2596,42 @@ public abstract class DatabaseInformationModel
           b.append("\'");
         }
         b.append(";");
-        Statement s = databaseConnection.createStatement();
-        ResultSet r = s.executeQuery(b.toString());
+        Statement s = createStatement();
+        try
+        {
+          ResultSet r = s.executeQuery(b.toString());
 //System.err.println("Select all values for all records of "+ie.toString()+" with specified parent select only time "+(System.currentTimeMillis()-startTime)+" milliseconds");
-        String[] columnNames = getArrayOfColumnNamesForSpecifiedInformationEntity(ie, r);
+          String[] columnNames = getArrayOfColumnNamesForSpecifiedInformationEntity(ie, r);
 //System.err.println("Select all values for all records of "+ie.toString()+" with specified parent get column names only time "+(System.currentTimeMillis()-startTime)+" milliseconds");
-        int numberOfColumns = columnNames.length;
+          int numberOfColumns = columnNames.length;
 //long timeInNextResult = 0;
 //long timeInMappingColumns = 0;
 //long resultSetIteratorStartTime = System.currentTimeMillis();
-        while(r.next())
-        {
+          while(r.next())
+          {
 //long resultSetIteratorEndTime = System.currentTimeMillis();
 //timeInNextResult+=(resultSetIteratorEndTime-resultSetIteratorStartTime);
-          TreeMap map = new TreeMap();
+            TreeMap map = new TreeMap();
 //long mappingColumnsStartTime = System.currentTimeMillis();
-          for(int i = 1; i <= numberOfColumns; ++i)
-          {
-            String key = columnNames[i - 1];
-            String value = r.getString(i);
+            for(int i = 1; i <= numberOfColumns; ++i)
+            {
+              String key = columnNames[i - 1];
+              String value = r.getString(i);
 //System.err.println("findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedParent: ["+i+"] key = "+key+" value = "+value);
-            map.put(key, value);
-          }
+              map.put(key, value);
+            }
 //long mappingColumnsEndTime = System.currentTimeMillis();
 //timeInMappingColumns+=(mappingColumnsEndTime-mappingColumnsStartTime);
-          recordsAsMapsOfStrings.add(map);
+            recordsAsMapsOfStrings.add(map);
 //resultSetIteratorStartTime = System.currentTimeMillis();
-        }
+          }
 //System.err.println("Select all values for all records of "+ie.toString()+" with specified parent select timeInNextResult "+timeInNextResult+" milliseconds");
 //System.err.println("Select all values for all records of "+ie.toString()+" with specified parent select timeInMappingColumns "+timeInMappingColumns+" milliseconds");
-        s.close();
+        }
+        finally
+        {
+          s.close();
+        }
       }
     }
     catch(Exception e)
@@ -1689,6 +2640,10 @@ public abstract class DatabaseInformationModel
       throw new DicomException("Cannot perform selection: " + e);
     }
 //System.err.println("Select all values for all records of "+ie.toString()+" with specified parent time "+(System.currentTimeMillis()-startTime)+" milliseconds");
+    if(cache != null)
+    {
+      putInIndexCache(ie, recordsAsMapsOfStrings);
+    }
     return recordsAsMapsOfStrings;
   }
 
@@ -1743,23 +2698,29 @@ public abstract class DatabaseInformationModel
         b.append(";");
         String str = b.toString();
 //System.err.println("findSelectedAttributeValueForAllRecordsForThisInformationEntityWithMatchingParent: "+str);
-        Statement s = databaseConnection.createStatement();
-        ResultSet r = s.executeQuery(str);
-        ResultSetMetaData md = r.getMetaData();
-        int numberOfColumns = md.getColumnCount();
-        while(r.next())
+        Statement s = createStatement();
+        try
         {
-          TreeMap map = new TreeMap();
-          for(int i = 1; i <= numberOfColumns; ++i)
+          ResultSet r = s.executeQuery(str);
+          ResultSetMetaData md = r.getMetaData();
+          int numberOfColumns = md.getColumnCount();
+          while(r.next())
           {
-            String key = md.getColumnName(i);	// will be upper case
-            String value = r.getString(i);
+            TreeMap map = new TreeMap();
+            for(int i = 1; i <= numberOfColumns; ++i)
+            {
+              String key = md.getColumnName(i);	// will be upper case
+              String value = r.getString(i);
 //System.err.println("findSelectedAttributeValueForAllRecordsForThisInformationEntityWithMatchingParent: ["+i+"] key = "+key+" value = "+value);
-            map.put(key, value);
+              map.put(key, value);
+            }
+            recordsAsMapsOfStrings.add(map);
           }
-          recordsAsMapsOfStrings.add(map);
         }
-        s.close();
+        finally
+        {
+          s.close();
+        }
       }
     }
     catch(Exception e)
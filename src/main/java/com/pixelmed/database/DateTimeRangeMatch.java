@@ -12,6 +12,7 @@ import com.pixelmed.dicom.TimeAttribute;
 import com.pixelmed.dicom.ValueRepresentation;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class DateTimeRangeMatch {
@@ -301,6 +302,55 @@ public class DateTimeRangeMatch {
 		}
 		return found;
 	}
+
+	/**
+	 * @param	value	a value as it would be used in a SQL literal, possibly quoted
+	 * @return		the value without quotes
+	 */
+	private static String unquote(String value) {
+		int length = value.length();
+		return length >= 2 && value.charAt(0) == '\'' && value.charAt(length-1) == '\'' ? value.substring(1,length-1) : value;
+	}
+
+	/**
+	 * <p>Add a range match to a SQL WHERE clause, with a ? for each value rather than the value itself.</p>
+	 *
+	 * <p>The same match is added as by {@link #addToMatchClause(StringBuffer,String,String,AttributeTag,AttributeList,Set) addToMatchClause()},
+	 * so the clause depends only on which date and time attributes are present, not on their values, and a statement prepared from it may be reused.</p>
+	 *
+	 * @param	b			the match clause to extend
+	 * @param	parameters		the values of the parameters, to which the lower and upper values are added, in order
+	 * @param	tableName
+	 * @param	columnName
+	 * @param	tag
+	 * @param	requestIdentifier
+	 * @param	alreadyUsed
+	 * @return				true if a match was added
+	 */
+	static boolean addToMatchClause(StringBuffer b,List parameters,String tableName,String columnName,AttributeTag tag,AttributeList requestIdentifier,Set alreadyUsed) {
+		boolean found = false;
+		if (!alreadyUsed.contains(tag)) {
+			DateTimeRangeMatch match = new DateTimeRangeMatch(tag,requestIdentifier,columnName);
+			if (match.matchColumnName != null) {
+				found = true;
+				alreadyUsed.addAll(match.alreadyUsed);
+				if (b.length() != 0) {
+					b.append(" AND ");
+				}
+				b.append(tableName);
+				b.append(".");
+				b.append(match.matchColumnName);
+				b.append(" >= ? AND ");
+				b.append(tableName);
+				b.append(".");
+				b.append(match.matchColumnName);
+				b.append(" <= ?");
+				parameters.add(unquote(match.rangeMatch.lowerValue));
+				parameters.add(unquote(match.rangeMatch.upperValue));
+			}
+		}
+		return found;
+	}
 	
 	public static void main(String[] arg) {
 		try {
@@ -1045,6 +1045,37 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
     return new DicomDatabaseQueryResponseGeneratorFactory(this, debugLevel);
   }
 
+  /**
+   * <p>
+   * Get a factory to manufacture a query response generator that fetches matches from the database a specified number at a time.</p>
+   *
+   * <p>
+   * The memory used by each query then depends on the page size rather than on the number of matches.</p>
+   *
+   * @param	debugLevel	zero for no debugging messages, higher values more verbose messages
+   * @param	queryPageSize	the number of matches to fetch at once, or 0 to fetch all matches at once
+   * @return	the response generator factory
+   */
+  public QueryResponseGeneratorFactory getQueryResponseGeneratorFactory(int debugLevel, int queryPageSize)
+  {
+    return new DicomDatabaseQueryResponseGeneratorFactory(this, debugLevel, queryPageSize);
+  }
+
+  /**
+   * <p>
+   * Get the distribution of the time taken by the database to perform C-FIND queries, for each shape of query.</p>
+   *
+   * <p>
+   * Queries of the same shape match on the same attributes in the same manner (single value, wildcard, range or list of UIDs),
+   * differing only in the values, and are performed with the same prepared statement.</p>
+   *
+   * @return	a line for each shape of query performed so far by any query response generator
+   */
+  public static String getQueryLatencyHistograms()
+  {
+    return DicomDatabaseQueryResponseGenerator.getQueryLatencyHistograms();
+  }
+
   /**
    * <p>
    * Get a factory to manufacture a retrieve response generator capable of performing a retrieve and returning the results.</p>
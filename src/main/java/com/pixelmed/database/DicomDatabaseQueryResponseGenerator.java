@@ -23,16 +23,22 @@ import com.pixelmed.network.ResponseStatus;
 
 import com.pixelmed.query.QueryResponseGenerator;
 
+import com.pixelmed.utils.LatencyHistogram;
+
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.Types;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
@@ -94,11 +100,27 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 	/***/
 	private AttributeList requestIdentifier;
 	/***/
-	private Statement databaseStatement;
+	static final int defaultQueryPageSize = 100;
+	/***/
+	private int queryPageSize;
+	/***/
+	private String pagedQuerySelectFromWhere;		// with ? for each value, so that the prepared statement may be reused for queries of the same shape
+	/***/
+	private ArrayList pagedQueryParameters;
+	/***/
+	private String queryShape;
+	/***/
+	private boolean pagedQueryHasWhere;
+	/***/
+	private String pagedQueryKeyColumnName;
+	/***/
+	private String lastKeyInPage;
 	/***/
-	private ResultSet resultSet;
+	private boolean morePages;
 	/***/
-	private ResultSetMetaData resultSetMetaData;
+	private LinkedList pageOfRows;
+	/***/
+	private String[] columnNames;
 	/***/
 	private String queryRetrieveLevel;
 	/***/
@@ -119,14 +141,96 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 	private String        studyInstanceUIDColumnName;
 	private String       seriesInstanceUIDColumnName;
 
+	/***/
+	private static Map queryLatencyHistogramsByShape = new TreeMap();	// key is query shape, value is LatencyHistogram
+
+	/***/
+	private static final int maximumNumberOfQueryShapes = 100;	// shapes beyond this are counted together, so that unusual queries cannot grow the map without bound
+
+	/***/
+	private static final String otherQueryShapes = "other shapes";
+
+	/**
+	 * <p>Get the distribution of the time taken to fetch each page of matches from the database, for each shape of query performed so far by any generator.</p>
+	 *
+	 * <p>The shape of a query is its query retrieve level and the SQL used for matching, with a ? in place of each value, so for example
+	 * all worklist queries for a modality within a date range will have the same shape regardless of which modality and dates are requested.
+	 * A list of UIDs has the same shape regardless of how many UIDs are in it. Once there are many different shapes, further shapes are counted together.</p>
+	 *
+	 * @return	a line for each shape, describing the number of pages fetched and the distribution of times
+	 */
+	static String getQueryLatencyHistograms() {
+		StringBuffer buf = new StringBuffer();
+		synchronized (queryLatencyHistogramsByShape) {
+			Iterator i = queryLatencyHistogramsByShape.entrySet().iterator();
+			while (i.hasNext()) {
+				Map.Entry entry = (Map.Entry)(i.next());
+				buf.append(entry.getValue());
+				buf.append(" for ");
+				buf.append(entry.getKey());
+				buf.append("\n");
+			}
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * <p>Get the shape of a query from the SQL used for matching, ignoring the number of values in any list of UIDs.</p>
+	 *
+	 * @param	queryRetrieveLevel
+	 * @param	matchClause	the SQL used for matching, with a ? for each value, or empty if none
+	 * @return			the shape
+	 */
+	private static String getQueryShape(String queryRetrieveLevel,String matchClause) {
+		return queryRetrieveLevel + (matchClause.length() > 0 ? " WHERE " + matchClause.replaceAll(" IN \\(\\?(,\\?)*\\)"," IN (?...)") : "");
+	}
+
+	/**
+	 * @param	shape
+	 * @return		the histogram for the shape, created if necessary
+	 */
+	private static LatencyHistogram getQueryLatencyHistogram(String shape) {
+		synchronized (queryLatencyHistogramsByShape) {
+			LatencyHistogram histogram = (LatencyHistogram)(queryLatencyHistogramsByShape.get(shape));
+			if (histogram == null && queryLatencyHistogramsByShape.size() >= maximumNumberOfQueryShapes) {
+				shape = otherQueryShapes;
+				histogram = (LatencyHistogram)(queryLatencyHistogramsByShape.get(shape));
+			}
+			if (histogram == null) {
+				histogram = new LatencyHistogram();
+				queryLatencyHistogramsByShape.put(shape,histogram);
+			}
+			return histogram;
+		}
+	}
+
 	DicomDatabaseQueryResponseGenerator(DatabaseInformationModel databaseInformationModel,int debugLevel) {
+		this(databaseInformationModel,debugLevel,defaultQueryPageSize);
+	}
+
+	/**
+	 * <p>Construct a generator that fetches the matches from the database a page at a time.</p>
+	 *
+	 * <p>Only one page of matches is held in memory at once, and the database connection is not held
+	 * between pages, so the memory used does not depend on the number of matches, and a cancelled
+	 * query stops fetching. Pages are selected in order of the primary key of the query level's table,
+	 * starting after the last key of the previous page (keyset pagination).</p>
+	 *
+	 * @param	databaseInformationModel
+	 * @param	debugLevel
+	 * @param	queryPageSize			the number of matches to fetch at once, or 0 to fetch all at once
+	 */
+	DicomDatabaseQueryResponseGenerator(DatabaseInformationModel databaseInformationModel,int debugLevel,int queryPageSize) {
 //System.err.println("DicomDatabaseQueryResponseGenerator():");
 		this.debugLevel=debugLevel;
 		this.databaseInformationModel=databaseInformationModel;
+		this.queryPageSize=queryPageSize;
 		requestIdentifier = null;
-		databaseStatement = null;
-		resultSet = null;
-		resultSetMetaData = null;
+		pagedQuerySelectFromWhere = null;
+		pagedQueryParameters = null;
+		queryShape = null;
+		pageOfRows = null;
+		columnNames = null;
 		queryRetrieveLevel = null;
 		unsupportedOptionalKeysPresent = false;
 		additionalKeysToReturnAsZeroLength = null;
@@ -308,7 +412,37 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 		b.append(primaryKeyColumnName);
 	}
 	
-	private static void addToMatchClause(StringBuffer b,String tableName,String columnName,String value,String booleanOperator) {
+	/**
+	 * @param	value	a value as returned by {@link com.pixelmed.database.DicomDatabaseInformationModel#getQuotedEscapedSingleStringValueOrNull(Attribute) getQuotedEscapedSingleStringValueOrNull()}
+	 * @return		the value without quotes, to be used as a parameter of a prepared statement, or null if NULL
+	 */
+	private static String getParameterValueFromQuotedValue(String value) {
+		if (value == null || value.equals("NULL")) {
+			return null;
+		}
+		int length = value.length();
+		return length >= 2 && value.charAt(0) == '\'' && value.charAt(length-1) == '\'' ? value.substring(1,length-1) : value;
+	}
+
+	/**
+	 * @param	value
+	 * @return		null if the value is null or empty, else the value
+	 */
+	private static String getParameterValueOrNull(String value) {
+		return value == null || value.length() == 0 ? null : value;
+	}
+
+	/**
+	 * <p>Add a match on a single value to a SQL WHERE clause, with a ? for the value rather than the value itself.</p>
+	 *
+	 * @param	b			the match clause to extend
+	 * @param	parameters		the values of the parameters, to which the value is added
+	 * @param	tableName
+	 * @param	columnName
+	 * @param	value			the unquoted value, which may contain DICOM wildcards, or null to match nothing
+	 * @param	booleanOperator
+	 */
+	private static void addToMatchClause(StringBuffer b,List parameters,String tableName,String columnName,String value,String booleanOperator) {
 		if (b.length() != 0) {
 			b.append(" ");
 			b.append(booleanOperator);
@@ -317,26 +451,83 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 		b.append(tableName);
 		b.append(".");
 		b.append(columnName);
-		if (value.indexOf('*') == -1 && value.indexOf('?')  == -1) {
-			b.append(" = ");
-			b.append(value);						// is already quoted
+		if (value == null || (value.indexOf('*') == -1 && value.indexOf('?')  == -1)) {
+			b.append(" = ?");
+			parameters.add(value);
 		}
 		else {
-			b.append(" LIKE ");
+			b.append(" LIKE ?");
 			String sqlValue = new String(value);		// take care not to replace characters in original string, but in copy
 			sqlValue = sqlValue.replace("%","\\%")	// replace any uses of the SQL wildcard characters with escaped versions
 							   .replace("_","\\_")
 							   .replace('*','%')		// replace DICOM wildcard characters with (unescaped obviously) SQL wildcard characters
 							   .replace('?','_');
-			b.append(sqlValue);							// is already quoted
+			parameters.add(sqlValue);
 			b.append(" ESCAPE '\\'");					// need to specify explicitly what escape character use is, but only do it when LIKE clause is used
 		}
 	}
 	
-	private static void addToMatchClause(StringBuffer b,String tableName,String columnName,String value) {
-		addToMatchClause(b,tableName,columnName,value,"AND");
+	private static void addToMatchClause(StringBuffer b,List parameters,String tableName,String columnName,String value) {
+		addToMatchClause(b,parameters,tableName,columnName,value,"AND");
+	}
+
+	/**
+	 * <p>Add a match on the value of an attribute to a SQL WHERE clause, with a ? for each value rather than the value itself.</p>
+	 *
+	 * <p>A UID attribute with more than one value is a list of UIDs, any of which may match; otherwise the values are collapsed into a single value.</p>
+	 *
+	 * @param	b			the match clause to extend
+	 * @param	parameters		the values of the parameters, to which the values are added
+	 * @param	tableName
+	 * @param	columnName
+	 * @param	a			the attribute
+	 * @param	value			the quoted value of the attribute
+	 */
+	private static void addToMatchClause(StringBuffer b,List parameters,String tableName,String columnName,Attribute a,String value) {
+		String[] values = null;
+		if (ValueRepresentation.isUniqueIdentifierVR(a.getVR()) && a.getVM() > 1) {
+			try {
+				values = a.getStringValues();
+			}
+			catch (DicomException e) {
+			}
+		}
+		if (values == null) {
+			addToMatchClause(b,parameters,tableName,columnName,getParameterValueFromQuotedValue(value));
+		}
+		else {
+			if (b.length() != 0) {
+				b.append(" AND ");
+			}
+			b.append(tableName);
+			b.append(".");
+			b.append(columnName);
+			b.append(" IN (");
+			for (int i=0; i<values.length; ++i) {
+				if (i > 0) {
+					b.append(",");
+				}
+				b.append("?");
+				parameters.add(values[i]);
+			}
+			b.append(")");
+		}
 	}
 	
+	/**
+	 * @param	matchedColumnNamesByTableName	for each table, the Set of names of the columns matched, for the index advice
+	 * @param	tableName
+	 * @param	columnName
+	 */
+	private static void addToMatchedColumns(Map matchedColumnNamesByTableName,String tableName,String columnName) {
+		Set columnNames = (Set)(matchedColumnNamesByTableName.get(tableName));
+		if (columnNames == null) {
+			columnNames = new TreeSet();
+			matchedColumnNamesByTableName.put(tableName,columnNames);
+		}
+		columnNames.add(columnName);
+	}
+
 	private static void addToSelectClause(StringBuffer b,String tableName,String columnName) {
 		if (b.length() != 0) {
 			b.append(",");
@@ -361,9 +552,11 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 	public void performQuery(String querySOPClassUID,AttributeList requestIdentifier,boolean relational) {
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): request:\n"+requestIdentifier.toString());
 		this.requestIdentifier=requestIdentifier;
-		databaseStatement = null;
-		resultSet = null;
-		resultSetMetaData = null;
+		pagedQuerySelectFromWhere = null;
+		pagedQueryParameters = null;
+		queryShape = null;
+		pageOfRows = null;
+		columnNames = null;
 		queryRetrieveLevel =  Attribute.getSingleStringValueOrNull(requestIdentifier,TagFromName.QueryRetrieveLevel);
 		additionalKeysToReturnAsZeroLength = null;	// filled in on first next() and used on subsequent next()'s
 		unsupportedOptionalKeysPresent = false;		// filled in on first next() and used on subsequent next()'
@@ -379,6 +572,8 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 		StringBuffer matchBuffer = new StringBuffer();
 		StringBuffer selectBuffer = new StringBuffer();
 		StringBuffer fromBuffer = new StringBuffer();
+		ArrayList matchParameters = new ArrayList();
+		Map matchedColumnNamesByTableName = new TreeMap();
 
 		if (ieWanted == null) {
 			setErrorStatus(ResponseStatus.IdentifierDoesNotMatchSOPClass,TagFromName.QueryRetrieveLevel,"QueryRetrieveLevel is missing or invalid");
@@ -446,13 +641,16 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 										 || ValueRepresentation.isTimeVR(vr)
 										 || ValueRepresentation.isDateTimeVR(vr))
 										) {
-											if (DateTimeRangeMatch.addToMatchClause(
-												matchBuffer,tableName,columnName,tag,requestIdentifier,dateTimeRangeMatchAlreadyDone)) {
+											if (dateTimeRangeMatchAlreadyDone.contains(tag)		// e.g., StudyTime already matched together with StudyDate, so do not match it again on its own
+											 || DateTimeRangeMatch.addToMatchClause(
+												matchBuffer,matchParameters,tableName,columnName,tag,requestIdentifier,dateTimeRangeMatchAlreadyDone)) {
+												addToMatchedColumns(matchedColumnNamesByTableName,tableName,columnName);
 												used = true;
 											}
 										}
 										else if (ValueRepresentation.isPersonNameVR(vr)) {
 											StringBuffer nameMatchBuffer = new StringBuffer();
+											ArrayList nameMatchParameters = new ArrayList();
 											String canonicalValue = null;
 											if (usePhoneticCanonicalPersonNameMatch || useCanonicalPersonNameMatch) {
 												canonicalValue = PersonNameAttribute.getCanonicalForm(value,true);
@@ -464,15 +662,14 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 													+ DatabaseInformationModel.personNamePhoneticCanonicalColumnNameSuffix;
 												if (databaseInformationModel.isAttributeUsedInTable(tableName,newColumnName)) {
 													String phoneticCanonicalValue = PersonNameAttribute.getPhoneticName(canonicalValue,true);
-													addToMatchClause(nameMatchBuffer,tableName,newColumnName,
-														DicomDatabaseInformationModel.getQuotedValueOrNULL(phoneticCanonicalValue),
+													addToMatchClause(nameMatchBuffer,nameMatchParameters,tableName,newColumnName,
+														getParameterValueOrNull(phoneticCanonicalValue),
 														"OR");
 													if (useSwappedPersonNameMatch) {
 														String swappedPhoneticCanonicalValue = PersonNameAttribute.swap(phoneticCanonicalValue);
 														if (!phoneticCanonicalValue.equals(swappedPhoneticCanonicalValue)) {
-															addToMatchClause(nameMatchBuffer,tableName,newColumnName,
-																DicomDatabaseInformationModel.getQuotedValueOrNULL(
-																	swappedPhoneticCanonicalValue),
+															addToMatchClause(nameMatchBuffer,nameMatchParameters,tableName,newColumnName,
+																getParameterValueOrNull(swappedPhoneticCanonicalValue),
 																"OR");
 														}
 													}
@@ -484,20 +681,20 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 													+ columnName
 													+ DatabaseInformationModel.personNameCanonicalColumnNameSuffix;
 												if (databaseInformationModel.isAttributeUsedInTable(tableName,newColumnName)) {
-													addToMatchClause(nameMatchBuffer,tableName,newColumnName,
-														DicomDatabaseInformationModel.getQuotedValueOrNULL(canonicalValue),
+													addToMatchClause(nameMatchBuffer,nameMatchParameters,tableName,newColumnName,
+														getParameterValueOrNull(canonicalValue),
 														"OR");
 													if (useSwappedPersonNameMatch) {
 														String swappedCanonicalValue = PersonNameAttribute.swap(canonicalValue);
 														if (!canonicalValue.equals(swappedCanonicalValue)) {
-															addToMatchClause(nameMatchBuffer,tableName,newColumnName,
-																DicomDatabaseInformationModel.getQuotedValueOrNULL(swappedCanonicalValue),
+															addToMatchClause(nameMatchBuffer,nameMatchParameters,tableName,newColumnName,
+																getParameterValueOrNull(swappedCanonicalValue),
 																"OR");
 														}
 													}
 												}
 											}
-											addToMatchClause(nameMatchBuffer,tableName,columnName,value,"OR");
+											addToMatchClause(nameMatchBuffer,nameMatchParameters,tableName,columnName,getParameterValueFromQuotedValue(value),"OR");
 											if (nameMatchBuffer.length() > 0) {
 												if (matchBuffer.length() > 0) {
 													matchBuffer.append(" AND ");
@@ -505,12 +702,15 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 												matchBuffer.append("(");
 												matchBuffer.append(nameMatchBuffer);
 												matchBuffer.append(")");
+												matchParameters.addAll(nameMatchParameters);
+												addToMatchedColumns(matchedColumnNamesByTableName,tableName,columnName);
 												used = true;
 											}
 										}
 									}
 									if (!used && !tag.equals(TagFromName.SpecificCharacterSet)) {	// Do NOT match on Specific Character Set; fixes [bugs.mrmf] (000220) Instance level query failing because matching on Specific Character Set
-										addToMatchClause(matchBuffer,tableName,columnName,value);
+										addToMatchClause(matchBuffer,matchParameters,tableName,columnName,a,value);
+										addToMatchedColumns(matchedColumnNamesByTableName,tableName,columnName);
 									}
 								}
 							}
@@ -520,7 +720,8 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 								if (tag.equals(uniqueKey)) {
 //System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): using as unique key "+ieDatabase+" entity for identifier attribute "+columnName+" with value "+value);
 									if (value != null && value.length() > 0 && !value.equals("NULL")) {
-										addToMatchClause(matchBuffer,tableName,columnName,value);
+										addToMatchClause(matchBuffer,matchParameters,tableName,columnName,a,value);
+										addToMatchedColumns(matchedColumnNamesByTableName,tableName,columnName);
 									}
 									else {
 										setErrorStatus(ResponseStatus.IdentifierDoesNotMatchSOPClass,tag,"Unique key required above query level");
@@ -548,6 +749,15 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 //System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): match clause "+matchBuffer);
 //System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): selection clause "+selectBuffer);
 //System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): from clause "+fromBuffer);
+			if (ieDatabaseParent == null) {
+				setErrorStatus(ResponseStatus.IdentifierDoesNotMatchSOPClass,TagFromName.QueryRetrieveLevel,"QueryRetrieveLevel is not within query model");
+				return;
+			}
+			// the primary key of the table at the query level is selected last, to identify where each page ends
+			String keyTableName = databaseInformationModel.getTableNameForInformationEntity(ieDatabaseParent);
+			pagedQueryKeyColumnName = keyTableName + "." + databaseInformationModel.getLocalPrimaryKeyColumnName(ieDatabaseParent);
+			addToSelectClause(selectBuffer,keyTableName,databaseInformationModel.getLocalPrimaryKeyColumnName(ieDatabaseParent));
+			addToFromClause(fromBuffer,keyTableName);
 			StringBuffer b = new StringBuffer();
 			b.append("SELECT ");
 			b.append(selectBuffer);
@@ -567,26 +777,110 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 				b.append(" WHERE ");
 				b.append(matchBuffer);
 			}
-			b.append(";");
-if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): query "+b);
+			pagedQuerySelectFromWhere = b.toString();
+			pagedQueryParameters = matchParameters;
+			pagedQueryHasWhere = joinBuffer.length() > 0 || matchBuffer.length() > 0;
+			queryShape = getQueryShape(queryRetrieveLevel,matchBuffer.toString());
+			databaseInformationModel.recordMatchingKeys(matchedColumnNamesByTableName);
+			lastKeyInPage = null;
+			morePages = true;
+			pageOfRows = new LinkedList();
 			try {
-				databaseStatement = databaseInformationModel.createStatement();
-				resultSet = databaseStatement.executeQuery(b.toString());
-				resultSetMetaData = resultSet.getMetaData();
+				fetchNextPage();
 			}
 			catch (SQLException e) {
 				e.printStackTrace(System.err);
 				setErrorStatus(ResponseStatus.UnableToProcess,null,e.getMessage());
+				pageOfRows = null;
 			}
 		}
 	}
 	
-	private AttributeList makeDicomAttributeListFromResultSetRow(ResultSet r,ResultSetMetaData md) throws SQLException, DicomException {
-		int numberOfColumns = md.getColumnCount();
+	/**
+	 * <p>Fetch the next page of matches, starting after the last key of the previous page, if any.</p>
+	 *
+	 * <p>The rows are copied so that the statement, and any pooled connection, can be released before they are converted.</p>
+	 *
+	 * <p>The statement is prepared with a ? for each value, and so is reused by the database for subsequent pages and queries of the same shape.</p>
+	 *
+	 * @exception	SQLException
+	 */
+	private void fetchNextPage() throws SQLException {
+		long startTime = System.nanoTime();
+		StringBuffer b = new StringBuffer(pagedQuerySelectFromWhere);
+		if (queryPageSize > 0) {
+			if (lastKeyInPage != null) {
+				b.append(pagedQueryHasWhere ? " AND " : " WHERE ");
+				b.append(pagedQueryKeyColumnName);
+				b.append(" > ?");
+			}
+			b.append(" ORDER BY ");
+			b.append(pagedQueryKeyColumnName);
+			b.append(" LIMIT ");
+			b.append(queryPageSize);
+		}
+		b.append(";");
+if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.fetchNextPage(): query "+b+" with "+pagedQueryParameters+(lastKeyInPage == null ? "" : " after "+lastKeyInPage));
+		int rowsInPage = 0;
+		String[] row = null;
+		PreparedStatement s = databaseInformationModel.prepareStatement(b.toString());
+		try {
+			int parameterIndex = 0;
+			for (int i=0; i<pagedQueryParameters.size(); ++i) {
+				s.setString(++parameterIndex,(String)(pagedQueryParameters.get(i)));
+			}
+			if (queryPageSize > 0 && lastKeyInPage != null) {
+				s.setString(++parameterIndex,lastKeyInPage);
+			}
+			ResultSet r = s.executeQuery();
+			if (columnNames == null) {
+				ResultSetMetaData md = r.getMetaData();
+				columnNames = new String[md.getColumnCount()];
+				for (int column=1; column<=columnNames.length; ++column) {
+					columnNames[column-1] = md.getColumnName(column);
+				}
+			}
+			while (r.next()) {
+				row = new String[columnNames.length];
+				for (int column=1; column<=columnNames.length; ++column) {
+					row[column-1] = r.getString(column);
+				}
+				pageOfRows.add(row);
+				++rowsInPage;
+			}
+		}
+		finally {
+			s.close();
+		}
+		morePages = queryPageSize > 0 && rowsInPage == queryPageSize;
+		if (row != null) {
+			lastKeyInPage = row[row.length-1];
+		}
+		LatencyHistogram histogram = getQueryLatencyHistogram(queryShape);
+		histogram.add(System.nanoTime()-startTime);
+if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.fetchNextPage(): "+histogram+" for "+queryShape);
+	}
+
+	/**
+	 * @return	the next matching row, fetching another page if necessary, or null if there are no more
+	 * @exception	SQLException
+	 */
+	private String[] nextRow() throws SQLException {
+		if (pageOfRows == null) {
+			return null;
+		}
+		if (pageOfRows.isEmpty() && morePages) {
+			fetchNextPage();
+		}
+		return pageOfRows.isEmpty() ? null : (String[])(pageOfRows.removeFirst());
+	}
+	
+	private AttributeList makeDicomAttributeListFromRow(String[] row) throws DicomException {
+		int numberOfColumns = row.length - 1;		// last column is the primary key used for paging
 		// First pass ... find a SpecificCharacterSet that can encode all the characters used in the entire response
 		StringBuffer buf = new StringBuffer();
 		for (int column=1; column<=numberOfColumns; ++column) {
-			String value = r.getString(column);
+			String value = row[column-1];
 			if (value != null && value.length() > 0) {
 				buf.append(value);
 			}
@@ -604,41 +898,39 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 			// else do NOT add SpecificCharacterSet if no character set extensions are in use, i.e., ASCII, as per PS 3.4
 		}
 		for (int column=1; column<=numberOfColumns; ++column) {
-//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeListFromResultSetRow(): ["+ r.getRow()+"] key = "+md.getColumnName(column)+" value = "+r.getString(column));
-			Attribute attribute = makeDicomAttributeFromResultSetColumn(r,md,column,specificCharacterSet);
+//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeListFromRow(): key = "+columnNames[column-1]+" value = "+row[column-1]);
+			Attribute attribute = makeDicomAttributeFromColumn(columnNames[column-1],row[column-1],specificCharacterSet);
 			if (attribute != null) {
 				list.put(attribute);
 			}
 			// else there is no DICOM attribute in the information model's dictionary corresponding to the column in the table
 			// e.g. ModalitiesInStudy
 		}
-//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeListFromResultSetRow(): "+list.toString());
+//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeListFromRow(): "+list.toString());
 		return list;
 	}
 	
-	private Attribute makeDicomAttributeFromResultSetColumn(ResultSet r,ResultSetMetaData md,int column,SpecificCharacterSet specificCharacterSet) throws SQLException, DicomException {
-		String columnName = md.getColumnName(column);
+	private Attribute makeDicomAttributeFromColumn(String columnName,String value,SpecificCharacterSet specificCharacterSet) throws DicomException {
 		AttributeTag tag = databaseInformationModel.getAttributeTagFromDatabaseColumnName(columnName);
 		Attribute attribute = null;
 		if (tag != null) {
 			byte[] vr = dictionary.getValueRepresentationFromTag(tag);
-//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeFromResultSet(): "+tag+" "+databaseInformationModel.getDicomNameFromDatabaseColumnName(columnName)+" sqlType = "+md.getColumnType(column)+" ("+md.getColumnTypeName(column)+")");
-//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeFromResultSet(): specificCharacterSet = "+specificCharacterSet);
+//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeFromColumn(): "+tag+" "+databaseInformationModel.getDicomNameFromDatabaseColumnName(columnName)+" sqlType = "+md.getColumnType(column)+" ("+md.getColumnTypeName(column)+")");
+//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeFromColumn(): specificCharacterSet = "+specificCharacterSet);
 			attribute = AttributeFactory.newAttribute(tag,vr,specificCharacterSet,true,2);
-			String value = r.getString(column);
 			if (value != null && value.length() > 0) {
-//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeFromResultSet(): value="+value);
+//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeFromColumn(): value="+value);
 //try {
-//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeFromResultSet(): value="+com.pixelmed.utils.HexDump.dump(value.getBytes(/*"ISO8859_1"*//*"UTF8"*/)));
+//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeFromColumn(): value="+com.pixelmed.utils.HexDump.dump(value.getBytes(/*"ISO8859_1"*//*"UTF8"*/)));
 //} catch (java.io.UnsupportedEncodingException e) {}
 				attribute.addValue(value);		
 			}
-//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeFromResultSet(): "+attribute);
+//System.err.println("DicomDatabaseQueryResponseGenerator.makeDicomAttributeFromColumn(): "+attribute);
 		}
 		return attribute;
 	}
 
-	private String makeForAllInstancesInSeriesStatement(AttributeTag wanted,String seriesInstanceUID) {
+	private String makeForAllInstancesInSeriesStatement(AttributeTag wanted) {
 		StringBuffer b = new StringBuffer();
 		b.append("SELECT ");
 		b.append(instanceTableName);
@@ -660,13 +952,11 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 		b.append(seriesTableName);
 		b.append(".");
 		b.append(seriesInstanceUIDColumnName);
-		b.append(" = ");
-		b.append(seriesInstanceUID);	// is already quoted
-		b.append(";");
+		b.append(" = ?;");
 		return b.toString();
 	}
 
-	private String makeForAllSeriesInStudyStatement(AttributeTag wanted,String studyInstanceUID) {
+	private String makeForAllSeriesInStudyStatement(AttributeTag wanted) {
 		StringBuffer b = new StringBuffer();
 		b.append("SELECT ");
 		b.append(seriesTableName);
@@ -688,13 +978,11 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 		b.append(studyTableName);
 		b.append(".");
 		b.append(studyInstanceUIDColumnName);
-		b.append(" = ");
-		b.append(studyInstanceUID);	// is already quoted
-		b.append(";");
+		b.append(" = ?;");
 		return b.toString();
 	}
 
-	private String makeForAllInstancesInStudyStatement(AttributeTag wanted,String studyInstanceUID) {
+	private String makeForAllInstancesInStudyStatement(AttributeTag wanted) {
 		StringBuffer b = new StringBuffer();
 		b.append("SELECT ");
 		b.append(instanceTableName);
@@ -726,9 +1014,7 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 		b.append(studyTableName);
 		b.append(".");
 		b.append(studyInstanceUIDColumnName);
-		b.append(" = ");
-		b.append(studyInstanceUID);	// is already quoted
-		b.append(";");
+		b.append(" = ?;");
 		return b.toString();
 	}
 	
@@ -749,9 +1035,9 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 		// should check that we never add the same attribute more than once (e.g. if occurs in more than one table ?) :(
 		AttributeList responseIdentifier = null;
 		try {
-			while (responseIdentifier == null && resultSet != null && resultSet.next()) {		// loop in case we have discarded this match for some reason
-			//if (resultSet != null && resultSet.next()) {
-				responseIdentifier = makeDicomAttributeListFromResultSetRow(resultSet,resultSetMetaData);	// already includes SpecificCharacterSet as required
+			String[] row;
+			while (responseIdentifier == null && (row=nextRow()) != null) {		// loop in case we have discarded this match for some reason
+				responseIdentifier = makeDicomAttributeListFromRow(row);	// already includes SpecificCharacterSet as required
 				Attribute aQueryRetrieveLevel = AttributeFactory.newAttribute(TagFromName.QueryRetrieveLevel,ValueRepresentation.CS,true,2);
 				aQueryRetrieveLevel.addValue(queryRetrieveLevel);
 				responseIdentifier.put(aQueryRetrieveLevel);
@@ -798,21 +1084,26 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 							}
 							catch (DicomException e) {
 							}
-							String query = makeForAllSeriesInStudyStatement(TagFromName.Modality,vStudyInstanceUID);
+							String query = makeForAllSeriesInStudyStatement(TagFromName.Modality);
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next(): ModalitiesInStudy query "+query);
-							Statement s = databaseInformationModel.createStatement();
-							ResultSet r = databaseStatement.executeQuery(query);
 							Set responseValues = new TreeSet();
-							if (r != null) {
-								while (r.next()) {
-									String value = r.getString(modalityColumnName);
+							PreparedStatement s = databaseInformationModel.prepareStatement(query);
+							try {
+								s.setString(1,getParameterValueFromQuotedValue(vStudyInstanceUID));
+								ResultSet r = s.executeQuery();
+								if (r != null) {
+									while (r.next()) {
+										String value = r.getString(modalityColumnName);
 //System.err.println("DicomDatabaseQueryResponseGenerator.next(): for ModalitiesInStudy response, got Modality = "+value);
-									if (value != null && value.length() > 0/* && !value.equals("NULL")*/) {
-										responseValues.add(value);
+										if (value != null && value.length() > 0/* && !value.equals("NULL")*/) {
+											responseValues.add(value);
+										}
 									}
 								}
 							}
-							s.close();
+							finally {
+								s.close();
+							}
 //System.err.println("DicomDatabaseQueryResponseGenerator.next(): for ModalitiesInStudy, before matching responseValues = "+responseValues);
 							// perform matching, but only if necessary (that is, if a value rather than zero length was supplied in the request)
 							String[] requestValues = Attribute.getStringValues(requestIdentifier,TagFromName.ModalitiesInStudy);
@@ -855,21 +1146,26 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 							}
 							catch (DicomException e) {
 							}
-							String query = makeForAllInstancesInStudyStatement(TagFromName.SOPClassUID,vStudyInstanceUID);
+							String query = makeForAllInstancesInStudyStatement(TagFromName.SOPClassUID);
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next(): SOPClassesInStudy query "+query);
-							Statement s = databaseInformationModel.createStatement();
-							ResultSet r = databaseStatement.executeQuery(query);
 							Set responseValues = new TreeSet();
-							if (r != null) {
-								while (r.next()) {
-									String value = r.getString(sopClassUIDColumnName);
+							PreparedStatement s = databaseInformationModel.prepareStatement(query);
+							try {
+								s.setString(1,getParameterValueFromQuotedValue(vStudyInstanceUID));
+								ResultSet r = s.executeQuery();
+								if (r != null) {
+									while (r.next()) {
+										String value = r.getString(sopClassUIDColumnName);
 //System.err.println("DicomDatabaseQueryResponseGenerator.next(): got SOP Class "+value);
-									if (value != null && value.length() > 0/* && !value.equals("NULL")*/) {
-										responseValues.add(value);
+										if (value != null && value.length() > 0/* && !value.equals("NULL")*/) {
+											responseValues.add(value);
+										}
 									}
 								}
 							}
-							s.close();
+							finally {
+								s.close();
+							}
 //System.err.println("DicomDatabaseQueryResponseGenerator.next(): for SOPClassesInStudy, before matching responseValues = "+responseValues);
 							// perform matching, but only if necessary (that is, if a value rather than zero length was supplied in the request)
 							String[] requestValues = Attribute.getStringValues(requestIdentifier,TagFromName.SOPClassesInStudy);
@@ -911,22 +1207,27 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 							}
 							catch (DicomException e) {
 							}
-							String query = makeForAllInstancesInStudyStatement(TagFromName.SOPInstanceUID,vStudyInstanceUID);
+							String query = makeForAllInstancesInStudyStatement(TagFromName.SOPInstanceUID);
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next(): NumberOfStudyRelatedInstances query "+query);
-							Statement s = databaseInformationModel.createStatement();
-							ResultSet r = databaseStatement.executeQuery(query);
-							if (r != null) {
-								//r.last();			// fails if result set type is not forward
-								//int count = r.getRow();
-								int count = 0;			// so keep it simple and do it the (perhaps) slow way
-								while (r.next()) {
-									++count;
+							PreparedStatement s = databaseInformationModel.prepareStatement(query);
+							try {
+								s.setString(1,getParameterValueFromQuotedValue(vStudyInstanceUID));
+								ResultSet r = s.executeQuery();
+								if (r != null) {
+									//r.last();			// fails if result set type is not forward
+									//int count = r.getRow();
+									int count = 0;			// so keep it simple and do it the (perhaps) slow way
+									while (r.next()) {
+										++count;
+									}
+									Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedInstances);
+									a.addValue(count);
+									responseIdentifier.put(a);
 								}
-								Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedInstances);
-								a.addValue(count);
-								responseIdentifier.put(a);
 							}
-							s.close();
+							finally {
+								s.close();
+							}
 						}
 						catch (SQLException e) {
 							e.printStackTrace(System.err);
@@ -945,22 +1246,27 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 							}
 							catch (DicomException e) {
 							}
-							String query = makeForAllSeriesInStudyStatement(TagFromName.SeriesInstanceUID,vStudyInstanceUID);
+							String query = makeForAllSeriesInStudyStatement(TagFromName.SeriesInstanceUID);
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next(): NumberOfStudyRelatedSeries query "+query);
-							Statement s = databaseInformationModel.createStatement();
-							ResultSet r = databaseStatement.executeQuery(query);
-							if (r != null) {
-								//r.last();			// fails if result set type is not forward
-								//int count = r.getRow();
-								int count = 0;			// so keep it simple and do it the (perhaps) slow way
-								while (r.next()) {
-									++count;
+							PreparedStatement s = databaseInformationModel.prepareStatement(query);
+							try {
+								s.setString(1,getParameterValueFromQuotedValue(vStudyInstanceUID));
+								ResultSet r = s.executeQuery();
+								if (r != null) {
+									//r.last();			// fails if result set type is not forward
+									//int count = r.getRow();
+									int count = 0;			// so keep it simple and do it the (perhaps) slow way
+									while (r.next()) {
+										++count;
+									}
+									Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedSeries);
+									a.addValue(count);
+									responseIdentifier.put(a);
 								}
-								Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedSeries);
-								a.addValue(count);
-								responseIdentifier.put(a);
 							}
-							s.close();
+							finally {
+								s.close();
+							}
 						}
 						catch (SQLException e) {
 							e.printStackTrace(System.err);
@@ -979,22 +1285,27 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 							}
 							catch (DicomException e) {
 							}
-							String query = makeForAllInstancesInSeriesStatement(TagFromName.SOPInstanceUID,vSeriesInstanceUID);
+							String query = makeForAllInstancesInSeriesStatement(TagFromName.SOPInstanceUID);
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next(): NumberOfSeriesRelatedInstances query "+query);
-							Statement s = databaseInformationModel.createStatement();
-							ResultSet r = databaseStatement.executeQuery(query);
-							if (r != null) {
-								//r.last();			// fails if result set type is not forward
-								//int count = r.getRow();
-								int count = 0;			// so keep it simple and do it the (perhaps) slow way
-								while (r.next()) {
-									++count;
+							PreparedStatement s = databaseInformationModel.prepareStatement(query);
+							try {
+								s.setString(1,getParameterValueFromQuotedValue(vSeriesInstanceUID));
+								ResultSet r = s.executeQuery();
+								if (r != null) {
+									//r.last();			// fails if result set type is not forward
+									//int count = r.getRow();
+									int count = 0;			// so keep it simple and do it the (perhaps) slow way
+									while (r.next()) {
+										++count;
+									}
+									Attribute a = new IntegerStringAttribute(TagFromName.NumberOfSeriesRelatedInstances);
+									a.addValue(count);
+									responseIdentifier.put(a);
 								}
-								Attribute a = new IntegerStringAttribute(TagFromName.NumberOfSeriesRelatedInstances);
-								a.addValue(count);
-								responseIdentifier.put(a);
 							}
-							s.close();
+							finally {
+								s.close();
+							}
 						}
 						catch (SQLException e) {
 							e.printStackTrace(System.err);
@@ -1020,17 +1331,9 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 	public String getErrorComment() { return errorComment; }
 	
 	public void close() {
-		resultSet=null;
-		resultSetMetaData=null;
-		if (databaseStatement != null) {
-			try {
-				databaseStatement.close();
-			}
-			catch (SQLException e) {
-				e.printStackTrace(System.err);
-			}
-			databaseStatement=null;
-		}
+		pageOfRows=null;
+		morePages=false;
+		columnNames=null;
 	}
 	
 	public boolean allOptionalKeysSuppliedWereSupported() {
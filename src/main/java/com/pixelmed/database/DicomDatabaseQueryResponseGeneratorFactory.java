@@ -12,15 +12,27 @@ class DicomDatabaseQueryResponseGeneratorFactory implements QueryResponseGenerat
 	private int debugLevel;
 	/***/
 	private DatabaseInformationModel databaseInformationModel;
+	/***/
+	private int queryPageSize;
 
 	DicomDatabaseQueryResponseGeneratorFactory(DatabaseInformationModel databaseInformationModel,int debugLevel) {
+		this(databaseInformationModel,debugLevel,DicomDatabaseQueryResponseGenerator.defaultQueryPageSize);
+	}
+
+	/**
+	 * @param	databaseInformationModel
+	 * @param	debugLevel
+	 * @param	queryPageSize			the number of matches each generator fetches from the database at once, or 0 to fetch all at once
+	 */
+	DicomDatabaseQueryResponseGeneratorFactory(DatabaseInformationModel databaseInformationModel,int debugLevel,int queryPageSize) {
 //System.err.println("DicomDatabaseQueryResponseGeneratorFactory():");
 		this.debugLevel=debugLevel;
 		this.databaseInformationModel=databaseInformationModel;
+		this.queryPageSize=queryPageSize;
 	}
 	
 	public QueryResponseGenerator newInstance() {
-		return new DicomDatabaseQueryResponseGenerator(databaseInformationModel,debugLevel);
+		return new DicomDatabaseQueryResponseGenerator(databaseInformationModel,debugLevel,queryPageSize);
 	}
 }
 
@@ -302,19 +302,23 @@ if (debugLevel > 0) System.err.println("DicomDatabaseRetrieveResponseGenerator.p
 		if (query != null) {
 			try {
 				Statement databaseStatement = databaseInformationModel.createStatement();
-				ResultSet resultSet = databaseStatement.executeQuery(query);
-				dicomFiles = new SetOfDicomFiles();
-				if (resultSet != null) {
-					while (resultSet.next()) {
-						dicomFiles.add(
-							resultSet.getString(databaseInformationModel.localFileName),
-							resultSet.getString(sopClassUIDColumnName),
-							resultSet.getString(sopInstanceUIDColumnName),
-							resultSet.getString(transferSyntaxUIDColumnName)
-						);
+				try {
+					ResultSet resultSet = databaseStatement.executeQuery(query);
+					dicomFiles = new SetOfDicomFiles();
+					if (resultSet != null) {
+						while (resultSet.next()) {
+							dicomFiles.add(
+								resultSet.getString(databaseInformationModel.localFileName),
+								resultSet.getString(sopClassUIDColumnName),
+								resultSet.getString(sopInstanceUIDColumnName),
+								resultSet.getString(transferSyntaxUIDColumnName)
+							);
+						}
 					}
 				}
-				databaseStatement.close();
+				finally {
+					databaseStatement.close();
+				}
 				status = ResponseStatus.Success;	// success
 			}
 			catch (SQLException e) {
@@ -0,0 +1,134 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>Records which columns of which tables are matched by queries, so that columns that are frequently matched
+ * but not indexed can be reported.</p>
+ *
+ * <p>A table is considered to be indexed for a query if there is an index whose first column is one of the columns matched
+ * in that table, since the database can then use the index to avoid scanning the whole table.</p>
+ *
+ * @see com.pixelmed.database.DatabaseInformationModel#getIndexAdvice()
+ *
+ * @author	dclunie
+ */
+class IndexAdvisor {
+
+	/**
+	 * <p>The columns of a table that were matched together, and how often.</p>
+	 */
+	private static class Usage {
+		/***/
+		final String tableName;
+		/***/
+		final Set columnNames;
+		/***/
+		long count;
+
+		Usage(String tableName,Set columnNames) {
+			this.tableName=tableName;
+			this.columnNames=columnNames;
+		}
+	}
+
+	/***/
+	private Map usageByTableAndColumns;	// key is String of table and column names, value is Usage
+
+	IndexAdvisor() {
+		usageByTableAndColumns = new TreeMap();
+	}
+
+	/**
+	 * @param	tableName
+	 * @param	columnNames
+	 * @return			a description of the table and columns, e.g. "STUDY (ACCESSIONNUMBER,STUDYDATE)"
+	 */
+	private static String describe(String tableName,Set columnNames) {
+		StringBuffer buf = new StringBuffer();
+		buf.append(tableName);
+		buf.append(" (");
+		Iterator i = columnNames.iterator();
+		while (i.hasNext()) {
+			buf.append((String)(i.next()));
+			if (i.hasNext()) {
+				buf.append(",");
+			}
+		}
+		buf.append(")");
+		return buf.toString();
+	}
+
+	/**
+	 * <p>Count a query.</p>
+	 *
+	 * @param	columnNamesByTableName	for each table, the Set of names of the columns that the query matched
+	 */
+	synchronized void recordQuery(Map columnNamesByTableName) {
+		Iterator i = columnNamesByTableName.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry entry = (Map.Entry)(i.next());
+			String tableName = (String)(entry.getKey());
+			Set columnNames = new TreeSet((Set)(entry.getValue()));
+			if (!columnNames.isEmpty()) {
+				String key = describe(tableName,columnNames);
+				Usage usage = (Usage)(usageByTableAndColumns.get(key));
+				if (usage == null) {
+					usage = new Usage(tableName,columnNames);
+					usageByTableAndColumns.put(key,usage);
+				}
+				++usage.count;
+			}
+		}
+	}
+
+	/**
+	 * <p>Describe the columns matched by the queries counted so far, most frequent first, and whether or not they are indexed.</p>
+	 *
+	 * @param	leadingColumnNamesByTableName	for each table, the Set of names of the first column of each of its indexes
+	 * @return					a line for each combination of table and columns matched
+	 */
+	synchronized String getAdvice(Map leadingColumnNamesByTableName) {
+		ArrayList usages = new ArrayList(usageByTableAndColumns.values());
+		Collections.sort(usages,new Comparator() {
+			public int compare(Object o1,Object o2) {
+				long c1 = ((Usage)o1).count;
+				long c2 = ((Usage)o2).count;
+				return c1 > c2 ? -1 : (c1 < c2 ? 1 : 0);
+			}
+		});
+		StringBuffer buf = new StringBuffer();
+		for (int i=0; i<usages.size(); ++i) {
+			Usage usage = (Usage)(usages.get(i));
+			Set leadingColumnNames = (Set)(leadingColumnNamesByTableName.get(usage.tableName));
+			boolean indexed = false;
+			if (leadingColumnNames != null) {
+				Iterator c = usage.columnNames.iterator();
+				while (!indexed && c.hasNext()) {
+					indexed = leadingColumnNames.contains(c.next());
+				}
+			}
+			buf.append(usage.count);
+			buf.append(" queries matched ");
+			buf.append(describe(usage.tableName,usage.columnNames));
+			if (indexed) {
+				buf.append(", which is indexed");
+			}
+			else {
+				buf.append(", which is NOT indexed; consider an index on ");
+				buf.append(describe(usage.tableName,usage.columnNames));
+			}
+			buf.append("\n");
+		}
+		return buf.toString();
+	}
+}
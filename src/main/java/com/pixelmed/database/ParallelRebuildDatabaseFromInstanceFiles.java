@@ -0,0 +1,561 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.TagFromName;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This class allows the reconstruction of a database from a large number of stored instance files,
+ * using multiple threads.</p>
+ *
+ * <p>The folders are walked in parallel by a fork-join pool, which submits each candidate file to a pool of parser
+ * threads that read the attributes up to, but not including, the Pixel Data. The attributes are queued for a single
+ * writer thread that inserts them into the database in batches (see {@link com.pixelmed.database.DatabaseInformationModel#beginBatchInsert(int) DatabaseInformationModel.beginBatchInsert()}),
+ * since the database permits only one writer. Bounded queues between each stage prevent the walker and parsers from running too far ahead of the writer.</p>
+ *
+ * <p>If a checkpoint file is specified, the path of each folder is appended to it once every file within it and
+ * its sub-folders has been committed to the database. If the rebuild is interrupted and restarted with the same checkpoint file,
+ * the folders already listed are skipped; files in folders that were only partially completed are inserted again,
+ * which is harmless since existing instances in the database are matched rather than duplicated.</p>
+ *
+ * <p>The number of files found, parsed, inserted and failed, and the recent rate, are reported periodically.</p>
+ *
+ * @see com.pixelmed.database.RebuildDatabaseFromInstanceFiles
+ *
+ * @author	dclunie
+ */
+public class ParallelRebuildDatabaseFromInstanceFiles {
+
+	/***/
+	protected static final int defaultProgressReportingIntervalInSeconds = 10;
+
+	/***/
+	private static final int maximumQueuedFilesPerParser = 100;
+
+	/***/
+	private static final int maximumQueuedAttributeLists = 1000;
+
+	/***/
+	private static final long queueOfferTimeoutInMilliseconds = 1000;
+
+	/***/
+	private DatabaseInformationModel databaseInformationModel;
+	/***/
+	private int numberOfParserThreads;
+	/***/
+	private int commitInterval;
+	/***/
+	private File checkpointFile;
+	/***/
+	private int progressReportingIntervalInSeconds;
+
+	/***/
+	private Set completedDirectories;
+	/***/
+	private Writer checkpointWriter;
+
+	/***/
+	private ThreadPoolExecutor parserPool;
+	/***/
+	private BlockingQueue parsedQueue;
+	/***/
+	private volatile boolean aborted;		// set when the writer fails, so that the walkers and parsers stop rather than wait for it
+
+	/***/
+	private final AtomicLong filesFound = new AtomicLong();
+	/***/
+	private final AtomicLong filesParsed = new AtomicLong();
+	/***/
+	private final AtomicLong filesInserted = new AtomicLong();
+	/***/
+	private final AtomicLong filesFailed = new AtomicLong();
+	/***/
+	private final AtomicLong directoriesSkipped = new AtomicLong();
+	/***/
+	private final List failedInsertions = Collections.synchronizedList(new ArrayList());	// of the names of files that could not be inserted
+
+	/**
+	 * <p>Keeps track of the files and sub-folders within a folder that have yet to be committed.</p>
+	 *
+	 * <p>The count starts at one for the listing of the folder itself, so that the folder cannot be considered
+	 * complete before it has been completely listed.</p>
+	 *
+	 * <p>A folder in which the insertion of any file failed, and the folders that contain it, are not checkpointed when complete,
+	 * so that the file is tried again when the rebuild is resumed.</p>
+	 */
+	private class DirectoryProgress {
+		/***/
+		private final File directory;
+		/***/
+		private final DirectoryProgress parent;
+		/***/
+		private final AtomicInteger outstanding;
+		/***/
+		private volatile boolean failed;
+
+		/**
+		 * @param	directory	the folder, or null for the files and folders supplied as arguments
+		 * @param	parent		the progress of the enclosing folder, or null if none
+		 */
+		DirectoryProgress(File directory,DirectoryProgress parent) {
+			this.directory=directory;
+			this.parent=parent;
+			this.outstanding=new AtomicInteger(1);
+			if (parent != null) {
+				parent.add();
+			}
+		}
+
+		/***/
+		void add() {
+			outstanding.incrementAndGet();
+		}
+
+		/**
+		 * <p>Record that a file in this folder could not be inserted, so that neither this folder nor those that contain it are checkpointed.</p>
+		 */
+		void fail() {
+			for (DirectoryProgress progress=this; progress != null; progress=progress.parent) {
+				progress.failed=true;
+			}
+		}
+
+		/***/
+		void done() {
+			if (outstanding.decrementAndGet() == 0) {
+				if (directory != null && !failed) {
+					recordCompletedDirectory(directory);
+				}
+				if (parent != null) {
+					parent.done();
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>The attributes of one file, ready for insertion.</p>
+	 */
+	private static class ParsedFile {
+		/***/
+		final AttributeList list;
+		/***/
+		final String fileName;
+		/***/
+		final DirectoryProgress progress;
+
+		ParsedFile(AttributeList list,String fileName,DirectoryProgress progress) {
+			this.list=list;
+			this.fileName=fileName;
+			this.progress=progress;
+		}
+	}
+
+	/***/
+	private static final ParsedFile endOfFiles = new ParsedFile(null,null,null);
+
+	/**
+	 * <p>Walk a folder, forking a task for each sub-folder and submitting each candidate file for parsing.</p>
+	 */
+	private class WalkTask extends RecursiveAction {
+		/***/
+		private final File file;
+		/***/
+		private final DirectoryProgress parentProgress;
+
+		WalkTask(File file,DirectoryProgress parentProgress) {
+			this.file=file;
+			this.parentProgress=parentProgress;
+		}
+
+		protected void compute() {
+			if (aborted) {
+				return;
+			}
+			if (RebuildDatabaseFromInstanceFiles.isWantedDirectory(file)) {
+				if (completedDirectories.contains(file.getAbsolutePath())) {
+					directoriesSkipped.incrementAndGet();
+					return;
+				}
+				DirectoryProgress progress = new DirectoryProgress(file,parentProgress);
+				try {
+					File listOfFiles[] = file.listFiles();
+					if (listOfFiles != null) {
+						ArrayList subTasks = new ArrayList();
+						for (int i=0; i<listOfFiles.length && !aborted; ++i) {
+							File child = listOfFiles[i];
+							if (child.isDirectory()) {
+								subTasks.add(new WalkTask(child,progress));
+							}
+							else {
+								submitFile(child,progress);
+							}
+						}
+						invokeAll(subTasks);
+					}
+				}
+				finally {
+					progress.done();		// the listing itself is complete
+				}
+			}
+			else if (file.isFile()) {
+				submitFile(file,parentProgress);
+			}
+			else {
+System.err.println("Not a directory (that we want) or file "+file);
+			}
+		}
+	}
+
+	/**
+	 * @param	file
+	 * @param	progress
+	 */
+	private void submitFile(final File file,final DirectoryProgress progress) {
+		if (!aborted && RebuildDatabaseFromInstanceFiles.isWantedFile(file)) {
+			filesFound.incrementAndGet();
+			progress.add();
+			parserPool.execute(new Runnable() {
+				public void run() {
+					parseFile(file,progress);
+				}
+			});
+		}
+	}
+
+	/**
+	 * <p>Read a file and queue its attributes for the writer.</p>
+	 *
+	 * <p>May be run by a walker thread rather than a parser thread when the parsers are busy, so waits for space
+	 * in the queue only as long as the writer has not failed, since otherwise nothing would ever take from it.</p>
+	 *
+	 * @param	file
+	 * @param	progress
+	 */
+	private void parseFile(File file,DirectoryProgress progress) {
+		if (aborted) {
+			return;
+		}
+		AttributeList list = new AttributeList();
+		try {
+			DicomInputStream dfi = new DicomInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				list.read(dfi,TagFromName.PixelData);
+			}
+			finally {
+				dfi.close();
+			}
+			filesParsed.incrementAndGet();
+		}
+		catch (Exception e) {
+System.err.println("Failed to read "+file+" - "+e);
+			filesFailed.incrementAndGet();
+			progress.done();
+			return;
+		}
+		try {
+			ParsedFile parsed = new ParsedFile(list,file.getAbsolutePath(),progress);
+			while (!parsedQueue.offer(parsed,queueOfferTimeoutInMilliseconds,TimeUnit.MILLISECONDS)) {
+				if (aborted) {
+					filesFailed.incrementAndGet();
+					return;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			filesFailed.incrementAndGet();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * <p>Insert the parsed files as they arrive, until the end marker, committing every commitInterval files.</p>
+	 *
+	 * <p>The progress of a file is not marked as done until it has been committed, so that a folder is never
+	 * checkpointed while insertions of its files might still be lost. A file that cannot be inserted, perhaps because of a transient
+	 * database error, marks its folder as failed, so that the folder is not checkpointed and the file is tried again when resumed.</p>
+	 */
+	private void writeParsedFiles() throws DicomException, InterruptedException {
+		ArrayList uncommitted = new ArrayList();
+		databaseInformationModel.beginBatchInsert(commitInterval);
+		try {
+			while (true) {
+				ParsedFile parsed = (ParsedFile)(parsedQueue.take());
+				if (parsed == endOfFiles) {
+					break;
+				}
+				try {
+					databaseInformationModel.insertObject(parsed.list,parsed.fileName,DatabaseInformationModel.FILE_COPIED);
+					filesInserted.incrementAndGet();
+				}
+				catch (Exception e) {
+System.err.println("Failed to insert "+parsed.fileName+" - "+e);
+					filesFailed.incrementAndGet();
+					failedInsertions.add(parsed.fileName);
+					parsed.progress.fail();
+				}
+				uncommitted.add(parsed.progress);
+				if (uncommitted.size() >= commitInterval) {
+					databaseInformationModel.commitBatchInsert();
+					markDone(uncommitted);
+				}
+			}
+		}
+		finally {
+			databaseInformationModel.endBatchInsert();
+		}
+		markDone(uncommitted);
+	}
+
+	/**
+	 * @param	uncommitted	a list of {@link DirectoryProgress DirectoryProgress} of files that have now been committed, which is emptied
+	 */
+	private void markDone(ArrayList uncommitted) {
+		for (int i=0; i<uncommitted.size(); ++i) {
+			((DirectoryProgress)(uncommitted.get(i))).done();
+		}
+		uncommitted.clear();
+	}
+
+	/**
+	 * @param	directory
+	 */
+	private synchronized void recordCompletedDirectory(File directory) {
+		if (checkpointWriter != null) {
+			try {
+				checkpointWriter.write(directory.getAbsolutePath());
+				checkpointWriter.write('\n');
+				checkpointWriter.flush();
+			}
+			catch (IOException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+	}
+
+	/**
+	 * @exception	IOException
+	 */
+	private void readCheckpoint() throws IOException {
+		completedDirectories = new HashSet();
+		if (checkpointFile != null && checkpointFile.exists()) {
+			BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile),"UTF-8"));
+			try {
+				String line;
+				while ((line=r.readLine()) != null) {
+					if (line.length() > 0) {
+						completedDirectories.add(line);
+					}
+				}
+			}
+			finally {
+				r.close();
+			}
+System.err.println("Resuming from checkpoint with "+completedDirectories.size()+" folders already completed");
+		}
+	}
+
+	/***/
+	private long lastReportTime;
+	/***/
+	private long lastReportFilesInserted;
+
+	/**
+	 * @return	a description of the progress so far
+	 */
+	public String getProgress() {
+		long now = System.currentTimeMillis();
+		long inserted = filesInserted.get();
+		double rate = now > lastReportTime ? ((double)(inserted-lastReportFilesInserted))*1000/(now-lastReportTime) : 0;
+		lastReportTime=now;
+		lastReportFilesInserted=inserted;
+		return "Found "+filesFound.get()
+			+", parsed "+filesParsed.get()
+			+", inserted "+inserted
+			+", failed "+filesFailed.get()
+			+", skipped folders "+directoriesSkipped.get()
+			+", "+(long)rate+" files/s";
+	}
+
+	/**
+	 * <p>Construct a rebuilder.</p>
+	 *
+	 * @param	databaseInformationModel		the database to insert into
+	 * @param	numberOfParserThreads			the number of threads reading files
+	 * @param	commitInterval				the number of files to insert between commits and checkpoints
+	 * @param	checkpointFile				the file in which to record completed folders, or null if none
+	 * @param	progressReportingIntervalInSeconds	how often to report progress, or 0 if never
+	 */
+	public ParallelRebuildDatabaseFromInstanceFiles(DatabaseInformationModel databaseInformationModel,int numberOfParserThreads,int commitInterval,
+			File checkpointFile,int progressReportingIntervalInSeconds) {
+		this.databaseInformationModel=databaseInformationModel;
+		this.numberOfParserThreads=numberOfParserThreads > 0 ? numberOfParserThreads : 1;
+		this.commitInterval=commitInterval > 0 ? commitInterval : 1;
+		this.checkpointFile=checkpointFile;
+		this.progressReportingIntervalInSeconds=progressReportingIntervalInSeconds;
+	}
+
+	/**
+	 * <p>Insert all the instance files found in the specified files and folders.</p>
+	 *
+	 * @param	files		the files and folders
+	 * @return			the number of files inserted
+	 * @exception	IOException	if the checkpoint file cannot be read or written
+	 * @exception	DicomException	if the database cannot be written
+	 * @exception	InterruptedException
+	 */
+	public long rebuild(File[] files) throws IOException, DicomException, InterruptedException {
+		readCheckpoint();
+		if (checkpointFile != null) {
+			checkpointWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(checkpointFile,true/*append*/),"UTF-8"));
+		}
+		parserPool = new ThreadPoolExecutor(numberOfParserThreads,numberOfParserThreads,0L,TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue(numberOfParserThreads*maximumQueuedFilesPerParser),
+			new ThreadPoolExecutor.CallerRunsPolicy());		// the walker parses files itself when the parsers are busy, rather than queueing without limit
+		parsedQueue = new ArrayBlockingQueue(maximumQueuedAttributeLists);
+		aborted = false;
+
+		final Exception[] writerException = new Exception[1];
+		Thread writerThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					writeParsedFiles();
+				}
+				catch (Exception e) {
+					writerException[0]=e;
+					aborted=true;				// stop the walkers, and any parsing in walker threads
+					parserPool.shutdownNow();		// discard queued files and interrupt the parsers
+				}
+			}
+		},"ParallelRebuildDatabaseFromInstanceFiles-writer");
+		writerThread.start();
+
+		ScheduledExecutorService reporter = null;
+		lastReportTime=System.currentTimeMillis();
+		lastReportFilesInserted=0;
+		if (progressReportingIntervalInSeconds > 0) {
+			reporter = Executors.newSingleThreadScheduledExecutor();
+			reporter.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					System.err.println(getProgress());
+				}
+			},progressReportingIntervalInSeconds,progressReportingIntervalInSeconds,TimeUnit.SECONDS);
+		}
+
+		ForkJoinPool walkerPool = new ForkJoinPool();
+		try {
+			DirectoryProgress argumentsProgress = new DirectoryProgress(null,null);
+			ArrayList tasks = new ArrayList();
+			for (int i=0; i<files.length; ++i) {
+				tasks.add(new WalkTask(files[i],argumentsProgress));
+			}
+			for (int i=0; i<tasks.size(); ++i) {
+				walkerPool.execute((WalkTask)(tasks.get(i)));
+			}
+			for (int i=0; i<tasks.size(); ++i) {
+				((WalkTask)(tasks.get(i))).join();
+			}
+			argumentsProgress.done();
+		}
+		finally {
+			walkerPool.shutdown();
+			parserPool.shutdown();
+			parserPool.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+			if (writerThread.isAlive()) {
+				parsedQueue.put(endOfFiles);
+			}
+			writerThread.join();
+			if (reporter != null) {
+				reporter.shutdown();
+			}
+			if (checkpointWriter != null) {
+				checkpointWriter.close();
+				checkpointWriter = null;
+			}
+		}
+		System.err.println(getProgress());
+		if (!failedInsertions.isEmpty()) {
+System.err.println("Failed to insert "+failedInsertions.size()+" files, whose folders have not been checkpointed:");
+			for (int i=0; i<failedInsertions.size(); ++i) {
+System.err.println("\t"+failedInsertions.get(i));
+			}
+		}
+		if (writerException[0] != null) {
+			if (writerException[0] instanceof DicomException) {
+				throw (DicomException)(writerException[0]);
+			}
+			throw new DicomException("Failed to write database: "+writerException[0]);
+		}
+		return filesInserted.get();
+	}
+
+	/**
+	 * <p>Read the DICOM files listed on the command line, load them into the specified model and store
+	 * the database files in the specified location.</p>
+	 *
+	 * @param	arg	optionally -threads n, -commit n and -checkpoint filename, then the class name of the model, the (full) path of the database file prefix, and a list of DICOM file names or directories
+	 */
+	public static void main(String arg[]) {
+		int numberOfParserThreads = Runtime.getRuntime().availableProcessors();
+		int commitInterval = DatabaseInformationModel.defaultBatchInsertCommitInterval;
+		File checkpointFile = null;
+		int a = 0;
+		while (a < arg.length-1 && arg[a].startsWith("-")) {
+			String option = arg[a++];
+			if (option.equals("-threads")) {
+				numberOfParserThreads = Integer.parseInt(arg[a++]);
+			}
+			else if (option.equals("-commit")) {
+				commitInterval = Integer.parseInt(arg[a++]);
+			}
+			else if (option.equals("-checkpoint")) {
+				checkpointFile = new File(arg[a++]);
+			}
+			else {
+				a = arg.length;		// force usage message
+			}
+		}
+		if (arg.length - a >= 3) {
+			String databaseModelClassName = arg[a++];
+			String databaseFileName = arg[a++];
+			DatabaseInformationModel databaseInformationModel = null;
+			try {
+				databaseInformationModel = RebuildDatabaseFromInstanceFiles.createDatabaseInformationModel(databaseModelClassName,databaseFileName);
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+				System.exit(0);
+			}
+			File[] files = new File[arg.length-a];
+			for (int i=0; i<files.length; ++i) {
+				files[i] = new File(arg[a+i]);
+			}
+			long startOfRebuild=System.currentTimeMillis();
+			long filesProcessed = 0;
+			try {
+				ParallelRebuildDatabaseFromInstanceFiles rebuilder = new ParallelRebuildDatabaseFromInstanceFiles(databaseInformationModel,numberOfParserThreads,commitInterval,
+					checkpointFile,defaultProgressReportingIntervalInSeconds);
+				filesProcessed = rebuilder.rebuild(files);
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+			}
+			databaseInformationModel.close();
+			long durationOfRebuild = System.currentTimeMillis() - startOfRebuild;
+			double rate = ((double)filesProcessed)/(((double)durationOfRebuild)/1000);
+			System.err.println("Processed "+filesProcessed+" files in "+durationOfRebuild+" ms, "+rate+" files/s");
+		}
+		else {
+			System.err.println("Usage: java com.pixelmed.database.ParallelRebuildDatabaseFromInstanceFiles [-threads n] [-commit n] [-checkpoint filename] databaseModelClassName databaseFilePathPrefix path(s)");
+		}
+	}
+}
@@ -312,6 +312,19 @@ public class PatientStudySeriesConcatenationInstanceModel extends DicomDatabaseI
 	}
 
 
+	/**
+	 * <p>Declare secondary indexes for the keys commonly matched by queries from a RIS.</p>
+	 *
+	 * <p>These are AccessionNumber, StudyDate alone, StudyDate within a patient (PatientID is already indexed),
+	 * and Modality within a study (as used for ModalitiesInStudy).</p>
+	 */
+	protected void declareSecondaryIndexes() {
+		declareSecondaryIndex(InformationEntity.STUDY,new String[] { "ACCESSIONNUMBER" });
+		declareSecondaryIndex(InformationEntity.STUDY,new String[] { "STUDYDATE" });
+		declareSecondaryIndex(InformationEntity.STUDY,new String[] { localParentReferenceColumnName, "STUDYDATE" });
+		declareSecondaryIndex(InformationEntity.SERIES,new String[] { localParentReferenceColumnName, "MODALITY" });
+	}
+
 	/**
 	 * <p>Create  additional indexes on UIDs to optimize queries.</p>
 	 */
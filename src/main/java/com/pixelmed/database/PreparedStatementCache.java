@@ -0,0 +1,247 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/**
+ * <p>A cache of {@link java.sql.PreparedStatement PreparedStatement}s on a single connection, keyed by their SQL text,
+ * so that statements that differ only in the values of their parameters are parsed and planned by the database only once.</p>
+ *
+ * <p>The statements handed out by {@link #prepareStatement(String) prepareStatement()} are wrappers that, when closed,
+ * close any result sets obtained from them, clear their parameters and return them to the cache rather than closing them.
+ * A statement is only ever used by one caller at a time; if the same SQL is being used concurrently, another statement is prepared,
+ * and both are kept.</p>
+ *
+ * <p>When more than the specified number of statements are idle, those whose SQL was least recently used are closed.</p>
+ *
+ * @author	dclunie
+ */
+class PreparedStatementCache {
+
+	/***/
+	private Connection connection;
+	/***/
+	private int maximumNumberOfStatements;
+
+	/***/
+	private LinkedHashMap idleStatementsBySQL;	// key is SQL, value is LinkedList of PreparedStatement; in order of access, least recently used first
+	/***/
+	private int numberOfIdleStatements;
+	/***/
+	private boolean closed;
+
+	/***/
+	private long hits;
+	/***/
+	private long misses;
+
+	/**
+	 * <p>Intercepts the closing of a borrowed statement, and the obtaining of result sets from it.</p>
+	 */
+	private class BorrowedPreparedStatementHandler implements InvocationHandler {
+		/***/
+		private String sql;
+		/***/
+		private PreparedStatement statement;
+		/***/
+		private ArrayList resultSets = new ArrayList();
+
+		BorrowedPreparedStatementHandler(String sql,PreparedStatement statement) {
+			this.sql=sql;
+			this.statement=statement;
+		}
+
+		public Object invoke(Object proxy,Method method,Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				returnStatement();
+				return null;
+			}
+			else if (name.equals("isClosed")) {
+				return Boolean.valueOf(statement == null);
+			}
+			else if (name.equals("equals")) {
+				return Boolean.valueOf(proxy == args[0]);
+			}
+			else if (name.equals("hashCode")) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			else if (name.equals("toString")) {
+				return "BorrowedPreparedStatement "+(statement == null ? "(closed)" : sql);
+			}
+			if (statement == null) {
+				throw new SQLException("Statement is closed");
+			}
+			try {
+				Object result = method.invoke(statement,args);
+				if (result instanceof ResultSet) {
+					resultSets.add(result);
+				}
+				return result;
+			}
+			catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		/***/
+		private void returnStatement() {
+			if (statement != null) {
+				for (int i=0; i<resultSets.size(); ++i) {
+					try {
+						((ResultSet)(resultSets.get(i))).close();
+					}
+					catch (SQLException e) {
+					}
+				}
+				resultSets.clear();
+				release(sql,statement);
+				statement=null;
+			}
+		}
+	}
+
+	/**
+	 * <p>Construct an empty cache.</p>
+	 *
+	 * @param	connection			the connection on which to prepare statements
+	 * @param	maximumNumberOfStatements	the most idle statements to keep open
+	 */
+	PreparedStatementCache(Connection connection,int maximumNumberOfStatements) {
+		this.connection=connection;
+		this.maximumNumberOfStatements=maximumNumberOfStatements;
+		idleStatementsBySQL = new LinkedHashMap(16,0.75f,true/*accessOrder*/);
+		numberOfIdleStatements = 0;
+		closed = false;
+	}
+
+	/**
+	 * <p>Get a prepared statement for the SQL, reusing an idle one if there is one.</p>
+	 *
+	 * <p>The statement must be closed when finished with, in order to return it to the cache.</p>
+	 *
+	 * @param	sql			the SQL, with ? for each parameter
+	 * @return				the statement
+	 * @exception	SQLException	if the statement cannot be prepared or the cache is closed
+	 */
+	PreparedStatement prepareStatement(String sql) throws SQLException {
+		PreparedStatement statement = borrowIdle(sql);
+		if (statement == null) {
+			statement = connection.prepareStatement(sql);
+		}
+		return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),new Class[] { PreparedStatement.class },new BorrowedPreparedStatementHandler(sql,statement));
+	}
+
+	/**
+	 * @param	sql
+	 * @return			an idle statement for the SQL, or null if none
+	 * @exception	SQLException
+	 */
+	private synchronized PreparedStatement borrowIdle(String sql) throws SQLException {
+		if (closed) {
+			throw new SQLException("Prepared statement cache is closed");
+		}
+		LinkedList idleStatements = (LinkedList)(idleStatementsBySQL.get(sql));
+		if (idleStatements != null && !idleStatements.isEmpty()) {
+			--numberOfIdleStatements;
+			++hits;
+			return (PreparedStatement)(idleStatements.removeLast());
+		}
+		++misses;
+		return null;
+	}
+
+	/**
+	 * @param	sql
+	 * @param	statement	a statement previously borrowed
+	 */
+	private synchronized void release(String sql,PreparedStatement statement) {
+		if (closed) {
+			close(statement);
+			return;
+		}
+		try {
+			statement.clearParameters();
+		}
+		catch (SQLException e) {
+			close(statement);
+			return;
+		}
+		LinkedList idleStatements = (LinkedList)(idleStatementsBySQL.get(sql));
+		if (idleStatements == null) {
+			idleStatements = new LinkedList();
+			idleStatementsBySQL.put(sql,idleStatements);
+		}
+		idleStatements.addLast(statement);
+		++numberOfIdleStatements;
+		Iterator i = idleStatementsBySQL.values().iterator();
+		while (numberOfIdleStatements > maximumNumberOfStatements && i.hasNext()) {
+			LinkedList leastRecentlyUsed = (LinkedList)(i.next());
+			while (numberOfIdleStatements > maximumNumberOfStatements && !leastRecentlyUsed.isEmpty()) {
+//System.err.println("PreparedStatementCache.release(): evicting "+statement);
+				close((PreparedStatement)(leastRecentlyUsed.removeFirst()));
+				--numberOfIdleStatements;
+			}
+			if (leastRecentlyUsed.isEmpty()) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param	statement
+	 */
+	private static void close(PreparedStatement statement) {
+		try {
+			statement.close();
+		}
+		catch (SQLException e) {
+		}
+	}
+
+	/**
+	 * <p>Close all idle statements, and any borrowed statements as they are returned.</p>
+	 *
+	 * <p>Does not close the connection.</p>
+	 */
+	synchronized void close() {
+		closed = true;
+		Iterator i = idleStatementsBySQL.values().iterator();
+		while (i.hasNext()) {
+			LinkedList idleStatements = (LinkedList)(i.next());
+			while (!idleStatements.isEmpty()) {
+				close((PreparedStatement)(idleStatements.removeFirst()));
+			}
+		}
+		idleStatementsBySQL.clear();
+		numberOfIdleStatements = 0;
+	}
+
+	/**
+	 * @return	the number of statements currently idle in the cache
+	 */
+	synchronized int getNumberOfIdleStatements() {
+		return numberOfIdleStatements;
+	}
+
+	/**
+	 * @return	a description of how often an idle statement was reused
+	 */
+	public synchronized String toString() {
+		return "PreparedStatementCache: "+numberOfIdleStatements+" idle statements for "+idleStatementsBySQL.size()+" distinct SQL; "+hits+" reused, "+misses+" prepared";
+	}
+}
@@ -25,19 +25,131 @@ public class RebuildDatabaseFromInstanceFiles {
 	
 	private static long filesProcessed;
 	
+	/**
+	 * <p>Is the directory one that may contain instance files, rather than one known to contain only application or viewer files?</p>
+	 *
+	 * @param	file	a directory
+	 * @return		true if the directory should be searched
+	 */
+	static boolean isWantedDirectory(File file) {
+		String fileNameAsUpperCase = file.getName().toUpperCase();
+		return file.isDirectory()
+		    && !fileNameAsUpperCase.equals("CDVIEWER")
+		    && !fileNameAsUpperCase.equals("CVS")
+		    && !fileNameAsUpperCase.equals("ICONS")
+		    && !fileNameAsUpperCase.equals("JRE")
+		    && !fileNameAsUpperCase.equals("LOCALE")
+		    && !fileNameAsUpperCase.equals("RESOURCES")
+		    && !fileNameAsUpperCase.equals("THUMBNAILS")
+		    && !fileNameAsUpperCase.endsWith(".APP");
+	}
+
+	/**
+	 * <p>Is the file one that may be an instance file, rather than hidden or one with a name or extension known not to be DICOM?</p>
+	 *
+	 * @param	file	a file, which is assumed to be a file rather than a directory
+	 * @return		true if the file should be read
+	 */
+	static boolean isWantedFile(File file) {
+		String fileNameAsUpperCase = file.getName().toUpperCase();
+		return !file.isHidden()
+		    && !fileNameAsUpperCase.endsWith(".APP")
+		    && !fileNameAsUpperCase.endsWith(".BAK")
+		    && !fileNameAsUpperCase.endsWith(".BAT")
+		    && !fileNameAsUpperCase.endsWith(".BDT")
+		    && !fileNameAsUpperCase.endsWith(".BIN")
+		    && !fileNameAsUpperCase.endsWith(".BMP")
+		    && !fileNameAsUpperCase.endsWith(".BZ2")
+		    && !fileNameAsUpperCase.endsWith(".CAB")
+		    && !fileNameAsUpperCase.endsWith(".CFG")
+		    && !fileNameAsUpperCase.endsWith(".CHM")
+		    && !fileNameAsUpperCase.endsWith(".CM")
+		    && !fileNameAsUpperCase.endsWith(".CNF")
+		    && !fileNameAsUpperCase.endsWith(".CNT")
+		    && !fileNameAsUpperCase.endsWith(".COL")
+		    && !fileNameAsUpperCase.endsWith(".CONFIG")
+		    && !fileNameAsUpperCase.endsWith(".CRT.MANIFEST")
+		    && !fileNameAsUpperCase.endsWith(".CSS")
+		    && !fileNameAsUpperCase.endsWith(".CUR")
+		    && !fileNameAsUpperCase.endsWith(".DAT")
+		    && !fileNameAsUpperCase.endsWith(".DB")
+		    && !fileNameAsUpperCase.endsWith(".DCT")
+		    && !fileNameAsUpperCase.endsWith(".DLL")
+		    && !fileNameAsUpperCase.endsWith(".DOC")
+		    && !fileNameAsUpperCase.endsWith(".DTD")
+		    && !fileNameAsUpperCase.endsWith(".EXE")
+		    && !fileNameAsUpperCase.endsWith(".EXE.MANIFEST")
+		    && !fileNameAsUpperCase.endsWith(".GIF")
+		    && !fileNameAsUpperCase.endsWith(".HDR")
+		    && !fileNameAsUpperCase.endsWith(".HLP")
+		    && !fileNameAsUpperCase.endsWith(".HQX")
+		    && !fileNameAsUpperCase.endsWith(".HTC")
+		    && !fileNameAsUpperCase.endsWith(".HTF")
+		    && !fileNameAsUpperCase.endsWith(".HTM")
+		    && !fileNameAsUpperCase.endsWith(".HTML")
+		    && !fileNameAsUpperCase.endsWith(".IBT")
+		    && !fileNameAsUpperCase.endsWith(".ICO")
+		    && !fileNameAsUpperCase.endsWith(".IDX")
+		    && !fileNameAsUpperCase.endsWith(".INF")
+		    && !fileNameAsUpperCase.endsWith(".INI")
+		    && !fileNameAsUpperCase.endsWith(".INX")
+		    && !fileNameAsUpperCase.endsWith(".ISO")
+		    && !fileNameAsUpperCase.endsWith(".JAR")
+		    && !fileNameAsUpperCase.endsWith(".JPEG")
+		    && !fileNameAsUpperCase.endsWith(".JPG")
+		    && !fileNameAsUpperCase.endsWith(".JS")
+		    && !fileNameAsUpperCase.endsWith(".JSE")
+		    && !fileNameAsUpperCase.endsWith(".LNK")
+		    && !fileNameAsUpperCase.endsWith(".LOG")
+		    && !fileNameAsUpperCase.endsWith(".LST")
+		    && !fileNameAsUpperCase.endsWith(".MDB")
+		    && !fileNameAsUpperCase.endsWith(".MFC.MANIFEST")
+		    && !fileNameAsUpperCase.endsWith(".MO")
+		    && !fileNameAsUpperCase.endsWith(".MSG")
+		    && !fileNameAsUpperCase.endsWith(".MSI")
+		    && !fileNameAsUpperCase.endsWith(".MSO")
+		    && !fileNameAsUpperCase.endsWith(".NIB")
+		    && !fileNameAsUpperCase.endsWith(".OCX")
+		    && !fileNameAsUpperCase.endsWith(".ORG")
+		    && !fileNameAsUpperCase.endsWith(".PAL")
+		    && !fileNameAsUpperCase.endsWith(".PDF")
+		    && !fileNameAsUpperCase.endsWith(".PFL")
+		    && !fileNameAsUpperCase.endsWith(".PNG")
+		    && !fileNameAsUpperCase.endsWith(".PRO")
+		    && !fileNameAsUpperCase.endsWith(".PROPERTIES")
+		    && !fileNameAsUpperCase.endsWith(".RAR")
+		    && !fileNameAsUpperCase.endsWith(".RES")
+		    && !fileNameAsUpperCase.endsWith(".RTC")
+		    && !fileNameAsUpperCase.endsWith(".RTF")
+		    && !fileNameAsUpperCase.endsWith(".SIT")
+		    && !fileNameAsUpperCase.endsWith(".SRV")
+		    && !fileNameAsUpperCase.endsWith(".SWF")
+		    && !fileNameAsUpperCase.endsWith(".TB2")
+		    && !fileNameAsUpperCase.endsWith(".TIF")
+		    && !fileNameAsUpperCase.endsWith(".TPL")
+		    && !fileNameAsUpperCase.endsWith(".TXT")
+		    && !fileNameAsUpperCase.endsWith(".XML")
+		    && !fileNameAsUpperCase.endsWith(".XSL")
+		    && !fileNameAsUpperCase.endsWith(".ZIP")
+		    && !fileNameAsUpperCase.endsWith("ABOUT.HTA")
+		    && !fileNameAsUpperCase.endsWith("ACRCODES.ACR")
+		    && !fileNameAsUpperCase.endsWith("ACRCODES-EN.ACR")
+		    && !fileNameAsUpperCase.endsWith("CDINFO")
+		    && !fileNameAsUpperCase.endsWith("DATABASE.BACKUP")
+		    && !fileNameAsUpperCase.endsWith("DATABASE.DATA")
+		    && !fileNameAsUpperCase.endsWith("DATABASE.SCRIPT")
+		    && !fileNameAsUpperCase.endsWith("DICOMDIR")
+		    && !fileNameAsUpperCase.endsWith("JAR.OLD")
+		    && !fileNameAsUpperCase.endsWith("LOGGER")
+		    && !fileNameAsUpperCase.endsWith("NAVIGATOR.HTA")
+		    && !fileNameAsUpperCase.endsWith("NOTES")
+		    && !fileNameAsUpperCase.endsWith("README")
+		    && !fileNameAsUpperCase.endsWith("TOOLBARCONFIGURATION.OLD");
+	}
+
 	private static void processFileOrDirectory(DatabaseInformationModel databaseInformationModel,File file) {
 //System.err.println("RebuildDatabaseFromInstanceFiles.processFileOrDirectory(): "+file);
-		String fileNameAsUpperCase = file.getName().toUpperCase();
-		if (file.isDirectory()
-		 && !fileNameAsUpperCase.equals("CDVIEWER")
-		 && !fileNameAsUpperCase.equals("CVS")
-		 && !fileNameAsUpperCase.equals("ICONS")
-		 && !fileNameAsUpperCase.equals("JRE")
-		 && !fileNameAsUpperCase.equals("LOCALE")
-		 && !fileNameAsUpperCase.equals("RESOURCES")
-		 && !fileNameAsUpperCase.equals("THUMBNAILS")
-		 && !fileNameAsUpperCase.endsWith(".APP")
-		) {
+		if (isWantedDirectory(file)) {
 System.err.println("Recursing into directory "+file);
 			try {
 				File listOfFiles[] = file.listFiles();
@@ -51,100 +163,7 @@ System.err.println("Recursing into directory "+file);
 			}
 		}
 		else if (file.isFile()) {
-			if (!file.isHidden()
-			 && !fileNameAsUpperCase.endsWith(".APP")
-			 && !fileNameAsUpperCase.endsWith(".BAK")
-			 && !fileNameAsUpperCase.endsWith(".BAT")
-			 && !fileNameAsUpperCase.endsWith(".BDT")
-			 && !fileNameAsUpperCase.endsWith(".BIN")
-			 && !fileNameAsUpperCase.endsWith(".BMP")
-			 && !fileNameAsUpperCase.endsWith(".BZ2")
-			 && !fileNameAsUpperCase.endsWith(".CAB")
-			 && !fileNameAsUpperCase.endsWith(".CFG")
-			 && !fileNameAsUpperCase.endsWith(".CHM")
-			 && !fileNameAsUpperCase.endsWith(".CM")
-			 && !fileNameAsUpperCase.endsWith(".CNF")
-			 && !fileNameAsUpperCase.endsWith(".CNT")
-			 && !fileNameAsUpperCase.endsWith(".COL")
-			 && !fileNameAsUpperCase.endsWith(".CONFIG")
-			 && !fileNameAsUpperCase.endsWith(".CRT.MANIFEST")
-			 && !fileNameAsUpperCase.endsWith(".CSS")
-			 && !fileNameAsUpperCase.endsWith(".CUR")
-			 && !fileNameAsUpperCase.endsWith(".DAT")
-			 && !fileNameAsUpperCase.endsWith(".DB")
-			 && !fileNameAsUpperCase.endsWith(".DCT")
-			 && !fileNameAsUpperCase.endsWith(".DLL")
-			 && !fileNameAsUpperCase.endsWith(".DOC")
-			 && !fileNameAsUpperCase.endsWith(".DTD")
-			 && !fileNameAsUpperCase.endsWith(".EXE")
-			 && !fileNameAsUpperCase.endsWith(".EXE.MANIFEST")
-			 && !fileNameAsUpperCase.endsWith(".GIF")
-			 && !fileNameAsUpperCase.endsWith(".HDR")
-			 && !fileNameAsUpperCase.endsWith(".HLP")
-			 && !fileNameAsUpperCase.endsWith(".HQX")
-			 && !fileNameAsUpperCase.endsWith(".HTC")
-			 && !fileNameAsUpperCase.endsWith(".HTF")
-			 && !fileNameAsUpperCase.endsWith(".HTM")
-			 && !fileNameAsUpperCase.endsWith(".HTML")
-			 && !fileNameAsUpperCase.endsWith(".IBT")
-			 && !fileNameAsUpperCase.endsWith(".ICO")
-			 && !fileNameAsUpperCase.endsWith(".IDX")
-			 && !fileNameAsUpperCase.endsWith(".INF")
-			 && !fileNameAsUpperCase.endsWith(".INI")
-			 && !fileNameAsUpperCase.endsWith(".INX")
-			 && !fileNameAsUpperCase.endsWith(".ISO")
-			 && !fileNameAsUpperCase.endsWith(".JAR")
-			 && !fileNameAsUpperCase.endsWith(".JPEG")
-			 && !fileNameAsUpperCase.endsWith(".JPG")
-			 && !fileNameAsUpperCase.endsWith(".JS")
-			 && !fileNameAsUpperCase.endsWith(".JSE")
-			 && !fileNameAsUpperCase.endsWith(".LNK")
-			 && !fileNameAsUpperCase.endsWith(".LOG")
-			 && !fileNameAsUpperCase.endsWith(".LST")
-			 && !fileNameAsUpperCase.endsWith(".MDB")
-			 && !fileNameAsUpperCase.endsWith(".MFC.MANIFEST")
-			 && !fileNameAsUpperCase.endsWith(".MO")
-			 && !fileNameAsUpperCase.endsWith(".MSG")
-			 && !fileNameAsUpperCase.endsWith(".MSI")
-			 && !fileNameAsUpperCase.endsWith(".MSO")
-			 && !fileNameAsUpperCase.endsWith(".NIB")
-			 && !fileNameAsUpperCase.endsWith(".OCX")
-			 && !fileNameAsUpperCase.endsWith(".ORG")
-			 && !fileNameAsUpperCase.endsWith(".PAL")
-			 && !fileNameAsUpperCase.endsWith(".PDF")
-			 && !fileNameAsUpperCase.endsWith(".PFL")
-			 && !fileNameAsUpperCase.endsWith(".PNG")
-			 && !fileNameAsUpperCase.endsWith(".PRO")
-			 && !fileNameAsUpperCase.endsWith(".PROPERTIES")
-			 && !fileNameAsUpperCase.endsWith(".RAR")
-			 && !fileNameAsUpperCase.endsWith(".RES")
-			 && !fileNameAsUpperCase.endsWith(".RTC")
-			 && !fileNameAsUpperCase.endsWith(".RTF")
-			 && !fileNameAsUpperCase.endsWith(".SIT")
-			 && !fileNameAsUpperCase.endsWith(".SRV")
-			 && !fileNameAsUpperCase.endsWith(".SWF")
-			 && !fileNameAsUpperCase.endsWith(".TB2")
-			 && !fileNameAsUpperCase.endsWith(".TIF")
-			 && !fileNameAsUpperCase.endsWith(".TPL")
-			 && !fileNameAsUpperCase.endsWith(".TXT")
-			 && !fileNameAsUpperCase.endsWith(".XML")
-			 && !fileNameAsUpperCase.endsWith(".XSL")
-			 && !fileNameAsUpperCase.endsWith(".ZIP")
-			 && !fileNameAsUpperCase.endsWith("ABOUT.HTA")
-			 && !fileNameAsUpperCase.endsWith("ACRCODES.ACR")
-			 && !fileNameAsUpperCase.endsWith("ACRCODES-EN.ACR")
-			 && !fileNameAsUpperCase.endsWith("CDINFO")
-			 && !fileNameAsUpperCase.endsWith("DATABASE.BACKUP")
-			 && !fileNameAsUpperCase.endsWith("DATABASE.DATA")
-			 && !fileNameAsUpperCase.endsWith("DATABASE.SCRIPT")
-			 && !fileNameAsUpperCase.endsWith("DICOMDIR")
-			 && !fileNameAsUpperCase.endsWith("JAR.OLD")
-			 && !fileNameAsUpperCase.endsWith("LOGGER")
-			 && !fileNameAsUpperCase.endsWith("NAVIGATOR.HTA")
-			 && !fileNameAsUpperCase.endsWith("NOTES")
-			 && !fileNameAsUpperCase.endsWith("README")
-			 && !fileNameAsUpperCase.endsWith("TOOLBARCONFIGURATION.OLD")
-			) {
+			if (isWantedFile(file)) {
 System.err.println("Doing file "+file);
 				try {
 					DicomInputStream dfi = new DicomInputStream(new BufferedInputStream(new FileInputStream(file)));
@@ -171,6 +190,26 @@ System.err.println("Not a directory (that we want) or file "+file);
 		}
 	}
 
+	/**
+	 * <p>Instantiate a database model by name.</p>
+	 *
+	 * @param	databaseModelClassName	the class name of the model, which if not fully qualified is assumed to be in this package
+	 * @param	databaseFileName	the (full) path of the database file prefix
+	 * @return				the model
+	 * @exception	Exception		if the class cannot be found or instantiated, or the database cannot be opened
+	 */
+	static DatabaseInformationModel createDatabaseInformationModel(String databaseModelClassName,String databaseFileName) throws Exception {
+		if (databaseModelClassName.indexOf('.') == -1) {					// not already fully qualified
+			databaseModelClassName="com.pixelmed.database."+databaseModelClassName;
+		}
+//System.err.println("Class name = "+databaseModelClassName);
+		Class classToUse = Thread.currentThread().getContextClassLoader().loadClass(databaseModelClassName);
+		Class[] parameterTypes = { databaseFileName.getClass() };
+		Constructor constructorToUse = classToUse.getConstructor(parameterTypes);
+		Object[] args = { databaseFileName };
+		return (DatabaseInformationModel)(constructorToUse.newInstance(args));
+	}
+
 	/**
 	 * <p>Read the DICOM files listed on the command line, load them into the specified model and store
 	 * the database files in the specified location.</p>
@@ -182,20 +221,11 @@ System.err.println("Not a directory (that we want) or file "+file);
 		if (arg.length >= 3) {
 			String databaseModelClassName = arg[0];
 			String databaseFileName = arg[1];
-		
-			if (databaseModelClassName.indexOf('.') == -1) {					// not already fully qualified
-				databaseModelClassName="com.pixelmed.database."+databaseModelClassName;
-			}
-//System.err.println("Class name = "+databaseModelClassName);
 
 			//DatabaseInformationModel databaseInformationModel = new PatientStudySeriesConcatenationInstanceModel(makePathToFileInUsersHomeDirectory(dataBaseFileName));
 			DatabaseInformationModel databaseInformationModel = null;
 			try {
-				Class classToUse = Thread.currentThread().getContextClassLoader().loadClass(databaseModelClassName);
-				Class[] parameterTypes = { databaseFileName.getClass() };
-				Constructor constructorToUse = classToUse.getConstructor(parameterTypes);
-				Object[] args = { databaseFileName };
-				databaseInformationModel = (DatabaseInformationModel)(constructorToUse.newInstance(args));
+				databaseInformationModel = createDatabaseInformationModel(databaseModelClassName,databaseFileName);
 			}
 			catch (Exception e) {
 				e.printStackTrace(System.err);
@@ -203,11 +233,18 @@ System.err.println("Not a directory (that we want) or file "+file);
 			}
 			long startOfRebuild=System.currentTimeMillis();
 			filesProcessed=0;
-			int i = 2;		// start with 3rd argument
-			while (i<arg.length) {
-				String name = arg[i++];
-				File file = new File(name);
-				processFileOrDirectory(databaseInformationModel,file);
+			try {
+				databaseInformationModel.beginBatchInsert(DatabaseInformationModel.defaultBatchInsertCommitInterval);
+				int i = 2;		// start with 3rd argument
+				while (i<arg.length) {
+					String name = arg[i++];
+					File file = new File(name);
+					processFileOrDirectory(databaseInformationModel,file);
+				}
+				databaseInformationModel.endBatchInsert();
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
 			}
 			long durationOfRebuild = System.currentTimeMillis() - startOfRebuild;
 			double rate = ((double)filesProcessed)/(((double)durationOfRebuild)/1000);
@@ -264,7 +264,7 @@ public class AttributeFactory {
 //System.err.println("AttributeFactory.newAttribute(): tag = "+tag);
 		Attribute a = null;
 		try {
-			boolean leaveOtherDataOnDisk = tag.equals(TagFromName.PixelData) && bytesPerSample > 1 && vl > maximumInMemoryOtherDataValueLength && i.getFile() != null;
+			boolean leaveOtherDataOnDisk = tag.equals(TagFromName.PixelData) && (vl > maximumInMemoryOtherDataValueLength || i.getLeavePixelDataOnDisk()) && i.getFile() != null;
 //if (tag.equals(TagFromName.PixelData)) {
 //System.err.println("AttributeFactory.newAttribute(): leaveOtherDataOnDisk = "+leaveOtherDataOnDisk);
 //System.err.println("AttributeFactory.newAttribute(): vl > maximumInMemoryOtherDataValueLength = "+(vl > maximumInMemoryOtherDataValueLength));
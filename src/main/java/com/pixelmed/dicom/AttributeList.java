@@ -80,6 +80,12 @@ import java.util.zip.*;
  * since the PixelData is always decompressed during reading by the {@link #read(String) read()} method and its ilk;
  * the call does nothing (is harmless) if the input was not compressed or not multi-component.</p>
  *
+ * <p>For large multi-frame compressed objects, decompression of all frames during reading may be avoided by calling
+ * {@link #setDecompressPixelDataLazily(boolean) setDecompressPixelDataLazily(true)} before reading from a file
+ * (by name, or from a {@link com.pixelmed.dicom.DicomInputStream DicomInputStream} constructed from a {@link java.io.File File}), in which case
+ * the PixelData will be an {@link com.pixelmed.dicom.EncapsulatedPixelDataAttribute EncapsulatedPixelDataAttribute}
+ * that decompresses individual frames on demand.</p>
+ *
  * <p>Individual attributes can be added or deleted as desired, either using a newly created
  * list or one which has been read in from an existing object. For example, to zero out the
  * patient's name one might do something like the following:</p>
@@ -534,6 +540,23 @@ System.err.println("AttributeList.read(): "+tag+" encountered incorrect Implicit
 //System.err.println("Undefined length encapsulated Pixel Data: words per frame "+wordsPerFrame);
 					String tsuid = i.getTransferSyntaxInUse().getUID();
 //System.err.println("Undefined length encapsulated Pixel Data: TransferSyntax UID "+tsuid);
+					if (decompressPixelDataLazily && i.getFile() != null && (bytesPerSample == 1 || bytesPerSample == 2)) {
+//System.err.println("Undefined length encapsulated Pixel Data: recording layout for lazy decompression");
+						EncapsulatedPixelDataAttribute ea = new EncapsulatedPixelDataAttribute(tag,i,byteOffset,tsuid,rows,columns,samplesPerPixel,bytesPerSample,frames);
+						a = ea;
+						long encapsulatedBytesRead = ea.getBytesRead();
+						byteOffset+= encapsulatedBytesRead;
+						if (!tsuid.equals(TransferSyntax.PixelMedEncapsulatedRawLittleEndian)) {
+							pixelDataWasDecompressed = true;		// values will only ever be returned decompressed
+							lossyMethod=EncapsulatedPixelDataAttribute.getLossyImageCompressionMethodForTransferSyntax(tsuid);
+							pixelDataWasLossy=lossyMethod != null;
+							if (encapsulatedBytesRead > 0) {
+								compressionRatio = (long)columns*rows*samplesPerPixel*bytesPerSample*frames*1000/encapsulatedBytesRead;
+								compressionRatio = compressionRatio / 1000;
+							}
+						}
+					}
+					else {
 					boolean doneReadingEncapsulatedData = false;
 					EncapsulatedInputStream ei = new EncapsulatedInputStream(i);
 					//try {
@@ -739,6 +762,7 @@ System.err.println("Using reader from "+readerDescription+" "+readerVendorName+"
 //System.err.println("AttributeList.read(): compressionRatio = "+compressionRatio);
 						}
 					}
+					}
 //System.err.println("Done with encapsulated pixel data");
 				}
 
@@ -897,9 +921,14 @@ System.err.println("Illegal duplicate tag in dataset - "+tag+" - replacing previ
 		InputStream i = null;
 		DicomInputStream di = null;
 		try {
-			i = new FileInputStream(name);
-			if (useBufferedStream) i=new BufferedInputStream(i);
-			di = new DicomInputStream(i,transferSyntaxUID,hasMeta);
+			if (decompressPixelDataLazily) {
+				di = new DicomInputStream(new File(name),transferSyntaxUID,hasMeta);		// always buffered, and needs the file to leave encapsulated Pixel Data on disk
+			}
+			else {
+				i = new FileInputStream(name);
+				if (useBufferedStream) i=new BufferedInputStream(i);
+				di = new DicomInputStream(i,transferSyntaxUID,hasMeta);
+			}
 			read(di,stopAtTag);
 		}
 		catch (IOException e) {
@@ -1613,6 +1642,9 @@ System.err.println("Illegal duplicate tag in dataset - "+tag+" - replacing previ
 //System.err.println("AttributeList.setFileUsedByOnDiskAttributes(): setting OtherWordAttributeOnDisk to file = "+file);
 				((OtherWordAttributeOnDisk)a).setFile(file);
 			}
+			else if (a instanceof EncapsulatedPixelDataAttribute) {
+				((EncapsulatedPixelDataAttribute)a).setFile(file);
+			}
 		}
 	}
 
@@ -1730,6 +1762,35 @@ System.err.println("Illegal duplicate tag in dataset - "+tag+" - replacing previ
 		}
 	}
 	
+	protected boolean decompressPixelDataLazily = false;
+
+	/**
+	 * <p>Specify whether or not encapsulated (compressed) Pixel Data is to be decompressed lazily, one frame at a time, when subsequently read.</p>
+	 *
+	 * <p>If lazy, rather than decompressing all frames during reading, only the layout of the
+	 * encapsulated fragments is recorded in an {@link com.pixelmed.dicom.EncapsulatedPixelDataAttribute EncapsulatedPixelDataAttribute},
+	 * and individual frames are decompressed when requested.</p>
+	 *
+	 * <p>Only applies when reading from a file, by name or from a {@link com.pixelmed.dicom.DicomInputStream DicomInputStream} constructed from a {@link java.io.File File},
+	 * since the compressed values are left on disk; otherwise decompression is always eager.</p>
+	 *
+	 * <p>The default is to decompress eagerly.</p>
+	 *
+	 * @param	lazy	true if Pixel Data is to be decompressed lazily
+	 */
+	public void setDecompressPixelDataLazily(boolean lazy) {
+		decompressPixelDataLazily = lazy;
+	}
+
+	/**
+	 * <p>Will encapsulated (compressed) Pixel Data be decompressed lazily, one frame at a time, when subsequently read ?</p>
+	 *
+	 * @return	true if Pixel Data will be decompressed lazily
+	 */
+	public boolean isDecompressPixelDataLazily() {
+		return decompressPixelDataLazily;
+	}
+
 	protected boolean pixelDataWasDecompressed = false;	// set if decompressed during reading of Pixel Data attribute in this AttributeList instance
 	protected boolean pixelDataWasLossy = false;		// set if decompressed from lossy transfer syntax during reading of Pixel Data attribute in this AttributeList instance
 	protected String lossyMethod = null;
@@ -4,6 +4,10 @@ package com.pixelmed.dicom;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
 import java.util.Date;	// for test timing of routines
 
 /**
@@ -26,6 +30,54 @@ public class BinaryInputStream extends FilterInputStream {
 	byte buffer[];
 	/**/
 	File file;
+	/** reused for reading arrays of values in bulk, allocated when first needed */
+	ByteBuffer bulkReadBuffer;
+
+	/** the size of the chunks in which arrays of values are read, which limits the memory used regardless of how many values are read */
+	private static final int bulkReadBufferSize = 65536;
+
+	/**
+	 * <p>A buffered stream on a file that can also transfer bytes from the file's channel directly into a {@link java.nio.ByteBuffer ByteBuffer},
+	 * once any bytes already buffered have been consumed.</p>
+	 */
+	static class FileChannelBufferedInputStream extends BufferedInputStream {
+		/***/
+		FileChannel channel;
+
+		/**
+		 * @param	i	the file input stream to buffer
+		 */
+		FileChannelBufferedInputStream(FileInputStream i) {
+			super(i);
+			channel=i.getChannel();
+		}
+
+		/**
+		 * <p>Read bytes into the remaining space in a buffer, first from what is already buffered, then from the channel.</p>
+		 *
+		 * @param	dst	the buffer to read into
+		 * @return		the number of bytes read, or -1 if at the end of the file
+		 * @exception	IOException
+		 */
+		synchronized int read(ByteBuffer dst) throws IOException {
+			if (buf == null) throw new IOException("Stream closed");
+			int available = count - pos;
+			if (available > 0) {
+				int n = Math.min(available,dst.remaining());
+				dst.put(buf,pos,n);
+				pos+=n;
+				return n;
+			}
+			if (markpos >= 0) {
+				// bypassing the buffer would invalidate the mark, so refill it in the usual way
+				int b = read();
+				if (b == -1) return -1;
+				dst.put((byte)b);
+				return 1;
+			}
+			return channel.read(dst);
+		}
+	}
 
 	/**
 	 * @param	big
@@ -44,7 +96,7 @@ public class BinaryInputStream extends FilterInputStream {
 	 * @param	big	true if big endian, false if little endian
 	 */
 	public BinaryInputStream(File file,boolean big) throws FileNotFoundException {
-		super(new BufferedInputStream(new FileInputStream(file)));
+		super(new FileChannelBufferedInputStream(new FileInputStream(file)));
 		this.file=file;
 		localInit(big);
 	}
@@ -183,6 +235,51 @@ public class BinaryInputStream extends FilterInputStream {
 		}
 	}
 
+	/**
+	 * <p>Fill the remaining space in a buffer, unless an exception occurs.</p>
+	 *
+	 * <p>If the stream is on a file, the bytes are transferred directly from the file's channel, otherwise
+	 * the buffer must have a backing array.</p>
+	 *
+	 * @param	b		buffer to read into, from its position to its limit
+	 * @exception	IOException
+	 */
+	private void readInsistently(ByteBuffer b) throws IOException {
+		int length = b.remaining();
+		if (in instanceof FileChannelBufferedInputStream) {
+			FileChannelBufferedInputStream fin = (FileChannelBufferedInputStream)in;
+			while (b.hasRemaining()) {
+				if (fin.read(b) == -1) throw new IOException("read failed with "+b.remaining()+" bytes remaining to be read, wanted "+length);
+			}
+		}
+		else {
+			readInsistently(b.array(),b.arrayOffset()+b.position(),length);
+			b.position(b.limit());
+		}
+	}
+
+	/**
+	 * <p>Read the requested number of bytes into the buffer used for bulk reads, ready for values to be extracted from it in the stream's byte order.</p>
+	 *
+	 * <p>A direct buffer is used if the stream is on a file, so that the bytes need not be copied through the heap.</p>
+	 *
+	 * @param	length		number of bytes to read, which must be no more than the size of the buffer
+	 * @return			the buffer, with its position at the first byte read and its limit after the last
+	 * @exception	IOException
+	 */
+	private ByteBuffer readIntoBulkReadBuffer(int length) throws IOException {
+		boolean wantDirect = in instanceof FileChannelBufferedInputStream;
+		if (bulkReadBuffer == null || bulkReadBuffer.isDirect() != wantDirect) {
+			bulkReadBuffer = wantDirect ? ByteBuffer.allocateDirect(bulkReadBufferSize) : ByteBuffer.allocate(bulkReadBufferSize);
+		}
+		bulkReadBuffer.clear();
+		bulkReadBuffer.limit(length);
+		readInsistently(bulkReadBuffer);
+		bulkReadBuffer.flip();
+		bulkReadBuffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		return bulkReadBuffer;
+	}
+
 	/**
 	 * <p>Skip as many bytes as requested, unless an exception occurs.</p>
 	 *
@@ -301,36 +398,13 @@ public class BinaryInputStream extends FilterInputStream {
 	 * @exception	IOException
 	 */
 	public final void readUnsigned16(short[] w,int offset,int len) throws IOException {
-		int blen = len*2;
-		byte  b[] = new byte[blen];
-		readInsistently(b,0,blen);
-		int bcount=0;
-		int wcount=0;
-		//long starttime=new Date().getTime();
-		//System.err.println("readUnsigned16: ready to convert at: 0");
-		if (bigEndian) {
-			while (wcount<len) {
-				int highByte=((int)b[bcount++])&0xff;
-				int  lowByte=((int)b[bcount++])&0xff;
-				short value=(short)((highByte<<8) + lowByte);
-				w[offset+wcount++]=(short)value;
-			}
+		// rather than assembling each value from bytes, read chunks into a byte buffer and let it convert in bulk in the stream's byte order
+		while (len > 0) {
+			int n = Math.min(len,bulkReadBufferSize/2);
+			readIntoBulkReadBuffer(n*2).asShortBuffer().get(w,offset,n);
+			offset+=n;
+			len-=n;
 		}
-		else {
-			//while (wcount<len) {
-			for (;wcount<len;++wcount) {
-				//int  lowByte=((int)b[bcount++])&0xff;
-				//int highByte=((int)b[bcount++])&0xff;
-				//short value=(short)((highByte<<8) + lowByte);
-				//w[wcount++]=(short)value;
-				//w[wcount++]=(short)((b[bcount+1]<<8) + (b[bcount]&0xff));
-				//w[wcount++]=(short)((b[bcount++]&0xff) + (b[bcount++]<<8));	// assumes left to right evaluation
-				w[offset+wcount]=(short)((b[bcount++]&0xff) + (b[bcount++]<<8));	// assumes left to right evaluation
-				//bcount++; bcount++;
-				//bcount+=2;
-			}
-		}
-		//System.err.println("readUnsigned16: exit at: "+(new Date().getTime()-starttime));
 	}
 	
 	/**
@@ -341,7 +415,13 @@ public class BinaryInputStream extends FilterInputStream {
 	 * @exception	IOException
 	 */
 	public final void readFloat(float[] f,int len) throws IOException {
-		for (int i=0; i<len; ++i) f[i]=readFloat();
+		int offset = 0;
+		while (len > 0) {
+			int n = Math.min(len,bulkReadBufferSize/4);
+			readIntoBulkReadBuffer(n*4).asFloatBuffer().get(f,offset,n);
+			offset+=n;
+			len-=n;
+		}
 	}
 
 	/**
@@ -369,7 +449,13 @@ public class BinaryInputStream extends FilterInputStream {
 	 * @exception	IOException
 	 */
 	public final void readDouble(double[] f,int len) throws IOException {
-		for (int i=0; i<len; ++i) f[i]=readDouble();
+		int offset = 0;
+		while (len > 0) {
+			int n = Math.min(len,bulkReadBufferSize/8);
+			readIntoBulkReadBuffer(n*8).asDoubleBuffer().get(f,offset,n);
+			offset+=n;
+			len-=n;
+		}
 	}
 
 	/**
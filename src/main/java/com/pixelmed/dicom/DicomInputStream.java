@@ -35,6 +35,9 @@ public class DicomInputStream extends BinaryInputStream {
 	/***/
 	private long byteOffsetOfStartOfData;
 
+	/***/
+	private boolean leavePixelDataOnDisk;
+
 	/**
 	 * @param	uid
 	 * @param	tryMeta
@@ -312,6 +315,24 @@ public class DicomInputStream extends BinaryInputStream {
 	 */
 	public long getByteOffsetOfStartOfData() { return byteOffsetOfStartOfData; }
 
+	/**
+	 * <p>Specify whether or not to leave Pixel Data in the file rather than read it into memory, regardless of its length.</p>
+	 *
+	 * <p>Useful when only one frame of a multi-frame image is needed, since only that frame will then be read.</p>
+	 *
+	 * <p>Has no effect unless the stream was constructed from a file; by default, only Pixel Data too long to be read into memory is left in the file.</p>
+	 *
+	 * @param	leavePixelDataOnDisk	true if Pixel Data is to be left in the file
+	 */
+	public void setLeavePixelDataOnDisk(boolean leavePixelDataOnDisk) { this.leavePixelDataOnDisk=leavePixelDataOnDisk; }
+
+	/**
+	 * <p>Is Pixel Data to be left in the file rather than read into memory, regardless of its length?</p>
+	 *
+	 * @return	true if Pixel Data is to be left in the file
+	 */
+	public boolean getLeavePixelDataOnDisk() { return leavePixelDataOnDisk; }
+
 }
 
 
@@ -0,0 +1,133 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.dicom;
+
+/**
+ * <p>This abstract class receives the events generated by a {@link com.pixelmed.dicom.DicomStreamParser DicomStreamParser}
+ * as it encounters each data element, sequence and item in a stream, in the order in which they are encoded.</p>
+ *
+ * <p>The default implementation of each method does nothing, so a concrete sub-class need
+ * only override the methods for the events it is interested in.</p>
+ *
+ * <p>Sequences (including undefined length UN elements treated as sequences) are reported
+ * by {@link #startSequence(AttributeTag,long,long) startSequence()} and {@link #endSequence(AttributeTag) endSequence()},
+ * and the data elements of each of their items are reported between
+ * {@link #startItem(int,long,long) startItem()} and {@link #endItem(int) endItem()}.
+ * Encapsulated Pixel Data is reported in the same manner, as a sequence of items, the value of each of which is a fragment.</p>
+ *
+ * <p>All other data elements are reported by {@link #startElement(AttributeTag,byte[],long,long) startElement()} and
+ * {@link #endElement(AttributeTag) endElement()}, between which {@link #value(AttributeTag,DicomStreamValue) value()}
+ * is called if the value was wanted.</p>
+ *
+ * <p>Parsing may be terminated early by calling {@link #setDone(boolean) setDone(true)} from within any event.</p>
+ *
+ * @see com.pixelmed.dicom.DicomStreamParser
+ * @see com.pixelmed.dicom.DicomStreamValue
+ *
+ * @author	dclunie
+ */
+abstract public class DicomStreamHandler {
+
+	/***/
+	protected boolean done;
+
+	/**
+	 * <p>Construct a handler.</p>
+	 */
+	public DicomStreamHandler() {
+		done=false;
+	}
+
+	/**
+	 * <p>Called when a data element other than a sequence or encapsulated Pixel Data is encountered.</p>
+	 *
+	 * @param	tag		the tag of the data element
+	 * @param	vr		the value representation, which is only valid during this call
+	 * @param	vl		the value length
+	 * @param	byteOffset	the byte offset of the start of the value
+	 * @exception	DicomException
+	 */
+	public void startElement(AttributeTag tag,byte[] vr,long vl,long byteOffset) throws DicomException {}
+
+	/**
+	 * <p>Decide whether or not the value of a data element is wanted, in addition to any tag filter established by
+	 * {@link com.pixelmed.dicom.DicomStreamParser#setTagsWanted(java.util.Set) DicomStreamParser.setTagsWanted()}.</p>
+	 *
+	 * <p>Values that are not wanted are skipped without being read into memory.</p>
+	 *
+	 * <p>The default implementation wants all values.</p>
+	 *
+	 * @param	tag		the tag of the data element
+	 * @param	vr		the value representation, which is only valid during this call
+	 * @param	vl		the value length
+	 * @return			true if {@link #value(AttributeTag,DicomStreamValue) value()} should be called with the value
+	 */
+	public boolean isValueWanted(AttributeTag tag,byte[] vr,long vl) { return true; }
+
+	/**
+	 * <p>Called with the value of a data element that is wanted, or of a fragment of encapsulated Pixel Data.</p>
+	 *
+	 * @param	tag		the tag of the data element, or Item for a fragment
+	 * @param	value		the value, which is only valid during this call
+	 * @exception	DicomException
+	 */
+	public void value(AttributeTag tag,DicomStreamValue value) throws DicomException {}
+
+	/**
+	 * <p>Called after the value of a data element has been read or skipped.</p>
+	 *
+	 * @param	tag		the tag of the data element
+	 * @exception	DicomException
+	 */
+	public void endElement(AttributeTag tag) throws DicomException {}
+
+	/**
+	 * <p>Called when a sequence or encapsulated Pixel Data is encountered.</p>
+	 *
+	 * @param	tag		the tag of the sequence
+	 * @param	vl		the value length, which may be undefined (0xffffffff)
+	 * @param	byteOffset	the byte offset of the start of the first item
+	 * @exception	DicomException
+	 */
+	public void startSequence(AttributeTag tag,long vl,long byteOffset) throws DicomException {}
+
+	/**
+	 * <p>Called after the last item of a sequence.</p>
+	 *
+	 * @param	tag		the tag of the sequence
+	 * @exception	DicomException
+	 */
+	public void endSequence(AttributeTag tag) throws DicomException {}
+
+	/**
+	 * <p>Called at the start of each item of a sequence.</p>
+	 *
+	 * @param	itemNumber	the number of the item within the sequence, starting from 1
+	 * @param	vl		the value length of the item, which may be undefined (0xffffffff)
+	 * @param	byteOffset	the byte offset of the start of the item's data set
+	 * @exception	DicomException
+	 */
+	public void startItem(int itemNumber,long vl,long byteOffset) throws DicomException {}
+
+	/**
+	 * <p>Called at the end of each item of a sequence.</p>
+	 *
+	 * @param	itemNumber	the number of the item within the sequence, starting from 1
+	 * @exception	DicomException
+	 */
+	public void endItem(int itemNumber) throws DicomException {}
+
+	/**
+	 * <p>Has parsing been requested to stop?</p>
+	 *
+	 * @return	true if parsing should stop
+	 */
+	public boolean isDone() { return done; }
+
+	/**
+	 * <p>Request that parsing stop, or continue.</p>
+	 *
+	 * @param	done	true if parsing should stop after the current event
+	 */
+	public void setDone(boolean done) { this.done=done; }
+}
@@ -0,0 +1,539 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.dicom;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * <p>A class to parse a DICOM stream and report each data element, sequence and item to a
+ * {@link com.pixelmed.dicom.DicomStreamHandler DicomStreamHandler} as it is encountered,
+ * without building an {@link com.pixelmed.dicom.AttributeList AttributeList}.</p>
+ *
+ * <p>The encoding is interpreted in the same manner as by {@link com.pixelmed.dicom.AttributeList#read(DicomInputStream) AttributeList.read()},
+ * including the meta information header, deflated transfer syntaxes and the same work-arounds for common encoding errors.
+ * Unlike AttributeList, the values of data elements that are not wanted are skipped rather than read,
+ * and those that are wanted are read into a single reused buffer and only decoded on demand,
+ * so parsing a file to extract a few attributes is limited by the speed of the storage rather than by
+ * the allocation and decoding of attributes that are never used. Encapsulated Pixel Data is never decompressed.</p>
+ *
+ * <p>Which values are wanted may be restricted to a set of tags with {@link #setTagsWanted(Set) setTagsWanted()}, to values of
+ * a maximum length with {@link #setMaximumValueLength(long) setMaximumValueLength()}, and by overriding
+ * {@link com.pixelmed.dicom.DicomStreamHandler#isValueWanted(AttributeTag,byte[],long) DicomStreamHandler.isValueWanted()}.
+ * Specific Character Set and Bits Allocated, and in the meta information header the group length and Transfer Syntax UID,
+ * are always read since they are needed to interpret the remainder of the stream, but are only reported if wanted.</p>
+ *
+ * <p>For example, to extract only the SOP Instance UID and Patient ID of the top level data set, stopping before the Pixel Data:</p>
+ *
+ * <pre>
+ * Set tags = new HashSet();
+ * tags.add(TagFromName.SOPInstanceUID);
+ * tags.add(TagFromName.PatientID);
+ * AttributeList list = DicomStreamParser.readSelectedAttributes(new File(filename),tags,TagFromName.PixelData);
+ * </pre>
+ *
+ * @see com.pixelmed.dicom.DicomStreamHandler
+ * @see com.pixelmed.dicom.DicomStreamValue
+ *
+ * @author	dclunie
+ */
+public class DicomStreamParser {
+
+	/***/
+	private DicomInputStream i;
+	/***/
+	private DicomStreamHandler handler;
+	/***/
+	private Set tagsWanted;
+	/***/
+	private long maximumValueLength;
+	/***/
+	private AttributeTag stopAtTag;
+
+	/***/
+	private DicomDictionary dictionary;
+	/***/
+	private DicomStreamValue value;
+	/***/
+	private byte[] vrBuffer;
+	/***/
+	private long byteOffset;
+	/***/
+	private int bytesPerSample;
+
+	/**
+	 * <p>Construct a parser of a stream.</p>
+	 *
+	 * @param	i		the stream to parse, positioned at the start of the meta information header or data set
+	 * @param	handler		the handler to which events are reported
+	 */
+	public DicomStreamParser(DicomInputStream i,DicomStreamHandler handler) {
+		this.i=i;
+		this.handler=handler;
+		tagsWanted=null;
+		maximumValueLength=-1;
+		stopAtTag=null;
+		dictionary=AttributeList.getDictionary();
+		value=new DicomStreamValue();
+		vrBuffer=new byte[2];
+	}
+
+	/**
+	 * <p>Restrict the values reported to those of the specified tags.</p>
+	 *
+	 * <p>Element events are still reported for all data elements, and all sequences and items are still traversed.</p>
+	 *
+	 * @param	tagsWanted	a set of {@link com.pixelmed.dicom.AttributeTag AttributeTag}, or null to want the values of all tags
+	 */
+	public void setTagsWanted(Set tagsWanted) { this.tagsWanted=tagsWanted; }
+
+	/**
+	 * <p>Restrict the values reported to those no longer than the specified length.</p>
+	 *
+	 * @param	maximumValueLength	the maximum value length in bytes, or -1 for no limit
+	 */
+	public void setMaximumValueLength(long maximumValueLength) { this.maximumValueLength=maximumValueLength; }
+
+	/**
+	 * <p>Stop parsing when the specified tag is encountered in the top level data set.</p>
+	 *
+	 * @param	stopAtTag	the tag at which to stop, or null to parse to the end of the stream
+	 */
+	public void setStopAtTag(AttributeTag stopAtTag) { this.stopAtTag=stopAtTag; }
+
+	/**
+	 * <p>Parse the stream, reporting events to the handler, until the end of the stream, the stop tag or
+	 * the handler requests that parsing stop.</p>
+	 *
+	 * <p>Leaves the stream open.</p>
+	 *
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	public void parse() throws IOException, DicomException {
+		byteOffset=i.getByteOffsetOfStartOfData();
+		bytesPerSample=0;
+		parseDataSet(0xffffffffl,null,true);
+	}
+
+	/**
+	 * @exception	IOException
+	 */
+	private AttributeTag readAttributeTag() throws IOException {
+		int group   = i.readUnsigned16();
+		int element = i.readUnsigned16();
+		return new AttributeTag(group,element);
+	}
+
+	/**
+	 * <p>Insert a codec into the stream if the data set is deflated.</p>
+	 *
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	private void pushCodecIfNecessary() throws IOException, DicomException {
+		if (i.areReadingDataSet()) {
+			TransferSyntax ts = i.getTransferSyntaxToReadDataSet();
+			if (ts.isDeflated()) {
+				i = new DicomInputStream(new InflaterInputStream(i,new Inflater(true)),TransferSyntax.ExplicitVRLittleEndian,false);
+				byteOffset=0;
+			}
+			else if (ts.isBzip2ed()) {
+				throw new DicomException("Parsing of bzip2 compressed transfer syntax not supported");
+			}
+		}
+	}
+
+	/**
+	 * @param	tag
+	 * @param	vr
+	 * @param	vl
+	 * @return		true if the value is to be reported
+	 */
+	private boolean isValueWanted(AttributeTag tag,byte[] vr,long vl) {
+		return (tagsWanted == null || tagsWanted.contains(tag))
+		    && (maximumValueLength < 0 || vl <= maximumValueLength)
+		    && handler.isValueWanted(tag,vr,vl);
+	}
+
+	/**
+	 * @param	tag
+	 * @return		true if the value is needed to interpret the remainder of the stream
+	 */
+	private boolean isValueNeeded(AttributeTag tag) {
+		return tag.equals(TagFromName.SpecificCharacterSet)
+		    || tag.equals(TagFromName.BitsAllocated)
+		    || (i.areReadingMetaHeader() && (tag.equals(TagFromName.FileMetaInformationGroupLength) || tag.equals(TagFromName.TransferSyntaxUID)));
+	}
+
+	/**
+	 * <p>Parse a data set, either the top level data set (including any meta information header) or that of an item.</p>
+	 *
+	 * @param	lengthToRead		the length of the data set, or 0xffffffff if undefined
+	 * @param	specificCharacterSet	the character set inherited from the enclosing data set, may be null
+	 * @param	topLevel		true if not the data set of an item
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	private void parseDataSet(long lengthToRead,SpecificCharacterSet specificCharacterSet,boolean topLevel) throws IOException, DicomException {
+		if (topLevel) {
+			pushCodecIfNecessary();
+		}
+		boolean undefinedLength = lengthToRead == 0xffffffffl;
+		long endByteOffset=(undefinedLength) ? 0xffffffffl : byteOffset+lengthToRead-1;
+		boolean explicit = i.getTransferSyntaxInUse().isExplicitVR();
+		try {
+			while ((undefinedLength || byteOffset < endByteOffset) && !handler.isDone()) {
+				AttributeTag tag = readAttributeTag();
+				byteOffset+=4;
+
+				if (topLevel && stopAtTag != null && tag.equals(stopAtTag)) {
+					handler.setDone(true);
+					return;
+				}
+
+				if (tag.equals(TagFromName.ItemDelimitationItem)) {
+					i.readUnsigned32();
+					byteOffset+=4;
+					return;
+				}
+
+				if (tag.equals(TagFromName.Item)) {
+					long vl = i.readUnsigned32();		// same Philips bug work-around as AttributeList
+					byteOffset+=4;
+System.err.println("DicomStreamParser.parseDataSet(): Ignoring bad Item at "+byteOffset+" "+tag+" VL=<0x"+Long.toHexString(vl)+">");
+					continue;
+				}
+
+				boolean checkForIncorrectImplicitVRElementEncodinginExplicitVR = false;		// DicomWorks bug
+				boolean encounteredIncorrectImplicitVRElementEncodinginExplicitVR = false;
+				if (explicit && i.markSupported()) {
+					checkForIncorrectImplicitVRElementEncodinginExplicitVR = true;
+					i.mark(4/*forward read limit*/);
+				}
+
+				byte vr[];
+				if (explicit) {
+					vr=vrBuffer;
+					i.readInsistently(vr,0,2);
+					if (checkForIncorrectImplicitVRElementEncodinginExplicitVR && (vr[0] < 'A' || vr[1] < 'A')) {	// i.e., not a valid explicit VR
+						encounteredIncorrectImplicitVRElementEncodinginExplicitVR = true;	// will force reading of 32 bit implicit style VL
+						i.reset();
+						vr[0]='U';
+						vr[1]='N';
+					}
+					else {
+						byteOffset+=2;
+					}
+				}
+				else {
+					vr=vrBuffer;
+					byte vrd[] = dictionary.getValueRepresentationFromTag(tag);
+					if (vrd == null || vrd.length < 2) {
+						vr[0]='U';
+						vr[1]='N';
+					}
+					else {
+						vr[0]=vrd[0];
+						vr[1]=vrd[1];
+					}
+				}
+
+				long vl;
+				if (explicit && !encounteredIncorrectImplicitVRElementEncodinginExplicitVR) {
+					if (ValueRepresentation.isShortValueLengthVR(vr)) {
+						vl=i.readUnsigned16();
+						byteOffset+=2;
+					}
+					else {
+						i.readUnsigned16();	// reserved bytes
+						vl=i.readUnsigned32();
+						byteOffset+=6;
+					}
+				}
+				else {
+					vl=i.readUnsigned32();
+					byteOffset+=4;
+				}
+
+				if (explicit && ValueRepresentation.isUnknownVR(vr)) {
+					// do not do this until AFTER the value length has been read, since explicit UN uses the long form of length
+					byte vrd[] = dictionary.getValueRepresentationFromTag(tag);
+					if (vrd != null && vrd.length >= 2 && !ValueRepresentation.isSequenceVR(vrd)) {
+						vr[0] = vrd[0];
+						vr[1] = vrd[1];
+					}
+				}
+
+				if (tag.isPrivateCreator()) {
+					vr[0] = 'L';
+					vr[1] = 'O';
+				}
+//System.err.println(byteOffset+" "+tag+" VR=<"+ValueRepresentation.getAsString(vr)+"> VL=<0x"+Long.toHexString(vl)+">");
+
+				if (ValueRepresentation.isSequenceVR(vr) || (ValueRepresentation.isUnknownVR(vr) && vl == 0xffffffffl)) {
+					parseSequence(tag,vl,specificCharacterSet);
+				}
+				else if (vl == 0xffffffffl && tag.equals(TagFromName.PixelData)) {
+					parseEncapsulatedPixelData(tag,vr);
+				}
+				else {
+					handler.startElement(tag,vr,vl,byteOffset);
+					boolean wanted = isValueWanted(tag,vr,vl);
+					if (wanted || isValueNeeded(tag)) {
+						value.read(i,tag,vr,vl,byteOffset,specificCharacterSet,bytesPerSample);
+						byteOffset+=vl;
+						if (tag.equals(TagFromName.SpecificCharacterSet)) {
+							specificCharacterSet = new SpecificCharacterSet(value.getStringValues(),value.getBytes());
+						}
+						else if (tag.equals(TagFromName.BitsAllocated)) {
+							bytesPerSample = (value.getSingleIntegerValueOrDefault(16)-1)/8+1;
+						}
+						else if (tag.equals(TagFromName.TransferSyntaxUID) && i.areReadingMetaHeader()) {
+							i.setTransferSyntaxToReadDataSet(new TransferSyntax(value.getSingleStringValueOrDefault(TransferSyntax.ExplicitVRLittleEndian)));
+						}
+						if (wanted) {
+							handler.value(tag,value);
+						}
+						if (tag.equals(TagFromName.FileMetaInformationGroupLength) && i.areReadingMetaHeader()) {
+							long metaLength = value.getSingleLongValueOrDefault(0);
+							handler.endElement(tag);
+							parseDataSet(metaLength,null,true);		// detects and sets transfer syntax for reading dataset
+							i.setReadingDataSet();
+							parseDataSet(0xffffffffl,null,true);		// read to end (will detect and set own SpecificCharacterSet)
+							break;					// ... no plausible reason to continue past this point
+						}
+					}
+					else {
+						i.skipInsistently(vl);
+						byteOffset+=vl;
+					}
+					handler.endElement(tag);
+				}
+			}
+		}
+		catch (EOFException e) {
+			if (!undefinedLength) throw new EOFException();
+		}
+		catch (IOException e) {
+			if (!undefinedLength) throw new IOException();		// InflaterInputStream seems to throw IOException rather than EOFException
+		}
+	}
+
+	/**
+	 * @param	tag
+	 * @param	lengthToRead		the length of the sequence, or 0xffffffff if undefined
+	 * @param	specificCharacterSet	the character set inherited by the items, may be null
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	private void parseSequence(AttributeTag tag,long lengthToRead,SpecificCharacterSet specificCharacterSet) throws IOException, DicomException {
+		handler.startSequence(tag,lengthToRead,byteOffset);
+		boolean undefinedLength = lengthToRead == 0xffffffffl;
+		long endByteOffset=(undefinedLength) ? 0xffffffffl : byteOffset+lengthToRead-1;
+		int itemNumber = 0;
+		try {
+			while ((undefinedLength || byteOffset < endByteOffset) && !handler.isDone()) {
+				AttributeTag itemTag = readAttributeTag();
+				byteOffset+=4;
+				long vl = i.readUnsigned32();		// always implicit VR form for items and delimiters
+				byteOffset+=4;
+				if (itemTag.equals(TagFromName.SequenceDelimitationItem)) {
+					break;
+				}
+				else if (itemTag.equals(TagFromName.Item)) {
+					++itemNumber;
+					handler.startItem(itemNumber,vl,byteOffset);
+					parseDataSet(vl,specificCharacterSet,false);
+					handler.endItem(itemNumber);
+				}
+				else {
+					throw new DicomException("Bad tag "+itemTag+"(not Item or Sequence Delimiter) in Sequence at byte offset "+byteOffset);
+				}
+			}
+		}
+		catch (EOFException e) {
+			if (!undefinedLength) throw new EOFException();
+		}
+		catch (IOException e) {
+			if (!undefinedLength) throw new IOException();		// InflaterInputStream seems to throw IOException rather than EOFException
+		}
+		handler.endSequence(tag);
+	}
+
+	/**
+	 * <p>Report each fragment of undefined length Pixel Data as an item of a sequence, without decompressing it.</p>
+	 *
+	 * @param	tag
+	 * @param	vr
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	private void parseEncapsulatedPixelData(AttributeTag tag,byte[] vr) throws IOException, DicomException {
+		handler.startSequence(tag,0xffffffffl,byteOffset);
+		int itemNumber = 0;
+		while (!handler.isDone()) {
+			AttributeTag itemTag = readAttributeTag();
+			byteOffset+=4;
+			long vl = i.readUnsigned32();
+			byteOffset+=4;
+			if (itemTag.equals(TagFromName.SequenceDelimitationItem)) {
+				break;
+			}
+			else if (itemTag.equals(TagFromName.Item)) {
+				++itemNumber;
+				handler.startItem(itemNumber,vl,byteOffset);
+				if (isValueWanted(tag,vr,vl)) {
+					value.read(i,itemTag,vr,vl,byteOffset,null,bytesPerSample);
+					byteOffset+=vl;
+					handler.value(itemTag,value);
+				}
+				else {
+					i.skipInsistently(vl);
+					byteOffset+=vl;
+				}
+				handler.endItem(itemNumber);
+			}
+			else {
+				throw new DicomException("Bad tag "+itemTag+"(not Item or Sequence Delimiter) in encapsulated Pixel Data at byte offset "+byteOffset);
+			}
+		}
+		handler.endSequence(tag);
+	}
+
+	/**
+	 * <p>A handler that collects the wanted attributes of the top level data set into a list, and stops
+	 * once the last of them has been passed.</p>
+	 */
+	private static class SelectedAttributeHandler extends DicomStreamHandler {
+		/***/
+		private AttributeList list;
+		/***/
+		private AttributeTag lastTagWanted;
+		/***/
+		private int sequenceDepth;
+
+		/**
+		 * @param	tagsWanted	a set of {@link com.pixelmed.dicom.AttributeTag AttributeTag}, or null to want all of them
+		 */
+		SelectedAttributeHandler(Set tagsWanted) {
+			list = new AttributeList();
+			lastTagWanted = tagsWanted == null || tagsWanted.isEmpty() ? null : (AttributeTag)(Collections.max(tagsWanted));
+			sequenceDepth=0;
+		}
+
+		/***/
+		AttributeList getAttributeList() { return list; }
+
+		public void startElement(AttributeTag tag,byte[] vr,long vl,long byteOffset) {
+			if (sequenceDepth == 0 && lastTagWanted != null && tag.getGroup() != 0x0002 && tag.compareTo(lastTagWanted) > 0) {
+				setDone(true);		// tags are in ascending order, so none that are wanted remain
+			}
+		}
+
+		public boolean isValueWanted(AttributeTag tag,byte[] vr,long vl) { return sequenceDepth == 0 && !done; }
+
+		public void value(AttributeTag tag,DicomStreamValue value) throws DicomException {
+			list.put(value.toAttribute());
+		}
+
+		public void startSequence(AttributeTag tag,long vl,long byteOffset) {
+			if (sequenceDepth == 0 && lastTagWanted != null && tag.compareTo(lastTagWanted) > 0) {
+				setDone(true);
+			}
+			++sequenceDepth;
+		}
+
+		public void endSequence(AttributeTag tag) {
+			--sequenceDepth;
+		}
+	}
+
+	/**
+	 * <p>Read only the specified attributes of the top level data set (and meta information header) from a stream.</p>
+	 *
+	 * <p>Sequences are not returned, even if requested, since their contents are skipped.
+	 * Parsing stops as soon as the last of the requested tags has been passed, or the stop tag is encountered.</p>
+	 *
+	 * <p>Leaves the stream open.</p>
+	 *
+	 * @param	i		the stream to read from
+	 * @param	tagsWanted	a set of {@link com.pixelmed.dicom.AttributeTag AttributeTag}, or null to read all non-sequence attributes
+	 * @param	stopAtTag	the tag (in the top level data set) at which to stop, may be null
+	 * @return			a list of the attributes found
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	public static AttributeList readSelectedAttributes(DicomInputStream i,Set tagsWanted,AttributeTag stopAtTag) throws IOException, DicomException {
+		SelectedAttributeHandler handler = new SelectedAttributeHandler(tagsWanted);
+		DicomStreamParser parser = new DicomStreamParser(i,handler);
+		parser.setTagsWanted(tagsWanted);
+		parser.setStopAtTag(stopAtTag);
+		parser.parse();
+		return handler.getAttributeList();
+	}
+
+	/**
+	 * <p>Read only the specified attributes of the top level data set (and meta information header) from a file.</p>
+	 *
+	 * @param	file		the file to read from
+	 * @param	tagsWanted	a set of {@link com.pixelmed.dicom.AttributeTag AttributeTag}, or null to read all non-sequence attributes
+	 * @param	stopAtTag	the tag (in the top level data set) at which to stop, may be null
+	 * @return			a list of the attributes found
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	public static AttributeList readSelectedAttributes(File file,Set tagsWanted,AttributeTag stopAtTag) throws IOException, DicomException {
+		DicomInputStream i = new DicomInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return readSelectedAttributes(i,tagsWanted,stopAtTag);
+		}
+		finally {
+			i.close();
+		}
+	}
+
+	/**
+	 * <p>Dump the events generated by parsing a DICOM file.</p>
+	 *
+	 * @param	arg	the name of the file
+	 */
+	public static void main(String arg[]) {
+		try {
+			DicomStreamHandler handler = new DicomStreamHandler() {
+				private String indent = "";
+				public void startElement(AttributeTag tag,byte[] vr,long vl,long byteOffset) {
+					System.err.print(indent+tag+" "+ValueRepresentation.getAsString(vr)+" VL=0x"+Long.toHexString(vl));
+				}
+				public void value(AttributeTag tag,DicomStreamValue value) {
+					byte[] vr = value.getVR();
+					if (TagFromName.Item.equals(tag)) {
+						System.err.print(indent+"Fragment "+value.getLength()+" bytes");
+					}
+					else if (ValueRepresentation.isUnsignedShortVR(vr) || ValueRepresentation.isSignedShortVR(vr)
+					      || ValueRepresentation.isUnsignedLongVR(vr) || ValueRepresentation.isSignedLongVR(vr)) {
+						System.err.print(" <"+value.getSingleLongValueOrDefault(0)+">");
+					}
+					else if (ValueRepresentation.isFloatSingleVR(vr) || ValueRepresentation.isFloatDoubleVR(vr)) {
+						System.err.print(" <"+value.getSingleDoubleValueOrDefault(0)+">");
+					}
+					else {
+						System.err.print(" <"+(value.getLength() > 64 ? "..." : value.getStringValue())+">");
+					}
+				}
+				public void endElement(AttributeTag tag) { System.err.println(); }
+				public void startSequence(AttributeTag tag,long vl,long byteOffset) { System.err.println(indent+tag+" SQ VL=0x"+Long.toHexString(vl)); indent=indent+"  "; }
+				public void endSequence(AttributeTag tag) { indent=indent.substring(2); }
+				public void startItem(int itemNumber,long vl,long byteOffset) { System.err.println(indent+"Item "+itemNumber); indent=indent+"  "; }
+				public void endItem(int itemNumber) { indent=indent.substring(2); System.err.println(); }
+			};
+			DicomInputStream i = new DicomInputStream(new BufferedInputStream(new FileInputStream(arg[0])));
+			new DicomStreamParser(i,handler).parse();
+			i.close();
+		}
+		catch (Exception e) {
+			e.printStackTrace(System.err);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.dicom;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * <p>A class to provide access to the value of a data element as it is encountered by a
+ * {@link com.pixelmed.dicom.DicomStreamParser DicomStreamParser}.</p>
+ *
+ * <p>The value is held as the bytes that were encoded in the stream, and is only decoded
+ * into strings or numbers when, and if, one of the get methods is called. The same instance, and the same buffer,
+ * are reused for every value during parsing, so neither this object nor the array
+ * returned by {@link #getBuffer() getBuffer()} may be retained by a
+ * {@link com.pixelmed.dicom.DicomStreamHandler DicomStreamHandler} after
+ * {@link com.pixelmed.dicom.DicomStreamHandler#value(AttributeTag,DicomStreamValue) value()} returns;
+ * use {@link #getBytes() getBytes()}, one of the other get methods or {@link #toAttribute() toAttribute()} to keep a copy.</p>
+ *
+ * @see com.pixelmed.dicom.DicomStreamParser
+ *
+ * @author	dclunie
+ */
+public class DicomStreamValue {
+
+	/***/
+	private static final int minimumBufferLength = 1024;
+
+	/***/
+	private byte[] buffer;
+	/***/
+	private int length;
+	/***/
+	private AttributeTag tag;
+	/***/
+	private byte[] vr;
+	/***/
+	private long byteOffset;
+	/***/
+	private TransferSyntax transferSyntax;
+	/***/
+	private SpecificCharacterSet specificCharacterSet;
+	/***/
+	private int bytesPerSample;
+
+	/**
+	 * <p>Construct an empty value for the parser to reuse.</p>
+	 */
+	DicomStreamValue() {
+		buffer = new byte[minimumBufferLength];
+		vr = new byte[2];
+	}
+
+	/**
+	 * <p>Read a value from the stream into the buffer, growing it if necessary.</p>
+	 *
+	 * @param	i			the stream, positioned at the start of the value
+	 * @param	tag
+	 * @param	vr
+	 * @param	vl
+	 * @param	byteOffset
+	 * @param	specificCharacterSet	the character set in effect, may be null
+	 * @param	bytesPerSample		1 or 2 bytes per sample, or 0 if not yet known
+	 * @exception	IOException
+	 * @exception	DicomException	if the value is too long to hold in memory
+	 */
+	void read(DicomInputStream i,AttributeTag tag,byte[] vr,long vl,long byteOffset,SpecificCharacterSet specificCharacterSet,int bytesPerSample) throws IOException, DicomException {
+		if (vl > Integer.MAX_VALUE) {
+			throw new DicomException("Value length of "+tag+" too long to read into memory ("+vl+" dec) at byte offset "+byteOffset);
+		}
+		int vli = (int)vl;
+		if (vli > buffer.length) {
+			int newLength = buffer.length;
+			while (newLength < vli && newLength < Integer.MAX_VALUE/2) {
+				newLength*=2;
+			}
+			buffer = new byte[newLength < vli ? vli : newLength];
+		}
+		i.readInsistently(buffer,0,vli);
+		this.length=vli;
+		this.tag=tag;
+		this.vr[0]=vr[0];
+		this.vr[1]=vr[1];
+		this.byteOffset=byteOffset;
+		this.transferSyntax=i.getTransferSyntaxInUse();
+		this.specificCharacterSet=specificCharacterSet;
+		this.bytesPerSample=bytesPerSample;
+	}
+
+	/**
+	 * @return	the tag of the data element, or Item for a fragment of encapsulated Pixel Data
+	 */
+	public AttributeTag getTag() { return tag; }
+
+	/**
+	 * @return	the value representation, in a reused array that must not be modified
+	 */
+	public byte[] getVR() { return vr; }
+
+	/**
+	 * @return	the number of bytes in the value
+	 */
+	public int getLength() { return length; }
+
+	/**
+	 * @return	the byte offset of the start of the value in the stream
+	 */
+	public long getByteOffset() { return byteOffset; }
+
+	/**
+	 * @return	the transfer syntax with which the value was encoded
+	 */
+	public TransferSyntax getTransferSyntax() { return transferSyntax; }
+
+	/**
+	 * @return	the character set in effect for the value, may be null if none was specified
+	 */
+	public SpecificCharacterSet getSpecificCharacterSet() { return specificCharacterSet; }
+
+	/**
+	 * <p>Get the reused buffer holding the value, without copying it.</p>
+	 *
+	 * <p>Only the first {@link #getLength() getLength()} bytes are valid, and only until the
+	 * {@link com.pixelmed.dicom.DicomStreamHandler#value(AttributeTag,DicomStreamValue) value()} event returns.</p>
+	 *
+	 * @return	the buffer
+	 */
+	public byte[] getBuffer() { return buffer; }
+
+	/**
+	 * @return	a copy of the bytes of the value, in the byte order in which they were encoded
+	 */
+	public byte[] getBytes() {
+		byte[] b = new byte[length];
+		System.arraycopy(buffer,0,b,0,length);
+		return b;
+	}
+
+	/**
+	 * <p>Get the entire value as a single string, decoded with the character set in effect if the
+	 * value representation is affected by it, with any trailing padding removed.</p>
+	 *
+	 * @return	the string, which may be empty
+	 */
+	public String getStringValue() {
+		int end = length;
+		while (end > 0 && (buffer[end-1] == ' ' || buffer[end-1] == 0)) {
+			--end;
+		}
+		if (end == 0) {
+			return "";
+		}
+		String s = null;
+		if (specificCharacterSet != null && ValueRepresentation.isAffectedBySpecificCharacterSet(vr)) {
+			s = specificCharacterSet.translateByteArrayToString(buffer,0,end);
+		}
+		return s == null ? new String(buffer,0,end) : s;
+	}
+
+	/**
+	 * <p>Get the values of a string data element, split on the backslash delimiter (except for the text value representations,
+	 * which are single valued), with leading and trailing spaces removed.</p>
+	 *
+	 * @return	the values, an empty array if there are none
+	 */
+	public String[] getStringValues() {
+		String s = getStringValue();
+		if (s.length() == 0) {
+			return new String[0];
+		}
+		if (ValueRepresentation.isLongTextVR(vr) || ValueRepresentation.isShortTextVR(vr) || ValueRepresentation.isUnlimitedTextVR(vr)) {
+			String[] values = { s };
+			return values;
+		}
+		ArrayList values = new ArrayList();
+		int start = 0;
+		int delimiter;
+		while ((delimiter=s.indexOf('\\',start)) != -1) {
+			values.add(s.substring(start,delimiter).trim());
+			start=delimiter+1;
+		}
+		values.add(s.substring(start).trim());
+		return (String[])(values.toArray(new String[values.size()]));
+	}
+
+	/**
+	 * @param	dflt	what to return if there is no value
+	 * @return		the first value as a string, or the default if none or empty
+	 */
+	public String getSingleStringValueOrDefault(String dflt) {
+		String[] values = getStringValues();
+		return values.length > 0 && values[0].length() > 0 ? values[0] : dflt;
+	}
+
+	/**
+	 * @param	offset	the byte offset within the value
+	 * @return		the unsigned 16 bit binary value at the offset, in the byte order of the transfer syntax
+	 */
+	private int getUnsigned16(int offset) {
+		return transferSyntax.isBigEndian()
+			? ((buffer[offset]&0xff)<<8) | (buffer[offset+1]&0xff)
+			: ((buffer[offset+1]&0xff)<<8) | (buffer[offset]&0xff);
+	}
+
+	/**
+	 * @param	offset	the byte offset within the value
+	 * @return		the 32 bit binary value at the offset, in the byte order of the transfer syntax
+	 */
+	private int getSigned32(int offset) {
+		return transferSyntax.isBigEndian()
+			? ((buffer[offset]&0xff)<<24) | ((buffer[offset+1]&0xff)<<16) | ((buffer[offset+2]&0xff)<<8) | (buffer[offset+3]&0xff)
+			: ((buffer[offset+3]&0xff)<<24) | ((buffer[offset+2]&0xff)<<16) | ((buffer[offset+1]&0xff)<<8) | (buffer[offset]&0xff);
+	}
+
+	/**
+	 * <p>Get the first value as a long, decoding either a binary or a string value representation.</p>
+	 *
+	 * @param	dflt	what to return if there is no value or it is not numeric
+	 * @return		the value
+	 */
+	public long getSingleLongValueOrDefault(long dflt) {
+		if (ValueRepresentation.isUnsignedShortVR(vr)) {
+			return length >= 2 ? getUnsigned16(0) : dflt;
+		}
+		else if (ValueRepresentation.isSignedShortVR(vr)) {
+			return length >= 2 ? (short)getUnsigned16(0) : dflt;
+		}
+		else if (ValueRepresentation.isUnsignedLongVR(vr)) {
+			return length >= 4 ? getSigned32(0) & 0xffffffffl : dflt;
+		}
+		else if (ValueRepresentation.isSignedLongVR(vr)) {
+			return length >= 4 ? getSigned32(0) : dflt;
+		}
+		else if (ValueRepresentation.isFloatSingleVR(vr) || ValueRepresentation.isFloatDoubleVR(vr) || ValueRepresentation.isDecimalStringVR(vr)) {
+			double d = getSingleDoubleValueOrDefault(Double.NaN);
+			return Double.isNaN(d) ? dflt : (long)d;
+		}
+		else {
+			String s = getSingleStringValueOrDefault(null);
+			if (s != null) {
+				try {
+					return Long.parseLong(s);
+				}
+				catch (NumberFormatException e) {
+				}
+			}
+			return dflt;
+		}
+	}
+
+	/**
+	 * <p>Get the first value as an int, decoding either a binary or a string value representation.</p>
+	 *
+	 * @param	dflt	what to return if there is no value or it is not numeric
+	 * @return		the value
+	 */
+	public int getSingleIntegerValueOrDefault(int dflt) {
+		return (int)getSingleLongValueOrDefault(dflt);
+	}
+
+	/**
+	 * <p>Get the first value as a double, decoding either a binary or a string value representation.</p>
+	 *
+	 * @param	dflt	what to return if there is no value or it is not numeric
+	 * @return		the value
+	 */
+	public double getSingleDoubleValueOrDefault(double dflt) {
+		if (ValueRepresentation.isFloatSingleVR(vr)) {
+			return length >= 4 ? Float.intBitsToFloat(getSigned32(0)) : dflt;
+		}
+		else if (ValueRepresentation.isFloatDoubleVR(vr)) {
+			if (length >= 8) {
+				long high = getSigned32(transferSyntax.isBigEndian() ? 0 : 4) & 0xffffffffl;
+				long low  = getSigned32(transferSyntax.isBigEndian() ? 4 : 0) & 0xffffffffl;
+				return Double.longBitsToDouble((high<<32) | low);
+			}
+			return dflt;
+		}
+		else if (ValueRepresentation.isUnsignedShortVR(vr) || ValueRepresentation.isSignedShortVR(vr)
+		      || ValueRepresentation.isUnsignedLongVR(vr) || ValueRepresentation.isSignedLongVR(vr)) {
+			return length > 0 ? (double)getSingleLongValueOrDefault(0) : dflt;
+		}
+		else {
+			String s = getSingleStringValueOrDefault(null);
+			if (s != null) {
+				try {
+					return Double.parseDouble(s);
+				}
+				catch (NumberFormatException e) {
+				}
+			}
+			return dflt;
+		}
+	}
+
+	/**
+	 * <p>Create an {@link com.pixelmed.dicom.Attribute Attribute} of the appropriate class containing a copy of the value.</p>
+	 *
+	 * @return			the attribute
+	 * @exception	DicomException
+	 */
+	public Attribute toAttribute() throws DicomException {
+		try {
+			DicomInputStream i = new DicomInputStream(new ByteArrayInputStream(buffer,0,length),transferSyntax.getUID(),false);
+			byte[] vrCopy = { vr[0], vr[1] };
+			return AttributeFactory.newAttribute(tag,vrCopy,length,i,specificCharacterSet,transferSyntax.isExplicitVR(),bytesPerSample,byteOffset);
+		}
+		catch (IOException e) {
+			throw new DicomException("Could not create attribute for "+tag+" - "+e);
+		}
+	}
+
+	/***/
+	public String toString() {
+		return tag+" "+ValueRepresentation.getAsString(vr)+" "+length+" bytes at "+byteOffset;
+	}
+}
@@ -0,0 +1,637 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.dicom;
+
+import java.io.*;
+import java.util.*;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.spi.*;
+import java.awt.image.*;
+
+/**
+ * <p>A concrete class specializing {@link com.pixelmed.dicom.Attribute Attribute} for
+ * encapsulated (compressed) Pixel Data whose values are left on disk and only
+ * decompressed one frame at a time, on demand.</p>
+ *
+ * <p>When reading, only the layout of the encapsulated data is recorded, i.e., the Basic Offset Table
+ * (if any) and the position and length of each fragment in the file; no fragment
+ * is read into memory and nothing is decompressed until a frame is actually requested.</p>
+ *
+ * <p>A bounded number of the most recently decompressed frames is cached, so that repeatedly
+ * requesting the same frame (as is common when displaying) does not require repeatedly decompressing it.</p>
+ *
+ * <p>The values returned by {@link #getByteValuesForFrame(int) getByteValuesForFrame()} or
+ * {@link #getShortValuesForFrame(int) getShortValuesForFrame()} are the decompressed values
+ * of a single frame, with multiple samples per pixel interleaved (i.e. as if Planar Configuration were 0),
+ * as would be returned by {@link com.pixelmed.dicom.AttributeList#read(DicomInputStream) AttributeList.read()}
+ * when decompressing eagerly.</p>
+ *
+ * <p>Instances of this class are normally created by {@link com.pixelmed.dicom.AttributeList AttributeList}
+ * when reading a file with {@link com.pixelmed.dicom.AttributeList#setDecompressPixelDataLazily(boolean) setDecompressPixelDataLazily(true)};
+ * extreme caution should be taken if the underlying file is moved or renamed.</p>
+ *
+ * @see com.pixelmed.dicom.Attribute
+ * @see com.pixelmed.dicom.AttributeList
+ * @see com.pixelmed.dicom.EncapsulatedInputStream
+ *
+ * @author	dclunie
+ */
+public class EncapsulatedPixelDataAttribute extends Attribute {
+
+	/***/
+	public static final int defaultMaximumNumberOfCachedFrames = 8;
+
+	private static boolean haveScannedForCodecs;
+
+	protected File file;
+	protected String transferSyntaxUID;
+	protected int rows;
+	protected int columns;
+	protected int samplesPerPixel;
+	protected int bytesPerSample;
+	protected int numberOfFrames;
+
+	protected long[] basicOffsetTable;
+	protected int numberOfFragments;
+	protected long[] fragmentByteOffsets;	// of the value of each fragment (after the Item tag and length) in the file
+	protected long[] fragmentLengths;
+	protected volatile int[] firstFragmentOfFrame;	// lazily computed, possibly by several threads at once; one more entry than frames, last being numberOfFragments
+	protected long bytesRead;				// how much of the stream was consumed, including Item and Sequence Delimitation tags
+
+	protected int maximumNumberOfCachedFrames;
+	protected LinkedHashMap cacheOfDecompressedFrames;
+
+	/**
+	 * <p>Construct an (empty) attribute.</p>
+	 *
+	 * @param	t	the tag of the attribute
+	 */
+	public EncapsulatedPixelDataAttribute(AttributeTag t) {
+		super(t);
+		file = null;
+		basicOffsetTable = new long[0];
+		numberOfFragments = 0;
+		fragmentByteOffsets = new long[0];
+		fragmentLengths = new long[0];
+		setMaximumNumberOfCachedFrames(defaultMaximumNumberOfCachedFrames);
+	}
+
+	/**
+	 * <p>Read the layout of an undefined length encapsulated attribute from an input stream, skipping the compressed values.</p>
+	 *
+	 * <p>The stream is left positioned after the Sequence Delimitation Item.</p>
+	 *
+	 * @param	t			the tag of the attribute
+	 * @param	i			the input stream, which must be associated with a file
+	 * @param	byteOffset		the byte offset in the input stream of the start of the first Item (the Basic Offset Table)
+	 * @param	transferSyntaxUID	the compressed transfer syntax in which the values are encoded
+	 * @param	rows			the number of rows in each frame
+	 * @param	columns			the number of columns in each frame
+	 * @param	samplesPerPixel		the number of samples per pixel
+	 * @param	bytesPerSample		1 or 2 bytes per sample once decompressed
+	 * @param	numberOfFrames		the number of frames
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	public EncapsulatedPixelDataAttribute(AttributeTag t,DicomInputStream i,long byteOffset,String transferSyntaxUID,
+			int rows,int columns,int samplesPerPixel,int bytesPerSample,int numberOfFrames) throws IOException, DicomException {
+		this(t);
+		file=i.getFile();
+		if (file == null) {
+			throw new DicomException("Cannot have an EncapsulatedPixelDataAttribute without a file available in the DicomInputStream");
+		}
+		if (bytesPerSample != 1 && bytesPerSample != 2) {
+			throw new DicomException("Encapsulated data of more than 2 bytes per sample not supported (got "+bytesPerSample+")");
+		}
+		this.transferSyntaxUID=transferSyntaxUID;
+		this.rows=rows;
+		this.columns=columns;
+		this.samplesPerPixel=samplesPerPixel;
+		this.bytesPerSample=bytesPerSample;
+		this.numberOfFrames=numberOfFrames < 1 ? 1 : numberOfFrames;
+		readLayout(i,byteOffset);
+		valueMultiplicity=1;
+		valueLength=(long)rows*columns*samplesPerPixel*bytesPerSample*this.numberOfFrames;
+	}
+
+	/**
+	 * @param	i
+	 * @param	byteOffset
+	 * @exception	IOException
+	 */
+	private void readLayout(DicomInputStream i,long byteOffset) throws IOException {
+		bytesRead=0;
+		boolean firstItem = true;
+		while (true) {
+			int group   = i.readUnsigned16();
+			int element = i.readUnsigned16();
+			long vl = i.readUnsigned32();		// always implicit VR form for items and delimiters
+			bytesRead+=8;
+			AttributeTag tag = new AttributeTag(group,element);
+			if (tag.equals(TagFromName.SequenceDelimitationItem)) {
+				break;
+			}
+			else if (!tag.equals(TagFromName.Item)) {
+				throw new IOException("Unexpected DICOM tag "+tag+" (vl="+vl+") in encapsulated data whilst expecting Item or SequenceDelimitationItem");
+			}
+			if (firstItem) {
+				int nOffsets = (int)(vl/4);
+				basicOffsetTable = new long[nOffsets];
+				for (int o=0; o<nOffsets; ++o) {
+					basicOffsetTable[o]=i.readUnsigned32();
+				}
+				long remaining = vl - nOffsets*4;
+				if (remaining > 0) {
+					i.skipInsistently(remaining);
+				}
+				firstItem=false;
+			}
+			else {
+				if (numberOfFragments == fragmentByteOffsets.length) {
+					int newLength = numberOfFragments == 0 ? numberOfFrames : numberOfFragments*2;
+					fragmentByteOffsets = Arrays.copyOf(fragmentByteOffsets,newLength);
+					fragmentLengths = Arrays.copyOf(fragmentLengths,newLength);
+				}
+				fragmentByteOffsets[numberOfFragments]=byteOffset+bytesRead;
+				fragmentLengths[numberOfFragments]=vl;
+				++numberOfFragments;
+				i.skipInsistently(vl);
+			}
+			bytesRead+=vl;
+		}
+	}
+
+	/**
+	 * <p>Get the number of bytes of the encapsulated value consumed from the input stream when the layout was read.</p>
+	 *
+	 * @return	the number of bytes, including the Item and Sequence Delimitation Item tags and lengths
+	 */
+	public long getBytesRead() { return bytesRead; }
+
+	/**
+	 * <p>Get the number of frames.</p>
+	 *
+	 * @return	the number of frames
+	 */
+	public int getNumberOfFrames() { return numberOfFrames; }
+
+	/**
+	 * <p>Get the number of fragments of compressed data (excluding the Basic Offset Table).</p>
+	 *
+	 * @return	the number of fragments
+	 */
+	public int getNumberOfFragments() { return numberOfFragments; }
+
+	/**
+	 * <p>Get the compressed transfer syntax in which the values are encoded.</p>
+	 *
+	 * @return	the transfer syntax UID
+	 */
+	public String getTransferSyntaxUID() { return transferSyntaxUID; }
+
+	/**
+	 * @return		the file containing the data
+	 */
+	public File getFile() { return file; }
+
+	/**
+	 * <p>Change the file containing the data, for example if it has been renamed.</p>
+	 *
+	 * @param	file	the new file containing the data
+	 */
+	public void setFile(File file) { this.file = file; }
+
+	/**
+	 * <p>Set the maximum number of decompressed frames that will be cached.</p>
+	 *
+	 * <p>Any frames already cached beyond the new limit are discarded.</p>
+	 *
+	 * @param	maximumNumberOfCachedFrames	the maximum number of frames to cache, zero to disable caching
+	 */
+	public synchronized void setMaximumNumberOfCachedFrames(int maximumNumberOfCachedFrames) {
+		this.maximumNumberOfCachedFrames = maximumNumberOfCachedFrames < 0 ? 0 : maximumNumberOfCachedFrames;
+		LinkedHashMap newCache = new LinkedHashMap(16,0.75f,true/*accessOrder*/) {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > EncapsulatedPixelDataAttribute.this.maximumNumberOfCachedFrames;
+			}
+		};
+		if (cacheOfDecompressedFrames != null) {
+			newCache.putAll(cacheOfDecompressedFrames);
+		}
+		cacheOfDecompressedFrames = newCache;
+	}
+
+	/**
+	 * <p>Discard all cached decompressed frames.</p>
+	 */
+	public synchronized void flushCachedFrames() {
+		cacheOfDecompressedFrames.clear();
+	}
+
+	/**
+	 * <p>Determine which fragments belong to which frame.</p>
+	 *
+	 * <p>Uses the Basic Offset Table if present, else one fragment per frame if the number of fragments matches
+	 * the number of frames, else the presence of an EOI (0xffd9) marker at the end of a fragment.</p>
+	 *
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	private void computeFragmentsOfFrames() throws IOException, DicomException {
+		int[] first = new int[numberOfFrames+1];
+		if (numberOfFrames == 1) {
+			first[0]=0;
+		}
+		else if (basicOffsetTable.length == numberOfFrames) {
+			// offsets are relative to the first byte of the Item tag of the first fragment
+			long itemOffset = 0;
+			int fragment = 0;
+			for (int f=0; f<numberOfFrames; ++f) {
+				while (fragment < numberOfFragments && itemOffset < basicOffsetTable[f]) {
+					itemOffset+=fragmentLengths[fragment++]+8;
+				}
+				if (itemOffset != basicOffsetTable[f]) {
+					throw new DicomException("Basic Offset Table entry for frame "+f+" does not match the start of a fragment");
+				}
+				first[f]=fragment;
+			}
+		}
+		else if (numberOfFragments == numberOfFrames) {
+			for (int f=0; f<numberOfFrames; ++f) {
+				first[f]=f;
+			}
+		}
+		else {
+			RandomAccessFile raf = new RandomAccessFile(file,"r");
+			try {
+				int f = 0;
+				first[f++]=0;
+				for (int fragment=0; fragment<numberOfFragments-1 && f<numberOfFrames; ++fragment) {
+					if (fragmentContainsEndOfFrame(raf,fragment)) {
+						first[f++]=fragment+1;
+					}
+				}
+				if (f != numberOfFrames) {
+					throw new DicomException("Could not locate the fragments of all "+numberOfFrames+" frames (found "+f+")");
+				}
+			}
+			finally {
+				raf.close();
+			}
+		}
+		first[numberOfFrames]=numberOfFragments;
+		firstFragmentOfFrame=first;
+	}
+
+	/**
+	 * <p>Check for an EOI marker in the trailing bytes of a fragment, allowing for padding after the marker.</p>
+	 *
+	 * @param	raf
+	 * @param	fragment
+	 * @exception	IOException
+	 */
+	private boolean fragmentContainsEndOfFrame(RandomAccessFile raf,int fragment) throws IOException {
+		int tailLength = (int)Math.min(fragmentLengths[fragment],16);
+		byte[] tail = new byte[tailLength];
+		raf.seek(fragmentByteOffsets[fragment]+fragmentLengths[fragment]-tailLength);
+		raf.readFully(tail);
+		for (int p=tailLength-2; p>=0; --p) {
+			if ((tail[p]&0xff) == 0xff && (tail[p+1]&0xff) == 0xd9) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * <p>Get the compressed bitstream of a frame, concatenating its fragments.</p>
+	 *
+	 * @param	frame		the frame number, from 0
+	 * @return			the compressed bytes
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	public byte[] getCompressedFrame(int frame) throws IOException, DicomException {
+		if (frame < 0 || frame >= numberOfFrames) {
+			throw new DicomException("Requested frame "+frame+" out of range (number of frames "+numberOfFrames+")");
+		}
+		if (file == null) {
+			throw new DicomException("No file available from which to read encapsulated frame");
+		}
+		if (firstFragmentOfFrame == null) {
+			computeFragmentsOfFrames();
+		}
+		int[] first = firstFragmentOfFrame;
+		int startFragment = first[frame];
+		int endFragment = first[frame+1];
+		long length = 0;
+		for (int fragment=startFragment; fragment<endFragment; ++fragment) {
+			length+=fragmentLengths[fragment];
+		}
+		byte[] bytes = new byte[(int)length];
+		RandomAccessFile raf = new RandomAccessFile(file,"r");
+		try {
+			int offset = 0;
+			for (int fragment=startFragment; fragment<endFragment; ++fragment) {
+				raf.seek(fragmentByteOffsets[fragment]);
+				raf.readFully(bytes,offset,(int)fragmentLengths[fragment]);
+				offset+=(int)fragmentLengths[fragment];
+			}
+		}
+		finally {
+			raf.close();
+		}
+		return bytes;
+	}
+
+	/**
+	 * <p>Get the decompressed values of a frame, from the cache if possible.</p>
+	 *
+	 * @param	frame		the frame number, from 0
+	 * @return			a byte[] or short[] array of decompressed values
+	 * @exception	DicomException
+	 */
+	private Object getDecompressedFrame(int frame) throws DicomException {
+		Integer key = Integer.valueOf(frame);
+		synchronized (this) {
+			Object values = cacheOfDecompressedFrames.get(key);
+			if (values != null) {
+				return values;
+			}
+		}
+		Object values;
+		try {
+			values = decompressFrame(getCompressedFrame(frame));
+		}
+		catch (IOException e) {
+			throw new DicomException("Failed to read encapsulated frame "+frame+" from "+file+" - "+e);
+		}
+		synchronized (this) {
+			if (maximumNumberOfCachedFrames > 0) {
+				cacheOfDecompressedFrames.put(key,values);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @param	compressedBytes
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	private Object decompressFrame(byte[] compressedBytes) throws IOException, DicomException {
+		int pixelsPerFrame = columns*rows*samplesPerPixel;
+		if (transferSyntaxUID.equals(TransferSyntax.PixelMedEncapsulatedRawLittleEndian)) {
+			if (bytesPerSample == 1) {
+				byte[] values = new byte[pixelsPerFrame];
+				System.arraycopy(compressedBytes,0,values,0,Math.min(pixelsPerFrame,compressedBytes.length));
+				return values;
+			}
+			else {
+				short[] values = new short[pixelsPerFrame];
+				int n = Math.min(pixelsPerFrame,compressedBytes.length/2);
+				for (int w=0,b=0; w<n; ++w) {
+					values[w]=(short)((compressedBytes[b++]&0xff) + (compressedBytes[b++]<<8));	// assumes left to right evaluation
+				}
+				return values;
+			}
+		}
+		ImageReader reader = createReader(transferSyntaxUID);
+		try {
+			ImageInputStream iiois = ImageIO.createImageInputStream(new ByteArrayInputStream(compressedBytes));
+			reader.setInput(iiois,true/*seekForwardOnly*/,true/*ignoreMetadata*/);
+			BufferedImage image = reader.read(0);
+			if (image == null) {
+				ImageReaderSpi spi = reader.getOriginatingProvider();
+				throw new DicomException("Reader "+spi.getDescription(Locale.US)+" "+spi.getVendorName()+" "+spi.getVersion()
+					+" returned null image for Transfer Syntax "+transferSyntaxUID);
+			}
+			Raster raster = image.getData();
+			if (raster.getNumDataElements() != samplesPerPixel) {
+				throw new DicomException("Decompressed image has "+raster.getNumDataElements()+" samples per pixel but expected "+samplesPerPixel);
+			}
+			int transferType = raster.getTransferType();
+			if (transferType == DataBuffer.TYPE_BYTE) {
+				return (byte[])(raster.getDataElements(0,0,columns,rows,null));
+			}
+			else if (transferType == DataBuffer.TYPE_SHORT || transferType == DataBuffer.TYPE_USHORT) {
+				return (short[])(raster.getDataElements(0,0,columns,rows,null));
+			}
+			else {
+				throw new DicomException("Unsupported transfer type "+transferType+" of decompressed image");
+			}
+		}
+		finally {
+			try {
+				reader.dispose();
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+			}
+		}
+	}
+
+	/**
+	 * <p>Get the name of the ImageIO format needed to decompress the specified transfer syntax.</p>
+	 *
+	 * @param	tsuid	the transfer syntax UID
+	 * @return		the format name, guessing JPEG if the transfer syntax is not recognized
+	 */
+	public static String getImageIOFormatNameForTransferSyntax(String tsuid) {
+		String readerWanted;
+		if (tsuid.equals(TransferSyntax.JPEG2000) || tsuid.equals(TransferSyntax.JPEG2000Lossless)) {
+			readerWanted="JPEG2000";
+		}
+		else if (tsuid.equals(TransferSyntax.JPEGLossless) || tsuid.equals(TransferSyntax.JPEGLosslessSV1)) {
+			readerWanted="jpeg-lossless";
+		}
+		else if (tsuid.equals(TransferSyntax.JPEGLS) || tsuid.equals(TransferSyntax.JPEGNLS)) {
+			readerWanted="jpeg-ls";
+		}
+		else {
+			readerWanted="JPEG";		// JPEGBaseline, JPEGExtended or unrecognized
+		}
+		return readerWanted;
+	}
+
+	/**
+	 * <p>Get the lossy method to record in Lossy Image Compression Method for the specified transfer syntax.</p>
+	 *
+	 * @param	tsuid	the transfer syntax UID
+	 * @return		the defined term, or null if the transfer syntax is not lossy
+	 */
+	public static String getLossyImageCompressionMethodForTransferSyntax(String tsuid) {
+		String lossyMethod = null;
+		if (tsuid.equals(TransferSyntax.JPEGBaseline) || tsuid.equals(TransferSyntax.JPEGExtended)) {
+			lossyMethod="ISO_10918_1";
+		}
+		else if (tsuid.equals(TransferSyntax.JPEG2000)) {
+			lossyMethod="ISO_15444_1";
+		}
+		else if (tsuid.equals(TransferSyntax.JPEGNLS)) {
+			lossyMethod="ISO_14495_1";
+		}
+		return lossyMethod;
+	}
+
+	/**
+	 * @param	tsuid
+	 * @exception	DicomException
+	 */
+	private static ImageReader createReader(String tsuid) throws DicomException {
+		if (!haveScannedForCodecs) {
+			ImageIO.scanForPlugins();
+			haveScannedForCodecs=true;
+		}
+		String readerWanted = getImageIOFormatNameForTransferSyntax(tsuid);
+		ImageReader reader = null;
+		try {
+			reader = (ImageReader)(ImageIO.getImageReadersByFormatName(readerWanted).next());
+		}
+		catch (Exception e) {
+			throw new DicomException("No reader for "+readerWanted+" available for Transfer Syntax "+tsuid+"\nCaused by: "+e);
+		}
+		ImageReaderSpi spi = reader.getOriginatingProvider();
+		if (tsuid.equals(TransferSyntax.JPEGExtended) && spi.getDescription(Locale.US).equals("Standard JPEG Image Reader") && spi.getVendorName().equals("Sun Microsystems, Inc.")) {
+			throw new DicomException("Reader "+spi.getDescription(Locale.US)+" "+spi.getVendorName()+" "+spi.getVersion()+" does not support extended lossy JPEG Transfer Syntax "+tsuid);
+		}
+		return reader;
+	}
+
+	/**
+	 * <p>Is the decompressed data 8 bits or less per sample (returned as bytes) rather than 16 bits (returned as shorts)?</p>
+	 *
+	 * @return	true if values should be requested with {@link #getByteValuesForFrame(int) getByteValuesForFrame()}
+	 */
+	public boolean isByteData() { return bytesPerSample == 1; }
+
+	/**
+	 * <p>Get the decompressed values of a single frame as bytes.</p>
+	 *
+	 * <p>The returned array may be shared with the cache and should not be modified.</p>
+	 *
+	 * @param	frame		the frame number, from 0
+	 * @return			the decompressed values of the frame
+	 * @exception	DicomException	if the frame cannot be read or decompressed, or does not decompress to bytes
+	 */
+	public byte[] getByteValuesForFrame(int frame) throws DicomException {
+		Object values = getDecompressedFrame(frame);
+		if (!(values instanceof byte[])) {
+			throw new DicomException("Decompressed frame is not byte data");
+		}
+		return (byte[])values;
+	}
+
+	/**
+	 * <p>Get the decompressed values of a single frame as shorts.</p>
+	 *
+	 * <p>The returned array may be shared with the cache and should not be modified.</p>
+	 *
+	 * @param	frame		the frame number, from 0
+	 * @return			the decompressed values of the frame
+	 * @exception	DicomException	if the frame cannot be read or decompressed, or does not decompress to shorts
+	 */
+	public short[] getShortValuesForFrame(int frame) throws DicomException {
+		Object values = getDecompressedFrame(frame);
+		if (!(values instanceof short[])) {
+			throw new DicomException("Decompressed frame is not short data");
+		}
+		return (short[])values;
+	}
+
+	/**
+	 * <p>Get the decompressed values of all frames as bytes.</p>
+	 *
+	 * <p>Defeats the purpose of lazy decompression, but allows callers that expect the entire Pixel Data to continue to work.</p>
+	 *
+	 * @exception	DicomException
+	 */
+	public byte[] getByteValues() throws DicomException {
+		int pixelsPerFrame = columns*rows*samplesPerPixel;
+		byte[] values = new byte[pixelsPerFrame*numberOfFrames];
+		for (int f=0; f<numberOfFrames; ++f) {
+			System.arraycopy(getByteValuesForFrame(f),0,values,pixelsPerFrame*f,pixelsPerFrame);
+		}
+		return values;
+	}
+
+	/**
+	 * <p>Get the decompressed values of all frames as shorts.</p>
+	 *
+	 * <p>Defeats the purpose of lazy decompression, but allows callers that expect the entire Pixel Data to continue to work.</p>
+	 *
+	 * @exception	DicomException
+	 */
+	public short[] getShortValues() throws DicomException {
+		int pixelsPerFrame = columns*rows*samplesPerPixel;
+		short[] values = new short[pixelsPerFrame*numberOfFrames];
+		for (int f=0; f<numberOfFrames; ++f) {
+			System.arraycopy(getShortValuesForFrame(f),0,values,pixelsPerFrame*f,pixelsPerFrame);
+		}
+		return values;
+	}
+
+	/***/
+	public long getPaddedVL() {
+		long vl = getVL();
+		if (vl%2 != 0) ++vl;
+		return vl;
+	}
+
+	/**
+	 * <p>Write the decompressed values, one frame at a time.</p>
+	 *
+	 * @param	o
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	public void write(DicomOutputStream o) throws DicomException, IOException {
+		writeBase(o);
+		for (int f=0; f<numberOfFrames; ++f) {
+			if (isByteData()) {
+				o.write(getByteValuesForFrame(f));
+			}
+			else {
+				short[] values = getShortValuesForFrame(f);
+				o.writeUnsigned16(values,values.length);
+			}
+		}
+		if (getPaddedVL() != getVL()) {
+			o.write(0x00);
+		}
+	}
+
+	/***/
+	public String toString(DicomDictionary dictionary) {
+		StringBuffer str = new StringBuffer();
+		str.append(super.toString(dictionary));
+		str.append(" [");
+		str.append(numberOfFrames);
+		str.append(" frames in ");
+		str.append(numberOfFragments);
+		str.append(" fragments, not decompressed]");
+		return str.toString();
+	}
+
+	/***/
+	public void removeValues() {
+		file=null;
+		basicOffsetTable=new long[0];
+		numberOfFragments=0;
+		fragmentByteOffsets=new long[0];
+		fragmentLengths=new long[0];
+		firstFragmentOfFrame=null;
+		flushCachedFrames();
+		valueMultiplicity=0;
+		valueLength=0;
+	}
+
+	/**
+	 * <p>Get the value representation of this attribute once decompressed (OB or OW).</p>
+	 *
+	 * @return	'O','B' or 'O','W' in ASCII as a two byte array; see {@link com.pixelmed.dicom.ValueRepresentation ValueRepresentation}
+	 */
+	public byte[] getVR() { return isByteData() ? ValueRepresentation.OB : ValueRepresentation.OW; }
+
+}
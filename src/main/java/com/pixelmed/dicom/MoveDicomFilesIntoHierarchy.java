@@ -18,6 +18,20 @@ public class MoveDicomFilesIntoHierarchy {
 	static protected String hierarchicalFolderName = "Sorted";
 	static protected String duplicatesFolderNamePrefix = "Duplicates";
 
+	static protected Set tagsUsedToMakeFileName = new HashSet();
+	static {
+		tagsUsedToMakeFileName.add(TagFromName.SOPInstanceUID);
+		tagsUsedToMakeFileName.add(TagFromName.PatientID);
+		tagsUsedToMakeFileName.add(TagFromName.PatientName);
+		tagsUsedToMakeFileName.add(TagFromName.StudyDate);
+		tagsUsedToMakeFileName.add(TagFromName.StudyTime);
+		tagsUsedToMakeFileName.add(TagFromName.StudyID);
+		tagsUsedToMakeFileName.add(TagFromName.StudyDescription);
+		tagsUsedToMakeFileName.add(TagFromName.SeriesNumber);
+		tagsUsedToMakeFileName.add(TagFromName.SeriesDescription);
+		tagsUsedToMakeFileName.add(TagFromName.Modality);
+	}
+
 	static protected void processFilesRecursively(File file,String suffix) throws SecurityException, IOException, DicomException, NoSuchAlgorithmException {
 		if (file != null && file.exists()) {
 			if (file.isFile() && (suffix == null || suffix.length() == 0 || file.getName().endsWith(suffix))) {
@@ -41,8 +55,8 @@ public class MoveDicomFilesIntoHierarchy {
 	static protected boolean doSomethingWithEachFile(File file) throws IOException, DicomException, NoSuchAlgorithmException {
 		boolean success = false;
 		if (DicomFileUtilities.isDicomOrAcrNemaFile(file)) {
-			AttributeList list = new AttributeList();
-			list.read(file,TagFromName.PixelData);
+			// only the attributes used to make the file name are needed, so skip everything else rather than reading it into a full AttributeList
+			AttributeList list = DicomStreamParser.readSelectedAttributes(file,tagsUsedToMakeFileName,TagFromName.PixelData);
 			String newFileName = "";
 			String sopInstanceUID = Attribute.getSingleStringValueOrEmptyString(list,TagFromName.SOPInstanceUID).replaceAll("[^0-9.]","").trim();
 			if (sopInstanceUID.length() == 0) {
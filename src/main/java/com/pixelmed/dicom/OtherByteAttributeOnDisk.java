@@ -3,13 +3,19 @@
 package com.pixelmed.dicom;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 
 import com.pixelmed.utils.CopyStream;
+import com.pixelmed.utils.FileUtilities;
 
 /**
  * <p>A concrete class specializing {@link com.pixelmed.dicom.Attribute Attribute} for
  * Other Byte (OB) attributes whose values are not memory resident.</p>
  *
+ * <p>The values may be accessed without copying them into the heap through memory mapped
+ * {@link java.nio.ByteBuffer ByteBuffer} views of the entire value or of individual frames.</p>
+ *
  * <p>Though an instance of this class may be created
  * using its constructors, there is also a factory class, {@link com.pixelmed.dicom.AttributeFactory AttributeFactory}.</p>
  *
@@ -25,6 +31,7 @@ public class OtherByteAttributeOnDisk extends Attribute {
 	
 	protected long byteOffset;
 	protected File file;
+	protected MappedByteBuffer mappedByteBuffer;		// lazily instantiated, shared by all views
 
 	/**
 	 * <p>Construct an (empty) attribute.</p>
@@ -140,18 +147,111 @@ public class OtherByteAttributeOnDisk extends Attribute {
 	 *
 	 * @param	file	the new file containing the data
 	 */
-	public void setFile(File file) { this.file = file; }
+	public void setFile(File file) {
+		this.file = file;
+		mappedByteBuffer = null;
+	}
 
 	/**
 	 * @exception	DicomException
 	 */
 	public void removeValues() {
 		file=null;
+		mappedByteBuffer=null;
 		byteOffset=0;
 		valueMultiplicity=0;
 		valueLength=0;
 	}
 
+	/**
+	 * <p>Memory map the entire value, if not already done.</p>
+	 *
+	 * @return		the mapped value, or null if too long to map in one buffer
+	 * @exception	DicomException	if the file cannot be mapped
+	 */
+	private synchronized MappedByteBuffer getMappedByteBuffer() throws DicomException {
+		if (mappedByteBuffer == null && valueLength <= Integer.MAX_VALUE) {
+			if (file == null) {
+				throw new DicomException("No file available from which to map "+getTag());
+			}
+			try {
+				mappedByteBuffer = FileUtilities.mapReadOnly(file,byteOffset,valueLength);
+			}
+			catch (IOException e) {
+				throw new DicomException("Cannot memory map file "+file+" "+e);
+			}
+		}
+		return mappedByteBuffer;
+	}
+
+	/**
+	 * <p>Get a view of a region of the value.</p>
+	 *
+	 * @param	byteOffsetInValue	where in the value the region starts
+	 * @param	lengthInBytes		how long the region is
+	 * @exception	DicomException	if the file cannot be mapped
+	 */
+	private ByteBuffer getByteBuffer(long byteOffsetInValue,long lengthInBytes) throws DicomException {
+		if (byteOffsetInValue < 0 || lengthInBytes < 0 || byteOffsetInValue+lengthInBytes > valueLength) {
+			throw new DicomException("Requested region ("+byteOffsetInValue+","+lengthInBytes+") is outside value of length "+valueLength);
+		}
+		ByteBuffer buffer = getMappedByteBuffer();
+		if (buffer == null) {
+			// too long to map in its entirety, so map just the region requested
+			try {
+				buffer = FileUtilities.mapReadOnly(file,byteOffset+byteOffsetInValue,lengthInBytes);
+			}
+			catch (IOException e) {
+				throw new DicomException("Cannot memory map file "+file+" "+e);
+			}
+		}
+		else {
+			buffer = buffer.duplicate();		// independent position and limit, so safe to use concurrently
+			buffer.position((int)byteOffsetInValue);
+			buffer.limit((int)(byteOffsetInValue+lengthInBytes));
+			buffer = buffer.slice();
+		}
+		return buffer;
+	}
+
+	/**
+	 * <p>Get a read only view of the entire value, without copying it into the heap.</p>
+	 *
+	 * @return		a buffer whose position is zero and whose limit is the value length
+	 * @exception	DicomException	if the file cannot be mapped, or the value is too long to map in one buffer
+	 */
+	public ByteBuffer getByteBuffer() throws DicomException {
+		if (valueLength > Integer.MAX_VALUE) {
+			throw new DicomException("Value of length "+valueLength+" is too long to map in its entirety - use getByteBufferForFrame()");
+		}
+		return getByteBuffer(0,valueLength);
+	}
+
+	/**
+	 * <p>Get a read only view of the values of a single frame, without copying it into the heap.</p>
+	 *
+	 * @param	frame		the frame number, from 0
+	 * @param	bytesPerFrame	the number of bytes in each frame (rows*columns*samples per pixel)
+	 * @return			a buffer whose position is zero and whose limit is bytesPerFrame
+	 * @exception	DicomException	if the file cannot be mapped or the frame is beyond the end of the value
+	 */
+	public ByteBuffer getByteBufferForFrame(int frame,int bytesPerFrame) throws DicomException {
+		return getByteBuffer((long)bytesPerFrame*frame,bytesPerFrame);
+	}
+
+	/**
+	 * <p>Get the values, copying them from disk into the heap.</p>
+	 *
+	 * <p>Defeats the purpose of leaving the values on disk, but allows callers that expect the entire value in memory to continue to work.</p>
+	 *
+	 * @exception	DicomException
+	 */
+	public byte[] getByteValues() throws DicomException {
+		byte[] values = new byte[(int)valueLength];
+		getByteBuffer().get(values);
+		return values;
+	}
+
 	/**
 	 * <p>Get the value representation of this attribute (OB).</p>
 	 *
@@ -0,0 +1,399 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+package com.pixelmed.dicom;
+
+import com.pixelmed.network.Association;
+
+import java.io.File;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Store files in the same hierarchy of folders as {@link com.pixelmed.dicom.StoredFilePathStrategyHashSubFolders StoredFilePathStrategyHashSubFolders},
+ * using successive decimal digits of the hashcode of the SOP Instance UID as the folder name and the SOP Instance UID as the filename
+ * within the most deeply nested folder, but spread across one or more root folders, which may be on different volumes.</p>
+ *
+ * <p>The root folder for each file is chosen either in turn ({@link #ROUNDROBIN ROUNDROBIN}) or at random in proportion
+ * to the usable space remaining on each root ({@link #FREESPACE FREESPACE}). If no root folders are specified,
+ * the saved instances folder supplied by the caller is used, as for the other strategies.</p>
+ *
+ * <p>Folders that are known to exist, either because they have been created or found by this strategy, are remembered,
+ * so that the file system is not asked to check or create them again for every file stored, and concurrent
+ * creation of the same folder by more than one thread is tolerated. The entire tree of folders may also be created in advance
+ * with {@link #createAllFolders(File) createAllFolders()}. Folders that are removed by some other process while in use will not be re-created.</p>
+ *
+ * <p>Before a root is chosen, every root is checked for a file already stored for the same SOP Instance UID, and if one is found,
+ * the same root is used, so that an instance that is received again replaces the file previously stored for it rather than
+ * leaving a second copy under another root. Since this costs a check of every root for every file stored, which may be slow
+ * if the roots are on network volumes, it may be disabled when the strategy is constructed.</p>
+ *
+ * <p>A file received by {@link com.pixelmed.network.StorageSOPClassSCP StorageSOPClassSCP} into a temporary file in the saved instances folder
+ * will be copied rather than renamed if the chosen root is on a different volume; receiving directly into the stored file
+ * avoids this.</p>
+ *
+ * @author	dclunie
+ */
+public class StoredFilePathStrategyDistributedHashSubFolders extends StoredFilePathStrategy
+{
+  /**
+   * <p>Choose each root folder in turn.</p>
+   */
+  public static final int ROUNDROBIN = 0;
+  /**
+   * <p>Choose root folders at random, weighted by the usable space on each.</p>
+   */
+  public static final int FREESPACE = 1;
+
+  /***/
+  private static final long freeSpaceRefreshIntervalInMilliseconds = 10000;
+
+  /***/
+  private final File[] roots;
+  /***/
+  private final int rootSelectionPolicy;
+  /***/
+  private final boolean checkForExistingFile;
+  /***/
+  private final AtomicInteger nextRoot = new AtomicInteger();
+  /***/
+  private volatile long[] usableSpace;
+  /***/
+  private volatile long usableSpaceCheckedAt;
+  /***/
+  private final Set knownFolders = ConcurrentHashMap.newKeySet();
+
+  /**
+   * <p>Store files in the hash sub-folders of the saved instances folder supplied by the caller.</p>
+   */
+  public StoredFilePathStrategyDistributedHashSubFolders()
+  {
+    this(null, ROUNDROBIN);
+  }
+
+  /**
+   * <p>Store files in the hash sub-folders of the specified root folders.</p>
+   *
+   * @param	roots					the root folders, or null or empty to use the saved instances folder supplied by the caller
+   * @param	rootSelectionPolicy		{@link #ROUNDROBIN ROUNDROBIN} or {@link #FREESPACE FREESPACE}
+   */
+  public StoredFilePathStrategyDistributedHashSubFolders(File[] roots, int rootSelectionPolicy)
+  {
+    this(roots, rootSelectionPolicy, true);
+  }
+
+  /**
+   * <p>Store files in the hash sub-folders of the specified root folders.</p>
+   *
+   * @param	roots					the root folders, or null or empty to use the saved instances folder supplied by the caller
+   * @param	rootSelectionPolicy		{@link #ROUNDROBIN ROUNDROBIN} or {@link #FREESPACE FREESPACE}
+   * @param	checkForExistingFile	whether to check every root for a file already stored for the same SOP Instance UID before choosing one
+   */
+  public StoredFilePathStrategyDistributedHashSubFolders(File[] roots, int rootSelectionPolicy, boolean checkForExistingFile)
+  {
+    this.checkForExistingFile = checkForExistingFile;
+    this.roots = roots == null ? new File[0] : (File[]) roots.clone();
+    if(rootSelectionPolicy != ROUNDROBIN && rootSelectionPolicy != FREESPACE)
+    {
+      throw new IllegalArgumentException("Unrecognized root selection policy " + rootSelectionPolicy);
+    }
+    this.rootSelectionPolicy = rootSelectionPolicy;
+  }
+
+  /**
+   * <p>Get the root folders.</p>
+   *
+   * @return	the root folders, which will be empty if the saved instances folder supplied by the caller is used
+   */
+  public File[] getRoots()
+  {
+    return (File[]) roots.clone();
+  }
+
+  @Override
+  public String makeStoredFilePath(String sopInstanceUID)
+  {
+    return BYSOPINSTANCEUIDHASHSUBFOLDERS.makeStoredFilePath(sopInstanceUID);
+  }
+
+  /**
+   * <p>Generate the path to the folder used for a particular hash code.</p>
+   *
+   * @param	hashCode	the low 16 bits of the hash code of a SOP Instance UID
+   * @return				the path to the folder, relative to the root
+   */
+  private static String makeFolderPath(long hashCode)
+  {
+    String prefix = null;
+    StringBuffer buf = new StringBuffer();
+    long maxValue = 0x0000ffffl;
+    while(maxValue > 0)
+    {                  // same order of digits as StoredFilePathStrategyHashSubFolders.makeStoredFilePath()
+      if(prefix != null)
+      {
+        buf.append(prefix);
+      }
+      buf.append(Integer.toString((int) (hashCode % 10)));
+      hashCode = hashCode / 10;
+      maxValue = maxValue / 10;
+      prefix = File.separator;
+    }
+    return buf.toString();
+  }
+
+  /**
+   * <p>Choose the root folder in which to store a file.</p>
+   *
+   * <p>If checking for existing files and a file has already been stored for the SOP Instance UID under one of the roots,
+   * that root is chosen, otherwise one is chosen according to the root selection policy.</p>
+   *
+   * @param	savedInstancesFolder	the folder to use if no root folders were specified
+   * @param	sopInstanceUID			the SOP Instance UID of the instance to be saved
+   * @return							the root folder
+   */
+  protected File selectRoot(File savedInstancesFolder, String sopInstanceUID)
+  {
+    if(roots.length == 0)
+    {
+      return savedInstancesFolder;
+    }
+    if(roots.length == 1)
+    {
+      return roots[0];
+    }
+    if(checkForExistingFile)
+    {
+      String path = makeStoredFilePath(sopInstanceUID);
+      for(int r = 0; r < roots.length; ++r)
+      {
+        if(new File(roots[r], path).isFile())
+        {
+          if(debugLevel > 1)
+            System.err.println("StoredFilePathStrategyDistributedHashSubFolders.selectRoot(): using " + roots[r] + " since already contains file for " + sopInstanceUID);
+          return roots[r];
+        }
+      }
+    }
+    if(rootSelectionPolicy == FREESPACE)
+    {
+      long[] space = getUsableSpace();
+      long total = 0;
+      for(int r = 0; r < space.length; ++r)
+      {
+        total += space[r];
+      }
+      if(total > 0)
+      {
+        long choice = ThreadLocalRandom.current().nextLong(total);
+        for(int r = 0; r < space.length; ++r)
+        {
+          choice -= space[r];
+          if(choice < 0)
+          {
+            return roots[r];
+          }
+        }
+      }
+      // else nothing known to be free anywhere, so fall through to round robin
+    }
+    return roots[(nextRoot.getAndIncrement() & 0x7fffffff) % roots.length];
+  }
+
+  /**
+   * <p>Get the usable space on each root, checking the file system no more often than every few seconds.</p>
+   *
+   * @return	the usable space in bytes, in the same order as the roots
+   */
+  private long[] getUsableSpace()
+  {
+    long now = System.currentTimeMillis();
+    long[] space = usableSpace;
+    if(space == null || now - usableSpaceCheckedAt > freeSpaceRefreshIntervalInMilliseconds)
+    {
+      usableSpaceCheckedAt = now;			// before checking, so that other threads do not check at the same time
+      space = new long[roots.length];
+      for(int r = 0; r < roots.length; ++r)
+      {
+        space[r] = roots[r].getUsableSpace();	// 0 if the root does not exist or is not accessible
+      }
+      usableSpace = space;
+      if(debugLevel > 1)
+      {
+        for(int r = 0; r < roots.length; ++r)
+        {
+          System.err.println("StoredFilePathStrategyDistributedHashSubFolders.getUsableSpace(): " + roots[r] + " has " + space[r] + " bytes usable");
+        }
+      }
+    }
+    return space;
+  }
+
+  /**
+   * <p>Make sure that a folder exists, creating it and its parents if necessary, unless it is already known to exist.</p>
+   *
+   * @param	folder	the folder
+   * @return			true if the folder exists
+   */
+  private boolean makeFolder(File folder)
+  {
+    String path = folder.getPath();
+    if(knownFolders.contains(path))
+    {
+      return true;
+    }
+    folder.mkdirs();		// may fail because another thread has just created it, so check afterwards rather than relying on the result
+    if(folder.isDirectory())
+    {
+      knownFolders.add(path);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * <p>Generate a path to where to store a file based on its SOP Instance UID and assure its reliability.</p>
+   *
+   * <p>Includes choosing the root folder, creating any necessary parent folders if they are not already known to exist,
+   * and using an alternate path or name if a desired file name already exists as something else (such as a folder).</p>
+   *
+   * @param	savedInstancesFolder	the folder in which to save the instance if no root folders were specified
+   * @param	alternativeSubfolder	the alternate sub-folder with the root folder in which to save the instance
+   * @param	sopInstanceUID			the SOP Instance UID of the instance to be saved
+   * @return							the path to the file in the chosen root folder, which may contain nested sub-folders
+   */
+  @Override
+  public File makeReliableStoredFilePathWithFoldersCreated(Association assoc, File savedInstancesFolder,
+     String alternativeSubfolder, String sopInstanceUID)
+  {
+    File root = selectRoot(savedInstancesFolder, sopInstanceUID);
+    File storedFile = makeStoredFilePath(assoc, root, sopInstanceUID);
+    File parentOfStoredFile = storedFile.getParentFile();
+    if(parentOfStoredFile != null && !makeFolder(parentOfStoredFile))
+    {
+      if(debugLevel > 0)
+        System.err.println("StoredFilePathStrategyDistributedHashSubFolders.makeReliableStoredFilePathWithFoldersCreated(): use an alternative file name, since cannot make parent directories " + parentOfStoredFile);
+      storedFile = makeAlternativeStoredFilePath(assoc, root, alternativeSubfolder, sopInstanceUID);
+      parentOfStoredFile = storedFile.getParentFile();
+      if(parentOfStoredFile != null)
+      {
+        makeFolder(parentOfStoredFile);
+      }
+    }
+    else if(storedFile.exists())
+    {
+      if(storedFile.isFile())
+      {
+        if(debugLevel > 0)
+          System.err.println("StoredFilePathStrategyDistributedHashSubFolders.makeReliableStoredFilePathWithFoldersCreated(): Deleting pre-existing file for same SOPInstanceUID");
+        storedFile.delete();		// prior to rename of temporary file, in case might cause renameTo() fail
+      }
+      else
+      {
+        if(debugLevel > 0)
+          System.err.println("StoredFilePathStrategyDistributedHashSubFolders.makeReliableStoredFilePathWithFoldersCreated(): use an alternative file name, since " + storedFile + " already used as other than a file (presumably a directory)");
+        storedFile = makeAlternativeStoredFilePath(assoc, root, alternativeSubfolder, sopInstanceUID);
+        parentOfStoredFile = storedFile.getParentFile();
+        if(parentOfStoredFile != null)
+        {
+          makeFolder(parentOfStoredFile);
+        }
+      }
+    }
+    return storedFile;
+  }
+
+  /**
+   * <p>Create the entire tree of hash sub-folders in advance, in each root folder concurrently.</p>
+   *
+   * <p>Folders that already exist are left alone. All are remembered as known to exist.</p>
+   *
+   * @param	savedInstancesFolder	the folder in which to create the tree if no root folders were specified
+   * @return							false if any folder could not be created
+   */
+  public boolean createAllFolders(File savedInstancesFolder)
+  {
+    final File[] folders = roots.length == 0 ? new File[] { savedInstancesFolder } : roots;
+    final boolean[] succeeded = new boolean[folders.length];
+    Thread[] threads = new Thread[folders.length];
+    for(int r = 0; r < folders.length; ++r)
+    {
+      final int which = r;
+      threads[r] = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          boolean ok = true;
+          for(long hashCode = 0; hashCode <= 0x0000ffffl; ++hashCode)
+          {
+            ok &= makeFolder(new File(folders[which], makeFolderPath(hashCode)));
+          }
+          succeeded[which] = ok;
+          if(debugLevel > 0)
+            System.err.println("StoredFilePathStrategyDistributedHashSubFolders.createAllFolders(): finished " + folders[which] + (ok ? "" : " with failures"));
+        }
+      });
+      threads[r].start();
+    }
+    boolean allSucceeded = true;
+    for(int r = 0; r < folders.length; ++r)
+    {
+      try
+      {
+        threads[r].join();
+      }
+      catch(InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      allSucceeded &= succeeded[r];
+    }
+    return allSucceeded;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuffer buf = new StringBuffer();
+    buf.append("BYSOPINSTANCEUIDHASHSUBFOLDERS");
+    if(roots.length > 0)
+    {
+      buf.append(" distributed ");
+      buf.append(rootSelectionPolicy == FREESPACE ? "by free space" : "round robin");
+      buf.append(" across");
+      for(int r = 0; r < roots.length; ++r)
+      {
+        buf.append(" ");
+        buf.append(roots[r]);
+      }
+    }
+    return buf.toString();
+  }
+
+  /**
+   * <p>Create the entire tree of hash sub-folders in each of the specified root folders, or perform self test if none.</p>
+   *
+   * @param	arg	the root folders
+   */
+  public static void main(String arg[])
+  {
+    if(arg.length == 0)
+    {
+      new StoredFilePathStrategyDistributedHashSubFolders().test(arg);
+    }
+    else
+    {
+      File[] roots = new File[arg.length];
+      for(int r = 0; r < arg.length; ++r)
+      {
+        roots[r] = new File(arg[r]);
+      }
+      StoredFilePathStrategyDistributedHashSubFolders strategy = new StoredFilePathStrategyDistributedHashSubFolders(roots, ROUNDROBIN);
+      strategy.setDebugLevel(1);
+      long startTime = System.currentTimeMillis();
+      boolean succeeded = strategy.createAllFolders(null);
+      System.err.println("Created folders in " + strategy + " in " + (System.currentTimeMillis() - startTime) + " ms" + (succeeded ? "" : " with failures"));
+    }
+  }
+}
@@ -149,6 +149,7 @@ public class ChestImageViewer {
 					distream = new DicomInputStream(new File(filename));
 				}
 				AttributeList list = new AttributeList();
+				list.setDecompressPixelDataLazily(true);		// only has an effect if the stream is from a file
 				list.read(distream);
 				if (list.isImage()) {
 					int i = nImages++;
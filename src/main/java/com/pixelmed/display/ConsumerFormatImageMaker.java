@@ -1,10 +1,11 @@
 /* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
 package com.pixelmed.display;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import java.util.Iterator;
 import java.util.Arrays;
@@ -32,6 +33,7 @@ import javax.imageio.ImageWriter;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import com.pixelmed.dicom.Attribute;
 import com.pixelmed.dicom.AttributeList;
@@ -69,6 +71,22 @@ public class ConsumerFormatImageMaker
    * @exception			if attribute is not an image
    */
   public static final BufferedImage makeEightBitImage(AttributeList list, int debugLevel) throws DicomException
+  {
+    return makeEightBitImage(list, 0, debugLevel);
+  }
+
+  /**
+   * <p>Create a single frame 8-bit per channel image (windowed if grayscale) from the specified frame.</p>
+   *
+   * <p>Uses the window center and width in the attribute list for that frame.</p>
+   *
+   * @param	list		the DICOM attributes
+   * @param	frame		the frame, numbered from 0
+   * @param	debugLevel
+   * @return			an 8 bit BufferedImage
+   * @exception			if attribute is not an image, or there is no such frame
+   */
+  public static final BufferedImage makeEightBitImage(AttributeList list, int frame, int debugLevel) throws DicomException
   {
     String sopClassUID = Attribute.getSingleStringValueOrEmptyString(list, TagFromName.SOPClassUID);
     if(!SOPClass.isImageStorage(sopClassUID))
@@ -77,8 +95,12 @@ public class ConsumerFormatImageMaker
     }
 
     SourceImage sImg = new SourceImage(list);
+    if(frame < 0 || frame >= sImg.getNumberOfBufferedImages())
+    {
+      throw new DicomException("No such frame " + (frame + 1));
+    }
 
-    BufferedImage useSrcImage = sImg.getBufferedImage(); 	// possibly the first of multiple
+    BufferedImage useSrcImage = sImg.getBufferedImage(frame);
     BufferedImage renderedImage = null;
 
     if(useSrcImage.getColorModel().getNumComponents() != 1)
@@ -115,16 +137,16 @@ public class ConsumerFormatImageMaker
       double useIntercept = 0;
       if(modalityTransform != null)
       {
-        useSlope = modalityTransform.getRescaleSlope(0);		// (first) frame index
-        useIntercept = modalityTransform.getRescaleIntercept(0);
+        useSlope = modalityTransform.getRescaleSlope(frame);
+        useIntercept = modalityTransform.getRescaleIntercept(frame);
       }
 
       double windowWidth = 0;
       double windowCenter = 0;
-      if(voiTransform != null && voiTransform.getNumberOfTransforms(0) > 0)
-      {	// (first) frame index
-        windowWidth = voiTransform.getWidth(0, 0);					// (first) frame index, (first) transform
-        windowCenter = voiTransform.getCenter(0, 0);
+      if(voiTransform != null && voiTransform.getNumberOfTransforms(frame) > 0)
+      {
+        windowWidth = voiTransform.getWidth(frame, 0);					// (first) transform
+        windowCenter = voiTransform.getCenter(frame, 0);
       }
       if(windowWidth == 0)
       {			// use supplied window only if there was one, and if its width was not zero (center may legitimately be zero)
@@ -183,12 +205,52 @@ public class ConsumerFormatImageMaker
   public static void convertFileToEightBitImage(String dicomFileName, String outputFileName, String outputFormat,
      double windowCenter, double windowWidth, int imageWidth, int imageHeight, int imageQuality, String annotation,
      int debugLevel) throws DicomException, IOException
+  {
+    BufferedImage renderedImage = makeEightBitImage(dicomFileName, 0, windowCenter, windowWidth, imageWidth, imageHeight, annotation, debugLevel);
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName));
+    try
+    {
+      writeEightBitImage(renderedImage, out, outputFormat, imageQuality, debugLevel);
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * <p>Read the attributes and only the specified frame of a DICOM image input file, and create a single frame 8-bit per channel image (windowed if grayscale),
+   * resized and annotated as requested.</p>
+   *
+   * <p>The Pixel Data is left in the file, so that only the frame required is read, and nothing is written to disk.</p>
+   *
+   * @param	dicomFileName	the input file name
+   * @param	frame		the frame, numbered from 0
+   * @param	windowCenter	the window center to use
+   * @param	windowWidth	the window width to use, or 0 if to use the width and center in the DICOM file
+   * @param	imageWidth	the width (number of columns) to make, or <= 0 if default (the width in the DICOM file, or scaled by height with pixel aspect ratio preserved)
+   * @param	imageHeight	the height (number of rows) to make, or <= 0 if default (the height in the DICOM file, or scaled by width with pixel aspect ratio preserved)
+   * @param	annotation		the type of annotation to apply (choice is "all"; anything else means no annotation), or null if absent
+   * @param	debugLevel
+   * @return			an 8 bit BufferedImage with three channels if color
+   * @exception	DicomException	if the file is not an image, or there is no such frame
+   * @exception	IOException	if the file cannot be read
+   */
+  public static BufferedImage makeEightBitImage(String dicomFileName, int frame,
+     double windowCenter, double windowWidth, int imageWidth, int imageHeight, String annotation,
+     int debugLevel) throws DicomException, IOException
   {
     AttributeList list = new AttributeList();
-    DicomInputStream in =
-       new DicomInputStream(new BufferedInputStream(new FileInputStream(dicomFileName)));
-    list.read(in);
-    in.close();
+    DicomInputStream in = new DicomInputStream(new File(dicomFileName));
+    in.setLeavePixelDataOnDisk(true);
+    try
+    {
+      list.read(in);
+    }
+    finally
+    {
+      in.close();
+    }
     if(windowWidth != 0)
     {
       Attribute aWindowWidth = new DecimalStringAttribute(TagFromName.WindowWidth);
@@ -198,7 +260,7 @@ public class ConsumerFormatImageMaker
       aWindowCenter.addValue(windowCenter);
       list.put(aWindowCenter);
     }
-    BufferedImage renderedImage = makeEightBitImage(list, debugLevel);
+    BufferedImage renderedImage = makeEightBitImage(list, frame, debugLevel);
     //BufferedImage windowedImage = makeEightBitImage(list,debugLevel);
 
     //renderedImage = BufferedImageUtilities.convertToMostFavorableImageTypeWithPixelCopy(renderedImage);
@@ -214,17 +276,17 @@ public class ConsumerFormatImageMaker
     try
     {
       if(debugLevel > 0)
-        System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Requested width = " + imageWidth + " height = " + imageHeight);
+        System.err.println("ConsumerFormatImageMaker.makeEightBitImage(): Requested width = " + imageWidth + " height = " + imageHeight);
       int srcWidth = renderedImage.getWidth();
       int srcHeight = renderedImage.getHeight();
       if(debugLevel > 1)
-        System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Source width = " + srcWidth + " width = " + srcHeight);
+        System.err.println("ConsumerFormatImageMaker.makeEightBitImage(): Source width = " + srcWidth + " width = " + srcHeight);
       if(imageWidth <= 0 && imageHeight > 0 && imageHeight != srcHeight)
       {
         // specified desired height only and different from source - preserve pixel aspect ratio
         double scale = ((double) imageHeight) / srcHeight;
         if(debugLevel > 1)
-          System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Resizing - specified desired height only and different from source, scale = " + scale);
+          System.err.println("ConsumerFormatImageMaker.makeEightBitImage(): Resizing - specified desired height only and different from source, scale = " + scale);
         renderedImage =
            BufferedImageUtilities.resampleWithAffineTransformOp(renderedImage, scale, scale);
       }
@@ -233,7 +295,7 @@ public class ConsumerFormatImageMaker
         // specified desired width only and different from source - preserve pixel aspect ratio
         double scale = ((double) imageWidth) / srcWidth;
         if(debugLevel > 1)
-          System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Resizing - specified desired width only and different from source, scale = " + scale);
+          System.err.println("ConsumerFormatImageMaker.makeEightBitImage(): Resizing - specified desired width only and different from source, scale = " + scale);
         renderedImage =
            BufferedImageUtilities.resampleWithAffineTransformOp(renderedImage, scale, scale);
       }
@@ -241,12 +303,12 @@ public class ConsumerFormatImageMaker
       {
         // specified both height and width and different from source ... implies possible pixel aspect ratio change
         if(debugLevel > 1)
-          System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Resizing - specified desired width and height and different from source ");
+          System.err.println("ConsumerFormatImageMaker.makeEightBitImage(): Resizing - specified desired width and height and different from source ");
         renderedImage =
            BufferedImageUtilities.resampleWithAffineTransformOp(renderedImage, imageWidth, imageHeight);
       }
       if(debugLevel > 1)
-        System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Resized width = " + renderedImage.getWidth() + " height = " + renderedImage.getHeight());
+        System.err.println("ConsumerFormatImageMaker.makeEightBitImage(): Resized width = " + renderedImage.getWidth() + " height = " + renderedImage.getHeight());
     }
     catch(Exception e)
     {	// such as java.awt.image.ImagingOpException, java.awt.HeadlessException
@@ -292,7 +354,7 @@ public class ConsumerFormatImageMaker
         g2d.setColor(demographicAndTechniqueColor);
         g2d.setFont(demographicAndTechniqueFont);
 
-        Iterator i = demographicAndTechniqueAnnotations.iterator(0/*useSrcImageIndex*/);
+        Iterator i = demographicAndTechniqueAnnotations.iterator(frame);
         while(i.hasNext())
         {
           TextAnnotationPositioned.drawPositionedString((TextAnnotationPositioned) i.next(), g2d,
@@ -304,11 +366,29 @@ public class ConsumerFormatImageMaker
     // Before writing, make it RGB again because codecs might otherwise write extra component for alpha channel
     renderedImage = BufferedImageUtilities.convertToThreeChannelImageTypeIfFour(renderedImage);
 
+    return renderedImage;
+  }
+
+  /**
+   * <p>Encode an 8-bit per channel image in a consumer format, such as JPEG.</p>
+   *
+   * <p>The encoded image is written directly to the stream, without using a temporary file.</p>
+   *
+   * @param	renderedImage	the image
+   * @param	out		where to write the encoded image (not closed)
+   * @param	outputFormat	the output file format name that a JIIO SPI will recognize (e.g. "jpeg")
+   * @param	imageQuality	the image quality from 1 to 100 (best), or -1 if absent
+   * @param	debugLevel
+   * @exception	DicomException	if there is no writer for the format
+   * @exception	IOException	if the stream cannot be written
+   */
+  public static void writeEightBitImage(BufferedImage renderedImage, OutputStream out, String outputFormat, int imageQuality, int debugLevel) throws DicomException, IOException
+  {
     //if (!ImageIO.write(renderedImage,outputFormat,new File(outputFileName))) {
     //	throw new DicomException("Cannot find writer for format"+outputFormat);
     //}
     if(debugLevel > 1)
-      System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Attempting to write format = " + outputFormat);
+      System.err.println("ConsumerFormatImageMaker.writeEightBitImage(): Attempting to write format = " + outputFormat);
 
     Iterator writers = ImageIO.getImageWritersByFormatName(outputFormat);
     if(writers != null && writers.hasNext())
@@ -316,8 +396,7 @@ public class ConsumerFormatImageMaker
       ImageWriter writer = (ImageWriter) writers.next();
       if(writer != null)
       {
-        ImageOutputStream imageOutputStream =
-           ImageIO.createImageOutputStream(new File(outputFileName));
+        ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(out);	// not ImageIO.createImageOutputStream(), which may cache in a temporary file
         writer.setOutput(imageOutputStream);
         ImageWriteParam writeParameters;
         try
@@ -326,16 +405,16 @@ public class ConsumerFormatImageMaker
           if(writeParameters.canWriteCompressed())
           {
             if(debugLevel > 1)
-              System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Default compression mode = " +
+              System.err.println("ConsumerFormatImageMaker.writeEightBitImage(): Default compression mode = " +
                  writeParameters.getCompressionMode());
 
             String[] compressionTypesAvailable = writeParameters.getCompressionTypes();
             if(debugLevel > 1)
-              System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Compression types available = " +
+              System.err.println("ConsumerFormatImageMaker.writeEightBitImage(): Compression types available = " +
                  Arrays.toString(compressionTypesAvailable));
 
             //if (compressionTypesAvailable != null && compressionTypesAvailable.length > 0) {
-//if (debugLevel > 1) System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Setting compression type to = "+compressionTypesAvailable[0]);
+//if (debugLevel > 1) System.err.println("ConsumerFormatImageMaker.writeEightBitImage(): Setting compression type to = "+compressionTypesAvailable[0]);
             //	writeParameters.setCompressionType(compressionTypesAvailable[0]);
             //}
 
@@ -343,7 +422,7 @@ public class ConsumerFormatImageMaker
             {		// -1 is flag that it was not specified
               float quality = ((float) imageQuality) / 100f;
               if(debugLevel > 1)
-                System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Setting quality = " + quality);
+                System.err.println("ConsumerFormatImageMaker.writeEightBitImage(): Setting quality = " + quality);
               writeParameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
               writeParameters.setCompressionQuality(quality);
             }
@@ -351,7 +430,7 @@ public class ConsumerFormatImageMaker
           if(writeParameters.canWriteProgressive())
           {
             if(debugLevel > 1)
-              System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Setting progressive mode");
+              System.err.println("ConsumerFormatImageMaker.writeEightBitImage(): Setting progressive mode");
             writeParameters.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
           }
           writer.getDefaultWriteParam();
@@ -364,11 +443,11 @@ public class ConsumerFormatImageMaker
         IIOMetadata metadata = null;
         writer.write(metadata, new IIOImage(renderedImage, null/*no thumbnails*/, metadata), writeParameters);
         imageOutputStream.flush();
-        imageOutputStream.close();
+        imageOutputStream.close();		// does not close out
         try
         {
           if(debugLevel > 1)
-            System.err.println("ConsumerFormatImageMaker.convertFileToEightBitImage(): Calling dispose() on writer");
+            System.err.println("ConsumerFormatImageMaker.writeEightBitImage(): Calling dispose() on writer");
           writer.dispose();
         }
         catch(Exception e)
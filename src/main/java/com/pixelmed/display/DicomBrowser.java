@@ -107,13 +107,14 @@ public class DicomBrowser extends ApplicationFrame {
 			try {
 				DicomInputStream di = null;
 				try {
-					di=new DicomInputStream(new FileInputStream(fileName));
+					di=new DicomInputStream(new File(fileName));
 				}
 				catch (FileNotFoundException e) {
-					di=new DicomInputStream(new FileInputStream(fileName.toLowerCase()));
+					di=new DicomInputStream(new File(fileName.toLowerCase()));
 				}
 
 				AttributeList list = new AttributeList();
+				list.setDecompressPixelDataLazily(true);
 				list.read(di);
 				di.close();
 //System.err.println(list);
@@ -475,6 +475,7 @@ public class DicomImageViewer extends ApplicationFrame implements
       ApplicationEventDispatcher.getApplicationEventDispatcher().processEvent(new StatusChangeEvent("Loading background image ..."));
       File file = FileUtilities.getFileFromNameInsensitiveToCaseIfNecessary(dicomFileName);
       DicomInputStream i = new DicomInputStream(file);
+      list.setDecompressPixelDataLazily(true);
       list.read(i);
       i.close();
       String sopClassUID = Attribute.getSingleStringValueOrEmptyString(list, TagFromName.SOPClassUID);
@@ -515,6 +516,7 @@ public class DicomImageViewer extends ApplicationFrame implements
       ApplicationEventDispatcher.getApplicationEventDispatcher().processEvent(new StatusChangeEvent("Loading referenced image ..."));
       File file = FileUtilities.getFileFromNameInsensitiveToCaseIfNecessary(dicomFileName);
       DicomInputStream i = new DicomInputStream(file);
+      list.setDecompressPixelDataLazily(true);
       list.read(i);
       i.close();
       String sopClassUID = Attribute.getSingleStringValueOrEmptyString(list, TagFromName.SOPClassUID);
@@ -1415,6 +1417,7 @@ public class DicomImageViewer extends ApplicationFrame implements
         dicomFileName = file.getAbsolutePath();		// set to what we actually used, since may be kept around for later imports, etc.
         DicomInputStream i = new DicomInputStream(file);
         AttributeList list = new AttributeList();
+        list.setDecompressPixelDataLazily(true);
 //long startTime = System.currentTimeMillis();
         list.read(i);
         i.close();
@@ -2791,14 +2794,16 @@ public class DicomImageViewer extends ApplicationFrame implements
         String calledAETitle = networkApplicationProperties.getCalledAETitle();
         int storageSCPDebugLevel = networkApplicationProperties.getStorageSCPDebugLevel();
         int queryDebugLevel = networkApplicationProperties.getQueryDebugLevel();
-        new Thread(new StorageSOPClassSCPDispatcher(port, calledAETitle, savedImagesFolder, storedFilePathStrategy, new OurReceivedObjectHandler(),
+        StorageSOPClassSCPDispatcher dispatcher = new StorageSOPClassSCPDispatcher(port, calledAETitle, savedImagesFolder, storedFilePathStrategy, new OurReceivedObjectHandler(),
            databaseInformationModel == null ? null
               : databaseInformationModel.getQueryResponseGeneratorFactory(queryDebugLevel),
            databaseInformationModel == null ? null
               : databaseInformationModel.getRetrieveResponseGeneratorFactory(queryDebugLevel),
            networkApplicationInformation,
            false/*secureTransport*/,
-           storageSCPDebugLevel)).start();
+           storageSCPDebugLevel);
+        dispatcher.setMaximumConcurrentAssociations(networkApplicationProperties.getStorageSCPMaximumConcurrentAssociations());
+        new Thread(dispatcher).start();
       }
       catch(IOException e)
       {
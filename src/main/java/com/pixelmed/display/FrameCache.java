@@ -0,0 +1,259 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+package com.pixelmed.display;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+
+import java.lang.ref.SoftReference;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A process-wide cache of decoded and rendered frames, shared by all {@link com.pixelmed.display.SourceImage SourceImage}s
+ * and {@link com.pixelmed.display.SingleImagePanel SingleImagePanel}s, so that frames that are displayed repeatedly,
+ * such as during cine or in linked panels, are not decoded, resized and windowed again each time.</p>
+ *
+ * <p>Entries are keyed by a string that identifies the image, the frame and whatever transformation was applied,
+ * and are held by {@link java.lang.ref.SoftReference SoftReference}, so that they may be reclaimed by the garbage collector
+ * if memory is short. Regardless, the least recently used entries are discarded once the estimated size of all entries exceeds
+ * the maximum size.</p>
+ *
+ * @author	dclunie
+ */
+public class FrameCache
+{
+  /***/
+  private static FrameCache sharedInstance;
+
+  /**
+   * <p>An entry in the cache.</p>
+   */
+  private static class Entry
+  {
+    /***/
+    final SoftReference reference;
+    /***/
+    final long sizeInBytes;
+
+    Entry(Object value, long sizeInBytes)
+    {
+      this.reference = new SoftReference(value);
+      this.sizeInBytes = sizeInBytes;
+    }
+  }
+
+  /***/
+  private long maximumSizeInBytes;
+  /***/
+  private long sizeInBytes;
+  /***/
+  private LinkedHashMap entries;	// key is String, value is Entry; in order of access, least recently used first
+
+  /***/
+  private long hits;
+  /***/
+  private long misses;
+  /***/
+  private long evictions;
+  /***/
+  private long reclaimed;
+
+  /**
+   * <p>Construct an empty cache.</p>
+   *
+   * @param	maximumSizeInBytes	the largest estimated size of all the entries
+   */
+  public FrameCache(long maximumSizeInBytes)
+  {
+    this.maximumSizeInBytes = maximumSizeInBytes;
+    entries = new LinkedHashMap(16, 0.75f, true/*accessOrder*/);
+  }
+
+  /**
+   * <p>Get the cache shared by all images and panels.</p>
+   *
+   * <p>Unless changed with {@link #setMaximumSizeInBytes(long) setMaximumSizeInBytes()}, the maximum size is one quarter of the maximum heap size.</p>
+   *
+   * @return	the shared cache
+   */
+  public static synchronized FrameCache getSharedInstance()
+  {
+    if(sharedInstance == null)
+    {
+      sharedInstance = new FrameCache(Runtime.getRuntime().maxMemory() / 4);
+    }
+    return sharedInstance;
+  }
+
+  /**
+   * <p>Change the maximum size, discarding the least recently used entries if necessary.</p>
+   *
+   * @param	maximumSizeInBytes	the largest estimated size of all the entries, or 0 to disable the cache
+   */
+  public synchronized void setMaximumSizeInBytes(long maximumSizeInBytes)
+  {
+    this.maximumSizeInBytes = maximumSizeInBytes;
+    evict();
+  }
+
+  /**
+   * @return	the largest estimated size of all the entries
+   */
+  public synchronized long getMaximumSizeInBytes()
+  {
+    return maximumSizeInBytes;
+  }
+
+  /**
+   * <p>Estimate the memory occupied by the pixels of an image.</p>
+   *
+   * <p>The size is computed from the dimensions of the raster rather than from its data buffer, since the buffers of frames
+   * wrapped by {@link com.pixelmed.display.SourceImage SourceImage} do not necessarily declare the size of the data they hold.</p>
+   *
+   * @param	image	the image
+   * @return			the size in bytes of its pixels
+   */
+  public static long getSizeInBytes(BufferedImage image)
+  {
+    Raster raster = image.getRaster();
+    return ((long) raster.getWidth()) * raster.getHeight() * raster.getNumDataElements() * DataBuffer.getDataTypeSize(raster.getTransferType()) / 8;
+  }
+
+  /**
+   * <p>Get a cached entry.</p>
+   *
+   * @param	key		the key
+   * @return			the value, or null if not in the cache or since reclaimed by the garbage collector
+   */
+  public synchronized Object get(String key)
+  {
+    Entry entry = (Entry) entries.get(key);
+    Object value = null;
+    if(entry != null)
+    {
+      value = entry.reference.get();
+      if(value == null)
+      {
+        entries.remove(key);
+        sizeInBytes -= entry.sizeInBytes;
+        ++reclaimed;
+      }
+    }
+    if(value == null)
+    {
+      ++misses;
+    }
+    else
+    {
+      ++hits;
+    }
+    return value;
+  }
+
+  /**
+   * <p>Is there an entry in the cache, without affecting the statistics.</p>
+   *
+   * <p>The entry, if any, is considered to have been used.</p>
+   *
+   * @param	key		the key
+   * @return			true if there is an entry that has not been reclaimed
+   */
+  public synchronized boolean contains(String key)
+  {
+    Entry entry = (Entry) entries.get(key);
+    return entry != null && entry.reference.get() != null;
+  }
+
+  /**
+   * <p>Add an entry to the cache, replacing any existing entry with the same key.</p>
+   *
+   * <p>Entries larger than the maximum size are not added.</p>
+   *
+   * @param	key				the key
+   * @param	value			the value
+   * @param	sizeInBytes		the estimated size of the value
+   */
+  public synchronized void put(String key, Object value, long sizeInBytes)
+  {
+    Entry old = (Entry) entries.remove(key);
+    if(old != null)
+    {
+      this.sizeInBytes -= old.sizeInBytes;
+    }
+    if(sizeInBytes <= maximumSizeInBytes)
+    {
+      entries.put(key, new Entry(value, sizeInBytes));
+      this.sizeInBytes += sizeInBytes;
+      evict();
+    }
+  }
+
+  /**
+   * <p>Add an image to the cache, replacing any existing entry with the same key.</p>
+   *
+   * @param	key		the key
+   * @param	image	the image
+   */
+  public void put(String key, BufferedImage image)
+  {
+    put(key, image, getSizeInBytes(image));
+  }
+
+  /**
+   * <p>Discard the least recently used entries until the size is within the maximum.</p>
+   */
+  private void evict()
+  {
+    Iterator i = entries.values().iterator();
+    while(sizeInBytes > maximumSizeInBytes && i.hasNext())
+    {
+      Entry entry = (Entry) i.next();
+      i.remove();
+      sizeInBytes -= entry.sizeInBytes;
+      ++evictions;
+    }
+  }
+
+  /**
+   * <p>Discard all entries whose key starts with the specified prefix, such as all the frames of one image.</p>
+   *
+   * @param	prefix	the prefix
+   */
+  public synchronized void removeAll(String prefix)
+  {
+    Iterator i = entries.entrySet().iterator();
+    while(i.hasNext())
+    {
+      Map.Entry mapEntry = (Map.Entry) i.next();
+      if(((String) mapEntry.getKey()).startsWith(prefix))
+      {
+        i.remove();
+        sizeInBytes -= ((Entry) mapEntry.getValue()).sizeInBytes;
+      }
+    }
+  }
+
+  /**
+   * <p>Discard all entries.</p>
+   */
+  public synchronized void clear()
+  {
+    entries.clear();
+    sizeInBytes = 0;
+  }
+
+  /**
+   * @return	the number of entries, their estimated size, and how often entries were found, not found, evicted and reclaimed
+   */
+  @Override
+  public synchronized String toString()
+  {
+    long lookups = hits + misses;
+    return "FrameCache: " + entries.size() + " entries of " + sizeInBytes + " bytes (maximum " + maximumSizeInBytes + "); "
+       + hits + " hits, " + misses + " misses" + (lookups == 0 ? "" : (" (" + (hits * 100 / lookups) + "% hit rate)"))
+       + ", " + evictions + " evicted, " + reclaimed + " reclaimed by garbage collector";
+  }
+}
@@ -0,0 +1,204 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+package com.pixelmed.display;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Schedules the rendering of frames that are likely to be displayed soon, such as those that follow the current frame
+ * in the direction of scrolling, on a pool of worker threads shared by all panels.</p>
+ *
+ * <p>Each panel has its own prefetcher, which keeps track of the work it has scheduled, so that work that
+ * is no longer wanted, such as when the user jumps to a distant frame, is cancelled before it starts, and so that
+ * a panel that needs a frame that is already being rendered can wait for it rather than render it again.</p>
+ *
+ * @see com.pixelmed.display.SingleImagePanel
+ *
+ * @author	dclunie
+ */
+class FramePrefetcher
+{
+  /***/
+  private static ThreadPoolExecutor executor;
+
+  /**
+   * <p>Rendering of one frame, which records whether or not it has started.</p>
+   */
+  private static class PrefetchTask extends FutureTask
+  {
+    /***/
+    private volatile boolean started;
+
+    PrefetchTask(Callable callable)
+    {
+      super(callable);
+    }
+
+    @Override
+    public void run()
+    {
+      started = true;
+      super.run();
+    }
+
+    boolean isStarted()
+    {
+      return started;
+    }
+  }
+
+  /***/
+  private LinkedHashMap scheduled;	// key is String identifying the rendered frame, value is PrefetchTask
+
+  FramePrefetcher()
+  {
+    scheduled = new LinkedHashMap();
+  }
+
+  /**
+   * <p>Get the pool of worker threads, creating it if necessary.</p>
+   *
+   * <p>One thread fewer than the number of processors is used, so that painting is not starved.</p>
+   *
+   * @return	the pool
+   */
+  private static synchronized ThreadPoolExecutor getExecutor()
+  {
+    if(executor == null)
+    {
+      int numberOfThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+      executor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0, TimeUnit.MILLISECONDS,
+         new LinkedBlockingQueue(),
+         new ThreadFactory()
+      {
+        public Thread newThread(Runnable r)
+        {
+          Thread thread = new Thread(r, "FramePrefetcher");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.NORM_PRIORITY - 1);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  /**
+   * <p>Replace the work scheduled by this prefetcher.</p>
+   *
+   * <p>Work that is still wanted and has already been scheduled is left alone; work that is not wanted and has not yet started is cancelled.
+   * The new work is started in the order supplied, so the most urgent should be first.</p>
+   *
+   * @param	work	for each frame to be rendered, the key identifying the rendered frame, and the Callable that renders it
+   */
+  synchronized void schedule(LinkedHashMap work)
+  {
+    removeFinished();
+    Set wanted = new HashSet(work.keySet());
+    Iterator i = scheduled.entrySet().iterator();
+    while(i.hasNext())
+    {
+      Map.Entry entry = (Map.Entry) i.next();
+      if(!wanted.contains(entry.getKey()))
+      {
+        PrefetchTask task = (PrefetchTask) entry.getValue();
+        if(!task.isStarted())
+        {
+//System.err.println("FramePrefetcher.schedule(): cancelling "+entry.getKey());
+          task.cancel(false);	// not interrupt, since that would close any file channel being read
+          getExecutor().remove(task);
+          i.remove();
+        }
+      }
+    }
+    ThreadPoolExecutor executor = getExecutor();
+    Iterator w = work.entrySet().iterator();
+    while(w.hasNext())
+    {
+      Map.Entry entry = (Map.Entry) w.next();
+      String key = (String) entry.getKey();
+      if(!scheduled.containsKey(key))
+      {
+        PrefetchTask task = new PrefetchTask((Callable) entry.getValue());
+        scheduled.put(key, task);
+        executor.execute(task);
+      }
+    }
+  }
+
+  /**
+   * <p>Cancel all work scheduled by this prefetcher that has not yet started.</p>
+   */
+  synchronized void cancel()
+  {
+    schedule(new LinkedHashMap());
+  }
+
+  /**
+   * <p>Forget work that has finished.</p>
+   */
+  private void removeFinished()
+  {
+    Iterator i = scheduled.values().iterator();
+    while(i.hasNext())
+    {
+      if(((PrefetchTask) i.next()).isDone())
+      {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * <p>Get the result of work already scheduled, waiting for it to finish if it has started.</p>
+   *
+   * <p>Work that has not yet started is cancelled, since the caller will do it sooner itself.</p>
+   *
+   * @param	key		the key identifying the rendered frame
+   * @return			the result, or null if none was scheduled, it had not started, or it failed
+   */
+  Object getIfStarted(String key)
+  {
+    PrefetchTask task;
+    synchronized(this)
+    {
+      task = (PrefetchTask) scheduled.remove(key);
+      if(task != null && !task.isStarted())
+      {
+        task.cancel(false);
+        getExecutor().remove(task);
+        task = null;
+      }
+    }
+    if(task != null)
+    {
+      try
+      {
+        return task.get();
+      }
+      catch(CancellationException e)
+      {
+      }
+      catch(InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      catch(ExecutionException e)
+      {
+        e.getCause().printStackTrace(System.err);
+      }
+    }
+    return null;
+  }
+}
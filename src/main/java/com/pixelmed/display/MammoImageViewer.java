@@ -760,6 +760,7 @@ System.err.println("addCADMarkToPreDefinedShapes(): NOT adding "+graphicType);
 					distream = new DicomInputStream(new File(filename));
 				}
 				AttributeList list = new AttributeList();
+				list.setDecompressPixelDataLazily(true);		// only has an effect if the stream is from a file
 				list.read(distream);
 				if (list.isImage()) {
 					int i = nImages++;
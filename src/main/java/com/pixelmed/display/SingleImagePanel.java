@@ -35,7 +35,9 @@ import javax.swing.SwingUtilities;
 
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 
 import com.pixelmed.event.ApplicationEventDispatcher;
 import com.pixelmed.event.Event;
@@ -107,6 +109,16 @@ public class SingleImagePanel extends JComponent implements KeyListener, MouseLi
   int offsetDrawingOfResizedSelectedRegionImageY;
   /***/
   Rectangle cachedWindowSize;
+  /***/
+  private FramePrefetcher framePrefetcher = new FramePrefetcher();
+  /***/
+  private int numberOfFramesToPrefetch = 4;
+  /***/
+  private int lastPrefetchSrcImageIndex = -1;
+  /***/
+  private int[] lastPrefetchSrcImageSortOrder;
+  /***/
+  private int prefetchDirection = 1;
 
   public void dirty()
   {
@@ -136,17 +148,21 @@ public class SingleImagePanel extends JComponent implements KeyListener, MouseLi
     cachedResizedImage = null;
     cachedResizedSelectedRegionImage = null;
     cachedPreWindowedImage = null;
+    framePrefetcher.cancel();
+    lastPrefetchSrcImageIndex = -1;
   }
 
   public void dirtyWindowing()
   {
     cachedPreWindowedImage = null;
+    framePrefetcher.cancel();
   }
 
   public void dirtyPanned()
   {
     cachedPreWindowedImage = null;
     cachedResizedSelectedRegionImage = null;
+    framePrefetcher.cancel();
   }
   /**
    * whether or not to use the supplied VOI LUT, rather than a linear or sigmoid window function
@@ -1628,6 +1644,487 @@ public class SingleImagePanel extends JComponent implements KeyListener, MouseLi
 //		super.repaint(tm,x,y,width,height);
 //System.err.println("SingleImagePanel.repaint(): end");
 //	}
+  /**
+   * <p>A resized and windowed frame in the {@link com.pixelmed.display.FrameCache FrameCache}, with the offset at which it is drawn.</p>
+   */
+  private static class RenderedFrame
+  {
+    final BufferedImage image;
+    final int offsetX;
+    final int offsetY;
+
+    RenderedFrame(BufferedImage image, int offsetX, int offsetY)
+    {
+      this.image = image;
+      this.offsetX = offsetX;
+      this.offsetY = offsetY;
+    }
+  }
+
+  /**
+   * <p>The values that determine how a frame is resized, selected and windowed, captured when the frame is painted or its prefetching scheduled,
+   * so that it may be rendered on another thread without being affected by subsequent changes to this panel.</p>
+   *
+   * <p>Includes the pre-selected VOI, if any, and the rescale attributes for the frame, and the key that identifies the rendered frame
+   * in the {@link com.pixelmed.display.FrameCache FrameCache}, so that it may be shared with other panels displaying the same frame
+   * in the same way, or with this panel when it returns to the frame.</p>
+   */
+  private class RenderingParameters
+  {
+    final SourceImage sImg;
+    final int useSrcImageIndex;
+    final boolean grayscale;
+    final double useScaleFactor;
+    final int selectionXOffset;
+    final int selectionYOffset;
+    final int selectionWidth;
+    final int selectionHeight;
+    final double windowCenter;
+    final double windowWidth;
+    final double useSlope;
+    final double useIntercept;
+    final boolean signed;
+    final boolean inverted;
+    final boolean hasPad;
+    final int pad;
+    final int padRangeLimit;
+    final int largestGray;
+    final int bitsPerEntry;
+    final int numberOfEntries;
+    final short[] redTable;
+    final short[] greenTable;
+    final short[] blueTable;
+    final int useVOIFunction;
+    final boolean useVOILUTNotFunction;
+    final int currentVOITransformInUse;
+    final double voiLUTIdentityWindowCenter;
+    final double voiLUTIdentityWindowWidth;
+    final int voiLUTNumberOfEntries;
+    final int voiLUTFirstValueMapped;
+    final int voiLUTBitsPerEntry;
+    final short[] voiLUTData;
+    final int voiLUTEntryMin;
+    final int voiLUTEntryMax;
+    final int voiLUTTopOfEntryRange;
+    final boolean useConvertToMostFavorableImageType;
+    final String key;
+
+    /**
+     * @param	useSrcImageIndex	the frame
+     * @param	grayscale			whether or not the frame is grayscale (including palette color), and hence is to be windowed
+     * @param	useScaleFactor		the scale factor applied to the displayed area selection
+     * @param	selection			the displayed area selection
+     */
+    RenderingParameters(int useSrcImageIndex, boolean grayscale, double useScaleFactor, DisplayedAreaSelection selection)
+    {
+      this.sImg = SingleImagePanel.this.sImg;
+      this.useSrcImageIndex = useSrcImageIndex;
+      this.grayscale = grayscale;
+      this.useScaleFactor = useScaleFactor;
+      this.selectionXOffset = selection.getXOffset();
+      this.selectionYOffset = selection.getYOffset();
+      this.selectionWidth = selection.getSelectionWidth();
+      this.selectionHeight = selection.getSelectionHeight();
+
+      double useWindowCenter = SingleImagePanel.this.windowCenter;
+      double useWindowWidth = SingleImagePanel.this.windowWidth;
+      double useSlope = SingleImagePanel.this.useSlope;
+      double useIntercept = SingleImagePanel.this.useIntercept;
+      if(grayscale)
+      {
+        // First, find pre-selected VOI for this frame, if any
+
+//System.err.println("currentVOITransformInUse "+currentVOITransformInUse);
+        if(SingleImagePanel.this.currentVOITransformInUse != -1
+           && !SingleImagePanel.this.useVOILUTNotFunction
+           && voiTransform != null
+           && voiTransform.getNumberOfTransforms(useSrcImageIndex) > SingleImagePanel.this.currentVOITransformInUse)
+        {
+          useWindowWidth = voiTransform.getWidth(useSrcImageIndex, SingleImagePanel.this.currentVOITransformInUse);
+          useWindowCenter = voiTransform.getCenter(useSrcImageIndex, SingleImagePanel.this.currentVOITransformInUse);
+//System.err.println("For new frame "+useSrcImageIndex+" using preselected center "+useWindowCenter+" and width "+useWindowWidth);
+        }
+        else
+        {
+          //currentVOITransformInUse=-1;
+          // Just leave it alone (but don't disable use of selection for other frames)
+//System.err.println("For new frame "+useSrcImageIndex+" using user selected center "+useWindowCenter+" and width "+useWindowWidth);
+        }
+
+        // Second, find rescale attributes for this frame
+
+        if(modalityTransform != null)
+        {
+          useSlope = modalityTransform.getRescaleSlope(useSrcImageIndex);
+          useIntercept = modalityTransform.getRescaleIntercept(useSrcImageIndex);
+//System.err.println("For new frame "+useSrcImageIndex+" using preselected rescale slope "+useSlope+" and intercept "+useIntercept);
+        }
+        else
+        {
+          useSlope = 1.0;
+          useIntercept = 0.0;
+//System.err.println("For new frame "+useSrcImageIndex+" using default rescale slope "+useSlope+" and intercept "+useIntercept);
+        }
+      }
+      this.windowCenter = useWindowCenter;
+      this.windowWidth = useWindowWidth;
+      this.useSlope = useSlope;
+      this.useIntercept = useIntercept;
+
+      this.signed = SingleImagePanel.this.signed;
+      this.inverted = SingleImagePanel.this.inverted;
+      this.hasPad = SingleImagePanel.this.hasPad;
+      this.pad = SingleImagePanel.this.pad;
+      this.padRangeLimit = SingleImagePanel.this.padRangeLimit;
+      this.largestGray = SingleImagePanel.this.largestGray;
+      this.bitsPerEntry = SingleImagePanel.this.bitsPerEntry;
+      this.numberOfEntries = SingleImagePanel.this.numberOfEntries;
+      this.redTable = SingleImagePanel.this.redTable;
+      this.greenTable = SingleImagePanel.this.greenTable;
+      this.blueTable = SingleImagePanel.this.blueTable;
+      this.useVOIFunction = SingleImagePanel.this.useVOIFunction;
+      this.useVOILUTNotFunction = SingleImagePanel.this.useVOILUTNotFunction;
+      this.currentVOITransformInUse = SingleImagePanel.this.currentVOITransformInUse;
+      this.voiLUTIdentityWindowCenter = SingleImagePanel.this.voiLUTIdentityWindowCenter;
+      this.voiLUTIdentityWindowWidth = SingleImagePanel.this.voiLUTIdentityWindowWidth;
+      this.voiLUTNumberOfEntries = SingleImagePanel.this.voiLUTNumberOfEntries;
+      this.voiLUTFirstValueMapped = SingleImagePanel.this.voiLUTFirstValueMapped;
+      this.voiLUTBitsPerEntry = SingleImagePanel.this.voiLUTBitsPerEntry;
+      this.voiLUTData = SingleImagePanel.this.voiLUTData;
+      this.voiLUTEntryMin = SingleImagePanel.this.voiLUTEntryMin;
+      this.voiLUTEntryMax = SingleImagePanel.this.voiLUTEntryMax;
+      this.voiLUTTopOfEntryRange = SingleImagePanel.this.voiLUTTopOfEntryRange;
+      this.useConvertToMostFavorableImageType = SingleImagePanel.this.useConvertToMostFavorableImageType;
+      this.key = makeKey();
+    }
+
+    /**
+     * @return	the key, or null if the source image cannot be shared
+     */
+    private String makeKey()
+    {
+      String frameCacheKey = sImg.getFrameCacheKey();
+      if(frameCacheKey == null)
+      {
+        return null;
+      }
+      StringBuffer buf = new StringBuffer();
+      buf.append(frameCacheKey);
+      buf.append("#");
+      buf.append(useSrcImageIndex);
+      buf.append("/");
+      buf.append(useScaleFactor);
+      buf.append(",");
+      buf.append(selectionXOffset);
+      buf.append(",");
+      buf.append(selectionYOffset);
+      buf.append(",");
+      buf.append(selectionWidth);
+      buf.append(",");
+      buf.append(selectionHeight);
+      buf.append("/");
+      if(grayscale)
+      {
+        buf.append(windowCenter);
+        buf.append(",");
+        buf.append(windowWidth);
+        buf.append(",");
+        buf.append(useVOILUTNotFunction);
+        buf.append(",");
+        buf.append(currentVOITransformInUse);
+        buf.append(",");
+        buf.append(useVOIFunction);
+        buf.append(",");
+        buf.append(useSlope);
+        buf.append(",");
+        buf.append(useIntercept);
+        buf.append(",");
+        buf.append(inverted);
+      }
+      else
+      {
+        buf.append("color");
+      }
+      buf.append(",");
+      buf.append(useConvertToMostFavorableImageType);
+      return buf.toString();
+    }
+  }
+
+  /**
+   * <p>Resize a frame by the scale factor, prior to selecting the displayed area.</p>
+   *
+   * @param	useSrcImage	the frame
+   * @param	p			how to render the frame
+   * @param	resampler	the resampler to use
+   * @return			the resized frame
+   */
+  private static BufferedImage resizeFrame(BufferedImage useSrcImage, RenderingParameters p, BufferedImageUtilities resampler)
+  {
+//long resampleTime = System.currentTimeMillis();
+    int backgroundValuePriorToWindowing = p.sImg.getBackgroundValue();
+
+    int srcWidth = useSrcImage.getWidth();
+    int srcHeight = useSrcImage.getHeight();
+    BufferedImage resizedImage = resampler.resample(useSrcImage,
+       srcWidth,
+       srcHeight,
+       0,
+       0,
+       (int) Math.round(srcWidth * p.useScaleFactor),
+       (int) Math.round(srcHeight * p.useScaleFactor),
+       p.signed,
+       backgroundValuePriorToWindowing);
+//System.err.println("SingleImagePanel.resizeFrame(): resizing with resampler - done in "+(System.currentTimeMillis()-resampleTime)+" ms");
+//System.err.println("SingleImagePanel.resizeFrame(): resampled BufferedImage is as follows:"); BufferedImageUtilities.describeImage(resizedImage,System.err);
+    return resizedImage;
+  }
+
+  /**
+   * <p>Select the displayed area from a resized frame.</p>
+   *
+   * @param	resizedImage	the resized frame
+   * @param	p				how to render the frame
+   * @param	offset			an array of two values, set to the horizontal and vertical offset at which to draw the selected area
+   * @return				the selected area, or null if there is nothing to draw (e.g., since panned offscreen)
+   */
+  private static BufferedImage selectDisplayedArea(BufferedImage resizedImage, RenderingParameters p, int[] offset)
+  {
+    int scaledSelectionX =
+       (int) Math.round(p.selectionXOffset * p.useScaleFactor);
+    int scaledSelectionY =
+       (int) Math.round(p.selectionYOffset * p.useScaleFactor);
+    int scaledSelectionWidth =
+       (int) Math.round(p.selectionWidth * p.useScaleFactor);
+    int scaledSelectionHeight =
+       (int) Math.round(p.selectionHeight * p.useScaleFactor);
+//System.err.println("SingleImagePanel.paintComponent(): before clipping to image area - scaledSelectionX = "+scaledSelectionX);
+//System.err.println("SingleImagePanel.paintComponent(): before clipping to image area - scaledSelectionY = "+scaledSelectionY);
+//System.err.println("SingleImagePanel.paintComponent(): before clipping to image area - scaledSelectionWidth = "+scaledSelectionWidth);
+//System.err.println("SingleImagePanel.paintComponent(): before clipping to image area - scaledSelectionHeight = "+scaledSelectionHeight);
+
+    if(scaledSelectionX < 0)
+    {
+      offset[0] = -scaledSelectionX;
+      //scaledSelectionWidth -= offset[0];
+      scaledSelectionX = 0;
+    }
+    else
+    {
+      offset[0] = 0;
+    }
+
+    if(scaledSelectionY < 0)
+    {
+      offset[1] = -scaledSelectionY;
+      //scaledSelectionHeight -= offset[1];
+      scaledSelectionY = 0;
+    }
+    else
+    {
+      offset[1] = 0;
+    }
+
+    int resizedImageWidth = resizedImage.getWidth();
+//System.err.println("SingleImagePanel.paintComponent(): resizedImageWidth = "+resizedImageWidth);
+    if(scaledSelectionX + scaledSelectionWidth > resizedImageWidth)
+    {
+      scaledSelectionWidth = resizedImageWidth - scaledSelectionX;
+    }
+    else if(scaledSelectionX + scaledSelectionWidth < resizedImageWidth)
+    {	// use all available image to the right, i.e., if panning beyond original selection
+      scaledSelectionWidth = resizedImageWidth - scaledSelectionX;
+    }
+    if(scaledSelectionWidth < 0)
+    {
+      scaledSelectionWidth = 0;
+    }
+
+    int resizedImageHeight = resizedImage.getHeight();
+//System.err.println("SingleImagePanel.paintComponent(): resizedImageHeight = "+resizedImageHeight);
+    if(scaledSelectionY + scaledSelectionHeight > resizedImageHeight)
+    {
+      scaledSelectionHeight = resizedImageHeight - scaledSelectionY;
+    }
+    else if(scaledSelectionY + scaledSelectionHeight < resizedImageHeight)
+    {	// use all available image to the bottom, i.e., if panning beyond original selection
+      scaledSelectionHeight = resizedImageHeight - scaledSelectionY;
+    }
+    if(scaledSelectionHeight < 0)
+    {
+      scaledSelectionHeight = 0;
+    }
+
+//System.err.println("SingleImagePanel.paintComponent(): after clipping to image area - scaledSelectionX = "+scaledSelectionX);
+//System.err.println("SingleImagePanel.paintComponent(): after clipping to image area - scaledSelectionY = "+scaledSelectionY);
+//System.err.println("SingleImagePanel.paintComponent(): after clipping to image area - scaledSelectionWidth = "+scaledSelectionWidth);
+//System.err.println("SingleImagePanel.paintComponent(): after clipping to image area - scaledSelectionHeight = "+scaledSelectionHeight);
+//System.err.println("SingleImagePanel.paintComponent(): offset[0] = "+offset[0]);
+//System.err.println("SingleImagePanel.paintComponent(): offset[1] = "+offset[1]);
+
+    return scaledSelectionHeight > 0 && scaledSelectionWidth > 0
+       ? resizedImage.getSubimage(scaledSelectionX, scaledSelectionY, scaledSelectionWidth, scaledSelectionHeight)
+       : null;
+  }
+
+  /**
+   * <p>Apply the window or VOI LUT to the selected area of a grayscale frame, and convert it to the most favorable image type if required.</p>
+   *
+   * @param	useSrcImage	the selected area of the frame
+   * @param	p			how to render the frame
+   * @return			the windowed frame, or the selected area itself if not grayscale and no conversion is required
+   */
+  private static BufferedImage windowFrame(BufferedImage useSrcImage, RenderingParameters p)
+  {
+    BufferedImage windowedImage;
+    if(useSrcImage.getColorModel().getNumComponents() == 1)
+    {
+//System.err.println("SingleImagePanel.windowFrame() useVOILUTNotFunction = "+p.useVOILUTNotFunction);
+//System.err.println("SingleImagePanel.windowFrame() numberOfEntries = "+p.numberOfEntries);
+//System.err.println("SingleImagePanel.windowFrame() redTable = "+p.redTable);
+//System.err.println("SingleImagePanel.windowFrame() useVOIFunction = "+p.useVOIFunction);
+//long applyVOITime = System.currentTimeMillis();
+      if(p.useVOILUTNotFunction)
+      {
+        windowedImage =
+           applyVOILUT(useSrcImage, p.windowCenter, p.windowWidth, p.voiLUTIdentityWindowCenter, p.voiLUTIdentityWindowWidth, p.signed, p.inverted, p.useSlope, p.useIntercept, p.hasPad, p.pad, p.padRangeLimit,
+           p.voiLUTNumberOfEntries, p.voiLUTFirstValueMapped, p.voiLUTBitsPerEntry, p.voiLUTData, p.voiLUTEntryMin, p.voiLUTEntryMax, p.voiLUTTopOfEntryRange);
+      }
+      else if(p.numberOfEntries != 0 && p.redTable != null)
+      {
+        windowedImage =
+           applyWindowCenterAndWidthWithPaletteColor(useSrcImage, p.windowCenter, p.windowWidth, p.signed, p.inverted, p.useSlope, p.useIntercept, p.hasPad, p.pad, p.padRangeLimit,
+           p.largestGray, p.bitsPerEntry, p.numberOfEntries, p.redTable, p.greenTable, p.blueTable);
+      }
+      else if(p.useVOIFunction == 1)
+      {
+        windowedImage =
+           applyWindowCenterAndWidthLogistic(useSrcImage, p.windowCenter, p.windowWidth, p.signed, p.inverted, p.useSlope, p.useIntercept, p.hasPad, p.pad, p.padRangeLimit);
+      }
+      else
+      {
+        windowedImage =
+           applyWindowCenterAndWidthLinear(useSrcImage, p.windowCenter, p.windowWidth, p.signed, p.inverted, p.useSlope, p.useIntercept, p.hasPad, p.pad, p.padRangeLimit);
+      }
+//System.err.println("SingleImagePanel.windowFrame(): VOI/window applied in "+(System.currentTimeMillis()-applyVOITime)+" ms");
+    }
+    else
+    {
+//System.err.println("SingleImagePanel.windowFrame() using useSrcImage as windowed image="+useSrcImage);
+      windowedImage = useSrcImage;
+    }
+//System.err.println("SingleImagePanel.windowFrame() mrj.version="+System.getProperty("mrj.version"));
+    if(windowedImage != null && p.useConvertToMostFavorableImageType)
+    {
+//long conversionTime = System.currentTimeMillis();
+      windowedImage =
+         BufferedImageUtilities.convertToMostFavorableImageType(windowedImage);
+//System.err.println("SingleImagePanel.windowFrame(): converted to most favorable done in "+(System.currentTimeMillis()-conversionTime)+" ms");
+    }
+    return windowedImage;
+  }
+
+  /**
+   * <p>Set how many frames following the current frame, in the direction in which the user is moving through the frames,
+   * are rendered in the background, so that they are ready to be drawn when needed.</p>
+   *
+   * <p>The frame preceding the current frame is also rendered.</p>
+   *
+   * @param	numberOfFramesToPrefetch	the number of frames, or 0 to not prefetch at all
+   */
+  public void setNumberOfFramesToPrefetch(int numberOfFramesToPrefetch)
+  {
+    this.numberOfFramesToPrefetch = numberOfFramesToPrefetch;
+    if(numberOfFramesToPrefetch <= 0)
+    {
+      framePrefetcher.cancel();
+    }
+  }
+
+  /**
+   * @return	the number of frames following the current frame that are rendered in the background
+   */
+  public int getNumberOfFramesToPrefetch()
+  {
+    return numberOfFramesToPrefetch;
+  }
+
+  /**
+   * <p>Schedule the rendering in the background of the frames that are likely to be displayed next,
+   * if the current frame or sort order has changed since last scheduled.</p>
+   *
+   * <p>Rendering of frames that are no longer likely to be needed, such as when the user has jumped to a distant frame,
+   * is cancelled if not already started.</p>
+   *
+   * @param	grayscale			whether or not the frames are grayscale (including palette color), and hence are to be windowed
+   * @param	useScaleFactor		the scale factor applied to the displayed area selection
+   */
+  private void prefetchAdjacentFrames(boolean grayscale, double useScaleFactor)
+  {
+    if(numberOfFramesToPrefetch <= 0
+       || (currentSrcImageIndex == lastPrefetchSrcImageIndex && currentSrcImageSortOrder == lastPrefetchSrcImageSortOrder))
+    {
+      return;
+    }
+    if(lastPrefetchSrcImageIndex != -1 && currentSrcImageIndex != lastPrefetchSrcImageIndex)
+    {
+      prefetchDirection = currentSrcImageIndex > lastPrefetchSrcImageIndex ? 1 : -1;
+    }
+    lastPrefetchSrcImageIndex = currentSrcImageIndex;
+    lastPrefetchSrcImageSortOrder = currentSrcImageSortOrder;
+
+    int nFrames = currentSrcImageSortOrder == null ? sImg.getNumberOfBufferedImages() : currentSrcImageSortOrder.length;
+    LinkedHashMap work = new LinkedHashMap();
+    for(int n = 1; n <= numberOfFramesToPrefetch; ++n)
+    {
+      addPrefetchWork(work, currentSrcImageIndex + n * prefetchDirection, nFrames, grayscale, useScaleFactor);
+    }
+    addPrefetchWork(work, currentSrcImageIndex - prefetchDirection, nFrames, grayscale, useScaleFactor);
+//System.err.println("SingleImagePanel.prefetchAdjacentFrames(): from "+currentSrcImageIndex+" in direction "+prefetchDirection+" scheduling "+work.keySet());
+    framePrefetcher.schedule(work);
+  }
+
+  /**
+   * <p>Add the rendering of a frame to the work to be scheduled, unless it is already in the {@link com.pixelmed.display.FrameCache FrameCache}.</p>
+   *
+   * @param	work				the work to be scheduled, keyed by the rendered frame's key
+   * @param	sortedIndex			the position of the frame in the current sort order
+   * @param	nFrames				the number of frames in the current sort order
+   * @param	grayscale			whether or not the frames are grayscale
+   * @param	useScaleFactor		the scale factor applied to the displayed area selection
+   */
+  private void addPrefetchWork(LinkedHashMap work, int sortedIndex, int nFrames, boolean grayscale, double useScaleFactor)
+  {
+    if(sortedIndex < 0 || sortedIndex >= nFrames)
+    {
+      return;
+    }
+    int useSrcImageIndex = currentSrcImageSortOrder == null ? sortedIndex : currentSrcImageSortOrder[sortedIndex];
+    final RenderingParameters p = new RenderingParameters(useSrcImageIndex, grayscale, useScaleFactor, useDisplayedAreaSelection);
+    if(p.key != null && !FrameCache.getSharedInstance().contains(p.key))
+    {
+      work.put(p.key, new Callable()
+      {
+        public Object call()
+        {
+          BufferedImage useSrcImage = p.sImg.getBufferedImageWithoutSideEffects(p.useSrcImageIndex);
+          if(useSrcImage == null)
+          {
+            return null;
+          }
+          int[] offset = new int[2];
+          BufferedImage selectedImage = selectDisplayedArea(resizeFrame(useSrcImage, p, new BufferedImageUtilities()), p, offset);
+          RenderedFrame renderedFrame = new RenderedFrame(selectedImage == null ? null : windowFrame(selectedImage, p), offset[0], offset[1]);
+          if(renderedFrame.image != null)
+          {
+            FrameCache.getSharedInstance().put(p.key, renderedFrame, FrameCache.getSizeInBytes(renderedFrame.image));
+          }
+          return renderedFrame;
+        }
+      });
+    }
+  }
+
   /**
    * @param	g
    */
@@ -1694,9 +2191,35 @@ public class SingleImagePanel extends JComponent implements KeyListener, MouseLi
     }
 //System.err.println("SingleImagePanel.paintComponent(): windowToImageCoordinateTransform = "+windowToImageCoordinateTransform);
 
+    RenderingParameters renderingParameters = null;
     if(cachedPreWindowedImage == null)
     {
 //System.err.println("SingleImagePanel.paintComponent(): cachedPreWindowedImage is null");
+      renderingParameters = new RenderingParameters(useSrcImageIndex, useSrcImage.getColorModel().getNumComponents() == 1, useScaleFactor, useDisplayedAreaSelection);
+      // use the pre-selected VOI and rescale attributes for this frame, if any (unchanged if not grayscale)
+      windowCenter = renderingParameters.windowCenter;
+      windowWidth = renderingParameters.windowWidth;
+      useSlope = renderingParameters.useSlope;
+      useIntercept = renderingParameters.useIntercept;
+      RenderedFrame renderedFrame = null;
+      if(renderingParameters.key != null)
+      {
+        renderedFrame = (RenderedFrame) FrameCache.getSharedInstance().get(renderingParameters.key);
+        if(renderedFrame == null)
+        {
+          renderedFrame = (RenderedFrame) framePrefetcher.getIfStarted(renderingParameters.key);
+        }
+      }
+      if(renderedFrame != null)
+      {
+//System.err.println("SingleImagePanel.paintComponent(): using rendered frame from FrameCache or prefetch");
+        cachedPreWindowedImage = renderedFrame.image;
+        offsetDrawingOfResizedSelectedRegionImageX = renderedFrame.offsetX;
+        offsetDrawingOfResizedSelectedRegionImageY = renderedFrame.offsetY;
+      }
+    }
+    if(cachedPreWindowedImage == null)
+    {
       if(cachedResizedSelectedRegionImage == null)
       {
 //System.err.println("SingleImagePanel.paintComponent(): resizing prior to windowing");
@@ -1706,100 +2229,13 @@ public class SingleImagePanel extends JComponent implements KeyListener, MouseLi
           {
             resampler = new BufferedImageUtilities();
           }
-//long resampleTime = System.currentTimeMillis();
-          int backgroundValuePriorToWindowing = sImg.getBackgroundValue();
-
-          int srcWidth = useSrcImage.getWidth();
-          int srcHeight = useSrcImage.getHeight();
-          cachedResizedImage = resampler.resample(useSrcImage,
-             srcWidth,
-             srcHeight,
-             0,
-             0,
-             (int) Math.round(srcWidth * useScaleFactor),
-             (int) Math.round(srcHeight * useScaleFactor),
-             signed,
-             backgroundValuePriorToWindowing);
-//System.err.println("SingleImagePanel.paintComponent(): resizing with resampler - done in "+(System.currentTimeMillis()-resampleTime)+" ms");
-//System.err.println("SingleImagePanel.paintComponent(): resampled BufferedImage is as follows:"); BufferedImageUtilities.describeImage(cachedResizedImage,System.err);
+          cachedResizedImage = resizeFrame(useSrcImage, renderingParameters, resampler);
         }
 //long getSubimageTime = System.currentTimeMillis();
-        int scaledSelectionX =
-           (int) Math.round(useDisplayedAreaSelection.getXOffset() * useScaleFactor);
-        int scaledSelectionY =
-           (int) Math.round(useDisplayedAreaSelection.getYOffset() * useScaleFactor);
-        int scaledSelectionWidth =
-           (int) Math.round(useDisplayedAreaSelection.getSelectionWidth() * useScaleFactor);
-        int scaledSelectionHeight =
-           (int) Math.round(useDisplayedAreaSelection.getSelectionHeight() * useScaleFactor);
-//System.err.println("SingleImagePanel.paintComponent(): before clipping to image area - scaledSelectionX = "+scaledSelectionX);
-//System.err.println("SingleImagePanel.paintComponent(): before clipping to image area - scaledSelectionY = "+scaledSelectionY);
-//System.err.println("SingleImagePanel.paintComponent(): before clipping to image area - scaledSelectionWidth = "+scaledSelectionWidth);
-//System.err.println("SingleImagePanel.paintComponent(): before clipping to image area - scaledSelectionHeight = "+scaledSelectionHeight);
-
-        if(scaledSelectionX < 0)
-        {
-          offsetDrawingOfResizedSelectedRegionImageX = -scaledSelectionX;
-          //scaledSelectionWidth -= offsetDrawingOfResizedSelectedRegionImageX;
-          scaledSelectionX = 0;
-        }
-        else
-        {
-          offsetDrawingOfResizedSelectedRegionImageX = 0;
-        }
-
-        if(scaledSelectionY < 0)
-        {
-          offsetDrawingOfResizedSelectedRegionImageY = -scaledSelectionY;
-          //scaledSelectionHeight -= offsetDrawingOfResizedSelectedRegionImageY;
-          scaledSelectionY = 0;
-        }
-        else
-        {
-          offsetDrawingOfResizedSelectedRegionImageY = 0;
-        }
-
-        int cachedResizedImageWidth = cachedResizedImage.getWidth();
-//System.err.println("SingleImagePanel.paintComponent(): cachedResizedImageWidth = "+cachedResizedImageWidth);
-        if(scaledSelectionX + scaledSelectionWidth > cachedResizedImageWidth)
-        {
-          scaledSelectionWidth = cachedResizedImageWidth - scaledSelectionX;
-        }
-        else if(scaledSelectionX + scaledSelectionWidth < cachedResizedImageWidth)
-        {	// use all available image to the right, i.e., if panning beyond original selection
-          scaledSelectionWidth = cachedResizedImageWidth - scaledSelectionX;
-        }
-        if(scaledSelectionWidth < 0)
-        {
-          scaledSelectionWidth = 0;
-        }
-
-        int cachedResizedImageHeight = cachedResizedImage.getHeight();
-//System.err.println("SingleImagePanel.paintComponent(): cachedResizedImageHeight = "+cachedResizedImageHeight);
-        if(scaledSelectionY + scaledSelectionHeight > cachedResizedImageHeight)
-        {
-          scaledSelectionHeight = cachedResizedImageHeight - scaledSelectionY;
-        }
-        else if(scaledSelectionY + scaledSelectionHeight < cachedResizedImageHeight)
-        {	// use all available image to the bottom, i.e., if panning beyond original selection
-          scaledSelectionHeight = cachedResizedImageHeight - scaledSelectionY;
-        }
-        if(scaledSelectionHeight < 0)
-        {
-          scaledSelectionHeight = 0;
-        }
-
-//System.err.println("SingleImagePanel.paintComponent(): after clipping to image area - scaledSelectionX = "+scaledSelectionX);
-//System.err.println("SingleImagePanel.paintComponent(): after clipping to image area - scaledSelectionY = "+scaledSelectionY);
-//System.err.println("SingleImagePanel.paintComponent(): after clipping to image area - scaledSelectionWidth = "+scaledSelectionWidth);
-//System.err.println("SingleImagePanel.paintComponent(): after clipping to image area - scaledSelectionHeight = "+scaledSelectionHeight);
-//System.err.println("SingleImagePanel.paintComponent(): offsetDrawingOfResizedSelectedRegionImageX = "+offsetDrawingOfResizedSelectedRegionImageX);
-//System.err.println("SingleImagePanel.paintComponent(): offsetDrawingOfResizedSelectedRegionImageY = "+offsetDrawingOfResizedSelectedRegionImageY);
-
-        cachedResizedSelectedRegionImage =
-           scaledSelectionHeight > 0 && scaledSelectionWidth > 0
-           ? cachedResizedImage.getSubimage(scaledSelectionX, scaledSelectionY, scaledSelectionWidth, scaledSelectionHeight)
-           : null;
+        int[] offset = new int[2];
+        cachedResizedSelectedRegionImage = selectDisplayedArea(cachedResizedImage, renderingParameters, offset);
+        offsetDrawingOfResizedSelectedRegionImageX = offset[0];
+        offsetDrawingOfResizedSelectedRegionImageY = offset[1];
 //System.err.println("SingleImagePanel.paintComponent(): selecting subimage from resized image - done in "+(System.currentTimeMillis()-getSubimageTime)+" ms");
       }
       useSrcImage = cachedResizedSelectedRegionImage;
@@ -1808,91 +2244,25 @@ public class SingleImagePanel extends JComponent implements KeyListener, MouseLi
       {		// e.g., nothing left to draw since panned offscreen
         cachedPreWindowedImage = null;
       }
-      else if(useSrcImage.getColorModel().getNumComponents() == 1)
-      {
-
-        // First, find pre-selected VOI for this frame, if any
-
-//System.err.println("currentVOITransformInUse "+currentVOITransformInUse);
-        if(currentVOITransformInUse != -1
-           && !useVOILUTNotFunction
-           && voiTransform != null
-           && voiTransform.getNumberOfTransforms(useSrcImageIndex) > currentVOITransformInUse)
-        {
-          windowWidth = voiTransform.getWidth(useSrcImageIndex, currentVOITransformInUse);
-          windowCenter = voiTransform.getCenter(useSrcImageIndex, currentVOITransformInUse);
-//System.err.println("For new frame "+useSrcImageIndex+" using preselected center "+windowCenter+" and width "+windowWidth);
-        }
-        else
-        {
-          //currentVOITransformInUse=-1;
-          // Just leave it alone (but don't disable use of selection for other frames)
-//System.err.println("For new frame "+useSrcImageIndex+" using user selected center "+windowCenter+" and width "+windowWidth);
-        }
-
-        // Second, find rescale attributes for this frame
-
-        if(modalityTransform != null)
-        {
-          useSlope = modalityTransform.getRescaleSlope(useSrcImageIndex);
-          useIntercept = modalityTransform.getRescaleIntercept(useSrcImageIndex);
-//System.err.println("For new frame "+useSrcImageIndex+" using preselected rescale slope "+useSlope+" and intercept "+useIntercept);
-        }
-        else
-        {
-          useSlope = 1.0;
-          useIntercept = 0.0;
-//System.err.println("For new frame "+useSrcImageIndex+" using default rescale slope "+useSlope+" and intercept "+useIntercept);
-        }
-
-        // Finally, actually build the destination image
-//System.err.println("SingleImagePanel.paintComponent() useVOILUTNotFunction = "+useVOILUTNotFunction);
-//System.err.println("SingleImagePanel.paintComponent() numberOfEntries = "+numberOfEntries);
-//System.err.println("SingleImagePanel.paintComponent() redTable = "+redTable);
-//System.err.println("SingleImagePanel.paintComponent() useVOIFunction = "+useVOIFunction);
-//long applyVOITime = System.currentTimeMillis();
-        if(useVOILUTNotFunction)
-        {
-          cachedPreWindowedImage =
-             applyVOILUT(useSrcImage, windowCenter, windowWidth, voiLUTIdentityWindowCenter, voiLUTIdentityWindowWidth, signed, inverted, useSlope, useIntercept, hasPad, pad, padRangeLimit,
-             voiLUTNumberOfEntries, voiLUTFirstValueMapped, voiLUTBitsPerEntry, voiLUTData, voiLUTEntryMin, voiLUTEntryMax, voiLUTTopOfEntryRange);
-        }
-        else if(numberOfEntries != 0 && redTable != null)
-        {
-          cachedPreWindowedImage =
-             applyWindowCenterAndWidthWithPaletteColor(useSrcImage, windowCenter, windowWidth, signed, inverted, useSlope, useIntercept, hasPad, pad, padRangeLimit,
-             largestGray, bitsPerEntry, numberOfEntries, redTable, greenTable, blueTable);
-        }
-        else if(useVOIFunction == 1)
-        {
-          cachedPreWindowedImage =
-             applyWindowCenterAndWidthLogistic(useSrcImage, windowCenter, windowWidth, signed, inverted, useSlope, useIntercept, hasPad, pad, padRangeLimit);
-        }
-        else
-        {
-          cachedPreWindowedImage =
-             applyWindowCenterAndWidthLinear(useSrcImage, windowCenter, windowWidth, signed, inverted, useSlope, useIntercept, hasPad, pad, padRangeLimit);
-        }
-//System.err.println("SingleImagePanel.paintComponent(): VOI/window applied in "+(System.currentTimeMillis()-applyVOITime)+" ms");
-      }
       else
       {
-//System.err.println("SingleImagePanel.paintComponent() using useSrcImage as cachedPreWindowedImage="+useSrcImage);
-        cachedPreWindowedImage = useSrcImage;
+        cachedPreWindowedImage = windowFrame(useSrcImage, renderingParameters);
       }
-//System.err.println("SingleImagePanel.paintComponent() mrj.version="+System.getProperty("mrj.version"));
-      if(cachedPreWindowedImage != null && useConvertToMostFavorableImageType)
+      if(cachedPreWindowedImage != null && renderingParameters.key != null)
       {
-//long conversionTime = System.currentTimeMillis();
-        cachedPreWindowedImage =
-           BufferedImageUtilities.convertToMostFavorableImageType(cachedPreWindowedImage);
-//System.err.println("SingleImagePanel.paintComponent(): converted to most favorable done in "+(System.currentTimeMillis()-conversionTime)+" ms");
+        FrameCache.getSharedInstance().put(renderingParameters.key,
+           new RenderedFrame(cachedPreWindowedImage, offsetDrawingOfResizedSelectedRegionImageX, offsetDrawingOfResizedSelectedRegionImageY),
+           FrameCache.getSizeInBytes(cachedPreWindowedImage));
       }
     }
     else
     {
 //System.err.println("SingleImagePanel.paintComponent(): using cachedPreWindowedImage");
     }
+    if(renderingParameters != null)
+    {
+      prefetchAdjacentFrames(renderingParameters.grayscale, useScaleFactor);
+    }
 
 //long drawImageTime = System.currentTimeMillis();
     Graphics2D g2d = (Graphics2D) g;
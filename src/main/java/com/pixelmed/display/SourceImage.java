@@ -5,10 +5,8 @@ import java.awt.*;
 import java.awt.image.*;
 import java.awt.color.*;
 import java.io.*;
-import java.nio.channels.FileChannel;
-import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
 import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.pixelmed.dicom.*;
 
@@ -438,6 +436,7 @@ public class SourceImage
      throws IOException, DicomException
   {
     AttributeList list = new AttributeList();
+    list.setDecompressPixelDataLazily(true);
     list.read(filename);
 //System.err.println(list);
 
@@ -458,6 +457,7 @@ public class SourceImage
      throws IOException, DicomException
   {
     AttributeList list = new AttributeList();
+    list.setDecompressPixelDataLazily(true);		// only has an effect if the stream is from a file
     list.read(i);
 //System.err.println(list);
 
@@ -480,6 +480,33 @@ public class SourceImage
       constructSourceImage(list);
   }
 
+  /**
+   * <p>A decoded frame in the {@link com.pixelmed.display.FrameCache FrameCache}, with the range of pixel values found
+   * by the source that decoded it, if any.</p>
+   */
+  private static class CachedFrame
+  {
+    final BufferedImage image;
+    final int imgMin;
+    final int imgMax;
+
+    CachedFrame(BufferedImage image, int imgMin, int imgMax)
+    {
+      this.image = image;
+      this.imgMin = imgMin;
+      this.imgMax = imgMax;
+    }
+  }
+
+  /**
+   * <p>The range of pixel values found while decoding one frame, excluding padding.</p>
+   */
+  private static class PixelValueRange
+  {
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+  }
+
   private abstract class BufferedImageSource
   {
     protected int nframesamples;
@@ -501,11 +528,11 @@ public class SourceImage
       super.finalize();
     }
 
-    public BufferedImage getBufferedImage(int index)
+    public synchronized BufferedImage getBufferedImage(int index)
     {
       if(index != cachedIndex)
       {
-        cachedBufferedImage = getUncachedBufferedImage(index);
+        cachedBufferedImage = getSharedBufferedImage(index);
         if(cachedBufferedImage != null)
         {
           cachedIndex = index;
@@ -518,7 +545,111 @@ public class SourceImage
       return cachedBufferedImage;
     }
 
-    abstract public BufferedImage getUncachedBufferedImage(int index);
+    /**
+     * <p>Get a frame from the shared {@link com.pixelmed.display.FrameCache FrameCache}, decoding it and adding it if not already there,
+     * without making it the current frame or changing the range of pixel values found so far.</p>
+     *
+     * <p>Not synchronized, so may be called from several threads at once, and while another thread is getting the current frame.</p>
+     *
+     * @param	index	the frame
+     * @return		the frame, or null if it cannot be decoded
+     */
+    public BufferedImage getBufferedImageWithoutSideEffects(int index)
+    {
+      PixelValueRange range = new PixelValueRange();
+      if(!decodesFrames())
+      {
+        return getUncachedBufferedImage(index, range);
+      }
+      FrameCache frameCache = FrameCache.getSharedInstance();
+      String key = frameCacheKey + "#" + index;
+      CachedFrame cachedFrame = (CachedFrame) frameCache.get(key);
+      if(cachedFrame != null)
+      {
+        return cachedFrame.image;
+      }
+      BufferedImage image = getUncachedBufferedImage(index, range);
+      if(image != null)
+      {
+        frameCache.put(key, new CachedFrame(image, range.min, range.max), FrameCache.getSizeInBytes(image));
+      }
+      return image;
+    }
+
+    /**
+     * <p>Get a frame from the shared {@link com.pixelmed.display.FrameCache FrameCache}, decoding it and adding it if not already there.</p>
+     *
+     * @param	index	the frame
+     * @return		the frame, or null if it cannot be decoded
+     */
+    private BufferedImage getSharedBufferedImage(int index)
+    {
+      PixelValueRange range = new PixelValueRange();
+      if(!decodesFrames())
+      {
+        return getUncachedBufferedImage(index, range);
+      }
+      FrameCache frameCache = FrameCache.getSharedInstance();
+      String key = frameCacheKey + "#" + index;
+      CachedFrame cachedFrame = (CachedFrame) frameCache.get(key);
+      if(cachedFrame != null)
+      {
+        if(cachedFrame.imgMin <= cachedFrame.imgMax)
+        {
+          mergeMinimumAndMaximumPixelValues(cachedFrame.imgMin, cachedFrame.imgMax);
+        }
+        return cachedFrame.image;
+      }
+      BufferedImage image = getUncachedBufferedImage(index, range);
+      if(image != null)
+      {
+        recordMinimumAndMaximumPixelValues(range.min, range.max);
+        frameCache.put(key,
+           new CachedFrame(image, getMinimumPixelValueOfMostRecentBufferedImage(Integer.MAX_VALUE), getMaximumPixelValueOfMostRecentBufferedImage(Integer.MIN_VALUE)),
+           FrameCache.getSizeInBytes(image));
+      }
+      return image;
+    }
+
+    /**
+     * <p>Decode a frame, without changing any state of this source.</p>
+     *
+     * @param	index	the frame
+     * @param	range	extended to include the values of the pixels decoded, if the values are examined
+     * @return		the frame, or null if it cannot be decoded
+     */
+    abstract public BufferedImage getUncachedBufferedImage(int index, PixelValueRange range);
+
+    /**
+     * <p>Whether or not getting a frame involves copying or decompressing pixel data, rather than just wrapping pixel data already in memory,
+     * and hence whether or not it is worth keeping in the shared {@link com.pixelmed.display.FrameCache FrameCache}.</p>
+     *
+     * @return	true if frames are copied or decompressed
+     */
+    protected boolean decodesFrames()
+    {
+      return true;
+    }
+
+    /**
+     * <p>Take into account the range of pixel values found when a frame was decoded by another source of the same pixel data.</p>
+     *
+     * @param	otherMin	the smallest value found
+     * @param	otherMax	the largest value found
+     */
+    protected void mergeMinimumAndMaximumPixelValues(int otherMin, int otherMax)
+    {
+    }
+
+    /**
+     * <p>Take into account the range of pixel values found when a frame was decoded by this source.</p>
+     *
+     * @param	frameMin	the smallest value found
+     * @param	frameMax	the largest value found
+     */
+    protected void recordMinimumAndMaximumPixelValues(int frameMin, int frameMax)
+    {
+    }
 
     public int getMinimumPixelValueOfMostRecentBufferedImage(int oldMin)
     {
@@ -534,7 +665,8 @@ public class SourceImage
   private abstract class ShortBufferedImageSource extends BufferedImageSource
   {
     protected short data[];
-    protected ShortBuffer buffer;
+    protected OtherWordAttributeOnDisk onDisk;
+    protected EncapsulatedPixelDataAttribute encapsulated;
     protected boolean minMaxSet;
     protected int imgMin;
     protected int imgMax;
@@ -549,6 +681,24 @@ public class SourceImage
       return minMaxSet ? imgMax : oldMax;
     }
 
+    protected void mergeMinimumAndMaximumPixelValues(int otherMin, int otherMax)
+    {
+      if(!minMaxSet || otherMin < imgMin)
+        imgMin = otherMin;
+      if(!minMaxSet || otherMax > imgMax)
+        imgMax = otherMax;
+      minMaxSet = true;
+    }
+
+    protected void recordMinimumAndMaximumPixelValues(int frameMin, int frameMax)
+    {
+      if(frameMin < imgMin)
+        imgMin = frameMin;
+      if(frameMax > imgMax)
+        imgMax = frameMax;
+      minMaxSet = true;
+    }
+
     ShortBufferedImageSource(short data[], int width, int height, int samples)
     {
       super(width * height * samples);
@@ -556,19 +706,53 @@ public class SourceImage
       minMaxSet = false;
     }
 
-    ShortBufferedImageSource(ShortBuffer buffer, int width, int height, int samples)
+    ShortBufferedImageSource(OtherWordAttributeOnDisk onDisk, int width, int height, int samples)
     {
       super(width * height * samples);
-      this.buffer = buffer;
+      this.onDisk = onDisk;
       minMaxSet = false;
     }
 
+    ShortBufferedImageSource(EncapsulatedPixelDataAttribute encapsulated, int width, int height, int samples)
+    {
+      super(width * height * samples);
+      this.encapsulated = encapsulated;
+      minMaxSet = false;
+    }
+
+    /**
+     * <p>
+     * Get a view of the data for just one frame, without copying it if it is in memory or on disk,
+     * or decompressing it if necessary.</p>
+     *
+     * @param	index	the frame
+     * @return		the frame's data starting at position 0, or null if it cannot be mapped or decompressed
+     */
+    protected ShortBuffer getFrameBuffer(int index)
+    {
+      try
+      {
+        if(data != null)
+          return ShortBuffer.wrap(data, nframesamples * index, nframesamples).slice();
+        else if(onDisk != null)
+          return onDisk.getShortBufferForFrame(index, nframesamples);
+        else
+          return ShortBuffer.wrap(encapsulated.getShortValuesForFrame(index));
+      }
+      catch(DicomException e)
+      {
+        e.printStackTrace(System.err);
+        return null;
+      }
+    }
+
     protected void finalize()
        throws Throwable
     {
 //System.err.println("ShortBufferedImageSource.finalize()");
       data = null;
-      buffer = null;
+      onDisk = null;
+      encapsulated = null;
       super.finalize();
     }
   }
@@ -576,12 +760,70 @@ public class SourceImage
   private abstract class ByteBufferedImageSource extends BufferedImageSource
   {
     protected byte data[];
+    protected OtherByteAttributeOnDisk onDisk;
+    protected EncapsulatedPixelDataAttribute encapsulated;
 
     ByteBufferedImageSource(byte data[], int width, int height, int samples)
     {
       super(width * height * samples);
       this.data = data;
     }
+
+    ByteBufferedImageSource(OtherByteAttributeOnDisk onDisk, int width, int height, int samples)
+    {
+      super(width * height * samples);
+      this.onDisk = onDisk;
+    }
+
+    ByteBufferedImageSource(EncapsulatedPixelDataAttribute encapsulated, int width, int height, int samples)
+    {
+      super(width * height * samples);
+      this.encapsulated = encapsulated;
+    }
+
+    protected boolean decodesFrames()
+    {
+      return data == null;
+    }
+
+    /**
+     * <p>
+     * Get the data for just one frame that is not in memory, by copying it from its memory mapped view
+     * on disk or decompressing it.</p>
+     *
+     * @param	index	the frame
+     * @return		the frame's data starting at offset 0, or null if it cannot be mapped or decompressed
+     */
+    protected byte[] getFrameDataFromDiskOrEncapsulated(int index)
+    {
+      try
+      {
+        if(onDisk != null)
+        {
+          byte[] frameData = new byte[nframesamples];
+          onDisk.getByteBufferForFrame(index, nframesamples).get(frameData);
+          return frameData;
+        }
+        else
+        {
+          return encapsulated.getByteValuesForFrame(index);
+        }
+      }
+      catch(DicomException e)
+      {
+        e.printStackTrace(System.err);
+        return null;
+      }
+    }
+
+    protected void finalize()
+       throws Throwable
+    {
+      data = null;
+      onDisk = null;
+      encapsulated = null;
+      super.finalize();
+    }
   }
 
   private class SignedShortGrayscaleBufferedImageSource extends ShortBufferedImageSource
@@ -602,9 +844,9 @@ public class SourceImage
       imgMax = 0xffff8000;		// i.e. start with the smallest possible 16 bit -ve value, sign extended to the full Java int 32 bits
     }
 
-    SignedShortGrayscaleBufferedImageSource(ShortBuffer buffer, int width, int height, int mask, int signbit, int extend, int largestGray)
+    SignedShortGrayscaleBufferedImageSource(OtherWordAttributeOnDisk onDisk, int width, int height, int mask, int signbit, int extend, int largestGray)
     {
-      super(buffer, width, height, 1);
+      super(onDisk, width, height, 1);
       this.mask = mask;
       this.signbit = signbit;
       this.extend = extend;
@@ -613,46 +855,42 @@ public class SourceImage
       imgMax = 0xffff8000;		// i.e. start with the smallest possible 16 bit -ve value, sign extended to the full Java int 32 bits
     }
 
-    public BufferedImage getUncachedBufferedImage(int index)
+    SignedShortGrayscaleBufferedImageSource(EncapsulatedPixelDataAttribute encapsulated, int width, int height, int mask, int signbit, int extend, int largestGray)
+    {
+      super(encapsulated, width, height, 1);
+      this.mask = mask;
+      this.signbit = signbit;
+      this.extend = extend;
+      this.largestGray = largestGray;
+      imgMin = 0x00007fff;		// i.e. start with the largest  possible 16 bit +ve value, sign extended to the full Java int 32 bits
+      imgMax = 0xffff8000;		// i.e. start with the smallest possible 16 bit -ve value, sign extended to the full Java int 32 bits
+    }
+
+    public BufferedImage getUncachedBufferedImage(int index, PixelValueRange range)
     {
 //System.err.println("SourceImage.SignedShortGrayscaleBufferedImageSource.getUncachedBufferedImage(): index="+index);
-      short[] useData;
-      int useOffset;
-      if(data == null)
-      {
-//System.err.println("SourceImage.SignedShortGrayscaleBufferedImageSource.getUncachedBufferedImage(): nframesamples = "+nframesamples);
-        useData = new short[nframesamples];
-        int position = nframesamples * index;
-//System.err.println("SourceImage.SignedShortGrayscaleBufferedImageSource.getUncachedBufferedImage(): position = "+position);
-        buffer.position(position);
-        buffer.get(useData);
-        useOffset = 0;
-      }
-      else
-      {
-        useData = data;
-        useOffset = nframesamples * index;
-      }
+      ShortBuffer useData = getFrameBuffer(index);
+      if(useData == null)
+        return null;
       // now copy the data for just one frame, masking and sign extending it
       short[] newData = new short[nframesamples];
-      for(int i = useOffset, j = 0; j < nframesamples; ++i, ++j)
+      for(int j = 0; j < nframesamples; ++j)
       {
-        int value = ((int) useData[i]) & mask;
+        int value = ((int) useData.get(j)) & mask;
         int nonextendedvalue = value;
         if((value & signbit) != 0)
           value = value | extend;
         newData[j] = (short) value;
         if(nonextendedvalue < maskedPadStart || nonextendedvalue > maskedPadEnd)
         {
-          if(value > imgMax && value <= largestGray)
-            imgMax = value;
-          if(value < imgMin)
-            imgMin = value;
+          if(value > range.max && value <= largestGray)
+            range.max = value;
+          if(value < range.min)
+            range.min = value;
           //imgSum+=value;
           //imgSumOfSquares+=value*value;
         }
       }
-      minMaxSet = true;
       return createSignedShortGrayscaleImage(width, height, newData, 0);
     }
   }
@@ -671,68 +909,142 @@ public class SourceImage
       imgMax = 0x00000000;	// i.e. start with the smallest possible 16 bit -ve value, sign extended to the full Java int 32 bits
     }
 
-    UnsignedShortGrayscaleBufferedImageSource(ShortBuffer buffer, int width, int height, int mask, int largestGray)
+    UnsignedShortGrayscaleBufferedImageSource(OtherWordAttributeOnDisk onDisk, int width, int height, int mask, int largestGray)
+    {
+      super(onDisk, width, height, 1);
+      this.mask = mask;
+      this.largestGray = largestGray;
+      imgMin = 0x0000ffff;	// i.e. start with the largest  possible 16 bit +ve value, sign extended to the full Java int 32 bits
+      imgMax = 0x00000000;	// i.e. start with the smallest possible 16 bit -ve value, sign extended to the full Java int 32 bits
+    }
+
+    UnsignedShortGrayscaleBufferedImageSource(EncapsulatedPixelDataAttribute encapsulated, int width, int height, int mask, int largestGray)
     {
-      super(buffer, width, height, 1);
+      super(encapsulated, width, height, 1);
       this.mask = mask;
       this.largestGray = largestGray;
       imgMin = 0x0000ffff;	// i.e. start with the largest  possible 16 bit +ve value, sign extended to the full Java int 32 bits
       imgMax = 0x00000000;	// i.e. start with the smallest possible 16 bit -ve value, sign extended to the full Java int 32 bits
     }
 
-    public BufferedImage getUncachedBufferedImage(int index)
+    public BufferedImage getUncachedBufferedImage(int index, PixelValueRange range)
     {
 //System.err.println("SourceImage.UnsignedShortGrayscaleBufferedImageSource.getUncachedBufferedImage(): index="+index);
-      short[] useData;
-      int useOffset;
-      if(data == null)
-      {
-//System.err.println("SourceImage.UnsignedShortGrayscaleBufferedImageSource.getUncachedBufferedImage(): nframesamples = "+nframesamples);
-        useData = new short[nframesamples];
-        int position = nframesamples * index;
-//System.err.println("SourceImage.UnsignedShortGrayscaleBufferedImageSource.getUncachedBufferedImage(): position = "+position);
-        buffer.position(position);
-        buffer.get(useData);
-        useOffset = 0;
-      }
-      else
-      {
-        useData = data;
-        useOffset = nframesamples * index;
-      }
+      ShortBuffer useData = getFrameBuffer(index);
+      if(useData == null)
+        return null;
       // now copy the data for just one frame, masking it
       short[] newData = new short[nframesamples];
-      for(int i = useOffset, j = 0; j < nframesamples; ++i, ++j)
+      for(int j = 0; j < nframesamples; ++j)
       {
-        int value = ((int) useData[i]) & mask;
+        int value = ((int) useData.get(j)) & mask;
         // unsigned so no need to check for sign extension
         newData[j] = (short) value;
         if(value < maskedPadStart || value > maskedPadEnd)
         {
-          if(value > imgMax && value <= largestGray)
-            imgMax = value;
-          if(value < imgMin)
-            imgMin = value;
+          if(value > range.max && value <= largestGray)
+            range.max = value;
+          if(value < range.min)
+            range.min = value;
           //imgSum+=value;
           //imgSumOfSquares+=value*value;
         }
       }
-      minMaxSet = true;
       return createUnsignedShortGrayscaleImage(width, height, newData, 0);
     }
   }
 
   private class ByteGrayscaleBufferedImageSource extends ByteBufferedImageSource
   {
+    protected int mask;
+    protected int signbit;
+    protected int extend;
+    protected boolean minMaxSet;
+    protected int imgMin;
+    protected int imgMax;
+
     ByteGrayscaleBufferedImageSource(byte data[], int width, int height)
     {
       super(data, width, height, 1);
     }
 
-    public BufferedImage getUncachedBufferedImage(int index)
+    ByteGrayscaleBufferedImageSource(OtherByteAttributeOnDisk onDisk, int width, int height, int mask, int signbit, int extend, int imgMin, int imgMax)
+    {
+      super(onDisk, width, height, 1);
+      this.mask = mask;
+      this.signbit = signbit;
+      this.extend = extend;
+      this.imgMin = imgMin;
+      this.imgMax = imgMax;
+      minMaxSet = false;
+    }
+
+    ByteGrayscaleBufferedImageSource(EncapsulatedPixelDataAttribute encapsulated, int width, int height, int mask, int signbit, int extend, int imgMin, int imgMax)
+    {
+      super(encapsulated, width, height, 1);
+      this.mask = mask;
+      this.signbit = signbit;
+      this.extend = extend;
+      this.imgMin = imgMin;
+      this.imgMax = imgMax;
+      minMaxSet = false;
+    }
+
+    public int getMinimumPixelValueOfMostRecentBufferedImage(int oldMin)
+    {
+      return minMaxSet ? imgMin : oldMin;
+    }
+
+    public int getMaximumPixelValueOfMostRecentBufferedImage(int oldMax)
+    {
+      return minMaxSet ? imgMax : oldMax;
+    }
+
+    protected void mergeMinimumAndMaximumPixelValues(int otherMin, int otherMax)
+    {
+      if(!minMaxSet || otherMin < imgMin)
+        imgMin = otherMin;
+      if(!minMaxSet || otherMax > imgMax)
+        imgMax = otherMax;
+      minMaxSet = true;
+    }
+
+    protected void recordMinimumAndMaximumPixelValues(int frameMin, int frameMax)
+    {
+      if(frameMin < imgMin)
+        imgMin = frameMin;
+      if(frameMax > imgMax)
+        imgMax = frameMax;
+      minMaxSet = true;
+    }
+
+    public BufferedImage getUncachedBufferedImage(int index, PixelValueRange range)
     {
 //System.err.println("SourceImage.ByteGrayscaleBufferedImageSource.getUncachedBufferedImage(): index="+index);
-      return createByteGrayscaleImage(width, height, data, nframesamples * index);
+      if(data != null)
+        return createByteGrayscaleImage(width, height, data, nframesamples * index);
+
+      byte[] useData = getFrameDataFromDiskOrEncapsulated(index);
+      if(useData == null)
+        return null;
+      // now copy the data for just one frame, masking and sign extending it
+      byte[] newData = new byte[nframesamples];
+      for(int j = 0; j < nframesamples; ++j)
+      {
+        int value = ((int) useData[j]) & mask;
+        int nonextendedvalue = value;
+        if(signed && (value & signbit) != 0)
+          value = value | extend;
+        newData[j] = (byte) value;
+        if(nonextendedvalue < maskedPadStart || nonextendedvalue > maskedPadEnd)
+        {
+          if(value > range.max && value <= largestGray)
+            range.max = value;
+          if(value < range.min)
+            range.min = value;
+        }
+      }
+      return createByteGrayscaleImage(width, height, newData, 0);
     }
   }
 
@@ -743,10 +1055,19 @@ public class SourceImage
       super(data, width, height, 3);
     }
 
-    public BufferedImage getUncachedBufferedImage(int index)
+    BandInterleavedByteRGBBufferedImageSource(OtherByteAttributeOnDisk onDisk, int width, int height)
+    {
+      super(onDisk, width, height, 3);
+    }
+
+    public BufferedImage getUncachedBufferedImage(int index, PixelValueRange range)
     {
 //System.err.println("SourceImage.BandInterleavedByteRGBBufferedImageSource.getUncachedBufferedImage(): index="+index);
-      return createBandInterleavedByteRGBImage(width, height, data, nframesamples * index);
+      if(data != null)
+        return createBandInterleavedByteRGBImage(width, height, data, nframesamples * index);
+
+      byte[] useData = getFrameDataFromDiskOrEncapsulated(index);
+      return useData == null ? null : createBandInterleavedByteRGBImage(width, height, useData, 0);
     }
   }
 
@@ -757,10 +1078,24 @@ public class SourceImage
       super(data, width, height, 3);
     }
 
-    public BufferedImage getUncachedBufferedImage(int index)
+    PixelInterleavedByteRGBBufferedImageSource(OtherByteAttributeOnDisk onDisk, int width, int height)
+    {
+      super(onDisk, width, height, 3);
+    }
+
+    PixelInterleavedByteRGBBufferedImageSource(EncapsulatedPixelDataAttribute encapsulated, int width, int height)
+    {
+      super(encapsulated, width, height, 3);
+    }
+
+    public BufferedImage getUncachedBufferedImage(int index, PixelValueRange range)
     {
 //System.err.println("SourceImage.PixelInterleavedByteRGBBufferedImageSource.getUncachedBufferedImage(): index="+index);
-      return createPixelInterleavedByteRGBImage(width, height, data, nframesamples * index);
+      if(data != null)
+        return createPixelInterleavedByteRGBImage(width, height, data, nframesamples * index);
+
+      byte[] useData = getFrameDataFromDiskOrEncapsulated(index);
+      return useData == null ? null : createPixelInterleavedByteRGBImage(width, height, useData, 0);
     }
   }
 
@@ -792,29 +1127,69 @@ public class SourceImage
   }
 
   protected BufferedImageSource bufferedImageSource = null;
-  protected FileInputStream memoryMappedFileInputStream = null;
-  protected FileChannel memoryMappedFileChannel = null;
-  protected MappedByteBuffer memoryMappedByteBuffer = null;
 
-  public void close()
-     throws Throwable
+  /***/
+  private static final AtomicLong nextUniqueFrameCacheKey = new AtomicLong();
+  /***/
+  private String frameCacheKey;
+  /***/
+  private boolean frameCacheKeyIsUnique;
+
+  /**
+   * <p>Get the key that identifies the pixel data of this image in the shared {@link com.pixelmed.display.FrameCache FrameCache}.</p>
+   *
+   * <p>Keys of individual frames and of anything derived from them start with this key followed by "#" and the frame number.</p>
+   *
+   * @return	the key, which is the same for other images whose pixel data is read from the same unmodified file, or null if there is no pixel data
+   */
+  String getFrameCacheKey()
   {
-//System.err.println("SourceImage.close()");
-    bufferedImageSource = null;
-    if(memoryMappedByteBuffer != null)
+    return frameCacheKey;
+  }
+
+  /**
+   * <p>Make a key that identifies the pixel data in the shared {@link com.pixelmed.display.FrameCache FrameCache}.</p>
+   *
+   * <p>Pixel data left on disk is identified by the SOP Instance UID, the file and the time it was last modified,
+   * so that frames may be shared with other images that read the same file. Pixel data in memory may since have been modified,
+   * so is given a key that is unique to this image.</p>
+   *
+   * @param	list	the attributes of the image
+   */
+  private void setFrameCacheKey(AttributeList list)
+  {
+    String sopInstanceUID = Attribute.getSingleStringValueOrEmptyString(list, TagFromName.SOPInstanceUID);
+    Attribute a = list.get(TagFromName.PixelData);
+    File file = null;
+    if(a instanceof OtherWordAttributeOnDisk)
+      file = ((OtherWordAttributeOnDisk) a).getFile();
+    else if(a instanceof OtherByteAttributeOnDisk)
+      file = ((OtherByteAttributeOnDisk) a).getFile();
+    else if(a instanceof EncapsulatedPixelDataAttribute)
+      file = ((EncapsulatedPixelDataAttribute) a).getFile();
+    if(file != null && sopInstanceUID.length() > 0)
     {
-      clean(memoryMappedByteBuffer);
-      memoryMappedByteBuffer = null;
+      frameCacheKey = sopInstanceUID + "@" + file.getAbsolutePath() + "@" + file.lastModified();
+      frameCacheKeyIsUnique = false;
     }
-    if(memoryMappedFileChannel != null)
+    else
     {
-      memoryMappedFileChannel.close();
-      memoryMappedFileChannel = null;
+      frameCacheKey = sopInstanceUID + "@SourceImage" + nextUniqueFrameCacheKey.incrementAndGet();
+      frameCacheKeyIsUnique = true;
     }
-    if(memoryMappedFileInputStream != null)
+//System.err.println("SourceImage.setFrameCacheKey(): "+frameCacheKey);
+  }
+
+  public void close()
+     throws Throwable
+  {
+//System.err.println("SourceImage.close()");
+    // any memory mapped views of the pixel data are owned by the on disk attributes, and released when they are reaped
+    bufferedImageSource = null;
+    if(frameCacheKeyIsUnique)
     {
-      memoryMappedFileInputStream.close();
-      memoryMappedFileInputStream = null;
+      FrameCache.getSharedInstance().removeAll(frameCacheKey + "#");	// no one else can use them
+      frameCacheKeyIsUnique = false;
     }
   }
 
@@ -838,6 +1213,7 @@ public class SourceImage
     //double imgSum=0;
     //double imgSumOfSquares=0;
     title = AttributeList.buildInstanceTitleFromAttributeList(list);
+    setFrameCacheKey(list);
 
     width = Attribute.getSingleIntegerValueOrDefault(list, TagFromName.Columns, 0);
 //System.err.println("width="+width);
@@ -1004,83 +1380,37 @@ public class SourceImage
 //System.err.println("SourceImage.constructSourceImage(): grayscale or palette color > 8 bits");
       // note that imgMin and imgMax are populated on demand when BufferedImages are actually created
       Attribute a = list.get(TagFromName.PixelData);
-      if(a instanceof OtherWordAttributeOnDisk)
+      if(a instanceof EncapsulatedPixelDataAttribute && !((EncapsulatedPixelDataAttribute) a).isByteData())
       {
-//System.err.println("SourceImage.constructSourceImage(): on disk");
-        OtherWordAttributeOnDisk owa = (OtherWordAttributeOnDisk) a;
-        // keep track of all the intermediaries so we can explicitly close them later (e.g., on finalization)
-        memoryMappedFileInputStream = null;
-        memoryMappedFileChannel = null;
-        try
-        {
-          memoryMappedFileInputStream = new FileInputStream(owa.getFile());
-          memoryMappedFileChannel = memoryMappedFileInputStream.getChannel();
-        }
-        catch(FileNotFoundException e)
-        {
-          throw new DicomException("Cannot find file to memory map " + owa.getFile() + " " + e);
-        }
-        // Why repeatedly retry ? See "http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=5092131"
-        // The key is to make sure that the finalize() method for any uncollected and unfinalized
-        // memory mapped buffers is called (and of course that we have specified finalize methods
-        // in our BufferedImageSource classes for those that need to null any buffer references)
-        // before we try to map another large file; this is presumed to be needed because reaping
-        // the small heap objects that are associated with mapped buffers is not a priority for
-        // the garbage collector
-        memoryMappedByteBuffer = null;
-        int retrycount = 100;	// often only takes once or twice, may take more than 10
-        int sleepTimeBetweenRetries = 1000;
-        int retryBeforeSleeping = 10;
-        Exception einside = null;
-        while(memoryMappedByteBuffer == null && retrycount-- > 0)
+//System.err.println("SourceImage.constructSourceImage(): encapsulated, decompressed lazily");
+        EncapsulatedPixelDataAttribute epa = (EncapsulatedPixelDataAttribute) a;
+        imgs = null;
+        if(signed)
         {
-          if(retryBeforeSleeping-- <= 0)
-          {
-            try
-            {
-//System.err.println("SourceImage.constructSourceImage(): sleeping");
-              Thread.currentThread().sleep(sleepTimeBetweenRetries);
-//System.err.println("SourceImage.constructSourceImage(): back from sleep");
-            }
-            catch(InterruptedException e)
-            {
-              e.printStackTrace(System.err);
-            }
-          }
-//System.err.println("SourceImage.constructSourceImage(): retrycount = "+retrycount);
-//System.err.println("SourceImage.constructSourceImage(): free  memory = "+Runtime.getRuntime().freeMemory());
-//System.err.println("SourceImage.constructSourceImage(): max   memory = "+Runtime.getRuntime().maxMemory());
-//System.err.println("SourceImage.constructSourceImage(): total memory = "+Runtime.getRuntime().totalMemory());
-          try
-          {
-//System.err.println("SourceImage.constructSourceImage(): requesting gc and runFinalization");
-            System.gc();
-            System.runFinalization();
-//System.err.println("SourceImage.constructSourceImage(): back from gc and runFinalization");
-            memoryMappedByteBuffer
-               = memoryMappedFileChannel.map(FileChannel.MapMode.READ_ONLY, owa.getByteOffset(), nsamples * 2);
-          }
-          catch(Exception e)
-          {
-            e.printStackTrace(System.err);
-            einside = e;
-          }
+          bufferedImageSource
+             = new SignedShortGrayscaleBufferedImageSource(epa, width, height, mask, signbit, extend, largestGray);
         }
-        if(memoryMappedByteBuffer == null)
+        else
         {
-          throw new DicomException("Cannot memory map file " + owa.getFile() + " " + einside);
+          bufferedImageSource
+             = new UnsignedShortGrayscaleBufferedImageSource(epa, width, height, mask, largestGray);
         }
-        memoryMappedByteBuffer.order(owa.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
-        ShortBuffer shortBuffer = memoryMappedByteBuffer.asShortBuffer();
+      }
+      else if(a instanceof OtherWordAttributeOnDisk)
+      {
+//System.err.println("SourceImage.constructSourceImage(): on disk");
+        // frames are accessed through memory mapped views of the file, rather than being read into the heap
+        OtherWordAttributeOnDisk owa = (OtherWordAttributeOnDisk) a;
+        imgs = null;
         if(signed)
         {
           bufferedImageSource
-             = new SignedShortGrayscaleBufferedImageSource(shortBuffer, width, height, mask, signbit, extend, largestGray);
+             = new SignedShortGrayscaleBufferedImageSource(owa, width, height, mask, signbit, extend, largestGray);
         }
         else
         {
           bufferedImageSource
-             = new UnsignedShortGrayscaleBufferedImageSource(shortBuffer, width, height, mask, largestGray);
+             = new UnsignedShortGrayscaleBufferedImageSource(owa, width, height, mask, largestGray);
         }
       }
       else
@@ -1105,7 +1435,23 @@ public class SourceImage
 //System.err.println("SourceImage.constructSourceImage(): grayscale or palette color <= 8 bits");
       byte data[] = null;
       Attribute a = list.get(TagFromName.PixelData);
-      if(ValueRepresentation.isOtherByteVR(a.getVR()))
+      if(a instanceof EncapsulatedPixelDataAttribute && ((EncapsulatedPixelDataAttribute) a).isByteData())
+      {
+//System.err.println("SourceImage.constructSourceImage(): encapsulated, decompressed lazily");
+        // note that imgMin and imgMax are populated on demand when BufferedImages are actually created
+        imgs = null;
+        bufferedImageSource
+           = new ByteGrayscaleBufferedImageSource((EncapsulatedPixelDataAttribute) a, width, height, mask, signbit, extend, imgMin, imgMax);
+      }
+      else if(a instanceof OtherByteAttributeOnDisk)
+      {
+//System.err.println("SourceImage.constructSourceImage(): on disk");
+        // note that imgMin and imgMax are populated on demand when BufferedImages are actually created
+        imgs = null;
+        bufferedImageSource
+           = new ByteGrayscaleBufferedImageSource((OtherByteAttributeOnDisk) a, width, height, mask, signbit, extend, imgMin, imgMax);
+      }
+      else if(ValueRepresentation.isOtherByteVR(a.getVR()))
       {
         byte[] sdata = a.getByteValues();
         data = new byte[nsamples];
@@ -1175,8 +1521,11 @@ public class SourceImage
       //	imgs[frame]=createByteGrayscaleImage(width,height,data,offset);
       //	offset+=nframesamples;
       //}
-      imgs = null;
-      bufferedImageSource = new ByteGrayscaleBufferedImageSource(data, width, height);
+      if(data != null)
+      {
+        imgs = null;
+        bufferedImageSource = new ByteGrayscaleBufferedImageSource(data, width, height);
+      }
     }
     else if(isGrayscale && samples == 1 && depth == 1)
     {
@@ -1276,7 +1625,27 @@ public class SourceImage
 //System.err.println("SourceImage.constructSourceImage(): not grayscale, is 3 channel and <= 8 bits");
       byte data[] = null;
       Attribute a = list.get(TagFromName.PixelData);
-      if(ValueRepresentation.isOtherByteVR(a.getVR()))
+      if(a instanceof EncapsulatedPixelDataAttribute && ((EncapsulatedPixelDataAttribute) a).isByteData())
+      {
+//System.err.println("SourceImage.constructSourceImage(): encapsulated, decompressed lazily");
+        // codecs always return pixel interleaved data, regardless of PlanarConfiguration in the header
+        imgs = null;
+        bufferedImageSource = new PixelInterleavedByteRGBBufferedImageSource((EncapsulatedPixelDataAttribute) a, width, height);
+      }
+      else if(a instanceof OtherByteAttributeOnDisk)
+      {
+//System.err.println("SourceImage.constructSourceImage(): on disk");
+        imgs = null;
+        if(byplane)
+        {
+          bufferedImageSource = new BandInterleavedByteRGBBufferedImageSource((OtherByteAttributeOnDisk) a, width, height);
+        }
+        else
+        {
+          bufferedImageSource = new PixelInterleavedByteRGBBufferedImageSource((OtherByteAttributeOnDisk) a, width, height);
+        }
+      }
+      else if(ValueRepresentation.isOtherByteVR(a.getVR()))
       {
         data = a.getByteValues();
       }
@@ -1296,13 +1665,18 @@ public class SourceImage
           data[count++] = (byte) value2;
         }
       }
-      imgs = null;
-      if(byplane)
+      if(data == null)
+      {
+        // already set up to decompress lazily or access on disk
+      }
+      else if(byplane)
       {
+        imgs = null;
         bufferedImageSource = new BandInterleavedByteRGBBufferedImageSource(data, width, height);
       }
       else
       {
+        imgs = null;
         bufferedImageSource = new PixelInterleavedByteRGBBufferedImageSource(data, width, height);
       }
     }
@@ -1353,7 +1727,7 @@ public class SourceImage
     return getBufferedImage(0);
   }
 
-  public BufferedImage getBufferedImage(int i)
+  public synchronized BufferedImage getBufferedImage(int i)
   {
     BufferedImage img = null;
     if(bufferedImageSource == null)
@@ -1372,6 +1746,26 @@ public class SourceImage
     return img;
   }
 
+  /**
+   * <p>Get a frame in anticipation of its use, decoding it into the shared {@link com.pixelmed.display.FrameCache FrameCache} if necessary.</p>
+   *
+   * <p>Unlike {@link #getBufferedImage(int) getBufferedImage()}, does not make the frame the current one or change the range of pixel values,
+   * and does not hold the lock on this image while decoding, so may be called from background threads without delaying the display
+   * of other frames. The range of pixel values of the frame is taken into account when it is later got from the cache.</p>
+   *
+   * @param	i	the frame
+   * @return	the frame, or null if it cannot be decoded
+   */
+  BufferedImage getBufferedImageWithoutSideEffects(int i)
+  {
+    BufferedImageSource source = bufferedImageSource;
+    if(source == null)
+    {
+      return (imgs == null || i < 0 || i >= imgs.length) ? null : imgs[i];
+    }
+    return source.getBufferedImageWithoutSideEffects(i);
+  }
+
   public int getNumberOfBufferedImages()
   {
     return nframes;
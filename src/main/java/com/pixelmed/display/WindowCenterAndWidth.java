@@ -15,11 +15,20 @@ import java.awt.Transparency;
 import java.awt.color.ColorSpace;
 import java.awt.image.ByteLookupTable;
 import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
 import java.awt.image.LookupOp;
 import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
 //import javax.imageio.ImageIO;
 
 //import com.pixelmed.dicom.Attribute;
@@ -35,10 +44,302 @@ import java.awt.image.WritableRaster;
 /**
  * <p>A class of static methods to perform window operations on images.</p>
  *
+ * <p>Each operation computes a lookup table for every possible stored value, then applies it to every pixel. Where the source and destination rasters
+ * can be accessed directly (i.e., a single band of byte, short or unsigned short source values, and byte or packed int destination values, which
+ * is the usual case), the table is applied by splitting the rows into bands that are processed in parallel in the common
+ * {@link java.util.concurrent.ForkJoinPool ForkJoinPool}, otherwise a {@link java.awt.image.LookupOp LookupOp} is used.</p>
+ *
+ * <p>Each operation may be supplied with the image returned by a previous call to reuse as the destination, if it is of the same size and type,
+ * to avoid allocating a new raster for every change of window, such as while the user is dragging the mouse to adjust it.</p>
+ *
  * @author	dclunie
  */
 public class WindowCenterAndWidth {
 
+	/***/
+	private static final int minimumPixelsPerTask = 65536;
+
+	/***/
+	private static final ColorModel eightBitGrayColorModel = new ComponentColorModel(
+		ColorSpace.getInstance(ColorSpace.CS_GRAY),
+		new int[] {8},
+		false,		// has alpha
+		false,		// alpha premultipled
+		Transparency.OPAQUE,
+		DataBuffer.TYPE_BYTE
+	);
+
+	/**
+	 * <p>Applies lookup tables to a range of rows of a single band source raster, writing each band of a byte or packed int destination raster,
+	 * splitting the range in two and processing each half in parallel if it is large enough.</p>
+	 */
+	private static class LookupTableTask extends RecursiveAction {
+		/***/
+		private short[] srcShorts;		// null if source is bytes
+		/***/
+		private byte[] srcBytes;		// null if source is shorts
+		/***/
+		private int srcOffset;			// of the first sample of the first row
+		/***/
+		private int srcPixelStride;
+		/***/
+		private int srcScanlineStride;
+		/***/
+		private byte[] dstBytes;		// null if destination is packed ints
+		/***/
+		private byte[][] luts;			// one per destination band, used if destination is bytes
+		/***/
+		private int[] dstBandOffsets;
+		/***/
+		private int[] dstInts;			// null if destination is bytes
+		/***/
+		private int[] packedLut;		// used if destination is packed ints
+		/***/
+		private int dstOffset;			// of the first pixel of the first row, excluding any band offset
+		/***/
+		private int dstPixelStride;
+		/***/
+		private int dstScanlineStride;
+		/***/
+		private int columns;
+		/***/
+		private int firstRow;
+		/***/
+		private int endRow;			// exclusive
+
+		LookupTableTask() {
+		}
+
+		/**
+		 * @param	task		the task for all the rows, whose rasters and tables to use
+		 * @param	firstRow	the first row to process
+		 * @param	endRow		the row after the last to process
+		 */
+		LookupTableTask(LookupTableTask task,int firstRow,int endRow) {
+			srcShorts = task.srcShorts;
+			srcBytes = task.srcBytes;
+			srcOffset = task.srcOffset;
+			srcPixelStride = task.srcPixelStride;
+			srcScanlineStride = task.srcScanlineStride;
+			dstBytes = task.dstBytes;
+			luts = task.luts;
+			dstBandOffsets = task.dstBandOffsets;
+			dstInts = task.dstInts;
+			packedLut = task.packedLut;
+			dstOffset = task.dstOffset;
+			dstPixelStride = task.dstPixelStride;
+			dstScanlineStride = task.dstScanlineStride;
+			columns = task.columns;
+			this.firstRow = firstRow;
+			this.endRow = endRow;
+		}
+
+		protected void compute() {
+			if (endRow - firstRow < 2 || (long)(endRow - firstRow)*columns < 2*minimumPixelsPerTask) {
+				applyToRows();
+			}
+			else {
+				int middleRow = (firstRow + endRow)/2;
+				invokeAll(new LookupTableTask(this,firstRow,middleRow),new LookupTableTask(this,middleRow,endRow));
+			}
+		}
+
+		/**
+		 * <p>Apply the tables to the rows of this task in the current thread.</p>
+		 */
+		private void applyToRows() {
+			short[] srcShorts = this.srcShorts;
+			byte[] srcBytes = this.srcBytes;
+			int srcPixelStride = this.srcPixelStride;
+			byte[] dstBytes = this.dstBytes;
+			int[] dstInts = this.dstInts;
+			int[] packedLut = this.packedLut;
+			int dstPixelStride = this.dstPixelStride;
+			int columns = this.columns;
+			for (int row=firstRow; row<endRow; ++row) {
+				int s = srcOffset + row*srcScanlineStride;
+				int d = dstOffset + row*dstScanlineStride;
+				if (dstInts != null) {
+					for (int column=0; column<columns; ++column) {
+						int value = srcShorts != null ? srcShorts[s] & 0xffff : srcBytes[s] & 0xff;
+						dstInts[d] = packedLut[value];
+						s+=srcPixelStride;
+						d+=dstPixelStride;
+					}
+				}
+				else if (luts.length == 1) {
+					// the usual case of gray to gray, kept as simple as possible
+					byte[] lut = luts[0];
+					d+=dstBandOffsets[0];
+					if (srcPixelStride == 1 && dstPixelStride == 1) {
+						// contiguous rows, indexed so that the compiler can eliminate range checks and unroll
+						if (srcShorts != null) {
+							for (int column=0; column<columns; ++column) {
+								dstBytes[d+column] = lut[srcShorts[s+column] & 0xffff];
+							}
+						}
+						else {
+							for (int column=0; column<columns; ++column) {
+								dstBytes[d+column] = lut[srcBytes[s+column] & 0xff];
+							}
+						}
+					}
+					else if (srcShorts != null) {
+						for (int column=0; column<columns; ++column) {
+							dstBytes[d] = lut[srcShorts[s] & 0xffff];
+							s+=srcPixelStride;
+							d+=dstPixelStride;
+						}
+					}
+					else {
+						for (int column=0; column<columns; ++column) {
+							dstBytes[d] = lut[srcBytes[s] & 0xff];
+							s+=srcPixelStride;
+							d+=dstPixelStride;
+						}
+					}
+				}
+				else {
+					int numberOfBands = luts.length;
+					for (int column=0; column<columns; ++column) {
+						int value = srcShorts != null ? srcShorts[s] & 0xffff : srcBytes[s] & 0xff;
+						for (int band=0; band<numberOfBands; ++band) {
+							dstBytes[d+dstBandOffsets[band]] = luts[band][value];
+						}
+						s+=srcPixelStride;
+						d+=dstPixelStride;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Set up the application of lookup tables to all the rows of an image, if the source and destination rasters can be accessed directly.</p>
+	 *
+	 * @param	src	the source image, with one band
+	 * @param	luts	the lookup table for each band of the destination, indexed by the unsigned stored value
+	 * @param	dst	the destination image, of the same size as the source
+	 * @return		the task, or null if either raster cannot be accessed directly
+	 */
+	private static LookupTableTask createLookupTableTask(BufferedImage src,byte[][] luts,BufferedImage dst) {
+		WritableRaster srcRaster = src.getRaster();
+		WritableRaster dstRaster = dst.getRaster();
+		if (srcRaster.getWidth() != dstRaster.getWidth() || srcRaster.getHeight() != dstRaster.getHeight()
+		 || srcRaster.getNumBands() != 1 || dstRaster.getNumBands() != luts.length
+		 || !(srcRaster.getSampleModel() instanceof ComponentSampleModel)
+		 || srcRaster.getDataBuffer().getNumBanks() != 1 || dstRaster.getDataBuffer().getNumBanks() != 1) {
+			return null;
+		}
+		LookupTableTask task = new LookupTableTask();
+
+		ComponentSampleModel srcSampleModel = (ComponentSampleModel)(srcRaster.getSampleModel());
+		DataBuffer srcDataBuffer = srcRaster.getDataBuffer();
+		if (srcDataBuffer instanceof DataBufferUShort) {
+			task.srcShorts = ((DataBufferUShort)srcDataBuffer).getData();
+		}
+		else if (srcDataBuffer instanceof DataBufferShort) {
+			task.srcShorts = ((DataBufferShort)srcDataBuffer).getData();
+		}
+		else if (srcDataBuffer instanceof DataBufferByte) {
+			task.srcBytes = ((DataBufferByte)srcDataBuffer).getData();
+		}
+		else {
+			return null;
+		}
+		task.srcPixelStride = srcSampleModel.getPixelStride();
+		task.srcScanlineStride = srcSampleModel.getScanlineStride();
+		task.srcOffset = srcDataBuffer.getOffset() + srcSampleModel.getBandOffsets()[0]
+			- srcRaster.getSampleModelTranslateY()*task.srcScanlineStride - srcRaster.getSampleModelTranslateX()*task.srcPixelStride;
+
+		SampleModel dstSampleModel = dstRaster.getSampleModel();
+		DataBuffer dstDataBuffer = dstRaster.getDataBuffer();
+		if (dstSampleModel instanceof ComponentSampleModel && dstDataBuffer instanceof DataBufferByte) {
+			task.dstBytes = ((DataBufferByte)dstDataBuffer).getData();
+			task.luts = luts;
+			task.dstBandOffsets = ((ComponentSampleModel)dstSampleModel).getBandOffsets();
+			task.dstPixelStride = ((ComponentSampleModel)dstSampleModel).getPixelStride();
+			task.dstScanlineStride = ((ComponentSampleModel)dstSampleModel).getScanlineStride();
+		}
+		else if (dstSampleModel instanceof SinglePixelPackedSampleModel && dstDataBuffer instanceof DataBufferInt) {
+			task.dstInts = ((DataBufferInt)dstDataBuffer).getData();
+			int[] bitOffsets = ((SinglePixelPackedSampleModel)dstSampleModel).getBitOffsets();
+			int[] bitMasks = ((SinglePixelPackedSampleModel)dstSampleModel).getBitMasks();
+			task.packedLut = new int[luts[0].length];
+			for (int band=0; band<luts.length; ++band) {
+				byte[] lut = luts[band];
+				for (int i=0; i<lut.length; ++i) {
+					task.packedLut[i] |= ((lut[i] & 0xff) << bitOffsets[band]) & bitMasks[band];
+				}
+			}
+			task.dstPixelStride = 1;
+			task.dstScanlineStride = ((SinglePixelPackedSampleModel)dstSampleModel).getScanlineStride();
+		}
+		else {
+			return null;
+		}
+		task.dstOffset = dstDataBuffer.getOffset()
+			- dstRaster.getSampleModelTranslateY()*task.dstScanlineStride - dstRaster.getSampleModelTranslateX()*task.dstPixelStride;
+
+		task.columns = srcRaster.getWidth();
+		task.firstRow = 0;
+		task.endRow = srcRaster.getHeight();
+		return task;
+	}
+
+	/**
+	 * <p>Get the image to use as a destination.</p>
+	 *
+	 * @param	src		the source image
+	 * @param	dstColorModel	the color model of the destination
+	 * @param	dst		an image to reuse if it has the same size as the source and the same color model, else null
+	 * @return			the supplied image, or a new image if it cannot be reused
+	 */
+	private static BufferedImage reuseOrCreateDestination(BufferedImage src,ColorModel dstColorModel,BufferedImage dst) {
+		int columns = src.getWidth();
+		int rows = src.getHeight();
+		if (dst != null && dst.getWidth() == columns && dst.getHeight() == rows && dstColorModel.equals(dst.getColorModel())) {
+			return dst;
+		}
+		WritableRaster dstRaster = dstColorModel.createCompatibleWritableRaster(columns,rows);
+		return new BufferedImage(dstColorModel,dstRaster,dstColorModel.isAlphaPremultiplied(),null);
+	}
+
+	/**
+	 * <p>Apply lookup tables to all the rows of an image, in parallel, if the source and destination rasters can be accessed directly.</p>
+	 *
+	 * @param	src	the source image, with one band
+	 * @param	luts	the lookup table for each band of the destination, indexed by the unsigned stored value
+	 * @param	dst	the destination image, of the same size as the source
+	 * @return		true if applied, false if either raster cannot be accessed directly
+	 */
+	private static boolean applyLookupTables(BufferedImage src,byte[][] luts,BufferedImage dst) {
+		LookupTableTask task = createLookupTableTask(src,luts,dst);
+		if (task == null) {
+			return false;
+		}
+		task.invoke();		// small images are done in this thread without splitting, otherwise split among this thread and the common pool
+		return true;
+	}
+
+	/**
+	 * <p>Apply a lookup table to a single band image to make an 8 bit gray image.</p>
+	 *
+	 * @param	src	the source image
+	 * @param	lut	the lookup table, indexed by the unsigned stored value
+	 * @param	dst	an image to reuse as the destination if of the same size and type, else null
+	 * @return		the destination image
+	 */
+	private static BufferedImage applyLookupTableToMakeGray(BufferedImage src,byte[] lut,BufferedImage dst) {
+		dst = reuseOrCreateDestination(src,eightBitGrayColorModel,dst);
+		byte[][] luts = { lut };
+		if (!applyLookupTables(src,luts,dst)) {
+			LookupOp lookup=new LookupOp(new ByteLookupTable(0,lut), null);
+			dst = lookup.filter(src,dst);	// Fails if src is DataBufferShort
+		}
+		return dst;
+	}
+
 	/**
 	 * @param	lut
 	 * @param	pad
@@ -88,6 +389,25 @@ public class WindowCenterAndWidth {
 	 */
 	public static final BufferedImage applyWindowCenterAndWidthLogistic(BufferedImage src,double center,double width,
 			boolean signed,boolean inverted,double useSlope,double useIntercept,boolean usePad,int pad,int padRangeLimit) {
+		return applyWindowCenterAndWidthLogistic(src,center,width,signed,inverted,useSlope,useIntercept,usePad,pad,padRangeLimit,null);
+	}
+	
+	/**
+	 * @param	src
+	 * @param	center
+	 * @param	width
+	 * @param	signed
+	 * @param	inverted
+	 * @param	useSlope
+	 * @param	useIntercept
+	 * @param	usePad
+	 * @param	pad
+	 * @param	padRangeLimit
+	 * @param	dst		an image returned by a previous call to reuse as the destination if it is of the same size and type, else null
+	 * @return		the windowed image
+	 */
+	public static final BufferedImage applyWindowCenterAndWidthLogistic(BufferedImage src,double center,double width,
+			boolean signed,boolean inverted,double useSlope,double useIntercept,boolean usePad,int pad,int padRangeLimit,BufferedImage dst) {
 //System.err.println("WindowCenterAndWidth.applyWindowCenterAndWidthLogistic(): center="+center+" width="+width);
 
 		int       ymin = 0;
@@ -145,16 +465,7 @@ public class WindowCenterAndWidth {
 		if (usePad) {
 			applyPaddingValueRangeToLUT(lut,pad,padRangeLimit,mask);
 		}
-		LookupOp lookup=new LookupOp(new ByteLookupTable(0,lut), null);
-		ColorModel dstColorModel=new ComponentColorModel(
-			ColorSpace.getInstance(ColorSpace.CS_GRAY),
-			new int[] {8},
-			false,		// has alpha
-			false,		// alpha premultipled
-			Transparency.OPAQUE,
-			DataBuffer.TYPE_BYTE
-		);
-		BufferedImage dst = lookup.filter(src,lookup.createCompatibleDestImage(src,dstColorModel));	// Fails if src is DataBufferShort
+		dst = applyLookupTableToMakeGray(src,lut,dst);
 		return dst;
 	}
 
@@ -188,6 +499,25 @@ public class WindowCenterAndWidth {
 	 */
 	public static final BufferedImage applyWindowCenterAndWidthLinear(BufferedImage src,double center,double width,
 			boolean signed,boolean inverted,double useSlope,double useIntercept,boolean usePad,int pad,int padRangeLimit) {
+		return applyWindowCenterAndWidthLinear(src,center,width,signed,inverted,useSlope,useIntercept,usePad,pad,padRangeLimit,null);
+	}
+	
+	/**
+	 * @param	src
+	 * @param	center
+	 * @param	width
+	 * @param	signed
+	 * @param	inverted
+	 * @param	useSlope
+	 * @param	useIntercept
+	 * @param	usePad
+	 * @param	pad
+	 * @param	padRangeLimit
+	 * @param	dst		an image returned by a previous call to reuse as the destination if it is of the same size and type, else null
+	 * @return		the windowed image
+	 */
+	public static final BufferedImage applyWindowCenterAndWidthLinear(BufferedImage src,double center,double width,
+			boolean signed,boolean inverted,double useSlope,double useIntercept,boolean usePad,int pad,int padRangeLimit,BufferedImage dst) {
 //System.err.println("WindowCenterAndWidth.applyWindowCenterAndWidthLinear(): center="+center+" width="+width);
 
 		int       ymin = 0;
@@ -246,16 +576,7 @@ public class WindowCenterAndWidth {
 		if (usePad) {
 			applyPaddingValueRangeToLUT(lut,pad,padRangeLimit,mask);
 		}
-		LookupOp lookup=new LookupOp(new ByteLookupTable(0,lut), null);
-		ColorModel dstColorModel=new ComponentColorModel(
-			ColorSpace.getInstance(ColorSpace.CS_GRAY),
-			new int[] {8},
-			false,		// has alpha
-			false,		// alpha premultipled
-			Transparency.OPAQUE,
-			DataBuffer.TYPE_BYTE
-		);
-		BufferedImage dst = lookup.filter(src,lookup.createCompatibleDestImage(src,dstColorModel));	// Fails if src is DataBufferShort
+		dst = applyLookupTableToMakeGray(src,lut,dst);
 //System.err.println("WindowCenterAndWidth.applyWindowCenterAndWidthLinear(): BufferedImage out of LookupOp"+dst);
 		return dst;
 	}
@@ -309,6 +630,35 @@ public class WindowCenterAndWidth {
 			boolean usePad,int pad,int padRangeLimit,
 			int largestGray,int bitsPerEntry,int numberOfEntries,
 			short[] redTable,short[] greenTable,short[] blueTable) {
+		return applyWindowCenterAndWidthWithPaletteColor(src,center,width,signed,inverted,useSlope,useIntercept,usePad,pad,padRangeLimit,
+			largestGray,bitsPerEntry,numberOfEntries,redTable,greenTable,blueTable,null);
+	}
+
+	/**
+	 * @param	src
+	 * @param	center
+	 * @param	width
+	 * @param	signed
+	 * @param	inverted
+	 * @param	useSlope
+	 * @param	useIntercept
+	 * @param	usePad
+	 * @param	pad
+	 * @param	padRangeLimit
+	 * @param	largestGray
+	 * @param	bitsPerEntry
+	 * @param	numberOfEntries
+	 * @param	redTable
+	 * @param	greenTable
+	 * @param	blueTable
+	 * @param	dst		an image returned by a previous call to reuse as the destination if it is of the same size and type, else null
+	 * @return		the windowed image
+	 */
+	public static final BufferedImage applyWindowCenterAndWidthWithPaletteColor(BufferedImage src,double center,double width,
+			boolean signed,boolean inverted,double useSlope,double useIntercept,
+			boolean usePad,int pad,int padRangeLimit,
+			int largestGray,int bitsPerEntry,int numberOfEntries,
+			short[] redTable,short[] greenTable,short[] blueTable,BufferedImage dst) {
 //System.err.println("WindowCenterAndWidth.applyWindowCenterAndWidthWithPaletteColor center="+center+" width="+width);
 
 		int       ymin = 0;
@@ -395,11 +745,26 @@ public class WindowCenterAndWidth {
 			);
 		}
 		
-		WritableRaster dstRaster = dstColorModel.createCompatibleWritableRaster(columns,rows);
+		dst = reuseOrCreateDestination(src,dstColorModel,dst);
+		WritableRaster dstRaster = dst.getRaster();
 		DataBuffer dstDataBuffer = dstRaster.getDataBuffer();
-		BufferedImage dst = new BufferedImage(dstColorModel, dstRaster, dstColorModel.isAlphaPremultiplied(), null);
 		SampleModel dstSampleModel = dst.getSampleModel();
 		int dstNumBands = dstRaster.getNumBands();
+
+		if (srcNumBands == 1 && (dstNumBands == 3 || dstNumBands == 4)) {
+			byte[][] luts;
+			if (dstNumBands == 4) {
+				byte alut[] = new byte[65536];
+				Arrays.fill(alut,(byte)0xff);
+				luts = new byte[][] { rlut, glut, blut, alut };
+			}
+			else {
+				luts = new byte[][] { rlut, glut, blut };
+			}
+			if (applyLookupTables(src,luts,dst)) {
+				return dst;
+			}
+		}
         
 		int srcPixels[] = null; // to disambiguate SampleModel.getPixels() method signature
 		srcPixels = srcSampleModel.getPixels(0,0,columns,rows,srcPixels,srcDataBuffer);
@@ -459,6 +824,36 @@ public class WindowCenterAndWidth {
 			boolean signed,boolean inverted,double useSlope,double useIntercept,
 			boolean usePad,int pad,int padRangeLimit,
 			int numberOfEntries,int firstValueMapped,int bitsPerEntry,short[] grayTable,int entryMin,int entryMax,int topOfEntryRange) {
+		return applyVOILUT(src,center,width,identityCenter,identityWidth,signed,inverted,useSlope,useIntercept,usePad,pad,padRangeLimit,
+			numberOfEntries,firstValueMapped,bitsPerEntry,grayTable,entryMin,entryMax,topOfEntryRange,null);
+	}
+
+	/**
+	 * @param	src
+	 * @param	center
+	 * @param	width
+	 * @param	identityCenter
+	 * @param	identityWidth
+	 * @param	signed
+	 * @param	inverted
+	 * @param	useSlope
+	 * @param	useIntercept
+	 * @param	usePad
+	 * @param	pad
+	 * @param	padRangeLimit
+	 * @param	numberOfEntries
+	 * @param	bitsPerEntry
+	 * @param	grayTable
+	 * @param	entryMin
+	 * @param	entryMax
+	 * @param	topOfEntryRange
+	 * @param	dst		an image returned by a previous call to reuse as the destination if it is of the same size and type, else null
+	 * @return		the windowed image
+	 */
+	public static final BufferedImage applyVOILUT(BufferedImage src,double center,double width,double identityCenter,double identityWidth,
+			boolean signed,boolean inverted,double useSlope,double useIntercept,
+			boolean usePad,int pad,int padRangeLimit,
+			int numberOfEntries,int firstValueMapped,int bitsPerEntry,short[] grayTable,int entryMin,int entryMax,int topOfEntryRange,BufferedImage dst) {
 
 //System.err.println("WindowCenterAndWidth.applyVOILUT(): firstValueMapped="+firstValueMapped);
 //System.err.println("WindowCenterAndWidth.applyVOILUT center="+center+" width="+width);
@@ -530,16 +925,7 @@ public class WindowCenterAndWidth {
 		if (usePad) {
 			applyPaddingValueRangeToLUT(lut,pad,padRangeLimit,mask);
 		}
-		LookupOp lookup=new LookupOp(new ByteLookupTable(0,lut), null);
-		ColorModel dstColorModel=new ComponentColorModel(
-			ColorSpace.getInstance(ColorSpace.CS_GRAY),
-			new int[] {8},
-			false,		// has alpha
-			false,		// alpha premultipled
-			Transparency.OPAQUE,
-			DataBuffer.TYPE_BYTE
-		);
-		BufferedImage dst = lookup.filter(src,lookup.createCompatibleDestImage(src,dstColorModel));	// Fails if src is DataBufferShort
+		dst = applyLookupTableToMakeGray(src,lut,dst);
 //System.err.println("WindowCenterAndWidth.applyVOILUT(): BufferedImage out of LookupOp"+dst);
 		return dst;
 	}
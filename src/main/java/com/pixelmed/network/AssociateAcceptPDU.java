@@ -50,6 +50,28 @@ class AssociateAcceptPDU extends AssociateRequestAcceptPDU {
 		super(0x02,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,null);
 	}
 
+	/**
+	 * @param	calledAETitle
+	 * @param	callingAETitle
+	 * @param	implementationClassUID
+	 * @param	implementationVersionName
+	 * @param	ourMaximumLengthReceived	the maximum PDU length that we will offer to receive
+	 * @param	presentationContexts
+	 * @param	scuSCPRoleSelections
+	 * @param	maximumOperationsInvoked	the number of operations the requestor may invoke asynchronously, 0 for unlimited
+	 * @param	maximumOperationsPerformed	the number of operations the requestor may perform asynchronously, 0 for unlimited
+	 * @param	includeAsynchronousOperationsWindow	true if the requestor proposed an Asynchronous Operations Window, and so the response is to be included
+	 * @exception	DicomNetworkException
+	 */
+	public AssociateAcceptPDU(String calledAETitle,String callingAETitle, String implementationClassUID, String implementationVersionName,
+			int ourMaximumLengthReceived,
+			LinkedList presentationContexts,
+			LinkedList scuSCPRoleSelections,
+			int maximumOperationsInvoked,int maximumOperationsPerformed,boolean includeAsynchronousOperationsWindow) throws DicomNetworkException {
+		super(0x02,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,
+			0,null,null,null,maximumOperationsInvoked,maximumOperationsPerformed,includeAsynchronousOperationsWindow);
+	}
+
 	/**
 	 * @param	pdu
 	 * @exception	DicomNetworkException
@@ -36,6 +36,12 @@ class AssociateRequestAcceptPDU {
 
 	/***/
 	private int maximumLengthReceived;
+	/***/
+	private boolean hasAsynchronousOperationsWindow;
+	/***/
+	private int maximumOperationsInvoked = 1;		// the default if no Asynchronous Operations Window sub-item
+	/***/
+	private int maximumOperationsPerformed = 1;
 
 	/**
 	 * @param	aet
@@ -164,7 +170,7 @@ class AssociateRequestAcceptPDU {
 			String implementationClassUID,String implementationVersionName,
 			int ourMaximumLengthReceived,
 			LinkedList presentationContexts) throws DicomNetworkException {
-		doCommonConstructorStuff(pduType,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,null,0,null,null,null);
+		doCommonConstructorStuff(pduType,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,null,0,null,null,null,0,0);
 
 	}
 
@@ -207,7 +213,7 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 			}
 		}
 		doCommonConstructorStuff(pduType,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,
-			userIdentityType,userIdentityPrimaryFieldBytes,userIdentitySecondaryFieldBytes,null);
+			userIdentityType,userIdentityPrimaryFieldBytes,userIdentitySecondaryFieldBytes,null,0,0);
 	}
 	
 	/**
@@ -231,7 +237,7 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 			LinkedList scuSCPRoleSelections,
 			int userIdentityType,byte[] userIdentityPrimaryField,byte[] userIdentitySecondaryField) throws DicomNetworkException {
 		doCommonConstructorStuff(pduType,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,
-			userIdentityType,userIdentityPrimaryField,userIdentitySecondaryField,null);
+			userIdentityType,userIdentityPrimaryField,userIdentitySecondaryField,null,0,0);
 	}
 	
 	/**
@@ -251,7 +257,7 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 			LinkedList presentationContexts,
 			LinkedList scuSCPRoleSelections) throws DicomNetworkException {
 		doCommonConstructorStuff(pduType,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,
-			0,null,null,null);
+			0,null,null,null,0,0);
 	}
 	
 	/**
@@ -273,7 +279,41 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 			LinkedList scuSCPRoleSelections,
 			byte[] userIdentityServerResponse) throws DicomNetworkException {
 		doCommonConstructorStuff(pduType,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,
-			0,null,null,userIdentityServerResponse);
+			0,null,null,userIdentityServerResponse,0,0);
+	}
+	
+	/**
+	 * @param	pduType
+	 * @param	calledAETitle
+	 * @param	callingAETitle
+	 * @param	implementationClassUID
+	 * @param	implementationVersionName
+	 * @param	ourMaximumLengthReceived	the maximum PDU length that we will offer to receive
+	 * @param	presentationContexts
+	 * @param	scuSCPRoleSelections
+	 * @param	userIdentityType			0 == do not send user identity negotiation subitem
+	 * @param	userIdentityPrimaryField	may be null as appropriate to userIdentityType
+	 * @param	userIdentitySecondaryField	may be null as appropriate to userIdentityType
+	 * @param	userIdentityServerResponse	null if no response
+	 * @param	maximumOperationsInvoked	for the Asynchronous Operations Window sub-item, 0 for unlimited
+	 * @param	maximumOperationsPerformed	for the Asynchronous Operations Window sub-item, 0 for unlimited
+	 * @param	includeAsynchronousOperationsWindow	true if the Asynchronous Operations Window sub-item is to be included
+	 * @exception	DicomNetworkException
+	 */
+	public AssociateRequestAcceptPDU(int pduType,String calledAETitle,String callingAETitle,
+			String implementationClassUID,String implementationVersionName,
+			int ourMaximumLengthReceived,
+			LinkedList presentationContexts,
+			LinkedList scuSCPRoleSelections,
+			int userIdentityType,byte[] userIdentityPrimaryField,byte[] userIdentitySecondaryField,byte[] userIdentityServerResponse,
+			int maximumOperationsInvoked,int maximumOperationsPerformed,boolean includeAsynchronousOperationsWindow) throws DicomNetworkException {
+		if (includeAsynchronousOperationsWindow) {
+			hasAsynchronousOperationsWindow=true;
+			this.maximumOperationsInvoked=maximumOperationsInvoked;
+			this.maximumOperationsPerformed=maximumOperationsPerformed;
+		}
+		doCommonConstructorStuff(pduType,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,
+			userIdentityType,userIdentityPrimaryField,userIdentitySecondaryField,userIdentityServerResponse,maximumOperationsInvoked,maximumOperationsPerformed);
 	}
 	
 	/**
@@ -289,6 +329,8 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 	 * @param	userIdentityPrimaryField	may be null as appropriate to userIdentityType
 	 * @param	userIdentitySecondaryField	may be null as appropriate to userIdentityType
 	 * @param	userIdentityServerResponse	null if no response
+	 * @param	maximumOperationsInvoked	for the Asynchronous Operations Window sub-item, which is only sent if hasAsynchronousOperationsWindow has been set
+	 * @param	maximumOperationsPerformed	for the Asynchronous Operations Window sub-item, which is only sent if hasAsynchronousOperationsWindow has been set
 	 * @exception	DicomNetworkException
 	 */
 	void doCommonConstructorStuff(int pduType,String calledAETitle,String callingAETitle,
@@ -296,7 +338,8 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 			int ourMaximumLengthReceived,
 			LinkedList presentationContexts,
 			LinkedList scuSCPRoleSelections,
-			int userIdentityType,byte[] userIdentityPrimaryField,byte[] userIdentitySecondaryField,byte[] userIdentityServerResponse) throws DicomNetworkException {
+			int userIdentityType,byte[] userIdentityPrimaryField,byte[] userIdentitySecondaryField,byte[] userIdentityServerResponse,
+			int maximumOperationsInvoked,int maximumOperationsPerformed) throws DicomNetworkException {
 	try {
 		// does two things at once:
 		// 1. builds byte array of PDU
@@ -380,6 +423,7 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 		bo.write(0x00);							// reserved
 		int luii = 2 + 2 + 4
 			 + 2 + 2 + licuid
+			 + (hasAsynchronousOperationsWindow ? (2 + 2 + 4) : 0)
 			 + 2 + 2 + livn
 			 + (luinr > 0 ? (2 + 2 + luinr) : 0)
 			 + lssrs;
@@ -398,6 +442,16 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 		bo.write((byte)(licuid>>8)); bo.write((byte)licuid);		// length (big endian)
 		bo.write(icuid,0,licuid);
 		
+		if (hasAsynchronousOperationsWindow) {
+			bo.write(0x53);						// Asynchronous Operations Window User Information Sub Item Type
+			bo.write(0x00);						// reserved
+			bo.write(0x00);	bo.write(0x04);				// 2-byte (big endian) sub-item length is fixed at 4
+			bo.write((byte)(maximumOperationsInvoked>>8));		// big-endian 2 byte values
+			bo.write((byte)maximumOperationsInvoked);
+			bo.write((byte)(maximumOperationsPerformed>>8));
+			bo.write((byte)maximumOperationsPerformed);
+		}
+		
 		if (lssrs > 0) {
 			bo.write(ssrs,0,lssrs);					// SCU/SCP Role Selections
 		}
@@ -442,6 +496,10 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 		ImplementationClassUIDUserInformationSubItem icuiduisi = new ImplementationClassUIDUserInformationSubItem(0x52,licuid,implementationClassUID);
 		uii.subItemList.add(icuiduisi);
 		
+		if (hasAsynchronousOperationsWindow) {
+			uii.subItemList.add(new AsynchronousOperationsWindowUserInformationSubItem(0x53,4,maximumOperationsInvoked,maximumOperationsPerformed));
+		}
+		
 		uii.subItemList.addAll(ssrs_uii_subitems);
 
 		ImplementationVersionNameUserInformationSubItem ivnuisi = new ImplementationVersionNameUserInformationSubItem(0x55,livn,implementationVersionName);
@@ -622,6 +680,36 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 		}
 	}
 
+	/***/
+	private class AsynchronousOperationsWindowUserInformationSubItem extends UserInformationSubItem {
+		/***/
+		int maximumOperationsInvoked;
+		/***/
+		int maximumOperationsPerformed;
+		/**
+		 * @param	t
+		 * @param	l
+		 * @param	maximumOperationsInvoked
+		 * @param	maximumOperationsPerformed
+		 */
+		AsynchronousOperationsWindowUserInformationSubItem(int t,int l,int maximumOperationsInvoked,int maximumOperationsPerformed) {
+			super(t,l);
+			this.maximumOperationsInvoked=maximumOperationsInvoked;
+			this.maximumOperationsPerformed=maximumOperationsPerformed;
+		}
+
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append(super.toString());
+			sb.append(" (Asynchronous Operations Window invoked ");
+			sb.append(maximumOperationsInvoked);
+			sb.append(" performed ");
+			sb.append(maximumOperationsPerformed);
+			sb.append(")\n\t");
+			return sb.toString();			
+		}
+	}
+	
 	/***/
 	private class ImplementationVersionNameUserInformationSubItem extends UserInformationSubItem {
 		/***/
@@ -943,6 +1031,18 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 //System.err.println("AssociateRequestAcceptPDU: parse: implementationClassUID ="+implementationClassUID);
 						item.subItemList.add(new ImplementationClassUIDUserInformationSubItem(subItemType,silng,implementationClassUID));
 					}
+					else if (subItemType == 0x53) {
+						if (silng == 4) {
+							hasAsynchronousOperationsWindow = true;
+							maximumOperationsInvoked = ByteArray.bigEndianToUnsignedInt(b,offset,2);
+							maximumOperationsPerformed = ByteArray.bigEndianToUnsignedInt(b,offset+2,2);
+//System.err.println("AssociateRequestAcceptPDU: parse: maximumOperationsInvoked ="+maximumOperationsInvoked+" maximumOperationsPerformed ="+maximumOperationsPerformed);
+							item.subItemList.add(new AsynchronousOperationsWindowUserInformationSubItem(subItemType,silng,maximumOperationsInvoked,maximumOperationsPerformed));
+						}
+						else {
+							throw new DicomNetworkException("Asynchronous Operations Window sub-item wrong length ("+silng+" dec) in User Information Item");
+						}
+					}
 					else if (subItemType == 0x54) {
 //System.err.println("AssociateRequestAcceptPDU: parse: subItemType =0x"+Integer.toHexString(subItemType));
 						int sopClassUIDLength = ByteArray.bigEndianToUnsignedInt(b,offset,2);
@@ -1088,6 +1188,18 @@ System.err.println("AssociateRequestAcceptPDU(): userIdentityPrimaryFieldBytes =
 	
 	/***/
 	public int getMaximumLengthReceived() { return maximumLengthReceived; }
+	/**
+	 * @return	true if the PDU contains an Asynchronous Operations Window sub-item
+	 */
+	public boolean hasAsynchronousOperationsWindow() { return hasAsynchronousOperationsWindow; }
+	/**
+	 * @return	the Maximum Number Operations Invoked of the Asynchronous Operations Window, 0 if unlimited, 1 if not present
+	 */
+	public int getMaximumOperationsInvoked() { return maximumOperationsInvoked; }
+	/**
+	 * @return	the Maximum Number Operations Performed of the Asynchronous Operations Window, 0 if unlimited, 1 if not present
+	 */
+	public int getMaximumOperationsPerformed() { return maximumOperationsPerformed; }
 	/***/
 	public String getCallingAETitle() { return callingAETitle; }
 	/***/
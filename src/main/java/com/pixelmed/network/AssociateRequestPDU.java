@@ -71,6 +71,50 @@ class AssociateRequestPDU extends AssociateRequestAcceptPDU {
 		super(0x01,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,0,(byte[])null,(byte[])null);
 	}
 
+	/**
+	 * @param	calledAETitle
+	 * @param	callingAETitle
+	 * @param	implementationClassUID
+	 * @param	implementationVersionName
+	 * @param	ourMaximumLengthReceived	the maximum PDU length that we will offer to receive
+	 * @param	presentationContexts
+	 * @param	scuSCPRoleSelections
+	 * @param	userIdentityType			0 == do not send user identity negotiation subitem
+	 * @param	userIdentityPrimaryField	may be null as appropriate to userIdentityType
+	 * @param	userIdentitySecondaryField	may be null as appropriate to userIdentityType
+	 * @param	maximumOperationsInvoked	the number of operations we propose to invoke asynchronously, 0 for unlimited, or 1 to not propose an Asynchronous Operations Window
+	 * @param	maximumOperationsPerformed	the number of operations we propose to perform asynchronously, 0 for unlimited
+	 * @exception	DicomNetworkException
+	 */
+	public AssociateRequestPDU(String calledAETitle,String callingAETitle, String implementationClassUID, String implementationVersionName,
+			int ourMaximumLengthReceived,
+			LinkedList presentationContexts,
+			LinkedList scuSCPRoleSelections,
+			int userIdentityType,String userIdentityPrimaryField,String userIdentitySecondaryField,
+			int maximumOperationsInvoked,int maximumOperationsPerformed) throws DicomNetworkException {
+		super(0x01,calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,
+			userIdentityType,getUTF8Bytes(userIdentityType,userIdentityPrimaryField),getUTF8Bytes(userIdentityType,userIdentitySecondaryField),null,
+			maximumOperationsInvoked,maximumOperationsPerformed,maximumOperationsInvoked != 1 || maximumOperationsPerformed != 1);
+	}
+
+	/**
+	 * @param	userIdentityType
+	 * @param	field
+	 * @exception	DicomNetworkException
+	 */
+	private static byte[] getUTF8Bytes(int userIdentityType,String field) throws DicomNetworkException {
+		byte[] bytes = null;
+		if (userIdentityType > 0 && field != null) {
+			try {
+				bytes = field.getBytes("UTF8");
+			}
+			catch (java.io.UnsupportedEncodingException e) {
+				throw new DicomNetworkException("Internal error - cannot convert UTF8 primary or secondary field"+e);
+			}
+		}
+		return bytes;
+	}
+
 	/**
 	 * @param	pdu
 	 * @exception	DicomNetworkException
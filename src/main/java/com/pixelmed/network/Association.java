@@ -2,10 +2,17 @@
 package com.pixelmed.network;
 
 import com.pixelmed.utils.ByteArray;
+import com.pixelmed.utils.HexDump;
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.TagFromName;
 import com.pixelmed.dicom.TransferSyntax;
 
 import java.util.LinkedList;
 import java.util.ListIterator;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
@@ -40,6 +47,10 @@ public class Association
   /***/
   protected int maximumLengthReceived;
   /***/
+  protected int maximumOperationsInvoked = 1;		// by us, as negotiated in the Asynchronous Operations Window, 0 if unlimited
+  /***/
+  protected int maximumOperationsPerformed = 1;		// by us, as negotiated in the Asynchronous Operations Window, 0 if unlimited
+  /***/
   protected Socket socket;
   /***/
   protected InputStream in;
@@ -47,6 +58,12 @@ public class Association
   protected OutputStream out;
   protected Date createDate = new Date();
   private ReceivedDataHandler receivedDataHandler;
+  /***/
+  private final byte[] pduHeaderBuffer = new byte[6];	// reused for the type and length of each PDU received
+
+  private boolean pduPushedBack = false;		// set when a PDU read while checking for a cancel request has been pushed back to be read again
+  /***/
+  private byte[] pduBuffer;				// reused for each P-DATA-TF PDU received, obtained from PDUBufferPool
 
   /**
    * <p>Set the socket options for either initiator or acceptor.</p>
@@ -171,6 +188,45 @@ public class Association
     return b;
   }
 
+  /**
+   * <p>Read the rest of a PDU into a buffer that is reused for every PDU received on this association,
+   * growing it if necessary.</p>
+   *
+   * <p>The contents are only valid until the next PDU is read.</p>
+   *
+   * @param	in
+   * @param	startBuffer
+   * @param	pduLength
+   * @return			the buffer, of which only the first pduLength + startBuffer.length bytes are valid
+   * @exception	IOException
+   * @exception	DicomNetworkException
+   */
+  protected byte[] getRestOfPDUIntoReusableBuffer(InputStream in, byte[] startBuffer, int pduLength)
+     throws DicomNetworkException, IOException
+  {
+    int lsb = startBuffer.length;
+    if(pduLength < 0 || pduLength > Integer.MAX_VALUE - lsb)
+      throw new DicomNetworkException("Illegal PDU length " + pduLength);
+    int length = pduLength + lsb;
+    if(pduBuffer == null || pduBuffer.length < length)
+    {
+      PDUBufferPool.release(pduBuffer);
+      pduBuffer = PDUBufferPool.acquire(length);
+    }
+    System.arraycopy(startBuffer, 0, pduBuffer, 0, lsb);
+    readInsistently(in, pduBuffer, lsb, pduLength, "PDU");
+    return pduBuffer;
+  }
+
+  /**
+   * <p>Return the buffer used for receiving PDUs to the pool, since the association is finished.</p>
+   */
+  protected void releasePDUBuffer()
+  {
+    PDUBufferPool.release(pduBuffer);
+    pduBuffer = null;
+  }
+
   /***/
   protected Association(int debugLevel)
   {
@@ -338,26 +394,30 @@ public class Association
   {
     // let's build a single command PDV and a single data PDV (if needed) in a single PDU
 
-    LinkedList listOfPDVs = new LinkedList();
-    // 2004/06/08 DAC resolved [bugs.mrmf] (000114) Failing to set last fragment on command when sending command and data in same PDU
-    if(command != null)
-      listOfPDVs.add(new PresentationDataValue(presentationContextID, command, true, true));	// command, last
-    if(data != null)
-      listOfPDVs.add(new PresentationDataValue(presentationContextID, data, false, true));		// data, last
+    // encode directly into a pooled buffer, rather than building PresentationDataValue and PDataPDU copies
+    int pduLength = (command == null ? 0 : 6 + command.length) + (data == null ? 0 : 6 + data.length);
+    byte[] bytes = PDUBufferPool.acquire(6 + pduLength);
     try
     {
-      PDataPDU pdu = new PDataPDU(listOfPDVs);
+      bytes[0] = (byte)0x04;					// P-DATA-TF PDU Type
+      bytes[1] = (byte)0x00;					// reserved
+      putBigEndianInt(bytes, 2, pduLength);
+      int offset = 6;
+      // 2004/06/08 DAC resolved [bugs.mrmf] (000114) Failing to set last fragment on command when sending command and data in same PDU
+      if(command != null)
+        offset = putPDV(bytes, offset, presentationContextID, command, true, true);	// command, last
+      if(data != null)
+        offset = putPDV(bytes, offset, presentationContextID, data, false, true);		// data, last
       if(debugLevel > 1)
-        System.err.println("Association[" + associationNumber + "].send(): Us: P-DATA-TF=\n" + pdu);
+        System.err.println("Association[" + associationNumber + "].send(): Us: P-DATA-TF=\n" + HexDump.dump(bytes, offset));
       // should check size less than maximumLengthReceived (maximum PDU size receiver can handle) :(
-      byte[] bytes = pdu.getBytes();
-      if(bytes.length % 2 != 0)
+      if(offset % 2 != 0)
       {
         // better to catch this internal (i.e. our fault) error here and close than leave it to the discretion of the other end (000524)
         socket.close();
         throw new DicomNetworkException("A-P-ABORT indication - internal error - illegal odd length PDU write requested");	// AA-4      - indicate A-P-ABORT
       }
-      out.write(bytes);
+      out.write(bytes, 0, offset);
       out.flush();
     }
     catch(IOException e)
@@ -365,6 +425,43 @@ public class Association
       throw new DicomNetworkException("A-P-ABORT indication - " + e);		// AA-4      - indicate A-P-ABORT
       // State 1   - Idle
     }
+    finally
+    {
+      PDUBufferPool.release(bytes);
+    }
+  }
+
+  /**
+   * @param	b	the buffer
+   * @param	offset	where in the buffer to put the value
+   * @param	value	the value to encode as four big endian bytes
+   */
+  private static void putBigEndianInt(byte[] b, int offset, int value)
+  {
+    b[offset] = (byte)(value >> 24);
+    b[offset + 1] = (byte)(value >> 16);
+    b[offset + 2] = (byte)(value >> 8);
+    b[offset + 3] = (byte)value;
+  }
+
+  /**
+   * Encode a PDV into a buffer.
+   *
+   * @param	b			the buffer
+   * @param	offset			where in the buffer to start
+   * @param	presentationContextID	included in the header of the PDV
+   * @param	value			the payload
+   * @param	isCommand		whether or not the payload is a command
+   * @param	isLastFragment		whether or not the payload is the last fragment
+   * @return				the offset in the buffer after the PDV
+   */
+  private static int putPDV(byte[] b, int offset, byte presentationContextID, byte[] value, boolean isCommand, boolean isLastFragment)
+  {
+    putBigEndianInt(b, offset, value.length + 2);
+    b[offset + 4] = presentationContextID;
+    b[offset + 5] = (byte)(((isLastFragment ? 1 : 0) << 1) | (isCommand ? 1 : 0));
+    System.arraycopy(value, 0, b, offset + 6, value.length);
+    return offset + 6 + value.length;
   }
 
   /**
@@ -435,9 +532,10 @@ public class Association
       // State 6   - Data Transfer
       try
       {
-        byte[] startBuffer = new byte[6];
+        byte[] startBuffer = pduHeaderBuffer;
         //in.read(startBuffer,0,6);	// block for type and length of PDU
         readInsistently(in, startBuffer, 0, 6, "type and length of PDU");
+        pduPushedBack = false;				// any pushed back PDU is the one now being read
         int pduType = startBuffer[0] & 0xff;
         int pduLength = ByteArray.bigEndianToUnsignedInt(startBuffer, 2, 4);
 
@@ -446,7 +544,8 @@ public class Association
 
         if(pduType == 0x04)
         {							//           - P-DATA PDU
-          PDataPDU pdata = new PDataPDU(getRestOfPDU(in, startBuffer, pduLength));
+          // the buffer is reused for the next PDU, so the handler must have finished with the PDVs when it returns
+          PDataPDU pdata = new PDataPDU(getRestOfPDUIntoReusableBuffer(in, startBuffer, pduLength), pduLength + startBuffer.length);
           if(debugLevel > 2)
             System.err.println("Association[" + associationNumber + "]: Them:\n" + pdata);
           receivedDataHandler.sendPDataIndication(pdata, this);		// DT-2      - send P-DATA indication primitive
@@ -528,11 +627,13 @@ public class Association
       catch(AReleaseException e)
       {
         // quiet ... this is the normal association release ... propagate it upwards
+        releasePDUBuffer();
         throw new AReleaseException(e.toString());				// State 1   - Idle
       }
       catch(Exception e)
       {								//           - Transport connection closed (or other error)
         e.printStackTrace(System.err);
+        releasePDUBuffer();
         try
         {
           socket.close();							// Just in case not already closed
@@ -600,6 +701,82 @@ public class Association
     waitForPDataPDUs(-1, false, false, true);
   }
 
+  /**
+   * Check, without waiting, whether a C-CANCEL-RQ has been received for a request to which we are still responding.
+   *
+   * Intended to be called between pending responses, e.g., to a C-FIND, from within a {@link ReceivedDataHandler ReceivedDataHandler}.
+   *
+   * Only a PDU that has arrived completely is read, so this never blocks waiting for the rest of a PDU;
+   * if it is not the C-CANCEL-RQ sought, it is pushed back to be read again in the normal manner
+   * by the next wait for P-DATA, and no further PDUs will be checked until then.
+   *
+   * @param	messageIDBeingRespondedTo	the message ID of the request being responded to
+   * @return					true if a C-CANCEL-RQ for the request has been received (and consumed)
+   * @exception	DicomNetworkException		if the transport connection fails
+   */
+  public boolean isCancelRequested(int messageIDBeingRespondedTo) throws DicomNetworkException
+  {
+    if(pduPushedBack)
+      return false;
+    try
+    {
+      if(in.available() < 6)
+        return false;
+      if(!(in instanceof PDUPushbackInputStream))
+        in = new PDUPushbackInputStream(in);
+      PDUPushbackInputStream pushbackIn = (PDUPushbackInputStream) in;
+      byte[] startBuffer = new byte[6];
+      readInsistently(in, startBuffer, 0, 6, "type and length of PDU");
+      int pduType = startBuffer[0] & 0xff;
+      int pduLength = ByteArray.bigEndianToUnsignedInt(startBuffer, 2, 4);
+      if(pduLength < 0 || pduLength > Integer.MAX_VALUE - startBuffer.length)
+        throw new DicomNetworkException("Illegal PDU length " + pduLength + " while checking for cancel request");
+      if(in.available() < pduLength)
+      {
+        pushbackIn.unread(startBuffer, 0, startBuffer.length);	// not all arrived yet, so check again next time
+        return false;
+      }
+      byte[] pdu = getRestOfPDU(in, startBuffer, pduLength);
+      if(pduType == 0x04)
+      {
+        PDataPDU pdata = new PDataPDU(pdu);
+        if(pdata.containsLastCommandFragment())
+        {
+          byte[] command = null;
+          ListIterator i = pdata.getPDVList().listIterator();
+          while(i.hasNext())
+          {
+            PresentationDataValue pdv = (PresentationDataValue) i.next();
+            if(pdv.isCommand())
+              command = ByteArray.concatenate(command, pdv.getValue());
+          }
+          AttributeList commandList = new AttributeList();
+          commandList.read(new DicomInputStream(new ByteArrayInputStream(command), TransferSyntax.Default, false));
+          if(Attribute.getSingleIntegerValueOrDefault(commandList, TagFromName.CommandField, 0xffff) == MessageServiceElementCommand.C_CANCEL_RQ
+             && Attribute.getSingleIntegerValueOrDefault(commandList, TagFromName.MessageIDBeingRespondedTo, -1) == messageIDBeingRespondedTo)
+          {
+            if(debugLevel > 1)
+              System.err.println("Association[" + associationNumber + "]: Them: C-CANCEL-RQ for message ID " + messageIDBeingRespondedTo);
+            return true;
+          }
+        }
+      }
+      if(debugLevel > 1)
+        System.err.println("Association[" + associationNumber + "]: Pushing back PDU Type: 0x" + Integer.toHexString(pduType) + " received while checking for cancel request");
+      pushbackIn.unread(pdu, 0, pdu.length);
+      pduPushedBack = true;
+      return false;
+    }
+    catch(IOException e)
+    {
+      throw new DicomNetworkException("Failed while checking for cancel request - " + e);
+    }
+    catch(DicomException e)
+    {
+      throw new DicomNetworkException("Failed while checking for cancel request - " + e);
+    }
+  }
+
   /**
    * Find a Presentation Context for the a particular SOP Class UID, using any
    * available Transfer Syntax but preferring compressed then, Explicit VR Little Endian, then
@@ -746,6 +923,26 @@ public class Association
     throw new DicomNetworkException("No such presentation context as " + Integer.toHexString(identifier & 0xff));
   }
 
+  /**
+   * Get the number of operations that we may invoke on this association without waiting for a response.
+   *
+   * @return	the maximum number of outstanding operations, 0 if unlimited, 1 if no asynchronous operations
+   */
+  public int getMaximumOperationsInvoked()
+  {
+    return maximumOperationsInvoked;
+  }
+
+  /**
+   * Get the number of operations that the other end may invoke on this association without waiting for a response.
+   *
+   * @return	the maximum number of outstanding operations that we may be asked to perform, 0 if unlimited, 1 if no asynchronous operations
+   */
+  public int getMaximumOperationsPerformed()
+  {
+    return maximumOperationsPerformed;
+  }
+
   /***/
   public int getAssociationNumber()
   {
@@ -147,9 +147,25 @@ class AssociationAcceptor extends Association
         // just return any selections asked for, assuming that we support them (e.g. SCP role for C-STOREs for C-GET) ...
         LinkedList scuSCPRoleSelections = arq.getSCUSCPRoleSelections();
 
+        // operations are performed in the order received, so allow them to invoke as many as our limit,
+        // but we do not invoke operations asynchronously ourselves
+        boolean asynchronousOperationsWindowRequested = arq.hasAsynchronousOperationsWindow();
+        if(asynchronousOperationsWindowRequested)
+        {
+          int requestedMaximumOperationsInvoked = arq.getMaximumOperationsInvoked();
+          int ourMaximumOperationsAccepted = AssociationFactory.getDefaultMaximumOperationsAccepted();
+          maximumOperationsPerformed =
+             (ourMaximumOperationsAccepted != 0 && (requestedMaximumOperationsInvoked == 0 || requestedMaximumOperationsInvoked > ourMaximumOperationsAccepted))
+             ? ourMaximumOperationsAccepted : requestedMaximumOperationsInvoked;
+          maximumOperationsInvoked = 1;
+          if(debugLevel > 0)
+            System.err.println("Association[" + associationNumber + "]: They may invoke asynchronously: " + maximumOperationsPerformed);
+        }
+
         AssociateAcceptPDU aac =
            new AssociateAcceptPDU(calledAETitle, callingAETitle, implementationClassUID, implementationVersionName,
-           ourMaximumLengthReceived, presentationContextsForAssociateAcceptPDU, scuSCPRoleSelections);
+           ourMaximumLengthReceived, presentationContextsForAssociateAcceptPDU, scuSCPRoleSelections,
+           maximumOperationsPerformed, maximumOperationsInvoked, asynchronousOperationsWindowRequested);
 
         out.write(aac.getBytes());
         out.flush();						// State 6
@@ -57,6 +57,8 @@ public class AssociationFactory
   static private final int ourMaximumLengthReceived = 16384;	// we do care ... larger than TCP buffer size causes many small packets
   static private final int defaultReceiveBufferSize = 65536;	// just because Windows default is ridiculously low at 8192
   static private final int defaultSendBufferSize = 0;		// do not have a good reationale for increasing this
+  static private int defaultMaximumOperationsInvoked = 1;	// 1 means do not propose an Asynchronous Operations Window
+  static private int defaultMaximumOperationsAccepted = 16;	// operations received on an association are performed in order, so any number may be queued
 
   /**
    * <p>
@@ -91,6 +93,58 @@ public class AssociationFactory
     return defaultSendBufferSize;
   }
 
+  /**
+   * <p>
+   * Get the number of operations that an association initiator will propose to invoke asynchronously.</p>
+   *
+   * @return	the maximum number of outstanding operations, 0 for unlimited, or 1 if no Asynchronous Operations Window is proposed
+   */
+  static public int getDefaultMaximumOperationsInvoked()
+  {
+    return defaultMaximumOperationsInvoked;
+  }
+
+  /**
+   * <p>
+   * Set the number of operations that an association initiator will propose to invoke asynchronously,
+   * i.e., without waiting for the response to each before sending the next request.</p>
+   *
+   * <p>
+   * Applies to associations initiated subsequently. The number actually used is limited by what the acceptor agrees to.</p>
+   *
+   * @param	maximumOperationsInvoked	the maximum number of outstanding operations, 0 for unlimited, or 1 (the default) to not propose an Asynchronous Operations Window
+   */
+  static public void setDefaultMaximumOperationsInvoked(int maximumOperationsInvoked)
+  {
+    defaultMaximumOperationsInvoked = maximumOperationsInvoked;
+  }
+
+  /**
+   * <p>
+   * Get the largest number of operations that an association acceptor will allow an initiator to invoke asynchronously.</p>
+   *
+   * @return	the maximum number of outstanding operations, 0 for unlimited
+   */
+  static public int getDefaultMaximumOperationsAccepted()
+  {
+    return defaultMaximumOperationsAccepted;
+  }
+
+  /**
+   * <p>
+   * Set the largest number of operations that an association acceptor will allow an initiator to invoke asynchronously,
+   * if the initiator proposes an Asynchronous Operations Window.</p>
+   *
+   * <p>
+   * Applies to associations accepted subsequently.</p>
+   *
+   * @param	maximumOperationsAccepted	the maximum number of outstanding operations, 0 for unlimited, or 1 to not allow asynchronous operations
+   */
+  static public void setDefaultMaximumOperationsAccepted(int maximumOperationsAccepted)
+  {
+    defaultMaximumOperationsAccepted = maximumOperationsAccepted;
+  }
+
   /**
    * Opens a transport connection and initiates an association.
    *
@@ -86,8 +86,11 @@ class AssociationInitiator extends Association {
 		}
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: userIdentityType="+userIdentityType);
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: OurMaximumLengthReceived="+ourMaximumLengthReceived);
+		int proposedMaximumOperationsInvoked = AssociationFactory.getDefaultMaximumOperationsInvoked();
+if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: proposedMaximumOperationsInvoked="+proposedMaximumOperationsInvoked);
 		AssociateRequestPDU arq = new AssociateRequestPDU(calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,
-				ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,userIdentityType,userIdentityPrimaryField,userIdentitySecondaryField);
+				ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,userIdentityType,userIdentityPrimaryField,userIdentitySecondaryField,
+				proposedMaximumOperationsInvoked,1/*we perform operations one at a time*/);
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Us:\n"+arq);
 												// State 1 - Idle
 		//TransferMonitoringContext inputTransferMonitoringContext  = new TransferMonitoringContext("Association["+associationNumber+"] Initiator Read  "+callingAETitle+"<-"+calledAETitle);
@@ -142,6 +145,18 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Them
 				}
 if (debugLevel > 0) System.err.println("Association["+associationNumber+"]: We will send them PDUs of: "+this.maximumLengthReceived);
 
+				// if they did not respond to an Asynchronous Operations Window, the default is one at a time;
+				// if they did, what they allow us to invoke is limited to what we proposed
+				if (proposedMaximumOperationsInvoked != 1 && aac.hasAsynchronousOperationsWindow()) {
+					int acceptedMaximumOperationsInvoked = aac.getMaximumOperationsInvoked();
+					if (acceptedMaximumOperationsInvoked == 0
+					 || (proposedMaximumOperationsInvoked != 0 && acceptedMaximumOperationsInvoked > proposedMaximumOperationsInvoked)) {
+						acceptedMaximumOperationsInvoked = proposedMaximumOperationsInvoked;
+					}
+					this.maximumOperationsInvoked=acceptedMaximumOperationsInvoked;
+				}
+if (debugLevel > 0) System.err.println("Association["+associationNumber+"]: We may invoke asynchronously: "+this.maximumOperationsInvoked);
+
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Accepted presentation contexts:\n"+this.presentationContexts);
 												// AE-3      - issue confirmation indication (i.e. do nothing but return)
 												// State 6   - Data Transfer
@@ -21,6 +21,10 @@ import com.pixelmed.utils.HexDump;
  * until close() is called, and if the buffer is empty at that time,
  * a zero length PDU will be sent.</p>
  *
+ * <p>The buffer is obtained from the {@link PDUBufferPool PDUBufferPool} and has room
+ * for the PDU and PDV headers in front of the data, so that each PDU is sent with a single
+ * write without copying, and is returned to the pool when the stream is closed.</p>
+ *
  * @author	dclunie
  */
 public class AssociationOutputStream extends OutputStream {
@@ -37,9 +41,11 @@ public class AssociationOutputStream extends OutputStream {
 	private OutputStream out;
 	private int presentationContextID;
 	
-	private byte dataBuffer[];
+	private static final int headerLength = 12;		// PDU type, reserved, length, then PDV length, presentation context ID and message control header
+
+	private byte dataBuffer[];				// the PDU and PDV headers are placed in the first headerLength bytes
 	private int dataBufferSize;
-	private int dataBufferIndex;
+	private int dataBufferIndex;				// relative to the start of the data, i.e., after the headers
 	
 	private boolean isCommand;
 	private boolean isLastFragment;
@@ -66,7 +72,7 @@ if (debugLevel > 1) System.err.println("AssociationOutputStream:ourMaxPDUSize="+
 		if (maxPDUSize != 0 && maxPDUSize < ourMinPDUSize) throw new DicomNetworkException("Maximum PDU Size too small to be usable ("+maxPDUSize+" bytes");
 		dataBufferSize=((maxPDUSize == 0 || maxPDUSize > ourMaxPDUSize) ? ourMaxPDUSize : maxPDUSize)-6;
 if (debugLevel > 0) System.err.println("AssociationOutputStream:dataBufferSize="+dataBufferSize);
-		dataBuffer = new byte[dataBufferSize];
+		dataBuffer = PDUBufferPool.acquire(headerLength+dataBufferSize);
 		dataBufferIndex=0;
 		
 		isCommand=false;	// always Data for now
@@ -81,10 +87,13 @@ if (debugLevel > 0) System.err.println("AssociationOutputStream:dataBufferSize="
 	 * @exception	IOException
 	 */
 	public void write(int i) throws IOException {
-		// inefficient, but won't be doing it much ...
-		byte b[] = new byte[1];
-		b[0]=(byte)i;
-		write(b,0,1);
+		if (dataBuffer == null) {
+			throw new IOException("Stream closed");
+		}
+		if (dataBufferIndex >= dataBufferSize) {
+			sendPDV();
+		}
+		dataBuffer[headerLength+dataBufferIndex++]=(byte)i;
 	}
 
 	/**
@@ -118,11 +127,14 @@ if (debugLevel > 3) System.err.println("AssociationOutputStream:write() start: l
 		} else if (len == 0) {
 			return;
 		}
+		if (dataBuffer == null) {
+			throw new IOException("Stream closed");
+		}
 		
 		while (dataBufferIndex+len > dataBufferSize) {
 			int useLen=dataBufferSize-dataBufferIndex;
 if (debugLevel > 3) System.err.println("AssociationOutputStream:write() looping to write useLen="+useLen);
-			System.arraycopy(b,off,dataBuffer,dataBufferIndex,useLen);
+			System.arraycopy(b,off,dataBuffer,headerLength+dataBufferIndex,useLen);
 			dataBufferIndex+=useLen;
 			sendPDV();
 			off+=useLen;
@@ -130,7 +142,7 @@ if (debugLevel > 3) System.err.println("AssociationOutputStream:write() looping
 		}
 		if (len > 0) {
 if (debugLevel > 3) System.err.println("AssociationOutputStream:write() residual write len="+len);
-			System.arraycopy(b,off,dataBuffer,dataBufferIndex,len);
+			System.arraycopy(b,off,dataBuffer,headerLength+dataBufferIndex,len);
 			dataBufferIndex+=len;
 		}
 if (debugLevel > 3) System.err.println("AssociationOutputStream:write() done");
@@ -147,31 +159,31 @@ if (debugLevel > 2) System.err.println("AssociationOutputStream:flush() start");
 		
 		if (dataBufferIndex%2 != 0) throw new IOException("PDV must be even length");
 		
-if (debugLevel > 2) System.err.println("AssociationOutputStream:flush()="+HexDump.dump(dataBuffer,dataBufferIndex));
+if (debugLevel > 2) System.err.println("AssociationOutputStream:flush()="+HexDump.dump(dataBuffer,headerLength,dataBufferIndex));
 
 		int pdvItemLength = 2 + dataBufferIndex;	// the pcID and the command/data flag are included in the PDV length
 		int pduLength = pdvItemLength + 4;		// just the length field of the PDV
 if (debugLevel > 1) System.err.println("AssociationOutputStream:flush() pduLength="+pduLength);
 		
-		out.write(0x04);				// P-DATA-TF PDU Type
-		out.write(0x00);				// reserved
-		out.write((pduLength>>24)&0xff);		// Big endian
-		out.write((pduLength>>16)&0xff);
-		out.write((pduLength>>8)&0xff);
-		out.write(pduLength&0xff);
-
-		out.write((pdvItemLength>>24)&0xff);		// Big endian
-		out.write((pdvItemLength>>16)&0xff);
-		out.write((pdvItemLength>>8)&0xff);
-		out.write(pdvItemLength&0xff);
+		dataBuffer[0]=(byte)0x04;			// P-DATA-TF PDU Type
+		dataBuffer[1]=(byte)0x00;			// reserved
+		dataBuffer[2]=(byte)(pduLength>>24);		// Big endian
+		dataBuffer[3]=(byte)(pduLength>>16);
+		dataBuffer[4]=(byte)(pduLength>>8);
+		dataBuffer[5]=(byte)pduLength;
+
+		dataBuffer[6]=(byte)(pdvItemLength>>24);	// Big endian
+		dataBuffer[7]=(byte)(pdvItemLength>>16);
+		dataBuffer[8]=(byte)(pdvItemLength>>8);
+		dataBuffer[9]=(byte)pdvItemLength;
 		
-		out.write(presentationContextID);
+		dataBuffer[10]=(byte)presentationContextID;
 if (debugLevel > 1) System.err.println("AssociationOutputStream:flush() isLastFragment="+isLastFragment);
 		int messageControlHeader = ((isLastFragment ? 1 : 0) << 1) | (isCommand ? 1 : 0);
-		out.write(messageControlHeader);
+		dataBuffer[11]=(byte)messageControlHeader;
 
 if (debugLevel > 1) System.err.println("AssociationOutputStream:flush() writing data length="+dataBufferIndex);
-		if (dataBufferIndex > 0) out.write(dataBuffer,0,dataBufferIndex);
+		out.write(dataBuffer,0,headerLength+dataBufferIndex);	// headers and data in one write, since the socket stream is not buffered
 		//while (dataBufferIndex > 0) {
 		//	int offset=0;
 		//	int count = dataBufferIndex > 1024 ? 1024 : dataBufferIndex;
@@ -200,12 +212,21 @@ if (debugLevel > 2) System.err.println("AssociationOutputStream:flush() done");
 	 */
 	public void close() throws IOException {
 if (debugLevel > 1) System.err.println("AssociationOutputStream:close() start");
+		if (dataBuffer == null) {
+			return;			// already closed
+		}
 		isLastFragment=true;
 		if (dataBufferIndex%2 != 0) {
 if (debugLevel > 1) System.err.println("AssociationOutputStream:close() padding with an extra null byte to get to even length");
-			dataBuffer[dataBufferIndex++]=0;	// pad to even length
+			dataBuffer[headerLength+dataBufferIndex++]=0;	// pad to even length
+		}
+		try {
+			sendPDV();
+		}
+		finally {
+			PDUBufferPool.release(dataBuffer);
+			dataBuffer=null;
 		}
-		sendPDV();
 		//out.close();		// don't really want to close the underlying stream
 if (debugLevel > 1) System.err.println("AssociationOutputStream:close() done");
 	}
@@ -28,6 +28,7 @@ import java.util.TreeMap;
  * <p><code>Dicom.QueryDebugLevel</code> -  for no debugging (silent), > 0 for more verbose levels of debugging</p>
  * <p><code>Dicom.StorageSCUDebugLevel</code> -  for no debugging (silent), > 0 for more verbose levels of debugging</p>
  * <p><code>Dicom.StorageSCPDebugLevel</code> -  for no debugging (silent), > 0 for more verbose levels of debugging</p>
+ * <p><code>Dicom.StorageSCPMaximumConcurrentAssociations</code> - the maximum number of associations that will be serviced concurrently by a Storage SCP; 0 (the default) for no limit</p>
  * <p><code>Dicom.StorageSCUCompressionLevel</code> - determines what types of compressed Transfer Syntaxes are proposed by a Storage SCU; 0 = uncompressed transfer syntaxes only; 1 = propose deflate as well; 2 = propose deflate and bzip2 (if bzip2 codec is available)</p>
  * <p><code>Dicom.RemoteAEs</code> - a space or comma separated list of the local names all the available remote AEs; each local name may be anything unique (in this file) without a space or comma; the local name does not need to be the same as the remote AE's called AE title</p>
  * <p><code>Dicom.XXXX.CalledAETitle</code> - for the remote AE with local name XXXX, what that AE expects to be called when accepting an association</p>
@@ -79,6 +80,7 @@ public class NetworkApplicationProperties {
 	public static final String propertyName_StorageSCUDebugLevel = "Dicom.StorageSCUDebugLevel";
 	public static final String propertyName_StorageSCUCompressionLevel = "Dicom.StorageSCUCompressionLevel";
 	public static final String propertyName_StorageSCPDebugLevel = "Dicom.StorageSCPDebugLevel";
+	public static final String propertyName_StorageSCPMaximumConcurrentAssociations = "Dicom.StorageSCPMaximumConcurrentAssociations";
 	public static final String propertyName_NetworkDynamicConfigurationDebugLevel = "Network.DynamicConfigurationDebugLevel";
 	
 	private int port;
@@ -88,6 +90,7 @@ public class NetworkApplicationProperties {
 	private int storageSCUCompressionLevel;
 	private int storageSCUDebugLevel;
 	private int storageSCPDebugLevel;
+	private int storageSCPMaximumConcurrentAssociations;
 	private int queryDebugLevel;
 	private int networkDynamicConfigurationDebugLevel;
 	private NetworkApplicationInformation networkApplicationInformation;
@@ -104,6 +107,7 @@ public class NetworkApplicationProperties {
 		storageSCUCompressionLevel = 0;
 		storageSCUDebugLevel = 0;
 		storageSCPDebugLevel = 0;
+		storageSCPMaximumConcurrentAssociations = 0;
 		queryDebugLevel = 0;
 		networkDynamicConfigurationDebugLevel = 0;
 		networkApplicationInformation = new NetworkApplicationInformation();
@@ -140,6 +144,8 @@ public class NetworkApplicationProperties {
 		
 		storageSCPDebugLevel = Integer.valueOf(properties.getProperty(propertyName_StorageSCPDebugLevel,"0")).intValue();
 		
+		storageSCPMaximumConcurrentAssociations = Integer.valueOf(properties.getProperty(propertyName_StorageSCPMaximumConcurrentAssociations,"0")).intValue();
+		
 		queryDebugLevel = Integer.valueOf(properties.getProperty(propertyName_QueryDebugLevel,"0")).intValue();
 
 		networkDynamicConfigurationDebugLevel = Integer.valueOf(properties.getProperty(propertyName_NetworkDynamicConfigurationDebugLevel,"0")).intValue();
@@ -166,6 +172,7 @@ public class NetworkApplicationProperties {
 		properties.setProperty(propertyName_StorageSCUCompressionLevel,Integer.toString(storageSCUCompressionLevel));
 		properties.setProperty(propertyName_StorageSCUDebugLevel,Integer.toString(storageSCUDebugLevel));
 		properties.setProperty(propertyName_StorageSCPDebugLevel,Integer.toString(storageSCPDebugLevel));
+		properties.setProperty(propertyName_StorageSCPMaximumConcurrentAssociations,Integer.toString(storageSCPMaximumConcurrentAssociations));
 		properties.setProperty(propertyName_QueryDebugLevel,Integer.toString(queryDebugLevel));
 		properties.setProperty(propertyName_NetworkDynamicConfigurationDebugLevel,Integer.toString(networkDynamicConfigurationDebugLevel));
 		
@@ -252,6 +259,13 @@ public class NetworkApplicationProperties {
 	 */
 	public int getStorageSCPDebugLevel() { return storageSCPDebugLevel; }
 	
+	/**
+	 * <p>Return the maximum number of associations that will be serviced concurrently by a storage SCP.</p>
+	 *
+	 * @return	the maximum number of concurrent associations, or 0 if unlimited
+	 */
+	public int getStorageSCPMaximumConcurrentAssociations() { return storageSCPMaximumConcurrentAssociations; }
+	
 	/**
 	 * <p>Return the query debug level.</p>
 	 *
@@ -0,0 +1,132 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A pool of byte arrays, in power of two size classes, used to hold the PDUs
+ * that are sent and received on an {@link Association Association}, so that in the
+ * steady state transferring data does not require allocating new buffers for every PDU.</p>
+ *
+ * <p>A buffer obtained from {@link #acquire(int) acquire()} may be longer than the length requested,
+ * so callers must keep track of how much of it is in use. A buffer that is no longer needed should be
+ * returned with {@link #release(byte[]) release()}, after which it must not be referenced
+ * by the caller any more.</p>
+ *
+ * <p>Counts of allocations and reuses are maintained so that the effectiveness of the
+ * pool can be verified.</p>
+ *
+ * @author	dclunie
+ */
+public class PDUBufferPool {
+
+	private static final int minimumSizeClass = 10;			// 1 KiB
+	private static final int maximumSizeClass = 24;			// 16 MiB ... larger buffers are allocated but never retained
+	private static final int maximumBuffersPerSizeClass = 32;
+
+	private static final ArrayDeque[] freeBuffers = new ArrayDeque[maximumSizeClass+1];
+	static {
+		for (int i=minimumSizeClass; i<=maximumSizeClass; ++i) {
+			freeBuffers[i] = new ArrayDeque();
+		}
+	}
+
+	private static final AtomicLong numberOfAllocations = new AtomicLong();
+	private static final AtomicLong numberOfBytesAllocated = new AtomicLong();
+	private static final AtomicLong numberOfReuses = new AtomicLong();
+
+	private PDUBufferPool() {}
+
+	/**
+	 * @param	length	a buffer length
+	 * @return		the size class, i.e., the power of two, of the smallest buffer that will hold length bytes
+	 */
+	private static int getSizeClass(int length) {
+		int sizeClass = length <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(length-1);
+		return sizeClass < minimumSizeClass ? minimumSizeClass : sizeClass;
+	}
+
+	/**
+	 * <p>Obtain a buffer, reusing a previously released one if available.</p>
+	 *
+	 * @param	minimumLength	the minimum number of bytes required
+	 * @return			a buffer at least minimumLength bytes long
+	 */
+	public static byte[] acquire(int minimumLength) {
+		int sizeClass = getSizeClass(minimumLength);
+		if (sizeClass <= maximumSizeClass) {
+			ArrayDeque free = freeBuffers[sizeClass];
+			byte[] b;
+			synchronized (free) {
+				b = (byte[])free.pollFirst();
+			}
+			if (b != null) {
+				numberOfReuses.incrementAndGet();
+				return b;
+			}
+		}
+		int length = sizeClass <= maximumSizeClass ? 1 << sizeClass : minimumLength;
+		numberOfAllocations.incrementAndGet();
+		numberOfBytesAllocated.addAndGet(length);
+//System.err.println("PDUBufferPool.acquire(): allocating new buffer of length "+length+" for request of "+minimumLength);
+		return new byte[length];
+	}
+
+	/**
+	 * <p>Return a buffer to the pool for reuse.</p>
+	 *
+	 * <p>Buffers that were not obtained from the pool, or that are not needed because
+	 * enough of the same size class are already available, are left to the garbage collector.</p>
+	 *
+	 * @param	b	the buffer, which may be null
+	 */
+	public static void release(byte[] b) {
+		if (b != null) {
+			int length = b.length;
+			if (length >= (1 << minimumSizeClass) && Integer.bitCount(length) == 1) {
+				int sizeClass = getSizeClass(length);
+				if (sizeClass <= maximumSizeClass) {
+					ArrayDeque free = freeBuffers[sizeClass];
+					synchronized (free) {
+						if (free.size() < maximumBuffersPerSizeClass) {
+							free.addFirst(b);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return	the number of buffers that have been newly allocated because none were available for reuse
+	 */
+	public static long getNumberOfAllocations() { return numberOfAllocations.get(); }
+
+	/**
+	 * @return	the total number of bytes in buffers that have been newly allocated
+	 */
+	public static long getNumberOfBytesAllocated() { return numberOfBytesAllocated.get(); }
+
+	/**
+	 * @return	the number of requests that were satisfied by reusing a buffer
+	 */
+	public static long getNumberOfReuses() { return numberOfReuses.get(); }
+
+	/**
+	 * <p>Reset the allocation and reuse counts to zero.</p>
+	 */
+	public static void resetStatistics() {
+		numberOfAllocations.set(0);
+		numberOfBytesAllocated.set(0);
+		numberOfReuses.set(0);
+	}
+
+	/***/
+	public static String getStatistics() {
+		return "PDUBufferPool: allocations="+numberOfAllocations.get()
+			+" bytesAllocated="+numberOfBytesAllocated.get()
+			+" reuses="+numberOfReuses.get();
+	}
+}
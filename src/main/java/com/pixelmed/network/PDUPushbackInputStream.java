@@ -0,0 +1,95 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+/**
+ * <p>An input stream to which bytes already read, such as a PDU examined while checking for a cancel request,
+ * may be pushed back to be read again, without a limit on how many bytes may be pushed back.</p>
+ *
+ * <p>A single buffer is used to hold the pushed back bytes, and is reused each time bytes are pushed back,
+ * so that however many times a stream is pushed back to, reads are not delegated through a chain of streams.</p>
+ *
+ * @author	dclunie
+ */
+class PDUPushbackInputStream extends FilterInputStream {
+
+	/***/
+	private byte[] buffer;
+	/***/
+	private int position;
+	/***/
+	private int limit;
+
+	/**
+	 * @param	in	the stream to read from once any pushed back bytes have been read
+	 */
+	PDUPushbackInputStream(InputStream in) {
+		super(in);
+		buffer = new byte[0];
+	}
+
+	/**
+	 * <p>Push back bytes, to be read before any bytes already pushed back but not yet read again.</p>
+	 *
+	 * @param	b	the bytes
+	 * @param	offset	the offset of the first byte to push back
+	 * @param	length	the number of bytes to push back
+	 */
+	void unread(byte[] b,int offset,int length) {
+		int remaining = limit - position;
+		byte[] newBuffer = buffer.length >= length + remaining ? buffer : new byte[length + remaining];
+		System.arraycopy(buffer,position,newBuffer,length,remaining);
+		System.arraycopy(b,offset,newBuffer,0,length);
+		buffer = newBuffer;
+		position = 0;
+		limit = length + remaining;
+	}
+
+	public int read() throws IOException {
+		if (position < limit) {
+			return buffer[position++] & 0xff;
+		}
+		return in.read();
+	}
+
+	public int read(byte[] b,int offset,int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (position < limit) {
+			int n = Math.min(length,limit - position);
+			System.arraycopy(buffer,position,b,offset,n);
+			position += n;
+			return n;
+		}
+		return in.read(b,offset,length);
+	}
+
+	public long skip(long n) throws IOException {
+		if (position < limit) {
+			int skipped = (int)Math.min(n,limit - position);
+			position += skipped;
+			return skipped;
+		}
+		return in.skip(n);
+	}
+
+	public int available() throws IOException {
+		return (limit - position) + in.available();
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	public void mark(int readlimit) {
+	}
+
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+}
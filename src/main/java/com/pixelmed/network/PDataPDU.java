@@ -18,6 +18,7 @@ public class PDataPDU {
 	private static final String identString = "@(#) $Header: /var/cvs-rep/pmedim/src/com/pixelmed/network/PDataPDU.java,v 1.1.1.1 2011-05-21 10:08:47 nicola Exp $";
 
 	private byte[] b;
+	private int bLength;
 
 	private int pduType;
 	private int pduLength;
@@ -61,6 +62,7 @@ public class PDataPDU {
 		pduLength = bo.size()-6;
 
 		b = bo.toByteArray();
+		bLength = b.length;
 
 		b[2]=(byte)(pduLength>>24);						// big endian
 		b[3]=(byte)(pduLength>>16);
@@ -73,7 +75,22 @@ public class PDataPDU {
 	 * @exception	DicomNetworkException
 	 */
 	public PDataPDU(byte[] pdu) throws DicomNetworkException {
+		this(pdu,pdu.length);
+	}
+
+	/**
+	 * <p>Construct a P-DATA-TF PDU from the first part of a buffer that may be longer than the PDU.</p>
+	 *
+	 * <p>The PDVs refer to the supplied buffer rather than copies of it, so it must not be
+	 * reused until the PDU has been processed.</p>
+	 *
+	 * @param	pdu	a buffer containing the PDU header and PDVs
+	 * @param	length	the number of bytes of the buffer that are in use
+	 * @exception	DicomNetworkException
+	 */
+	public PDataPDU(byte[] pdu,int length) throws DicomNetworkException {
 		b=pdu;
+		bLength=length;
 //System.err.print("PDataPDU="+this);
 		pduType = b[0]&0xff;
 		pduLength = ByteArray.bigEndianToUnsignedInt(b,2,4);
@@ -81,12 +98,18 @@ public class PDataPDU {
 
 		pdvList = new LinkedList();
 		int offset = 6;
-		while (offset < b.length) {
+		while (offset < bLength) {
 //System.err.println("PDataPDU offset="+offset);
+			if (offset+4 > bLength) {
+				throw new DicomNetworkException("PDV length extends beyond end of PDU");
+			}
 			int pdvLength = ByteArray.bigEndianToUnsignedInt(b,offset,4);
 			if (pdvLength < 2) {
 				throw new DicomNetworkException("Illegal length in PDV = "+pdvLength+", must be >= 2");
 			}
+			if (pdvLength > bLength-offset-4) {
+				throw new DicomNetworkException("Illegal length in PDV = "+pdvLength+", extends beyond end of PDU");
+			}
 //System.err.println("PDataPDU pdvLength="+pdvLength);
 			if (pdvLength > 0) pdvList.add(new PresentationDataValue(b,offset,pdvLength));
 			offset+=pdvLength+4;
@@ -94,7 +117,7 @@ public class PDataPDU {
 	}
 
 	/***/
-	public byte[] getBytes() { return b; }
+	public byte[] getBytes() { return b.length == bLength ? b : ByteArray.extractBytes(b,0,bLength); }
 
 	/***/
 	public LinkedList getPDVList() { return pdvList; }
@@ -129,7 +152,7 @@ public class PDataPDU {
 
 	/***/
 	public String toString() {
-		return HexDump.dump(b);
+		return HexDump.dump(b,bLength);
 	}
 }
 
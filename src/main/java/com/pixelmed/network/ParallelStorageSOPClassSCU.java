@@ -0,0 +1,404 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+package com.pixelmed.network;
+
+import com.pixelmed.dicom.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.*;
+
+/**
+ * <p>This class implements the SCU role of SOP Classes of the Storage Service Class, sending
+ * a set of instances to the same AE over several associations concurrently.</p>
+ *
+ * <p>On a high latency link a single association spends most of its time waiting for each C-STORE response,
+ * so dividing the set between several associations multiplies the throughput achievable. The set is divided into
+ * small batches that are taken from a shared queue by each association as it finishes the previous one, so that
+ * an association that is slower (e.g., because it is sending larger instances) does not delay completion.</p>
+ *
+ * <p>Each association sends its batches as {@link StorageSOPClassSCU StorageSOPClassSCU} does, so if several operations
+ * may be outstanding on an association, that is used too. Progress from all the associations is combined and reported to a single
+ * {@link MultipleInstanceTransferStatusHandler MultipleInstanceTransferStatusHandler} with counts for the whole set, calls to which
+ * are serialized so that the handler need not be thread-safe.</p>
+ *
+ * <p>Debugging messages with a varying degree of verbosity can be activated.</p>
+ *
+ * <p>From the command line, sending multiple files over four associations:</p>
+ * <pre>
+find /tmp -name '*.dcm' | java -cp pixelmed.jar com.pixelmed.network.ParallelStorageSOPClassSCU theirhost 11112 STORESCP STORESCU - 4 0 0
+ * </pre>
+ *
+ * @author	dclunie
+ */
+public class ParallelStorageSOPClassSCU
+{
+  /***/
+  private static final int maximumBatchSize = 64;
+  /***/
+  private static final int batchesPerAssociation = 8;		// enough that associations finish at about the same time
+  /***/
+  private int debugLevel;
+  /***/
+  private volatile boolean trappedExceptions;
+  /***/
+  private MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler;
+  /***/
+  private int nRemaining;
+  /***/
+  private int nCompleted;
+  /***/
+  private int nFailed;
+  /***/
+  private int nWarning;
+
+  /**
+   * @return	true if exceptions were trapped, e.g., connection or association failure before transfers attempted
+   */
+  public boolean encounteredTrappedExceptions()
+  {
+    return trappedExceptions;
+  }
+
+  /**
+   * @return	the number of instances for which a transfer was completed (whether successful or not)
+   */
+  public synchronized int getNumberCompleted()
+  {
+    return nCompleted;
+  }
+
+  /**
+   * @return	the number of instances for which a transfer failed
+   */
+  public synchronized int getNumberFailed()
+  {
+    return nFailed;
+  }
+
+  /**
+   * @return	the number of instances for which a transfer completed with a warning
+   */
+  public synchronized int getNumberWarning()
+  {
+    return nWarning;
+  }
+
+  /**
+   * <p>Combine the progress reported for one batch into the counts for the whole set and pass them on.</p>
+   */
+  private class BatchTransferStatusHandler extends MultipleInstanceTransferStatusHandlerWithFileName
+  {
+    /***/
+    private int lastCompleted;
+    /***/
+    private int lastFailed;
+    /***/
+    private int lastWarning;
+    /***/
+    private HashSet completedSOPInstanceUIDs = new HashSet();
+
+    public void updateStatus(int nRemainingInBatch, int nCompletedInBatch, int nFailedInBatch, int nWarningInBatch, String sopInstanceUID, String fileName, boolean success)
+    {
+      synchronized(ParallelStorageSOPClassSCU.this)
+      {
+        int completed = nCompletedInBatch - lastCompleted;
+        if(completed > 0 && sopInstanceUID != null)
+          completedSOPInstanceUIDs.add(sopInstanceUID);
+        nCompleted += completed;
+        nRemaining -= completed;
+        nFailed += nFailedInBatch - lastFailed;
+        nWarning += nWarningInBatch - lastWarning;
+        lastCompleted = nCompletedInBatch;
+        lastFailed = nFailedInBatch;
+        lastWarning = nWarningInBatch;
+        reportStatus(sopInstanceUID, fileName, success);
+      }
+    }
+  }
+
+  /**
+   * <p>Pass on the combined counts to the caller's handler, if any.</p>
+   *
+   * <p>Must be called while synchronized on this.</p>
+   *
+   * @param	sopInstanceUID
+   * @param	fileName
+   * @param	success
+   */
+  private void reportStatus(String sopInstanceUID, String fileName, boolean success)
+  {
+    if(multipleInstanceTransferStatusHandler != null)
+    {
+      if(multipleInstanceTransferStatusHandler instanceof MultipleInstanceTransferStatusHandlerWithFileName)
+      {
+        ((MultipleInstanceTransferStatusHandlerWithFileName) multipleInstanceTransferStatusHandler).updateStatus(nRemaining, nCompleted, nFailed, nWarning, sopInstanceUID, fileName, success);
+      }
+      else
+      {
+        multipleInstanceTransferStatusHandler.updateStatus(nRemaining, nCompleted, nFailed, nWarning, sopInstanceUID);
+      }
+    }
+  }
+
+  /**
+   * <p>Record as failed all the instances in a batch that were not sent.</p>
+   *
+   * @param	batch
+   * @param	batchHandler	the handler that recorded the instances of the batch already completed, or null if none were
+   */
+  private synchronized void failBatch(SetOfDicomFiles batch, BatchTransferStatusHandler batchHandler)
+  {
+    Iterator fi = batch.iterator();
+    while(fi.hasNext())
+    {
+      SetOfDicomFiles.DicomFile dicomFile = (SetOfDicomFiles.DicomFile) (fi.next());
+      if(batchHandler != null && batchHandler.completedSOPInstanceUIDs.contains(dicomFile.getSOPInstanceUID()))
+        continue;
+      --nRemaining;
+      ++nCompleted;
+      ++nFailed;
+      reportStatus(dicomFile.getSOPInstanceUID(), dicomFile.getFileName(), false);
+    }
+  }
+
+  /**
+   * <p>Establish the specified number of associations to the specified AE, send the instances contained in the files
+   * divided between them, and release the associations.</p>
+   *
+   * @param	hostname								their hostname or IP address
+   * @param	port									their port
+   * @param	calledAETitle							their AE Title
+   * @param	callingAETitle							our AE Title
+   * @param	dicomFiles								the set of DICOM files containing names, SOP Class UIDs, SOP Instance UIDs and optionally Transfer Syntaxes
+   * @param	compressionLevel						0=none,1=propose deflate,2=propose deflate and bzip2
+   * @param	numberOfAssociations					the number of associations to use concurrently
+   * @param	multipleInstanceTransferStatusHandler	transfer handler for reporting pending status (may be null if not required)
+   * @param	debugLevel								zero for no debugging messages, higher values more verbose messages
+   */
+  public ParallelStorageSOPClassSCU(String hostname, int port, String calledAETitle, String callingAETitle,
+     SetOfDicomFiles dicomFiles, int compressionLevel, int numberOfAssociations,
+     MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler,
+     int debugLevel)
+  {
+    this(hostname, port, calledAETitle, callingAETitle, dicomFiles, compressionLevel, numberOfAssociations, multipleInstanceTransferStatusHandler, null, -1, debugLevel);
+  }
+
+  /**
+   * <p>Establish the specified number of associations to the specified AE, send the instances contained in the files
+   * divided between them, and release the associations.</p>
+   *
+   * @param	hostname								their hostname or IP address
+   * @param	port									their port
+   * @param	calledAETitle							their AE Title
+   * @param	callingAETitle							our AE Title
+   * @param	dicomFiles								the set of DICOM files containing names, SOP Class UIDs, SOP Instance UIDs and optionally Transfer Syntaxes
+   * @param	compressionLevel						0=none,1=propose deflate,2=propose deflate and bzip2
+   * @param	numberOfAssociations					the number of associations to use concurrently
+   * @param	multipleInstanceTransferStatusHandler	transfer handler for reporting pending status (may be null if not required)
+   * @param	moveOriginatorApplicationEntityTitle	the AET of the C-MOVE that originated this C-STORE, or null if none
+   * @param	moveOriginatorMessageID					the MessageID of the C-MOVE that originated this C-STORE, or -1 if none
+   * @param	debugLevel								zero for no debugging messages, higher values more verbose messages
+   */
+  public ParallelStorageSOPClassSCU(final String hostname, final int port, final String calledAETitle, final String callingAETitle,
+     final SetOfDicomFiles dicomFiles, final int compressionLevel, int numberOfAssociations,
+     MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler,
+     final String moveOriginatorApplicationEntityTitle, final int moveOriginatorMessageID, final int debugLevel)
+  {
+    this.debugLevel = debugLevel;
+    this.multipleInstanceTransferStatusHandler = multipleInstanceTransferStatusHandler;
+    nRemaining = dicomFiles.size();
+
+    if(numberOfAssociations < 1)
+      numberOfAssociations = 1;
+    int batchSize = dicomFiles.size() / (numberOfAssociations * batchesPerAssociation);
+    if(batchSize < 1)
+      batchSize = 1;
+    else if(batchSize > maximumBatchSize)
+      batchSize = maximumBatchSize;
+
+    final ConcurrentLinkedQueue batches = new ConcurrentLinkedQueue();
+    {
+      SetOfDicomFiles batch = null;
+      Iterator fi = dicomFiles.iterator();
+      while(fi.hasNext())
+      {
+        if(batch == null)
+          batch = new SetOfDicomFiles();
+        batch.add(fi.next());
+        if(batch.size() >= batchSize)
+        {
+          batches.add(batch);
+          batch = null;
+        }
+      }
+      if(batch != null)
+        batches.add(batch);
+    }
+    if(numberOfAssociations > batches.size())
+      numberOfAssociations = batches.size();
+    if(debugLevel > 0)
+      System.err.println("ParallelStorageSOPClassSCU(): sending " + dicomFiles.size() + " files in " + batches.size() + " batches of up to " + batchSize + " over " + numberOfAssociations + " associations");
+
+    ArrayList threads = new ArrayList();
+    for(int a = 0; a < numberOfAssociations; ++a)
+    {
+      Thread th = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          sendBatches(hostname, port, calledAETitle, callingAETitle, dicomFiles, compressionLevel, batches,
+             moveOriginatorApplicationEntityTitle, moveOriginatorMessageID);
+        }
+      });
+      th.setName("ParallelStorageSOPClassSCU-" + a);
+      th.setDaemon(true);
+      th.start();
+      threads.add(th);
+    }
+    for(int a = 0; a < threads.size(); ++a)
+    {
+      try
+      {
+        ((Thread) threads.get(a)).join();
+      }
+      catch(InterruptedException e)
+      {
+        trappedExceptions = true;
+        e.printStackTrace(System.err);
+      }
+    }
+    // batches left over because no association could be established, or every association failed, will never be sent
+    SetOfDicomFiles batch;
+    while((batch = (SetOfDicomFiles) batches.poll()) != null)
+    {
+      trappedExceptions = true;
+      failBatch(batch, null);
+    }
+    if(debugLevel > 0)
+      System.err.println("ParallelStorageSOPClassSCU(): Finished sending all files nRemaining=" + nRemaining + " nCompleted=" + nCompleted + " nFailed=" + nFailed + " nWarning=" + nWarning);
+  }
+
+  /**
+   * <p>Establish one association and send batches over it until there are none left.</p>
+   *
+   * <p>If the association cannot be established or fails, the instances of the batch being sent that were not completed
+   * are recorded as having failed and the remaining batches are left for the other associations; any that no association
+   * remains to send are recorded as having failed once all the associations have finished.</p>
+   *
+   * @param	hostname
+   * @param	port
+   * @param	calledAETitle
+   * @param	callingAETitle
+   * @param	dicomFiles				the whole set, used to propose presentation contexts for all the SOP Classes and Transfer Syntaxes
+   * @param	compressionLevel
+   * @param	batches					the queue of batches still to be sent
+   * @param	moveOriginatorApplicationEntityTitle
+   * @param	moveOriginatorMessageID
+   */
+  private void sendBatches(String hostname, int port, String calledAETitle, String callingAETitle,
+     SetOfDicomFiles dicomFiles, int compressionLevel, ConcurrentLinkedQueue batches,
+     String moveOriginatorApplicationEntityTitle, int moveOriginatorMessageID)
+  {
+    SetOfDicomFiles batch = (SetOfDicomFiles) batches.poll();
+    if(batch == null)
+      return;
+    BatchTransferStatusHandler batchHandler = null;		// of the batch being sent, once started
+    Association association = null;
+    try
+    {
+      LinkedList presentationContexts =
+         PresentationContextListFactory.createNewPresentationContextList(dicomFiles, compressionLevel);
+
+      association = AssociationFactory.createNewAssociation(hostname, port,
+         calledAETitle, callingAETitle, presentationContexts, null, false, debugLevel);
+      if(debugLevel > 0)
+        System.err.println("ParallelStorageSOPClassSCU.sendBatches(): " + association);
+
+      while(batch != null)
+      {
+        batchHandler = new BatchTransferStatusHandler();
+        StorageSOPClassSCU scu = new StorageSOPClassSCU(association, batch, batchHandler,
+           moveOriginatorApplicationEntityTitle, moveOriginatorMessageID, debugLevel);
+        if(scu.encounteredTrappedExceptions())
+        {
+          trappedExceptions = true;
+          break;		// association is probably no longer usable, so fail the rest of this batch and leave the other batches for the others
+        }
+        batch = (SetOfDicomFiles) batches.poll();
+        batchHandler = null;
+      }
+
+      association.release();
+    }
+    catch(DicomNetworkException e)
+    {
+      trappedExceptions = true;
+      e.printStackTrace(System.err);
+    }
+    catch(IOException e)
+    {
+      trappedExceptions = true;
+      e.printStackTrace(System.err);
+    }
+    if(batch != null)
+    {
+      failBatch(batch, batchHandler);		// not started or not finished, e.g., association could not be established or failed
+    }
+  }
+
+  /**
+   * <p>For testing, establish associations to the specified AE and send DICOM instances (C-STORE requests).</p>
+   *
+   * @param	arg	array of eight strings - their hostname, their port, their AE Title, our AE Title,
+   *			the filename containing the instance to send (or a hyphen '-' if a list of one or more filenames is to be read from stdin),
+   *			the number of associations, the compression level (0=none,1=propose deflate,2=propose deflate and bzip2) and the debugging level
+   */
+  public static void main(String arg[])
+  {
+    try
+    {
+      if(arg.length != 8)
+      {
+        throw new Exception("Argument list must be 8 values");
+      }
+      String theirHost = arg[0];
+      int theirPort = Integer.parseInt(arg[1]);
+      String theirAETitle = arg[2];
+      String ourAETitle = arg[3];
+      String fileName = arg[4];
+      int numberOfAssociations = Integer.parseInt(arg[5]);
+      int compressionLevel = Integer.parseInt(arg[6]);
+      int debugLevel = Integer.parseInt(arg[7]);
+
+      SetOfDicomFiles setOfDicomFiles = new SetOfDicomFiles();
+      if(fileName.equals("-"))
+      {
+        BufferedReader dicomFileNameReader = new BufferedReader(new InputStreamReader(System.in));
+        String dicomFileName = dicomFileNameReader.readLine();
+        while(dicomFileName != null)
+        {
+          setOfDicomFiles.add(dicomFileName);
+          dicomFileName = dicomFileNameReader.readLine();
+        }
+      }
+      else
+      {
+        setOfDicomFiles.add(fileName);
+      }
+
+      long startTime = System.currentTimeMillis();
+      ParallelStorageSOPClassSCU scu = new ParallelStorageSOPClassSCU(theirHost, theirPort, theirAETitle, ourAETitle,
+         setOfDicomFiles, compressionLevel, numberOfAssociations, null, debugLevel);
+      long elapsedTime = System.currentTimeMillis() - startTime;
+      System.err.println("Sent " + scu.getNumberCompleted() + " instances (" + scu.getNumberFailed() + " failed) in " + elapsedTime + " ms");
+    }
+    catch(Exception e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(0);
+    }
+  }
+}
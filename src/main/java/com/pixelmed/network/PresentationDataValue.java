@@ -21,6 +21,9 @@ public class PresentationDataValue {
 
 	private byte[] value;
 
+	private byte[] buffer;		// when constructed from a received PDU, the values are extracted only on demand
+	private int offset;
+
 	private int itemLength;
 	private byte presentationContextID;
 	private byte messageControlHeader;
@@ -55,6 +58,11 @@ public class PresentationDataValue {
 	}
 
 	/**
+	 * <p>Construct a PDV that refers to the supplied buffer without copying it.</p>
+	 *
+	 * <p>The buffer must not be modified (e.g., reused for the next PDU received)
+	 * while this PDV is still in use.</p>
+	 *
 	 * @param	buf
 	 * @param	offset
 	 * @param	length
@@ -68,15 +76,40 @@ public class PresentationDataValue {
 		presentationContextID=buf[offset+4];
 		messageControlHeader=buf[offset+5];
 		//value = ByteArray.extractBytes(buf,offset+6,length-2);
-		value = length >= 2 ? ByteArray.extractBytes(buf,offset+6,length-2) : null;
-		b     = ByteArray.extractBytes(buf,offset,length+4);
+		//value = length >= 2 ? ByteArray.extractBytes(buf,offset+6,length-2) : null;
+		//b     = ByteArray.extractBytes(buf,offset,length+4);
+		buffer=buf;
+		this.offset=offset;
+	}
+
+	/***/
+	public byte[] getBytes() {
+		if (b == null && buffer != null) {
+			b = ByteArray.extractBytes(buffer,offset,itemLength+4);
+		}
+		return b;
+	}
+
+	/***/
+	public byte[] getValue() {
+		if (value == null && buffer != null && itemLength >= 2) {
+			value = ByteArray.extractBytes(buffer,offset+6,itemLength-2);
+		}
+		return value;
 	}
 
+	/**
+	 * <p>Get the array that contains the value, which may be shared with other PDVs, to avoid copying it.</p>
+	 *
+	 * @return	the array containing the value, starting at {@link #getValueOffset() getValueOffset()}
+	 */
+	public byte[] getValueBuffer() { return buffer == null ? value : buffer; }
+
 	/***/
-	public byte[] getBytes() { return b; }
+	public int getValueOffset() { return buffer == null ? 0 : offset+6; }
 
 	/***/
-	public byte[] getValue() { return value; }
+	public int getValueLength() { return itemLength-2; }
 	
 	/***/
 	public boolean isLastFragment()	{ return (messageControlHeader & 0x02) != 0; }
@@ -88,7 +121,7 @@ public class PresentationDataValue {
 
 	/***/
 	public String toString() {
-		return HexDump.dump(b);
+		return HexDump.dump(getBytes());
 	}
 }
 
@@ -60,6 +60,10 @@ abstract public class ReceivedDataHandler {
 	 * The code handling the reception of data on an {@link Association Association} calls
 	 * this method to indicate that a PDU has been received (a P-DATA-INDICATION).
 	 *
+	 * The buffer holding the PDU is reused when the next PDU is received, so
+	 * the PDU and its PDVs must not be retained after this method returns
+	 * (the values returned by {@link PresentationDataValue#getValue() getValue()} are copies and may be kept).
+	 *
 	 * @param	pdata		the PDU that was received
 	 * @param	association	the association on which the PDU was received
 	 * @exception	IOException
@@ -12,6 +12,8 @@ import java.util.ListIterator;
 import java.util.LinkedList;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 
 /**
@@ -79,12 +81,98 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable
     /***/
     private File temporaryReceivedFile;
     /***/
+    private FileChannel channel;		// used instead of out when receiving directly into the stored file folder
+    /***/
+    private File channelReceivedFile;	// where the file being received through the channel will be stored
+    /***/
+    private ByteBuffer[] pendingSlices = new ByteBuffer[4];
+    /***/
+    private int numberOfPendingSlices;
+    /***/
     private File savedImagesFolder;
     /***/
     private QueryResponseGeneratorFactory queryResponseGeneratorFactory;
     /***/
     private RetrieveResponseGeneratorFactory retrieveResponseGeneratorFactory;
 
+    /**
+     * <p>Queue a slice of the received PDU to be written to the channel, without copying it.</p>
+     *
+     * @param	pdv	the data PDV
+     */
+    private void addPendingSlice(PresentationDataValue pdv)
+    {
+      if(numberOfPendingSlices == pendingSlices.length)
+      {
+        ByteBuffer[] newPendingSlices = new ByteBuffer[pendingSlices.length * 2];
+        System.arraycopy(pendingSlices, 0, newPendingSlices, 0, numberOfPendingSlices);
+        pendingSlices = newPendingSlices;
+      }
+      pendingSlices[numberOfPendingSlices++] = ByteBuffer.wrap(pdv.getValueBuffer(), pdv.getValueOffset(), pdv.getValueLength());
+    }
+
+    /**
+     * <p>Write any queued slices to the channel with a gathering write.</p>
+     *
+     * <p>Must be called before returning from sendPDataIndication(), since the PDU buffer is reused.</p>
+     *
+     * @exception	IOException
+     */
+    private void writePendingSlices() throws IOException
+    {
+      if(numberOfPendingSlices > 0)
+      {
+        if(channel != null)
+        {
+          int first = 0;
+          while(first < numberOfPendingSlices)
+          {
+            channel.write(pendingSlices, first, numberOfPendingSlices - first);
+            while(first < numberOfPendingSlices && !pendingSlices[first].hasRemaining())
+            {
+              ++first;
+            }
+          }
+        }
+        for(int i = 0; i < numberOfPendingSlices; ++i)
+        {
+          pendingSlices[i] = null;
+        }
+        numberOfPendingSlices = 0;
+      }
+    }
+
+    /**
+     * <p>Close and remove any partially received file, if the transfer was not completed.</p>
+     */
+    public void discardIncompleteReceivedFile()
+    {
+      numberOfPendingSlices = 0;
+      try
+      {
+        if(channel != null)
+        {
+          channel.close();
+        }
+        if(out != null)
+        {
+          out.close();
+        }
+      }
+      catch(IOException e)
+      {
+        e.printStackTrace(System.err);
+      }
+      channel = null;
+      out = null;
+      if(temporaryReceivedFile != null && temporaryReceivedFile.exists())
+      {
+        if(debugLevel > 0)
+          System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.discardIncompleteReceivedFile(): removing " + temporaryReceivedFile);
+        temporaryReceivedFile.delete();
+      }
+    }
+
     /**
      * @exception	IOException
      * @exception	DicomException
@@ -277,6 +365,26 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable
         System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): finished dumping PDV list from PDU");
       // append to command ...
       LinkedList pdvList = pdata.getPDVList();
+      try
+      {
+        sendPDataIndication(pdvList, association);
+      }
+      finally
+      {
+        writePendingSlices();
+      }
+    }
+
+    /**
+     * @param	pdvList
+     * @param	association
+     * @exception	IOException
+     * @exception	DicomException
+     * @exception	DicomNetworkException
+     */
+    private void sendPDataIndication(LinkedList pdvList, Association association)
+       throws DicomNetworkException, DicomException, IOException
+    {
       ListIterator i = pdvList.listIterator();
       while(i.hasNext())
       {
@@ -373,7 +481,32 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable
           {
             if(debugLevel > 0)
               System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Storing data fragment");
-            if(out == null && savedImagesFolder != null)
+            if(out == null && channel == null && savedImagesFolder != null && receiveIntoFileChannel)
+            {		// lazy opening, in the folder where the file will finally be stored so that it can always be renamed
+              FileMetaInformation fmi = new FileMetaInformation(
+                 csrq.getAffectedSOPClassUID(),
+                 csrq.getAffectedSOPInstanceUID(),
+                 association.getTransferSyntaxForPresentationContextID(presentationContextIDUsed),
+                 association.getCallingAETitle());
+              channelReceivedFile = storedFilePathStrategy.makeReliableStoredFilePathWithFoldersCreated(association,
+                 savedImagesFolder, csrq.getAffectedSOPInstanceUID());
+              temporaryReceivedFile =
+                 new File(channelReceivedFile.getParentFile(), FileUtilities.makeTemporaryFileName());
+              if(debugLevel > 0)
+                System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Receiving and storing through channel into temporary " + temporaryReceivedFile);
+              channel = new FileOutputStream(temporaryReceivedFile).getChannel();
+              ByteArrayOutputStream bout = new ByteArrayOutputStream(1024);
+              DicomOutputStream dout =
+                 new DicomOutputStream(bout, TransferSyntax.ExplicitVRLittleEndian, null);
+              fmi.getAttributeList().write(dout);
+              dout.flush();
+              ByteBuffer metaInformation = ByteBuffer.wrap(bout.toByteArray());
+              while(metaInformation.hasRemaining())
+              {
+                channel.write(metaInformation);
+              }
+            }
+            else if(out == null && channel == null && savedImagesFolder != null)
             {		// lazy opening
 //startReceivedFile=System.currentTimeMillis();
 //accumulatedWritePDVTime=0;
@@ -395,10 +528,14 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable
               dout.flush();
 //wroteMetaReceivedFile=System.currentTimeMillis();
             }
-            if(out != null)
+            if(channel != null)
+            {
+              addPendingSlice(pdv);		// written with a single gathering write per PDU
+            }
+            else if(out != null)
             {
 //long startWritePDV=System.currentTimeMillis();
-              out.write(pdv.getValue());
+              out.write(pdv.getValueBuffer(), pdv.getValueOffset(), pdv.getValueLength());	// avoid copying the value out of the received PDU
 //accumulatedWritePDVTime+=(System.currentTimeMillis()-startWritePDV);
             }
             if(pdv.isLastFragment())
@@ -406,7 +543,21 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable
 //wroteLastFragmentReceivedFile=System.currentTimeMillis();
               if(debugLevel > 0)
                 System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Finished storing data");
-              if(out != null)
+              if(channel != null)
+              {
+                writePendingSlices();
+                channel.close();
+                channel = null;
+                if(!temporaryReceivedFile.renameTo(channelReceivedFile))
+                {
+                  if(debugLevel > 0)
+                    System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Could not move temporary file into place ... copying instead");
+                  CopyStream.copy(temporaryReceivedFile, channelReceivedFile);
+                  temporaryReceivedFile.delete();
+                }
+                receivedFile = channelReceivedFile;
+              }
+              else if(out != null)
               {
                 out.close();
 
@@ -467,8 +618,16 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable
               else
               {
                 AttributeList responseIdentifierList;
+                boolean cancelled = false;
                 while((responseIdentifierList = queryResponseGenerator.next()) != null)
                 {
+                  if(association.isCancelRequested(cfrq.getMessageID()))
+                  {
+                    if(debugLevel > 0)
+                      System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): C-CANCEL-RQ received, no more pending responses");
+                    cancelled = true;
+                    break;
+                  }
                   if(debugLevel > 0)
                     System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Building and sending pending response " + responseIdentifierList.toString());
                   byte presentationContextIDForResponse =
@@ -494,11 +653,11 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable
                 }
                 queryResponseGenerator.close();
                 if(debugLevel > 0)
-                  System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Bulding final C-FIND success response");
+                  System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Bulding final C-FIND " + (cancelled ? "cancel" : "success") + " response");
                 response = new CFindResponseCommandMessage(
                    cfrq.getAffectedSOPClassUID(),
                    cfrq.getMessageID(),
-                   ResponseStatus.Success, // success status matching is complete
+                   cancelled ? ResponseStatus.MatchingTerminatedDueToCancelIndication : ResponseStatus.Success, // success status matching is complete
                    false // no dataset
                    ).getBytes();
               }
@@ -752,7 +911,15 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable
     if(debugLevel > 0)
       System.err.println("StorageSOPClassSCP.receiveAndProcessOneRequestMessage(): waitForPDataPDUsUntilHandlerReportsDone");
 
-    association.waitForPDataPDUsUntilHandlerReportsDone();	// throws AReleaseException if release request instead
+    try
+    {
+      association.waitForPDataPDUsUntilHandlerReportsDone();	// throws AReleaseException if release request instead
+    }
+    finally
+    {
+      if(!receivedPDUHandler.isDone())
+        receivedPDUHandler.discardIncompleteReceivedFile();
+    }
 
     if(debugLevel > 0)
       System.err.println("StorageSOPClassSCP.receiveAndProcessOneRequestMessage(): back from waitForPDataPDUsUntilHandlerReportsDone");
@@ -822,6 +989,23 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable
   private PresentationContextSelectionPolicy presentationContextSelectionPolicy;
   /***/
   private int debugLevel;
+  /***/
+  private boolean receiveIntoFileChannel;
+
+  /**
+   * <p>Select how received data sets are written to disk.</p>
+   *
+   * <p>If true, the received file is created in the folder in which it will finally be stored
+   * (so that it never needs to be copied rather than renamed when complete), and the data
+   * in each PDU is written to it with a single gathering write directly from the buffer in which
+   * the PDU was received, rather than being copied through a buffered stream.</p>
+   *
+   * @param	receiveIntoFileChannel	true to write directly through a FileChannel
+   */
+  public void setReceiveIntoFileChannel(boolean receiveIntoFileChannel)
+  {
+    this.receiveIntoFileChannel = receiveIntoFileChannel;
+  }
 
   /**
    * <p>Construct an instance of an association acceptor and storage, query, retrieve and verification SCP
@@ -16,6 +16,13 @@ import java.net.Socket;
 import java.net.SocketTimeoutException;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import java.util.Properties;
@@ -53,6 +60,14 @@ e.printStackTrace(System.err);
  * {@link com.pixelmed.network.StorageSOPClassSCPDispatcher#shutdown() shutdown()}
  * method can be called.</p>
  *
+ * <p>By default a new thread is started for every association. To protect against thread exhaustion
+ * when many associations arrive at once, a limit on the number of associations serviced concurrently
+ * may be set with {@link com.pixelmed.network.StorageSOPClassSCPDispatcher#setMaximumConcurrentAssociations(int) setMaximumConcurrentAssociations()},
+ * in which case associations are serviced by a fixed pool of reusable threads, and when all are busy no further
+ * connections are accepted until one finishes, so that callers wait in the listen backlog of the socket
+ * (see {@link com.pixelmed.network.StorageSOPClassSCPDispatcher#setListenBacklog(int) setListenBacklog()})
+ * rather than consuming resources.</p>
+ *
  * <p>Debugging messages with a varying degree of verbosity can be activated.</p>
  *
  * <p>The main method is also useful in its own right as a command-line Storage
@@ -130,6 +145,18 @@ public class StorageSOPClassSCPDispatcher implements Runnable
   private int debugLevel;
   /***/
   private boolean wantToShutdown;
+  /***/
+  private int maximumConcurrentAssociations = 0;		// no limit
+  /***/
+  private int listenBacklog = 50;						// the java.net.ServerSocket default
+  /***/
+  private boolean receiveIntoFileChannel;
+  /***/
+  private final AtomicInteger numberOfActiveAssociations = new AtomicInteger();
+  /***/
+  private final AtomicInteger peakNumberOfActiveAssociations = new AtomicInteger();
+  /***/
+  private final AtomicLong numberOfAssociationsDispatched = new AtomicLong();
 
   /**
    * <p>Construct an instance of dispatcher that will wait for transport
@@ -392,6 +419,105 @@ public class StorageSOPClassSCPDispatcher implements Runnable
     this.presentationContextSelectionPolicy = presentationContextSelectionPolicy;
   }
 
+  /**
+   * <p>Limit the number of associations that will be serviced concurrently.</p>
+   *
+   * <p>Must be called before the dispatcher is started.</p>
+   *
+   * @param	maximumConcurrentAssociations	the maximum number of concurrent associations, or 0 (the default) for no limit
+   */
+  public void setMaximumConcurrentAssociations(int maximumConcurrentAssociations)
+  {
+    this.maximumConcurrentAssociations = maximumConcurrentAssociations < 0 ? 0 : maximumConcurrentAssociations;
+  }
+
+  /**
+   * <p>Get the maximum number of associations that will be serviced concurrently.</p>
+   *
+   * @return	the maximum number of concurrent associations, or 0 if no limit
+   */
+  public int getMaximumConcurrentAssociations()
+  {
+    return maximumConcurrentAssociations;
+  }
+
+  /**
+   * <p>Set the maximum number of pending connections that are queued by the listening socket
+   * while waiting to be accepted.</p>
+   *
+   * <p>Must be called before the dispatcher is started.</p>
+   *
+   * @param	listenBacklog	the maximum length of the queue
+   */
+  public void setListenBacklog(int listenBacklog)
+  {
+    this.listenBacklog = listenBacklog;
+  }
+
+  /**
+   * <p>Select whether received data sets are written directly through a FileChannel into the folder in which they will be stored.</p>
+   *
+   * @param	receiveIntoFileChannel	true to write directly through a FileChannel
+   * @see	com.pixelmed.network.StorageSOPClassSCP#setReceiveIntoFileChannel(boolean)
+   */
+  public void setReceiveIntoFileChannel(boolean receiveIntoFileChannel)
+  {
+    this.receiveIntoFileChannel = receiveIntoFileChannel;
+  }
+
+  /**
+   * <p>Get the number of associations currently being serviced.</p>
+   *
+   * @return	the number of active associations
+   */
+  public int getNumberOfActiveAssociations()
+  {
+    return numberOfActiveAssociations.get();
+  }
+
+  /**
+   * <p>Get the largest number of associations that have been serviced concurrently.</p>
+   *
+   * @return	the peak number of active associations
+   */
+  public int getPeakNumberOfActiveAssociations()
+  {
+    return peakNumberOfActiveAssociations.get();
+  }
+
+  /**
+   * <p>Get the total number of connections that have been accepted and dispatched to be serviced.</p>
+   *
+   * @return	the number of associations dispatched
+   */
+  public long getNumberOfAssociationsDispatched()
+  {
+    return numberOfAssociationsDispatched.get();
+  }
+
+  /**
+   * <p>Service an association, keeping track of how many are active.</p>
+   *
+   * @param	sscp		the association acceptor
+   * @param	permits		the permits to release when done, or null if there is no limit
+   */
+  private void runAndCount(StorageSOPClassSCP sscp, Semaphore permits)
+  {
+    int active = numberOfActiveAssociations.incrementAndGet();
+    int peak;
+    while(active > (peak = peakNumberOfActiveAssociations.get()) && !peakNumberOfActiveAssociations.compareAndSet(peak, active));
+    try
+    {
+      sscp.run();
+    }
+    finally
+    {
+      numberOfActiveAssociations.decrementAndGet();
+      if(permits != null)
+        permits.release();
+    }
+  }
+
   /**
    * <p>Request the dispatcher to stop listening and exit the thread.</p>
    */
@@ -410,6 +536,27 @@ public class StorageSOPClassSCPDispatcher implements Runnable
   {
     wantToShutdown = false;
     ServerSocket serverSocket = null;
+    ExecutorService associationExecutor = null;
+    final Semaphore associationPermits;
+    if(maximumConcurrentAssociations > 0)
+    {
+      associationPermits = new Semaphore(maximumConcurrentAssociations);
+      associationExecutor = Executors.newFixedThreadPool(maximumConcurrentAssociations, new ThreadFactory()
+      {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+          Thread th = new Thread(r, "StorageSOPClassSCP-" + threadNumber.incrementAndGet());
+          th.setDaemon(true);
+          return th;
+        }
+      });
+    }
+    else
+    {
+      associationPermits = null;
+    }
 
     try
     {
@@ -421,7 +568,7 @@ public class StorageSOPClassSCPDispatcher implements Runnable
         SSLServerSocketFactory sslserversocketfactory =
            (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
         SSLServerSocket sslserversocket =
-           (SSLServerSocket) sslserversocketfactory.createServerSocket(port);
+           (SSLServerSocket) sslserversocketfactory.createServerSocket(port, listenBacklog);
 
         String[] suites =
            Association.getCipherSuitesToEnable(sslserversocket.getSupportedCipherSuites());
@@ -441,7 +588,7 @@ public class StorageSOPClassSCPDispatcher implements Runnable
       }
       else
       {
-        serverSocket = new ServerSocket(port);
+        serverSocket = new ServerSocket(port, listenBacklog);
       }
 
       // set socket timeout
@@ -449,6 +596,24 @@ public class StorageSOPClassSCPDispatcher implements Runnable
 
       while(!wantToShutdown)
       {
+        if(associationPermits != null)
+        {
+          // do not accept any more connections until there is capacity to service them, leaving them in the listen backlog
+          try
+          {
+            if(!associationPermits.tryAcquire(timeoutBeforeCheckingForInterrupted, TimeUnit.MILLISECONDS))
+            {
+              if(debugLevel > 2)
+                System.err.println("StorageSOPClassSCPDispatcher.run(): all " + maximumConcurrentAssociations + " associations busy, not accepting");
+              continue;
+            }
+          }
+          catch(InterruptedException e)
+          {
+            break;
+          }
+        }
+        boolean dispatched = false;
         try
         {
           Socket socket = serverSocket.accept();
@@ -493,11 +658,35 @@ public class StorageSOPClassSCPDispatcher implements Runnable
 
             // add all listner
             sscp.arAssocListner.addAll(arAssocListner);
+            sscp.setReceiveIntoFileChannel(receiveIntoFileChannel);
 
-            Thread th = new Thread(sscp);
-            th.setName("Client " + socket.getInetAddress());
-            th.setDaemon(true);
-            th.start();
+            numberOfAssociationsDispatched.incrementAndGet();
+            if(associationExecutor != null)
+            {
+              final StorageSOPClassSCP pooledSscp = sscp;
+              associationExecutor.execute(new Runnable()
+              {
+                public void run()
+                {
+                  runAndCount(pooledSscp, associationPermits);
+                }
+              });
+            }
+            else
+            {
+              final StorageSOPClassSCP threadSscp = sscp;
+              Thread th = new Thread(new Runnable()
+              {
+                public void run()
+                {
+                  runAndCount(threadSscp, null);
+                }
+              });
+              th.setName("Client " + socket.getInetAddress());
+              th.setDaemon(true);
+              th.start();
+            }
+            dispatched = true;
           }
           catch(Exception e)
           {
@@ -509,12 +698,21 @@ public class StorageSOPClassSCPDispatcher implements Runnable
           if(debugLevel > 2)
             System.err.println("StorageSOPClassSCPDispatcher.run(): timed out in accept");
         }
+        finally
+        {
+          if(!dispatched && associationPermits != null)
+            associationPermits.release();
+        }
       }
     }
     catch(IOException e)
     {
       e.printStackTrace(System.err);
     }
+    if(associationExecutor != null)
+    {
+      associationExecutor.shutdown();		// allow associations in progress to complete
+    }
     try
     {
       if(serverSocket != null)
@@ -586,6 +784,7 @@ public class StorageSOPClassSCPDispatcher implements Runnable
         int port = networkApplicationProperties.getListeningPort();
         String calledAETitle = networkApplicationProperties.getCalledAETitle();
         int storageSCPDebugLevel = networkApplicationProperties.getStorageSCPDebugLevel();
+        int maximumConcurrentAssociations = networkApplicationProperties.getStorageSCPMaximumConcurrentAssociations();
 
         NetworkApplicationInformationFederated federatedNetworkApplicationInformation =
            new NetworkApplicationInformationFederated();
@@ -603,6 +802,7 @@ public class StorageSOPClassSCPDispatcher implements Runnable
            null, null, null, null,
            false,
            storageSCPDebugLevel);
+        dispatcher.setMaximumConcurrentAssociations(maximumConcurrentAssociations);
       }
       else if(arg.length == 4)
       {
@@ -4,9 +4,11 @@ package com.pixelmed.network;
 import com.pixelmed.utils.*;
 import com.pixelmed.dicom.*;
 
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 import java.io.*;
 
@@ -81,10 +83,64 @@ public class StorageSOPClassSCU extends SOPClass
       //
       // for now just treat success or warning as success (and absence as failure)
       int status = Attribute.getSingleIntegerValueOrDefault(list, TagFromName.Status, 0xffff);
-      success = status == 0x0000 // success
-         || status == 0xB000 // coercion of data element
-         || status == 0xB007 // data set does not match SOP Class
-         || status == 0xB006;	// element discarded
+      success = isSuccessfulStatus(status);
+    }
+  }
+
+  /**
+   * <p>Treat success or warning as success (and absence, or anything else, as failure).</p>
+   *
+   * @param	status	the value of the Status of a C-STORE-RSP
+   * @return		true if the storage is considered to have succeeded
+   */
+  protected static boolean isSuccessfulStatus(int status)
+  {
+    return status == 0x0000 // success
+       || status == 0xB000 // coercion of data element
+       || status == 0xB007 // data set does not match SOP Class
+       || status == 0xB006;	// element discarded
+  }
+
+  /**
+   * <p>A handler that remains registered for the life of a pipelined transfer, and queues the
+   * MessageIDBeingRespondedTo and Status of each C-STORE-RSP as it is received, since
+   * with more than one operation outstanding responses cannot be associated with a single request.</p>
+   */
+  protected class PipelinedCStoreResponseHandler extends CompositeResponseHandler
+  {
+    /***/
+    protected LinkedList responses = new LinkedList();
+
+    /**
+     * @param	debugLevel
+     */
+    PipelinedCStoreResponseHandler(int debugLevel)
+    {
+      super(debugLevel);
+    }
+
+    /**
+     * @param	list
+     */
+    protected void evaluateStatusAndSetSuccess(AttributeList list)
+    {
+      int messageIDBeingRespondedTo = Attribute.getSingleIntegerValueOrDefault(list, TagFromName.MessageIDBeingRespondedTo, -1);
+      int status = Attribute.getSingleIntegerValueOrDefault(list, TagFromName.Status, 0xffff);
+      if(debugLevel > 0)
+        System.err.println("StorageSOPClassSCU.PipelinedCStoreResponseHandler.evaluateStatusAndSetSuccess(): response to " + messageIDBeingRespondedTo + " status 0x" + Integer.toHexString(status));
+      responses.addLast(new int[]
+      {
+        messageIDBeingRespondedTo, status
+      });
+      success = isSuccessfulStatus(status);
+    }
+
+    /**
+     * @return	the next queued response as an array of MessageIDBeingRespondedTo and Status, or null if none
+     */
+    int[] getNextResponse()
+    {
+      return responses.isEmpty() ? null : (int[]) responses.removeFirst();
     }
   }
 
@@ -133,12 +189,47 @@ public class StorageSOPClassSCU extends SOPClass
      String moveOriginatorApplicationEntityTitle, int moveOriginatorMessageID)
      throws AReleaseException, DicomNetworkException, DicomException, IOException
   {
-    byte cStoreRequestCommandMessage[] =
-       new CStoreRequestCommandMessage(affectedSOPClass, affectedSOPInstance, 
-       moveOriginatorApplicationEntityTitle, moveOriginatorMessageID).getBytes();
-
     CStoreResponseHandler receivedDataHandler = new CStoreResponseHandler(debugLevel);
     association.setReceivedDataHandler(receivedDataHandler);
+    sendOneSOPInstanceWithoutWaiting(association, affectedSOPClass, affectedSOPInstance, inputTransferSyntaxUID, din,
+       presentationContextID, outputTransferSyntaxUID, moveOriginatorApplicationEntityTitle, moveOriginatorMessageID);
+    if(debugLevel > 0)
+      System.err.println("StorageSOPClassSCU.sendOneSOPInstance(): about to wait for PDUs");
+    association.waitForCommandPDataPDUs();
+    return receivedDataHandler.wasSuccessful();
+  }
+
+  /**
+   * <p>Send the C-STORE-RQ and the data set, but do not wait for the response, which
+   * will be delivered to whatever handler is already registered with the association.</p>
+   *
+   * @param	association
+   * @param	affectedSOPClass
+   * @param	affectedSOPInstance
+   * @param	inputTransferSyntaxUID
+   * @param	din
+   * @param	presentationContextID
+   * @param	outputTransferSyntaxUID
+   * @param	moveOriginatorApplicationEntityTitle	the AET of the C-MOVE that originated this C-STORE, or null if none
+   * @param	moveOriginatorMessageID					the MessageID of the C-MOVE that originated this C-STORE, or -1 if none
+   * @return											the MessageID of the C-STORE-RQ
+   * @exception	IOException
+   * @exception	DicomException
+   * @exception	DicomNetworkException
+   * @exception	AReleaseException
+   */
+  protected int sendOneSOPInstanceWithoutWaiting(Association association,
+     String affectedSOPClass, String affectedSOPInstance,
+     String inputTransferSyntaxUID, DicomInputStream din,
+     byte presentationContextID, String outputTransferSyntaxUID,
+     String moveOriginatorApplicationEntityTitle, int moveOriginatorMessageID)
+     throws AReleaseException, DicomNetworkException, DicomException, IOException
+  {
+    CStoreRequestCommandMessage cStoreRequest =
+       new CStoreRequestCommandMessage(affectedSOPClass, affectedSOPInstance, 
+       moveOriginatorApplicationEntityTitle, moveOriginatorMessageID);
+    byte cStoreRequestCommandMessage[] = cStoreRequest.getBytes();
+
     association.send(presentationContextID, cStoreRequestCommandMessage, null);
     OutputStream out = association.getAssociationOutputStream(presentationContextID);
     if(inputTransferSyntaxUID.equals(outputTransferSyntaxUID))
@@ -152,7 +243,7 @@ public class StorageSOPClassSCU extends SOPClass
     else
     {
       if(debugLevel > 0)
-        System.err.println("StorageSOPClassSCU.sendOneSOPInstance(): different transfer syntaxes; converting " + inputTransferSyntaxUID + " to " + outputTransferSyntaxUID);
+        System.err.println("StorageSOPClassSCU.sendOneSOPInstanceWithoutWaiting(): different transfer syntaxes; converting " + inputTransferSyntaxUID + " to " + outputTransferSyntaxUID);
       // din will already be positioned after meta-header and set for reading data set
       // copier will push any transfer syntax specific decompression filter onto the stream before reading
       DicomOutputStream dout =
@@ -160,10 +251,7 @@ public class StorageSOPClassSCU extends SOPClass
       new DicomStreamCopier(din, dout);
       // Do not need dout.close() since DicomStreamCopier always closes output stream itself
     }
-    if(debugLevel > 0)
-      System.err.println("StorageSOPClassSCU.sendOneSOPInstance(): about to wait for PDUs");
-    association.waitForCommandPDataPDUs();
-    return receivedDataHandler.wasSuccessful();
+    return cStoreRequest.getMessageID();
   }
 
   /**
@@ -605,6 +693,12 @@ public class StorageSOPClassSCU extends SOPClass
      String moveOriginatorApplicationEntityTitle, int moveOriginatorMessageID)
      throws AReleaseException, DicomNetworkException, IOException
   {
+    if(association.getMaximumOperationsInvoked() != 1)
+    {
+      sendMultipleSOPInstancesPipelined(association, dicomFiles, multipleInstanceTransferStatusHandler,
+         moveOriginatorApplicationEntityTitle, moveOriginatorMessageID);
+      return;
+    }
     int nRemaining = dicomFiles.size();
     int nCompleted = 0;
     int nFailed = 0;
@@ -735,6 +829,259 @@ public class StorageSOPClassSCU extends SOPClass
     }
   }
 
+  /** The number of operations kept outstanding when the SCP places no limit on the Asynchronous Operations Window. */
+  protected static final int maximumOperationsOutstandingWhenUnlimited = 64;
+
+  /**
+   * <p>The state of a transfer in which C-STORE-RQs are sent without waiting for the C-STORE-RSP to each.</p>
+   */
+  protected class PipelinedTransfer
+  {
+    /***/
+    protected Association association;
+    /***/
+    protected MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler;
+    /***/
+    protected PipelinedCStoreResponseHandler receivedDataHandler;
+    /** requests awaiting a response, keyed by MessageID, with values of the SOP Instance UID and file name */
+    protected Map outstanding = new HashMap();
+    /***/
+    protected int nRemaining;
+    /***/
+    protected int nCompleted;
+    /***/
+    protected int nFailed;
+    /***/
+    protected int nWarning;
+
+    /**
+     * @param	association
+     * @param	nRemaining
+     * @param	multipleInstanceTransferStatusHandler
+     * @exception	DicomNetworkException
+     */
+    PipelinedTransfer(Association association, int nRemaining, MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler)
+       throws DicomNetworkException
+    {
+      this.association = association;
+      this.nRemaining = nRemaining;
+      this.multipleInstanceTransferStatusHandler = multipleInstanceTransferStatusHandler;
+      receivedDataHandler = new PipelinedCStoreResponseHandler(debugLevel);
+      association.setReceivedDataHandler(receivedDataHandler);
+    }
+
+    /**
+     * @param	messageID
+     * @param	affectedSOPInstance
+     * @param	fileName
+     */
+    void addOutstanding(int messageID, String affectedSOPInstance, String fileName)
+    {
+      outstanding.put(Integer.valueOf(messageID), new String[]
+      {
+        affectedSOPInstance, fileName
+      });
+    }
+
+    /**
+     * @param	affectedSOPInstance
+     * @param	fileName
+     * @param	success
+     */
+    void completed(String affectedSOPInstance, String fileName, boolean success)
+    {
+      --nRemaining;
+      ++nCompleted;
+      if(!success)
+      {
+        ++nFailed;
+      }
+      if(debugLevel > 0)
+        System.err.println("Send " + fileName + " " + (success ? "succeeded" : "failed"));
+      if(multipleInstanceTransferStatusHandler != null)
+      {
+        if(multipleInstanceTransferStatusHandler instanceof MultipleInstanceTransferStatusHandlerWithFileName)
+        {
+          ((MultipleInstanceTransferStatusHandlerWithFileName) multipleInstanceTransferStatusHandler).updateStatus(nRemaining, nCompleted, nFailed, nWarning, affectedSOPInstance, fileName, success);
+        }
+        else
+        {
+          multipleInstanceTransferStatusHandler.updateStatus(nRemaining, nCompleted, nFailed, nWarning, affectedSOPInstance);
+        }
+      }
+    }
+
+    /**
+     * <p>Wait for responses until no more than the specified number of requests remain outstanding.</p>
+     *
+     * <p>If the association fails, all requests still outstanding are reported as failed.</p>
+     *
+     * @param	maximumOutstanding	the number of requests that may remain outstanding
+     * @exception	DicomNetworkException
+     * @exception	AReleaseException
+     */
+    void waitForResponses(int maximumOutstanding) throws DicomNetworkException, AReleaseException
+    {
+      try
+      {
+        while(outstanding.size() > maximumOutstanding)
+        {
+          association.waitForCommandPDataPDUs();
+          int[] response;
+          while((response = receivedDataHandler.getNextResponse()) != null)
+          {
+            String[] request = (String[]) outstanding.remove(Integer.valueOf(response[0]));
+            if(request == null)
+            {
+              if(debugLevel > 0)
+                System.err.println("StorageSOPClassSCU.PipelinedTransfer.waitForResponses(): ignoring response to unknown MessageID " + response[0]);
+            }
+            else
+            {
+              completed(request[0], request[1], isSuccessfulStatus(response[1]));
+            }
+          }
+        }
+      }
+      catch(DicomNetworkException e)
+      {
+        failAllOutstanding();
+        throw e;
+      }
+      catch(AReleaseException e)
+      {
+        failAllOutstanding();
+        throw e;
+      }
+    }
+
+    /***/
+    void failAllOutstanding()
+    {
+      Iterator i = outstanding.values().iterator();
+      while(i.hasNext())
+      {
+        String[] request = (String[]) i.next();
+        i.remove();
+        completed(request[0], request[1], false);
+      }
+    }
+  }
+
+  /**
+   * <p>Send the specified instances contained in the files over an existing association,
+   * keeping as many C-STORE-RQs outstanding as the negotiated Asynchronous Operations Window allows.</p>
+   *
+   * <p>Responses are matched to requests by their MessageIDBeingRespondedTo, and the
+   * status handler is called as each response is received rather than as each request is sent.</p>
+   *
+   * @param	association								already existing association to SCP
+   * @param	dicomFiles								the set of DICOM files containing names, SOP Class UIDs, SOP Instance UIDs and optionally Transfer Syntaxes
+   * @param	multipleInstanceTransferStatusHandler	handler called after each transfer (may be null if not required)
+   * @param	moveOriginatorApplicationEntityTitle	the AET of the C-MOVE that originated this C-STORE, or null if none
+   * @param	moveOriginatorMessageID					the MessageID of the C-MOVE that originated this C-STORE, or -1 if none
+   * @exception	AReleaseException
+   * @exception	DicomNetworkException
+   * @exception	IOException
+   */
+  protected void sendMultipleSOPInstancesPipelined(Association association, SetOfDicomFiles dicomFiles,
+     MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler,
+     String moveOriginatorApplicationEntityTitle, int moveOriginatorMessageID)
+     throws AReleaseException, DicomNetworkException, IOException
+  {
+    int maximumOutstanding = association.getMaximumOperationsInvoked();
+    if(maximumOutstanding <= 0 || maximumOutstanding > maximumOperationsOutstandingWhenUnlimited)
+    {
+      maximumOutstanding = maximumOperationsOutstandingWhenUnlimited;
+    }
+    if(debugLevel > 0)
+      System.err.println("StorageSOPClassSCU.sendMultipleSOPInstancesPipelined(): maximumOutstanding = " + maximumOutstanding);
+    PipelinedTransfer transfer = new PipelinedTransfer(association, dicomFiles.size(), multipleInstanceTransferStatusHandler);
+
+    Iterator fi = dicomFiles.iterator();
+    while(fi.hasNext())
+    {
+      SetOfDicomFiles.DicomFile dicomFile = (SetOfDicomFiles.DicomFile) (fi.next());
+      String fileName = dicomFile.getFileName();
+      if(debugLevel > 0)
+        System.err.println("Sending " + fileName);
+      String affectedSOPInstance = null;
+      try
+      {
+        transfer.waitForResponses(maximumOutstanding - 1);
+        InputStream in = new BufferedInputStream(new FileInputStream(fileName));
+        try
+        {
+          String inputTransferSyntax = null;
+          String affectedSOPClass = null;
+          DicomInputStream din = new DicomInputStream(in);
+          if(din.haveMetaHeader())
+          {
+            AttributeList metaList = new AttributeList();
+            metaList.readOnlyMetaInformationHeader(din);
+            affectedSOPClass = Attribute.getSingleStringValueOrNull(metaList, TagFromName.MediaStorageSOPClassUID);
+            affectedSOPInstance = Attribute.getSingleStringValueOrNull(metaList, TagFromName.MediaStorageSOPInstanceUID);
+            inputTransferSyntax = Attribute.getSingleStringValueOrNull(metaList, TagFromName.TransferSyntaxUID);
+          }
+          else
+          {
+            affectedSOPClass = dicomFile.getSOPClassUID();
+            affectedSOPInstance = dicomFile.getSOPInstanceUID();
+            inputTransferSyntax = din.getTransferSyntaxToReadDataSet().getUID();
+          }
+          if(affectedSOPClass == null || affectedSOPClass.length() == 0)
+          {
+            throw new DicomNetworkException("Can't C-STORE SOP Instance - can't determine Affected SOP Class UID");
+          }
+          if(SOPClass.isDirectory(affectedSOPClass))
+          {
+            throw new DicomNetworkException("Can't C-STORE Media Storage Directory Storage SOP Class (DICOMDIR)");
+          }
+          if(affectedSOPInstance == null || affectedSOPInstance.length() == 0)
+          {
+            throw new DicomNetworkException("Can't C-STORE SOP Instance - can't determine Affected SOP Instance UID");
+          }
+          byte presentationContextID = association.getSuitablePresentationContextID(affectedSOPClass);
+          String outputTransferSyntax = association.getTransferSyntaxForPresentationContextID(presentationContextID);
+          if(debugLevel > 0)
+            System.err.println("Using context ID " + presentationContextID + " outputTransferSyntax " + outputTransferSyntax);
+          int messageID = sendOneSOPInstanceWithoutWaiting(association, affectedSOPClass, affectedSOPInstance,
+             inputTransferSyntax, din,
+             presentationContextID, outputTransferSyntax, moveOriginatorApplicationEntityTitle, moveOriginatorMessageID);
+          transfer.addOutstanding(messageID, affectedSOPInstance, fileName);
+          // State 6
+        }
+        finally
+        {
+          in.close();
+        }
+      }
+      catch(AReleaseException e)
+      {
+        throw e;
+      }
+      catch(DicomNetworkException e)
+      {
+        e.printStackTrace(System.err);
+        transfer.completed(affectedSOPInstance, fileName, false);
+      }
+      catch(DicomException e)
+      {
+        e.printStackTrace(System.err);
+        transfer.completed(affectedSOPInstance, fileName, false);
+      }
+      catch(IOException e)
+      {
+        e.printStackTrace(System.err);
+        transfer.completed(affectedSOPInstance, fileName, false);
+      }
+    }
+    transfer.waitForResponses(0);
+
+    if(debugLevel > 0)
+      System.err.println("StorageSOPClassSCU.sendMultipleSOPInstancesPipelined(): Finished sending all files nRemaining=" + transfer.nRemaining + " nCompleted=" + transfer.nCompleted + " nFailed=" + transfer.nFailed + " nWarning=" + transfer.nWarning);
+  }
+
   /**
    * <p>Send the specified instances contained in the attribute lists over an existing association.</p>
    *
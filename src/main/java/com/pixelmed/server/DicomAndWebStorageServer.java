@@ -9,6 +9,7 @@ import com.pixelmed.dicom.AttributeList;
 import com.pixelmed.dicom.DicomException;
 import com.pixelmed.dicom.DicomInputStream;
 import com.pixelmed.dicom.StoredFilePathStrategy;
+import com.pixelmed.dicom.StoredFilePathStrategyDistributedHashSubFolders;
 import com.pixelmed.dicom.TagFromName;
 
 import com.pixelmed.network.DicomNetworkException;
@@ -49,6 +50,10 @@ import java.util.Properties;
 % java -cp lib/additional/hsqldb.jar org.hsqldb.util.DatabaseManagerSwing --url "jdbc:hsqldb:hsql://localhost/testserverdb"
  * </pre>
  *
+ * <p>DICOM and web queries may proceed concurrently with each other and with the storage of incoming objects if the
+ * Application.DatabaseConnectionPoolSize property is specified, and browsing, web and retrieval requests may be answered
+ * from an in-memory index rather than the database if the Application.DatabaseIndexCacheSize property is specified.</p>
+ *
  * <p>For how to configure the necessary properties file, see:</p>
  *
  * @see com.pixelmed.web.WebServerApplicationProperties
@@ -147,6 +152,19 @@ public class DicomAndWebStorageServer
 
     File savedImagesFolder =
        databaseApplicationProperties.getSavedImagesFolderCreatingItIfNecessary();
+    File additionalSavedImagesFolders[] =
+       databaseApplicationProperties.getAdditionalSavedImagesFoldersCreatingThemIfNecessary();
+    StoredFilePathStrategy storedFilePathStrategy = StoredFilePathStrategy.BYSOPINSTANCEUIDHASHSUBFOLDERS;
+    if(additionalSavedImagesFolders.length > 0)
+    {
+      File roots[] = new File[additionalSavedImagesFolders.length + 1];
+      roots[0] = savedImagesFolder;
+      System.arraycopy(additionalSavedImagesFolders, 0, roots, 1, additionalSavedImagesFolders.length);
+      storedFilePathStrategy = new StoredFilePathStrategyDistributedHashSubFolders(roots,
+         databaseApplicationProperties.getSavedImagesFolderSelection().equals("ROUNDROBIN")
+         ? StoredFilePathStrategyDistributedHashSubFolders.ROUNDROBIN : StoredFilePathStrategyDistributedHashSubFolders.FREESPACE,
+         databaseApplicationProperties.getSavedImagesFolderCheckForExisting());
+    }
 
     if(databaseInformationModel == null)
     {
@@ -158,6 +176,16 @@ public class DicomAndWebStorageServer
     {
       this.databaseInformationModel = databaseInformationModel;
     }
+    int databaseConnectionPoolSize = databaseApplicationProperties.getDatabaseConnectionPoolSize();
+    if(databaseConnectionPoolSize > 0 && !this.databaseInformationModel.isPooledConnectionsEnabled())
+    {
+      this.databaseInformationModel.enablePooledConnections(databaseConnectionPoolSize);
+    }
+    int databaseIndexCacheSize = databaseApplicationProperties.getDatabaseIndexCacheSize();
+    if(databaseIndexCacheSize > 0 && !this.databaseInformationModel.isIndexCacheEnabled())
+    {
+      this.databaseInformationModel.enableIndexCache(databaseIndexCacheSize);
+    }
 
     NetworkApplicationProperties networkApplicationProperties =
        new NetworkApplicationProperties(properties);
@@ -173,13 +201,15 @@ public class DicomAndWebStorageServer
       String calledAETitle = networkApplicationProperties.getCalledAETitle();
       int storageSCPDebugLevel = networkApplicationProperties.getStorageSCPDebugLevel();
       int queryDebugLevel = networkApplicationProperties.getQueryDebugLevel();
-      new Thread(new StorageSOPClassSCPDispatcher(port, calledAETitle, savedImagesFolder,
-         StoredFilePathStrategy.BYSOPINSTANCEUIDHASHSUBFOLDERS, new OurReceivedObjectHandler(),
+      StorageSOPClassSCPDispatcher dispatcher = new StorageSOPClassSCPDispatcher(port, calledAETitle, savedImagesFolder,
+         storedFilePathStrategy, new OurReceivedObjectHandler(),
          this.databaseInformationModel.getQueryResponseGeneratorFactory(queryDebugLevel),
          this.databaseInformationModel.getRetrieveResponseGeneratorFactory(queryDebugLevel),
          federatedNetworkApplicationInformation,
          false/*secureTransport*/,
-         storageSCPDebugLevel)).start();
+         storageSCPDebugLevel);
+      dispatcher.setMaximumConcurrentAssociations(networkApplicationProperties.getStorageSCPMaximumConcurrentAssociations());
+      new Thread(dispatcher).start();
     }
     // Start up web server ...
     {
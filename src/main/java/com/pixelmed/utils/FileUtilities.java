@@ -11,6 +11,9 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.Reader;
 
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -281,6 +284,69 @@ public class FileUtilities
     return sValue;
   }
 
+  /**
+   * <p>Memory map a region of a file for reading.</p>
+   *
+   * <p>The file channel is closed before returning, since the mapping remains valid
+   * until the returned buffer is garbage collected, so no file descriptor is held open.</p>
+   *
+   * <p>If the mapping fails (typically because the address space is exhausted by earlier mappings
+   * that have not yet been reaped), garbage collection and finalization are requested and the mapping retried,
+   * since reaping the small heap objects that are associated with mapped buffers is not a priority for
+   * the garbage collector (see "http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=5092131").</p>
+   *
+   * @param	file		the file
+   * @param	offset		the byte offset in the file of the start of the region
+   * @param	length		the length of the region in bytes, which must not exceed Integer.MAX_VALUE
+   * @return			a read only buffer, in big endian byte order (the default)
+   * @exception	IOException	if the file cannot be opened or the region cannot be mapped
+   */
+  public static MappedByteBuffer mapReadOnly(File file, long offset, long length)
+     throws IOException
+  {
+    FileInputStream in = new FileInputStream(file);
+    try
+    {
+      FileChannel channel = in.getChannel();
+      MappedByteBuffer buffer = null;
+      int retrycount = 100;	// often only takes once or twice, may take more than 10
+      int sleepTimeBetweenRetries = 1000;
+      int retryBeforeSleeping = 10;
+      IOException einside = null;
+      while(buffer == null && retrycount-- > 0)
+      {
+        try
+        {
+          buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        catch(IOException e)
+        {
+          einside = e;
+          if(retryBeforeSleeping-- <= 0)
+          {
+            try
+            {
+              Thread.sleep(sleepTimeBetweenRetries);
+            }
+            catch(InterruptedException ie)
+            {
+              throw einside;
+            }
+          }
+          System.gc();
+          System.runFinalization();
+        }
+      }
+      if(buffer == null)
+        throw einside;
+      return buffer;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
   /**
    * <p>Return an MD5 message digest of a file.</p>
    *
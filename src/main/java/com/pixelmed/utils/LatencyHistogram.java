@@ -0,0 +1,83 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.utils;
+
+/**
+ * <p>A histogram of the time taken to perform an operation, such as a query or the response to a request,
+ * in buckets whose upper bounds double from one millisecond.</p>
+ *
+ * <p>May be updated and reported concurrently from multiple threads.</p>
+ *
+ * @see com.pixelmed.database.DicomDatabaseInformationModel#getQueryLatencyHistograms()
+ * @see com.pixelmed.web.HttpServer#getStatistics()
+ *
+ * @author	dclunie
+ */
+public class LatencyHistogram {
+
+	/***/
+	private static final int numberOfBuckets = 14;		// < 1 ms, < 2 ms, ... < 4096 ms, and >= 4096 ms
+
+	/***/
+	private long[] counts;
+	/***/
+	private long count;
+	/***/
+	private long totalNanoseconds;
+	/***/
+	private long maximumNanoseconds;
+
+	public LatencyHistogram() {
+		counts = new long[numberOfBuckets];
+	}
+
+	/**
+	 * <p>Count an operation.</p>
+	 *
+	 * @param	nanoseconds	the time taken
+	 */
+	public synchronized void add(long nanoseconds) {
+		long milliseconds = nanoseconds/1000000;
+		int bucket = 0;
+		while (bucket < numberOfBuckets-1 && milliseconds >= (1l << bucket)) {
+			++bucket;
+		}
+		++counts[bucket];
+		++count;
+		totalNanoseconds+=nanoseconds;
+		if (nanoseconds > maximumNanoseconds) {
+			maximumNanoseconds = nanoseconds;
+		}
+	}
+
+	/**
+	 * @return	the number of operations counted
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return	the number of operations, the mean and maximum times, and the number in each non-empty bucket
+	 */
+	public synchronized String toString() {
+		StringBuffer buf = new StringBuffer();
+		buf.append("n=");
+		buf.append(count);
+		buf.append(" mean=");
+		buf.append(count == 0 ? 0 : totalNanoseconds/count/1000);
+		buf.append("us max=");
+		buf.append(maximumNanoseconds/1000);
+		buf.append("us");
+		for (int bucket=0; bucket<numberOfBuckets; ++bucket) {
+			if (counts[bucket] > 0) {
+				buf.append(" ");
+				buf.append(bucket == numberOfBuckets-1 ? ">=" : "<");
+				buf.append(1l << (bucket == numberOfBuckets-1 ? bucket-1 : bucket));
+				buf.append("ms:");
+				buf.append(counts[bucket]);
+			}
+		}
+		return buf.toString();
+	}
+}
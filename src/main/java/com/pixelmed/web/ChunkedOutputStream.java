@@ -0,0 +1,95 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.web;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Writes an HTTP message body using the chunked transfer coding defined in IETF RFC2616 section 3.6.1,
+ * so that a body whose length is not known in advance can be sent as it is produced.</p>
+ *
+ * <p>Data is accumulated until a chunk is full; closing the stream sends the last chunk but does not close the underlying stream,
+ * which may be used for further messages on the same connection.</p>
+ *
+ * @author	dclunie
+ */
+class ChunkedOutputStream extends FilterOutputStream {
+
+	/***/
+	private static final int defaultChunkSize = 8192;
+	/***/
+	private static final byte[] crlf = { '\r', '\n' };
+
+	/***/
+	private byte[] buffer;
+	/***/
+	private int count;
+	/***/
+	private boolean closed;
+
+	/**
+	 * @param	out		the underlying stream
+	 */
+	ChunkedOutputStream(OutputStream out) {
+		super(out);
+		buffer = new byte[defaultChunkSize];
+	}
+
+	/**
+	 * <p>Send whatever has been accumulated as a chunk.</p>
+	 *
+	 * @exception	IOException
+	 */
+	private void writeChunk() throws IOException {
+		if (count > 0) {
+			out.write(Integer.toHexString(count).getBytes("US-ASCII"));
+			out.write(crlf);
+			out.write(buffer,0,count);
+			out.write(crlf);
+			count=0;
+		}
+	}
+
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			writeChunk();
+		}
+		buffer[count++]=(byte)b;
+	}
+
+	public void write(byte[] b,int off,int len) throws IOException {
+		while (len > 0) {
+			if (count == buffer.length) {
+				writeChunk();
+			}
+			int n = Math.min(len,buffer.length-count);
+			System.arraycopy(b,off,buffer,count,n);
+			count+=n;
+			off+=n;
+			len-=n;
+		}
+	}
+
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * <p>Send any remaining data and the last chunk, and flush, but do not close, the underlying stream.</p>
+	 *
+	 * @exception	IOException
+	 */
+	public void close() throws IOException {
+		if (!closed) {
+			closed=true;
+			writeChunk();
+			out.write('0');
+			out.write(crlf);
+			out.write(crlf);
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,402 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.util.Map;
+
+/**
+ * <p>The stream to which a {@link com.pixelmed.web.HttpServer HttpServer} worker writes the response to a request,
+ * which is written to a non-blocking connection, waiting whenever the connection cannot accept more.</p>
+ *
+ * <p>The status line and header written by the worker are examined, so that the server knows whether or not the end of the response
+ * can be recognized by the client, from its Content-Length or chunked Transfer-Encoding, and hence whether or not the connection may be kept open
+ * for further requests. If not, or if the server has otherwise decided to close the connection, a "Connection: close" header is added.</p>
+ *
+ * <p>The header of the request is available to workers, e.g., to support Range requests, and the body of a file may be sent directly
+ * from a {@link java.nio.channels.FileChannel FileChannel} to the connection with {@link #transferFrom(FileChannel,long,long) transferFrom()},
+ * without being copied through the Java heap.</p>
+ *
+ * @author	dclunie
+ */
+class HttpResponseOutputStream extends OutputStream {
+
+	/***/
+	private static final int bufferSize = 16384;
+	/***/
+	private static final long writeTimeoutInMilliseconds = 60000;
+
+	/***/
+	private static final int CHUNK_SIZE = 0;
+	/***/
+	private static final int CHUNK_DATA = 1;
+	/***/
+	private static final int CHUNK_DATA_END = 2;
+	/***/
+	private static final int TRAILER = 3;
+	/***/
+	private static final int DONE = 4;
+
+	/***/
+	private SocketChannel channel;
+	/***/
+	private ByteBuffer buffer;
+	/***/
+	private Selector writeSelector;		// lazily opened when the connection cannot accept more
+
+	/***/
+	private Map requestHeaders;		// key is lower case field name, value is String field value
+	/***/
+	private String requestHttpVersion;
+	/***/
+	private boolean closeAfterResponse;
+
+	/***/
+	private ByteArrayOutputStream responseHeader;
+	/***/
+	private boolean responseHeaderComplete;
+	/***/
+	private long contentLength;
+	/***/
+	private boolean chunked;
+	/***/
+	private long bodyBytes;
+	/***/
+	private int chunkState;
+	/***/
+	private long chunkRemaining;
+	/***/
+	private StringBuffer chunkLine;
+	/***/
+	private boolean bodyMalformed;
+	/***/
+	private int statusCode;
+
+	/**
+	 * @param	channel		the non-blocking connection
+	 */
+	HttpResponseOutputStream(SocketChannel channel) {
+		this.channel=channel;
+		buffer = ByteBuffer.allocateDirect(bufferSize);
+		responseHeader = new ByteArrayOutputStream();
+		chunkLine = new StringBuffer();
+	}
+
+	/**
+	 * <p>Prepare for the response to a new request.</p>
+	 *
+	 * @param	requestHeaders		the header fields of the request, keyed by lower case name
+	 * @param	requestHttpVersion	the HTTP version of the request, e.g., "HTTP/1.1", or null if the request line is malformed
+	 * @param	closeAfterResponse	true if the connection is to be closed after this response
+	 */
+	void startResponse(Map requestHeaders,String requestHttpVersion,boolean closeAfterResponse) {
+		this.requestHeaders=requestHeaders;
+		this.requestHttpVersion=requestHttpVersion;
+		this.closeAfterResponse=closeAfterResponse;
+		responseHeader.reset();
+		responseHeaderComplete=false;
+		contentLength=-1;
+		chunked=false;
+		bodyBytes=0;
+		chunkState=CHUNK_SIZE;
+		chunkRemaining=0;
+		chunkLine.setLength(0);
+		bodyMalformed=false;
+		statusCode=0;
+	}
+
+	/**
+	 * <p>Get a header field of the request.</p>
+	 *
+	 * @param	name	the name of the field (case insensitive)
+	 * @return		the value of the field, or null if absent
+	 */
+	String getRequestHeader(String name) {
+		return requestHeaders == null ? null : (String)(requestHeaders.get(name.toLowerCase(java.util.Locale.US)));
+	}
+
+	/**
+	 * @return	the HTTP version of the request, e.g., "HTTP/1.1", or null if the request line is malformed
+	 */
+	String getRequestHttpVersion() {
+		return requestHttpVersion;
+	}
+
+	/**
+	 * @return	the status code of the response, or 0 if the status line has not yet been written
+	 */
+	int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * <p>Complete the response.</p>
+	 *
+	 * @return			true if the connection may be kept open for another request
+	 * @exception	IOException	if the response cannot be written
+	 */
+	boolean finishResponse() throws IOException {
+		if (!responseHeaderComplete && responseHeader.size() > 0) {
+			// not a well formed header, so send what we have, and close the connection to mark the end
+			byte[] bytes = responseHeader.toByteArray();
+			put(bytes,0,bytes.length);
+			closeAfterResponse=true;
+		}
+		flush();
+		boolean bodyComplete = chunked ? chunkState == DONE : (contentLength >= 0 && bodyBytes == contentLength);
+		return responseHeaderComplete && bodyComplete && !bodyMalformed && !closeAfterResponse;
+	}
+
+	/**
+	 * <p>Parse the completed response header, and send it, adding a "Connection: close" field if necessary.</p>
+	 *
+	 * @exception	IOException
+	 */
+	private void sendResponseHeader() throws IOException {
+		String header = responseHeader.toString("ISO-8859-1");
+		String[] lines = header.split("\r?\n");
+		if (lines.length > 0) {
+			String[] statusLine = lines[0].split(" ");
+			if (statusLine.length > 1) {
+				try {
+					statusCode = Integer.parseInt(statusLine[1]);
+				}
+				catch (NumberFormatException e) {
+				}
+			}
+		}
+		boolean haveConnectionClose = false;
+		for (int i=1; i<lines.length; ++i) {
+			String line = lines[i];
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				String name = line.substring(0,colon).trim().toLowerCase(java.util.Locale.US);
+				String value = line.substring(colon+1).trim();
+				if (name.equals("content-length")) {
+					try {
+						contentLength = Long.parseLong(value);
+					}
+					catch (NumberFormatException e) {
+						closeAfterResponse=true;
+					}
+				}
+				else if (name.equals("transfer-encoding")) {
+					chunked = value.toLowerCase(java.util.Locale.US).endsWith("chunked");
+				}
+				else if (name.equals("connection") && value.equalsIgnoreCase("close")) {
+					haveConnectionClose=true;
+					closeAfterResponse=true;
+				}
+			}
+		}
+		if (!chunked && contentLength < 0) {
+			closeAfterResponse=true;		// only closing the connection will mark the end of the body
+		}
+		byte[] bytes = responseHeader.toByteArray();
+		if (closeAfterResponse && !haveConnectionClose) {
+			int endOfFields = bytes.length - (header.endsWith("\r\n") ? 2 : 1);	// before the empty line
+			put(bytes,0,endOfFields);
+			byte[] field = "Connection: close\r\n".getBytes("ISO-8859-1");
+			put(field,0,field.length);
+			put(bytes,endOfFields,bytes.length-endOfFields);
+		}
+		else {
+			put(bytes,0,bytes.length);
+		}
+	}
+
+	/**
+	 * <p>Keep track of the body, to know when it is complete.</p>
+	 *
+	 * @param	b	the bytes of the body
+	 * @param	off	the offset
+	 * @param	len	the number of bytes
+	 */
+	private void countBody(byte[] b,int off,int len) {
+		bodyBytes+=len;
+		if (chunked) {
+			int end = off+len;
+			while (off < end) {
+				if (chunkState == CHUNK_DATA) {
+					int n = (int)Math.min(chunkRemaining,end-off);
+					off+=n;
+					chunkRemaining-=n;
+					if (chunkRemaining == 0) {
+						chunkState=CHUNK_DATA_END;
+					}
+				}
+				else if (chunkState == DONE) {
+					bodyMalformed=true;			// more after the last chunk
+					off=end;
+				}
+				else {
+					char c = (char)(b[off++] & 0xff);
+					if (c != '\n') {
+						if (c != '\r') {
+							chunkLine.append(c);
+						}
+					}
+					else {
+						String line = chunkLine.toString();
+						chunkLine.setLength(0);
+						if (chunkState == CHUNK_SIZE) {
+							int semicolon = line.indexOf(';');
+							try {
+								chunkRemaining = Long.parseLong((semicolon < 0 ? line : line.substring(0,semicolon)).trim(),16);
+								chunkState = chunkRemaining == 0 ? TRAILER : CHUNK_DATA;
+							}
+							catch (NumberFormatException e) {
+								bodyMalformed=true;
+							}
+						}
+						else if (chunkState == CHUNK_DATA_END) {
+							chunkState=CHUNK_SIZE;
+						}
+						else if (chunkState == TRAILER && line.length() == 0) {
+							chunkState=DONE;
+						}
+					}
+				}
+			}
+		}
+		else if (contentLength >= 0 && bodyBytes > contentLength) {
+			bodyMalformed=true;
+		}
+	}
+
+	public void write(int b) throws IOException {
+		byte[] bytes = { (byte)b };
+		write(bytes,0,1);
+	}
+
+	public void write(byte[] b,int off,int len) throws IOException {
+		if (!responseHeaderComplete) {
+			int end = off+len;
+			while (off < end && !responseHeaderComplete) {
+				byte c = b[off++];
+				responseHeader.write(c);
+				if (c == '\n') {
+					byte[] bytes = responseHeader.toByteArray();
+					int n = bytes.length;
+					if ((n >= 2 && bytes[n-2] == '\n') || (n >= 4 && bytes[n-2] == '\r' && bytes[n-3] == '\n')) {
+						responseHeaderComplete=true;
+						sendResponseHeader();
+					}
+				}
+			}
+			len=end-off;
+		}
+		if (len > 0) {
+			countBody(b,off,len);
+			put(b,off,len);
+		}
+	}
+
+	/**
+	 * <p>Copy bytes into the buffer, writing it to the connection whenever it is full.</p>
+	 *
+	 * @param	b	the bytes
+	 * @param	off	the offset
+	 * @param	len	the number of bytes
+	 * @exception	IOException
+	 */
+	private void put(byte[] b,int off,int len) throws IOException {
+		while (len > 0) {
+			if (!buffer.hasRemaining()) {
+				writeBuffer();
+			}
+			int n = Math.min(len,buffer.remaining());
+			buffer.put(b,off,n);
+			off+=n;
+			len-=n;
+		}
+	}
+
+	/**
+	 * <p>Write the buffer to the connection, waiting if necessary.</p>
+	 *
+	 * @exception	IOException	if the connection is closed, or cannot accept more before the timeout
+	 */
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0) {
+				waitUntilWritable();
+			}
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * <p>Wait until the connection can accept more.</p>
+	 *
+	 * @exception	IOException	if the connection cannot accept more before the timeout
+	 */
+	private void waitUntilWritable() throws IOException {
+		if (writeSelector == null) {
+			writeSelector = Selector.open();
+			channel.register(writeSelector,SelectionKey.OP_WRITE);
+		}
+		if (writeSelector.select(writeTimeoutInMilliseconds) == 0) {
+			throw new IOException("Timed out writing response");
+		}
+		writeSelector.selectedKeys().clear();
+	}
+
+	public void flush() throws IOException {
+		if (buffer.position() > 0) {
+			writeBuffer();
+		}
+	}
+
+	/**
+	 * <p>Send part of a file as (part of) the body of the response, directly from the file to the connection.</p>
+	 *
+	 * <p>The header must already have been written.</p>
+	 *
+	 * @param	file		the file
+	 * @param	position	the offset in the file of the first byte to send
+	 * @param	count		the number of bytes to send
+	 * @exception	IOException	if the file cannot be read or the connection written
+	 */
+	void transferFrom(FileChannel file,long position,long count) throws IOException {
+		if (!responseHeaderComplete) {
+			throw new IOException("Response header not complete before body");
+		}
+		flush();
+		bodyBytes+=count;
+		if (chunked || (contentLength >= 0 && bodyBytes > contentLength)) {
+			bodyMalformed=true;
+		}
+		long end = position+count;
+		while (position < end) {
+			long n = file.transferTo(position,end-position,channel);
+			if (n == 0) {
+				if (position >= file.size()) {
+					throw new IOException("File shorter than expected");
+				}
+				waitUntilWritable();
+			}
+			position+=n;
+		}
+	}
+
+	/**
+	 * <p>Release the resources used to wait for the connection, but do not close the connection itself.</p>
+	 */
+	public void close() throws IOException {
+		if (writeSelector != null) {
+			writeSelector.close();
+			writeSelector=null;
+		}
+	}
+}
@@ -2,18 +2,34 @@
 
 package com.pixelmed.web;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
 import java.util.StringTokenizer;
-import java.util.Vector;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pixelmed.utils.LatencyHistogram;
 
 /**
  * <p>The {@link com.pixelmed.web.HttpServer HttpServer} class is an abstract class that implements
@@ -22,6 +38,17 @@ import java.util.Vector;
  * <p>An abstract inner class, such as {@link com.pixelmed.web.HttpServer.Worker HttpServer.Worker},
  * needs to be extended by any concrete sub-class, and in particular its {@link Worker#generateResponseToGetRequest(String,OutputStream) generateResponseToGetRequest()} implemented.</p>
  *
+ * <p>Connections are accepted and watched by a single thread using a {@link java.nio.channels.Selector Selector}, and are kept open after a response
+ * whose end the client can recognize (from its Content-Length or chunked Transfer-Encoding), so that further requests, including requests
+ * sent without waiting for the preceding response (pipelined), can be made without a new connection. A connection on which nothing is received
+ * for the keep-alive timeout is closed.</p>
+ *
+ * <p>Requests are handled by a bounded pool of worker threads, with a bounded queue of connections waiting for a worker; when both are full,
+ * further connections with a request are refused with a 503 Service Unavailable response, rather than consuming ever more threads and memory.
+ * Each thread of the pool has its own instance of {@link com.pixelmed.web.HttpServer.Worker HttpServer.Worker}, created with {@link #createWorker() createWorker()}.</p>
+ *
+ * <p>The time taken to respond to each request is recorded, and may be obtained with {@link #getStatistics() getStatistics()}.</p>
+ *
  * @see com.pixelmed.web.WadoServer
  *
  * @author	dclunie
@@ -29,9 +56,29 @@ import java.util.Vector;
 public abstract class HttpServer implements Runnable {
 	private static final String identString = "@(#) $Header: /var/cvs-rep/pmedim/src/com/pixelmed/web/HttpServer.java,v 1.1.1.1 2011-05-21 10:08:47 nicola Exp $";
 
+	private static final int maximumRequestHeaderLength = 65536;
+	private static final long idleCheckIntervalInMilliseconds = 1000;
+
 	private int port;
-	private int numberOfWorkers;
-	private Vector threadPool;
+	private int numberOfWorkers = 20;
+	private int numberOfQueuedConnections = 100;
+	private long keepAliveTimeoutInMilliseconds = 15000;
+	private int maximumRequestsPerConnection = 1000;
+
+	private ThreadPoolExecutor threadPool;
+	private Selector selector;
+	private ConcurrentLinkedQueue connectionsToWatch = new ConcurrentLinkedQueue();	// of Connection, returned by workers when there is no complete request left to handle
+
+	private ThreadLocal workers = new ThreadLocal() {
+		protected Object initialValue() {
+			return createWorker();
+		}
+	};
+
+	private LatencyHistogram requestLatencyHistogram = new LatencyHistogram();
+	private AtomicLong connectionsAccepted = new AtomicLong();
+	private AtomicLong connectionsRefused = new AtomicLong();
+	private AtomicLong requestsOnKeptAliveConnections = new AtomicLong();
 	
 	protected int webServerDebugLevel;
 
@@ -49,35 +96,119 @@ public abstract class HttpServer implements Runnable {
 	public void initializeThreadPool(int port) {
 if (webServerDebugLevel > 1) System.err.println("HttpServer.initializeThreadPool(): start");
 		this.port=port;
-		numberOfWorkers=20;
-		threadPool=new Vector();
-		for (int i=0; i<numberOfWorkers; ++i) {
-			Worker w = createWorker();
-			(new Thread(w, "worker #"+i)).start();
-			threadPool.addElement(w);
-		}
+		threadPool = new ThreadPoolExecutor(numberOfWorkers,numberOfWorkers,60,TimeUnit.SECONDS,
+			new ArrayBlockingQueue(numberOfQueuedConnections),
+			new ThreadFactory() {
+				private int count;
+				public synchronized Thread newThread(Runnable r) {
+					return new Thread(r,"worker #"+(count++));
+				}
+			});
+		threadPool.allowCoreThreadTimeOut(true);
 if (webServerDebugLevel > 1) System.err.println("HttpServer.initializeThreadPool(): end");
 	}
 
+	/**
+	 * <p>Set the number of requests that may be handled at the same time.</p>
+	 *
+	 * @param	numberOfWorkers			the maximum number of worker threads (default 20)
+	 * @param	numberOfQueuedConnections	the maximum number of connections with a request waiting for a worker, beyond which connections are refused (default 100),
+	 *						which takes effect only if set before {@link #initializeThreadPool(int) initializeThreadPool()}
+	 */
+	public void setNumberOfWorkers(int numberOfWorkers,int numberOfQueuedConnections) {
+		this.numberOfQueuedConnections=numberOfQueuedConnections;
+		if (threadPool != null) {
+			if (numberOfWorkers > this.numberOfWorkers) {
+				threadPool.setMaximumPoolSize(numberOfWorkers);
+				threadPool.setCorePoolSize(numberOfWorkers);
+			}
+			else {
+				threadPool.setCorePoolSize(numberOfWorkers);
+				threadPool.setMaximumPoolSize(numberOfWorkers);
+			}
+		}
+		this.numberOfWorkers=numberOfWorkers;
+	}
+
+	/**
+	 * <p>Set how long an open connection may remain without a request before it is closed.</p>
+	 *
+	 * @param	keepAliveTimeoutInMilliseconds	the timeout (default 15 seconds)
+	 */
+	public void setKeepAliveTimeout(long keepAliveTimeoutInMilliseconds) {
+		this.keepAliveTimeoutInMilliseconds=keepAliveTimeoutInMilliseconds;
+	}
+
+	/**
+	 * <p>Set how many requests may be made on one connection before it is closed.</p>
+	 *
+	 * @param	maximumRequestsPerConnection	the maximum number of requests (default 1000)
+	 */
+	public void setMaximumRequestsPerConnection(int maximumRequestsPerConnection) {
+		this.maximumRequestsPerConnection=maximumRequestsPerConnection;
+	}
+
+	/**
+	 * @return	the number of connections accepted and refused, the number of requests on connections that were kept open, and a histogram of the time taken to respond to requests
+	 */
+	public String getStatistics() {
+		return "Connections accepted="+connectionsAccepted.get()+" refused="+connectionsRefused.get()+"; requests on kept alive connections="+requestsOnKeptAliveConnections.get()
+			+"; active workers="+(threadPool == null ? 0 : threadPool.getActiveCount())+" queued="+(threadPool == null ? 0 : threadPool.getQueue().size())
+			+"; latency "+requestLatencyHistogram;
+	}
+
 	public synchronized void run() {
 if (webServerDebugLevel > 1) System.err.println("HttpServer.run(): start");
 		try {
-			ServerSocket ss = new ServerSocket(port);
+			selector = Selector.open();
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector,SelectionKey.OP_ACCEPT);
+			long lastIdleCheck = System.currentTimeMillis();
 			while (true) {
-				Socket s = ss.accept();
-				Worker w = null;
-				synchronized (threadPool) {
-					if (threadPool.isEmpty()) {
-if (webServerDebugLevel > 1) System.err.println("HttpServer.run(): additional worker");
-						Worker ws = createWorker();
-						ws.setSocket(s);
-						(new Thread(ws, "additional worker")).start();
+				selector.select(idleCheckIntervalInMilliseconds);
+				Connection returned;
+				while ((returned=(Connection)connectionsToWatch.poll()) != null) {
+					if (returned.key.isValid()) {
+						returned.key.interestOps(SelectionKey.OP_READ);
 					}
-					else {
-						w = (Worker) threadPool.elementAt(0);
-						threadPool.removeElementAt(0);
-						w.setSocket(s);
+				}
+				Iterator i = selector.selectedKeys().iterator();
+				while (i.hasNext()) {
+					SelectionKey key = (SelectionKey)(i.next());
+					i.remove();
+					if (!key.isValid()) {
+						continue;
 					}
+					if (key.isAcceptable()) {
+						SocketChannel channel;
+						while ((channel=serverChannel.accept()) != null) {
+if (webServerDebugLevel > 1) System.err.println("HttpServer.run(): accepted connection from "+channel.socket().getRemoteSocketAddress());
+							channel.configureBlocking(false);
+							channel.socket().setTcpNoDelay(true);
+							Connection connection = new Connection(channel);
+							connection.key = channel.register(selector,SelectionKey.OP_READ,connection);
+							connectionsAccepted.incrementAndGet();
+						}
+					}
+					else if (key.isReadable()) {
+						key.interestOps(0);		// the worker will read the request, and return the connection when done
+						Connection connection = (Connection)(key.attachment());
+						try {
+							threadPool.execute(connection);
+						}
+						catch (RejectedExecutionException e) {
+if (webServerDebugLevel > 0) System.err.println("HttpServer.run(): all workers busy, refusing connection from "+connection.channel.socket().getRemoteSocketAddress());
+							connection.refuse();
+						}
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastIdleCheck >= idleCheckIntervalInMilliseconds) {
+					lastIdleCheck = now;
+					closeIdleConnections(now);
 				}
 			}
 		}
@@ -86,111 +217,223 @@ if (webServerDebugLevel > 1) System.err.println("HttpServer.run(): additional wo
 		}
 	}
 
-	protected abstract class Worker implements Runnable {
-		private Socket socket;
-		
-		private synchronized void setSocket(Socket socket) {
-			this.socket = socket;
-			notify();
+	/**
+	 * <p>Close connections that have been waiting for a request for longer than the keep-alive timeout.</p>
+	 *
+	 * @param	now	the current time in milliseconds
+	 */
+	private void closeIdleConnections(long now) {
+		Iterator i = selector.keys().iterator();
+		while (i.hasNext()) {
+			SelectionKey key = (SelectionKey)(i.next());
+			Object attachment = key.attachment();
+			if (attachment instanceof Connection && key.isValid() && key.interestOps() == SelectionKey.OP_READ) {
+				Connection connection = (Connection)attachment;
+				if (now - connection.lastActivity > keepAliveTimeoutInMilliseconds) {
+if (webServerDebugLevel > 1) System.err.println("HttpServer.closeIdleConnections(): closing idle connection from "+connection.channel.socket().getRemoteSocketAddress());
+					connection.close();
+				}
+			}
 		}
-		
-		public synchronized void run() {
-if (webServerDebugLevel > 1) System.err.println("HttpServer.Worker.run(): start");
-			while(true) {
-				if (socket == null) {
-					/* nothing to do */
-					try {
-						wait();
-					} catch (InterruptedException e) {
-						/* should not happen */
-						continue;
+	}
+
+	/**
+	 * <p>An open connection, which is either watched by the selector for the arrival of a request, or being handled by a worker thread.</p>
+	 */
+	private class Connection implements Runnable {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer input;		// bytes received but not yet handled
+		private HttpResponseOutputStream output;
+		private volatile long lastActivity;
+		private int numberOfRequests;
+
+		Connection(SocketChannel channel) {
+			this.channel=channel;
+			input = ByteBuffer.allocate(4096);
+			output = new HttpResponseOutputStream(channel);
+			lastActivity = System.currentTimeMillis();
+		}
+
+		/**
+		 * <p>Handle every complete request received, in order, then return the connection to the selector to wait for more.</p>
+		 */
+		public void run() {
+if (webServerDebugLevel > 1) System.err.println("HttpServer.Connection.run(): start");
+			try {
+				while (true) {
+					int endOfHeader = findEndOfRequestHeader();
+					if (endOfHeader < 0) {
+						if (!input.hasRemaining()) {
+							if (input.capacity() >= maximumRequestHeaderLength) {
+								writeStatus("400 Bad Request");
+								close();
+								return;
+							}
+							ByteBuffer larger = ByteBuffer.allocate(input.capacity()*2);
+							input.flip();
+							larger.put(input);
+							input = larger;
+						}
+						int n = channel.read(input);
+						if (n < 0) {
+if (webServerDebugLevel > 1) System.err.println("HttpServer.Connection.run(): closed by client");
+							close();
+							return;
+						}
+						if (n == 0) {
+							// no complete request, so wait for the rest
+							lastActivity = System.currentTimeMillis();
+							connectionsToWatch.add(this);
+							selector.wakeup();
+							return;
+						}
 					}
-				}
-				try {
-					handleConnection();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-				// go back in wait queue if there's fewer than numHandler connections.
-if (webServerDebugLevel > 1) System.err.println("HttpServer.Worker.run(): done");
-				socket = null;
-				synchronized (threadPool) {
-					if (threadPool.size() >= numberOfWorkers) {
-						/* too many threads, exit this one */
-if (webServerDebugLevel > 1) System.err.println("HttpServer.Worker.run(): not needed");
+					else if (!handleRequest(endOfHeader)) {
+						close();
 						return;
 					}
-					else {
-if (webServerDebugLevel > 1) System.err.println("HttpServer.Worker.run(): going back into pool");
-						threadPool.addElement(this);
-					}
 				}
 			}
+			catch (Exception e) {
+if (webServerDebugLevel > 0) e.printStackTrace(System.err);
+				close();
+			}
 		}
-		
-		private void handleConnection() {
-if (webServerDebugLevel > 1) System.err.println("HttpServer.Worker.handleConnection():");
-			try {
-			    //int transactionCount=1;
-			    String line;
-			    //do {
-//if (webServerDebugLevel > 1) System.err.println("HttpServer.Worker.handleConnection(): transactionCount="+transactionCount);
-				BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),"UTF-8"));
-				PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),"UTF-8"));
-				Vector requestAndHeaderLines = new Vector();
-				while ((line=reader.readLine()) != null && line.length() > 0) {	// loop until empty line
-if (webServerDebugLevel > 1) System.err.println("HttpServer.Worker.handleConnection(): read line=\""+line+"\"");
-					requestAndHeaderLines.add(line);
-				}
-				if (requestAndHeaderLines.size() > 0 ) {
-					String requestLine = (String)requestAndHeaderLines.get(0);
-if (webServerDebugLevel > 1) System.err.println("HttpServer.Worker.handleConnection(): requestLine=\""+requestLine+"\"");
-					StringTokenizer st = new StringTokenizer(requestLine," ");
-					if (st.countTokens() != 3) {
-						writer.print("HTTP/1.1 400 Bad Request\r\n");
-						writer.flush();
+
+		/**
+		 * <p>Find the empty line that ends the header of the first request received, ignoring any empty lines preceding the request line.</p>
+		 *
+		 * @return	the offset after the end of the header, or -1 if the header is not yet complete
+		 */
+		private int findEndOfRequestHeader() {
+			byte[] b = input.array();
+			int n = input.position();
+			int start = 0;
+			while (start < n && (b[start] == '\r' || b[start] == '\n')) {
+				++start;
+			}
+			if (start > 0) {
+				System.arraycopy(b,start,b,0,n-start);
+				input.position(n-start);
+				n-=start;
+			}
+			for (int i=0; i<n-1; ++i) {
+				if (b[i] == '\n') {
+					if (b[i+1] == '\n') {
+						return i+2;
 					}
-					else {
-						String method = st.nextToken();
-						String requestURI = st.nextToken();
-						String httpVersion = st.nextToken();
-						if (httpVersion == null || !(httpVersion.equals("HTTP/1.0") || httpVersion.equals("HTTP/1.1"))) {
-							writer.print("HTTP/1.1 505 HTTP Version Not Supported\r\n");
-							writer.flush();
-						}
-						else if (method != null) {
-							if (method.equals("GET")) {
-								//try {
-									generateResponseToGetRequest(requestURI,socket.getOutputStream());
-								//}
-								//catch (Exception e) {
-								//	e.printStackTrace(System.err);
-								//}
-							}
-							else {
-								writer.print("HTTP/1.1 501 Not Implemented\r\n");
-								writer.flush();
-							}
-						}
+					if (i+2 < n && b[i+1] == '\r' && b[i+2] == '\n') {
+						return i+3;
 					}
 				}
-				//++transactionCount;
-			    //} while (line != null);
+			}
+			return -1;
+		}
+
+		/**
+		 * <p>Handle the first request received, and remove it.</p>
+		 *
+		 * @param	endOfHeader	the offset after the end of the header of the request
+		 * @return			true if the connection may be kept open for another request
+		 * @exception	IOException	if the response cannot be sent
+		 */
+		private boolean handleRequest(int endOfHeader) throws IOException {
+			long startTime = System.nanoTime();
+			byte[] b = input.array();
+			String header = new String(b,0,endOfHeader,"UTF-8");
+			int remaining = input.position()-endOfHeader;
+			System.arraycopy(b,endOfHeader,b,0,remaining);
+			input.position(remaining);
+			++numberOfRequests;
+
+			String[] lines = header.split("\r?\n");
+			String requestLine = lines[0];
+if (webServerDebugLevel > 1) System.err.println("HttpServer.Connection.handleRequest(): requestLine=\""+requestLine+"\"");
+			HashMap requestHeaders = new HashMap();
+			for (int i=1; i<lines.length; ++i) {
+				String line = lines[i];
+if (webServerDebugLevel > 1) System.err.println("HttpServer.Connection.handleRequest(): read line=\""+line+"\"");
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					requestHeaders.put(line.substring(0,colon).trim().toLowerCase(Locale.US),line.substring(colon+1).trim());
+				}
+			}
+			StringTokenizer st = new StringTokenizer(requestLine," ");
+			String method = st.countTokens() == 3 ? st.nextToken() : null;
+			String requestURI = method == null ? null : st.nextToken();
+			String httpVersion = method == null ? null : st.nextToken();
+
+			String connectionHeader = (String)(requestHeaders.get("connection"));
+			boolean closeAfterResponse = numberOfRequests >= maximumRequestsPerConnection
+				|| !"HTTP/1.1".equals(httpVersion)											// we do not send the "Connection: keep-alive" that HTTP/1.0 needs
+				|| (connectionHeader != null && connectionHeader.toLowerCase(Locale.US).indexOf("close") != -1)
+				|| requestHeaders.containsKey("content-length") || requestHeaders.containsKey("transfer-encoding");	// request bodies are not read
+			output.startResponse(requestHeaders,httpVersion,closeAfterResponse);
+
+			if (method == null) {
+				writeStatus("400 Bad Request");
+			}
+			else if (!(httpVersion.equals("HTTP/1.0") || httpVersion.equals("HTTP/1.1"))) {
+				writeStatus("505 HTTP Version Not Supported");
+			}
+			else if (method.equals("GET")) {
+				((Worker)(workers.get())).generateResponseToGetRequest(requestURI,output);
+			}
+			else {
+				writeStatus("501 Not Implemented");
+			}
+			boolean keepAlive = output.finishResponse();
+			long nanoseconds = System.nanoTime()-startTime;
+			requestLatencyHistogram.add(nanoseconds);
+			if (numberOfRequests > 1) {
+				requestsOnKeptAliveConnections.incrementAndGet();
+			}
+if (webServerDebugLevel > 1) System.err.println("HttpServer.Connection.handleRequest(): status "+output.getStatusCode()+" in "+(nanoseconds/1000)+" us, keepAlive="+keepAlive);
+			return keepAlive;
+		}
+
+		/**
+		 * <p>Send a response consisting only of a status line.</p>
+		 *
+		 * @param	status		the status code and reason phrase
+		 * @exception	IOException
+		 */
+		private void writeStatus(String status) throws IOException {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(output,"UTF-8"));
+			writer.print("HTTP/1.1 "+status+"\r\n");
+			writer.print("Content-Length: 0\r\n");
+			writer.print("\r\n");
+			writer.flush();
+		}
+
+		/**
+		 * <p>Tell the client that the server is too busy, without waiting, then close the connection.</p>
+		 */
+		private void refuse() {
+			connectionsRefused.incrementAndGet();
+			try {
+				channel.write(ByteBuffer.wrap("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("US-ASCII")));
 			}
 			catch (IOException e) {
-				e.printStackTrace(System.err);
 			}
-			finally {
-				try {
-if (webServerDebugLevel > 1) System.err.println("HttpServer.Worker.handleConnection(): closing socket");
-					socket.close();
-				}
-				catch (IOException e) {
-					e.printStackTrace(System.err);
-				}
+			close();
+		}
+
+		private void close() {
+if (webServerDebugLevel > 1) System.err.println("HttpServer.Connection.close(): closing socket");
+			key.cancel();
+			try {
+				output.close();
+				channel.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace(System.err);
 			}
 		}
+	}
 
+	protected abstract class Worker {
 		abstract protected void generateResponseToGetRequest(String requestURI,OutputStream out) throws IOException;
 	}
 
@@ -0,0 +1,375 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.pixelmed.utils.FileUtilities;
+import com.pixelmed.utils.HexDump;
+
+/**
+ * <p>A bounded cache on disk of images rendered in response to WADO requests, such as JPEG thumbnails,
+ * so that the same image requested repeatedly, whether by the same or different users, is only rendered once.</p>
+ *
+ * <p>The same mechanism is used for DICOM objects transcoded to a different transfer syntax or reduced to a single frame,
+ * in a separate cache.</p>
+ *
+ * <p>Each rendered image is stored in a file in the cache folder, named by a digest of a key that describes
+ * everything that affects the rendering (the SOP Instance UID, frame, window, size, quality and annotations).
+ * Since the name of the file can be derived from the key, the cache survives a restart; the files already in the folder are
+ * found when the cache is constructed, and their last modification time is used to restore the order in which they were last used.</p>
+ *
+ * <p>Once the total size of the files exceeds the maximum size, the least recently used files are deleted, unless they are
+ * in use, i.e., between a call to {@link #get(String,Renderer) get()} and the corresponding call to {@link #release(String) release()}.</p>
+ *
+ * <p>Only one thread renders any particular key; other threads that request the same key at the same time wait for it to
+ * finish rather than render it again.</p>
+ *
+ * @author	dclunie
+ */
+public class RenderedImageCache {
+
+	/**
+	 * <p>Renders an image into a file.</p>
+	 */
+	public interface Renderer {
+		/**
+		 * @param	file		the file to write
+		 * @exception	Exception	if the image cannot be rendered
+		 */
+		public void render(File file) throws Exception;
+	}
+
+	/***/
+	private static final String temporaryFileSuffix = ".tmp";
+
+	/***/
+	private static RenderedImageCache defaultInstance;
+
+	/***/
+	private static RenderedImageCache defaultTranscodedObjectInstance;
+
+	/**
+	 * <p>A file in the cache.</p>
+	 */
+	private static class Entry {
+		/***/
+		final File file;
+		/***/
+		long sizeInBytes;
+		/***/
+		boolean rendered;
+		/***/
+		Exception failure;
+		/***/
+		int inUse;
+
+		Entry(File file) {
+			this.file=file;
+		}
+	}
+
+	/***/
+	private File folder;
+	/***/
+	private String suffix;
+	/***/
+	private long maximumSizeInBytes;
+	/***/
+	private long sizeInBytes;
+	/***/
+	private LinkedHashMap entries;	// key is String digest of key, value is Entry; in order of access, least recently used first
+
+	/***/
+	private long hits;
+	/***/
+	private long misses;
+	/***/
+	private long coalesced;
+	/***/
+	private long evictions;
+	/***/
+	private long failures;
+
+	/**
+	 * <p>Construct a cache in the specified folder, creating the folder if necessary, and adding any files already in it.</p>
+	 *
+	 * <p>Temporary files left over from rendering that was interrupted are deleted.</p>
+	 *
+	 * @param	folder			the folder in which to store the rendered images
+	 * @param	suffix			the suffix of the files, e.g., ".jpg"
+	 * @param	maximumSizeInBytes	the largest total size of all the files
+	 * @exception	IOException		if the folder cannot be created
+	 */
+	public RenderedImageCache(File folder,String suffix,long maximumSizeInBytes) throws IOException {
+		this.folder=folder;
+		this.suffix=suffix;
+		this.maximumSizeInBytes=maximumSizeInBytes;
+		entries = new LinkedHashMap(16,0.75f,true/*accessOrder*/);
+		if (!folder.exists()) {
+			folder.mkdirs();
+		}
+		if (!folder.isDirectory()) {
+			throw new IOException("Cannot create rendered image cache folder "+folder);
+		}
+		File[] files = folder.listFiles();
+		if (files != null) {
+			Arrays.sort(files,new Comparator() {
+				public int compare(Object o1,Object o2) {
+					long m1 = ((File)o1).lastModified();
+					long m2 = ((File)o2).lastModified();
+					return m1 < m2 ? -1 : (m1 > m2 ? 1 : 0);
+				}
+			});
+			for (int i=0; i<files.length; ++i) {
+				File file = files[i];
+				String name = file.getName();
+				if (name.endsWith(temporaryFileSuffix)) {
+					file.delete();
+				}
+				else if (file.isFile() && name.endsWith(suffix)) {
+					Entry entry = new Entry(file);
+					entry.sizeInBytes = file.length();
+					entry.rendered = true;
+					entries.put(name.substring(0,name.length()-suffix.length()),entry);
+					sizeInBytes+=entry.sizeInBytes;
+				}
+			}
+		}
+		synchronized (this) {
+			evict();
+		}
+	}
+
+	/**
+	 * <p>Get the cache used when none has been configured.</p>
+	 *
+	 * <p>The cache is in a folder named "PixelmedRenderedImageCache" in the system temporary folder, holds JPEG files, and has a maximum size of 256 MB.</p>
+	 *
+	 * @return			the default cache
+	 * @exception	IOException	if the folder cannot be created
+	 */
+	public static synchronized RenderedImageCache getDefaultInstance() throws IOException {
+		if (defaultInstance == null) {
+			defaultInstance = new RenderedImageCache(new File(System.getProperty("java.io.tmpdir"),"PixelmedRenderedImageCache"),".jpg",256l*1024*1024);
+		}
+		return defaultInstance;
+	}
+
+	/**
+	 * <p>Get the cache of transcoded DICOM objects used when none has been configured.</p>
+	 *
+	 * <p>The cache is in a folder named "PixelmedTranscodedObjectCache" in the system temporary folder, holds DICOM files, and has a maximum size of 1 GB.</p>
+	 *
+	 * @return			the default cache of transcoded objects
+	 * @exception	IOException	if the folder cannot be created
+	 */
+	public static synchronized RenderedImageCache getDefaultTranscodedObjectInstance() throws IOException {
+		if (defaultTranscodedObjectInstance == null) {
+			defaultTranscodedObjectInstance = new RenderedImageCache(new File(System.getProperty("java.io.tmpdir"),"PixelmedTranscodedObjectCache"),".dcm",1024l*1024*1024);
+		}
+		return defaultTranscodedObjectInstance;
+	}
+
+	/**
+	 * <p>Make a key that identifies a transcoded object.</p>
+	 *
+	 * @param	objectUID		the SOP Instance UID
+	 * @param	frameNumber		the frame number, or -1 if all frames
+	 * @param	transferSyntaxUID	the transfer syntax
+	 * @return				the key
+	 */
+	public static String makeKey(String objectUID,int frameNumber,String transferSyntaxUID) {
+		return objectUID+"#"+Integer.toString(frameNumber)+"#"+transferSyntaxUID;
+	}
+
+	/**
+	 * <p>Make a key that identifies a rendered image.</p>
+	 *
+	 * @param	objectUID	the SOP Instance UID
+	 * @param	frameNumber	the frame number, or -1 if not specified
+	 * @param	windowCenter	the window center, or 0 if not specified
+	 * @param	windowWidth	the window width, or 0 if not specified
+	 * @param	columns		the width, or -1 if not specified
+	 * @param	rows		the height, or -1 if not specified
+	 * @param	quality		the image quality, or -1 if not specified
+	 * @param	annotation	the annotation applied, or null if none
+	 * @return			the key
+	 */
+	public static String makeKey(String objectUID,int frameNumber,double windowCenter,double windowWidth,int columns,int rows,int quality,String annotation) {
+		return objectUID+"#"+Integer.toString(frameNumber)+"#"+Double.toString(windowCenter)+"#"+Double.toString(windowWidth)
+			+"#"+Integer.toString(columns)+"#"+Integer.toString(rows)+"#"+Integer.toString(quality)+"#"+annotation;
+	}
+
+	/**
+	 * @param	key	the key
+	 * @return		a digest of the key that may be used as a file name
+	 */
+	private static String digest(String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			return HexDump.byteArrayToHexString(md.digest(key.getBytes("UTF-8")));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);		// every implementation of Java is required to support SHA-1
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);		// every implementation of Java is required to support UTF-8
+		}
+	}
+
+	/**
+	 * <p>Get the file containing a rendered image, rendering it if not already in the cache.</p>
+	 *
+	 * <p>The file will not be deleted until {@link #release(String) release()} is called with the same key,
+	 * which must be done if and only if this method succeeds.</p>
+	 *
+	 * @param	key		the key that identifies the rendered image
+	 * @param	renderer	renders the image if it is not already in the cache
+	 * @return			the file containing the rendered image
+	 * @exception	Exception	if the image cannot be rendered
+	 */
+	public File get(String key,Renderer renderer) throws Exception {
+		String name = digest(key);
+		Entry entry;
+		boolean beingRendered;
+		synchronized (this) {
+			entry = (Entry)(entries.get(name));
+			if (entry == null) {
+				entry = new Entry(new File(folder,name+suffix));
+				entries.put(name,entry);
+			}
+			beingRendered = !entry.rendered && entry.inUse > 0;
+			++entry.inUse;
+		}
+		synchronized (entry) {
+			if (entry.failure != null) {
+				// rendered by another thread that we waited for, and failed
+				synchronized (this) {
+					--entry.inUse;
+				}
+				throw entry.failure;
+			}
+			if (entry.rendered && !entry.file.isFile()) {
+				// file has been removed from under us, e.g., by clearing out the folder, so forget it and render it again
+				synchronized (this) {
+					sizeInBytes-=entry.sizeInBytes;
+					entry.sizeInBytes=0;
+					entry.rendered=false;
+				}
+			}
+			if (entry.rendered) {
+				synchronized (this) {
+					if (beingRendered) {
+						++coalesced;		// rendered by another thread that we waited for
+					}
+					else {
+						++hits;
+					}
+				}
+				entry.file.setLastModified(System.currentTimeMillis());	// so that order of use survives a restart
+			}
+			else {
+				File temporaryFile = new File(folder,name+temporaryFileSuffix);
+				try {
+					renderer.render(temporaryFile);
+					FileUtilities.renameElseCopyTo(temporaryFile,entry.file);
+				}
+				catch (Exception e) {
+					temporaryFile.delete();
+					entry.failure = e;
+					synchronized (this) {
+						++failures;
+						--entry.inUse;
+						entries.remove(name);
+					}
+					throw e;
+				}
+				synchronized (this) {
+					++misses;
+					entry.sizeInBytes = entry.file.length();
+					entry.rendered = true;
+					sizeInBytes+=entry.sizeInBytes;
+					evict();
+				}
+			}
+		}
+		return entry.file;
+	}
+
+	/**
+	 * <p>Indicate that the file returned by {@link #get(String,Renderer) get()} is no longer in use, and may be deleted if necessary.</p>
+	 *
+	 * @param	key		the key that identifies the rendered image
+	 */
+	public synchronized void release(String key) {
+		Entry entry = (Entry)(entries.get(digest(key)));
+		if (entry != null && entry.inUse > 0) {
+			--entry.inUse;
+		}
+		evict();
+	}
+
+	/**
+	 * <p>Delete the least recently used files that are not in use, until the size is within the maximum.</p>
+	 */
+	private void evict() {
+		Iterator i = entries.values().iterator();
+		while (sizeInBytes > maximumSizeInBytes && i.hasNext()) {
+			Entry entry = (Entry)(i.next());
+			if (entry.rendered && entry.inUse == 0) {
+				i.remove();
+				sizeInBytes-=entry.sizeInBytes;
+				++evictions;
+				if (!entry.file.delete()) {
+					entry.file.deleteOnExit();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return	the number of requests for images that were already in the cache
+	 */
+	public synchronized long getHitCount() { return hits; }
+
+	/**
+	 * @return	the number of requests for images that had to be rendered
+	 */
+	public synchronized long getMissCount() { return misses; }
+
+	/**
+	 * @return	the number of requests for images that were being rendered by another thread at the time, and were waited for
+	 */
+	public synchronized long getCoalescedCount() { return coalesced; }
+
+	/**
+	 * @return	the number of files deleted to keep within the maximum size
+	 */
+	public synchronized long getEvictionCount() { return evictions; }
+
+	/**
+	 * @return	the total size of the files in the cache
+	 */
+	public synchronized long getSizeInBytes() { return sizeInBytes; }
+
+	/**
+	 * @return	the number of files and their size, and how often images were found, rendered, waited for, evicted and failed to render
+	 */
+	public synchronized String toString() {
+		long lookups = hits + misses + coalesced;
+		return "RenderedImageCache "+folder+": "+entries.size()+" files of "+sizeInBytes+" bytes (maximum "+maximumSizeInBytes+"); "
+			+hits+" hits, "+misses+" misses, "+coalesced+" coalesced"+(lookups == 0 ? "" : (" ("+((hits+coalesced)*100/lookups)+"% hit rate)"))
+			+", "+evictions+" evicted, "+failures+" failed";
+	}
+}
@@ -52,23 +52,174 @@ abstract class RequestHandler {
 		out.flush();
 	}
 
-	final public void sendHeaderAndBodyOfFile(OutputStream out,File file,String nameToUse,String contentType) throws IOException {
+	/**
+	 * <p>Whether or not a response may be sent with the chunked transfer coding, which is only permitted in response to an HTTP/1.1 request.</p>
+	 *
+	 * @param	out		where the response is to be sent
+	 * @return			true if the response is to an HTTP/1.1 request received by an {@link com.pixelmed.web.HttpServer HttpServer}
+	 */
+	static boolean canSendChunkedBody(OutputStream out) {
+		return out instanceof HttpResponseOutputStream && "HTTP/1.1".equals(((HttpResponseOutputStream)out).getRequestHttpVersion());
+	}
+
+	/**
+	 * <p>Send the header for a body whose length is not known in advance, and return a stream to which to write the body.</p>
+	 *
+	 * <p>The body is sent with the chunked transfer coding, and is complete when the returned stream is closed,
+	 * which does not close the underlying stream. Must not be used unless {@link #canSendChunkedBody(OutputStream) canSendChunkedBody()}.</p>
+	 *
+	 * @param	out		where to send the response
+	 * @param	nameToUse	the file name to suggest to the recipient
+	 * @param	contentType	the MIME type of the body
+	 * @return			the stream to which to write the body
+	 * @exception	IOException
+	 */
+	final public OutputStream sendHeaderForChunkedBody(OutputStream out,String nameToUse,String contentType) throws IOException {
 		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out,"UTF-8"));
-		long fileLength = file.length();
-if (webServerDebugLevel > 0) System.err.println("RequestHandler.sendHeaderAndBodyOfFile(): Length = "+fileLength);
 		writer.print("HTTP/1.1 200 OK\r\n");
 		writer.print("Content-Type: "+contentType+"\r\n");
-		writer.print("Content-Length: "+fileLength+"\r\n");
+		writer.print("Transfer-Encoding: chunked\r\n");
+		writer.print("Content-Disposition: filename="+nameToUse+"\r\n");
+		writer.print("\r\n");
+		writer.flush();
+		return new ChunkedOutputStream(out);
+	}
+
+	/**
+	 * <p>Parse the value of a Range request header field, as defined in IETF RFC2616 section 14.35.</p>
+	 *
+	 * <p>Only a single range of bytes is supported; a request for multiple ranges is ignored, and the whole file sent,
+	 * as is permitted.</p>
+	 *
+	 * @param	range		the value of the Range field
+	 * @param	length		the length of the file
+	 * @return			the offsets of the first and last bytes requested, an empty array if no requested byte is within the file,
+	 *				or null if the value is not a single range of bytes or is invalid, and should be ignored
+	 */
+	static long[] parseRange(String range,long length) {
+		range = range.trim();
+		if (!range.toLowerCase(java.util.Locale.US).startsWith("bytes=") || range.indexOf(',') != -1) {
+			return null;
+		}
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1) {
+			return null;
+		}
+		try {
+			String firstString = spec.substring(0,dash).trim();
+			String lastString = spec.substring(dash+1).trim();
+			long first;
+			long last;
+			if (firstString.length() == 0) {
+				long suffixLength = Long.parseLong(lastString);	// "-n" is the last n bytes
+				if (suffixLength < 0) {
+					return null;
+				}
+				if (suffixLength == 0 || length == 0) {
+					return new long[0];
+				}
+				first = Math.max(0,length-suffixLength);
+				last = length-1;
+			}
+			else {
+				first = Long.parseLong(firstString);
+				last = lastString.length() == 0 ? length-1 : Math.min(Long.parseLong(lastString),length-1);
+				if (first < 0 || (lastString.length() > 0 && Long.parseLong(lastString) < first)) {
+					return null;
+				}
+				if (first >= length) {
+					return new long[0];
+				}
+			}
+			long[] firstAndLast = { first, last };
+			return firstAndLast;
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * <p>Send a file, or the part of it requested by a Range header field of the request, if any.</p>
+	 *
+	 * <p>When sent by an {@link com.pixelmed.web.HttpServer HttpServer}, the body is sent directly from the file to the connection,
+	 * without being copied through the Java heap.</p>
+	 *
+	 * @param	out		where to send the response
+	 * @param	file		the file to send
+	 * @param	nameToUse	the file name to suggest to the recipient
+	 * @param	contentType	the MIME type of the body
+	 * @exception	IOException
+	 */
+	final public void sendHeaderAndBodyOfFile(OutputStream out,File file,String nameToUse,String contentType) throws IOException {
+		sendHeaderAndBodyOfFileRegion(out,file,0,file.length(),nameToUse,contentType);
+	}
+
+	/**
+	 * <p>Send a contiguous region of a file, such as the value of an attribute, or the part of it requested by a Range header field of the request, if any.</p>
+	 *
+	 * <p>The region is treated as if it were the entire file, i.e., any range requested is relative to the start of the region.</p>
+	 *
+	 * @param	out		where to send the response
+	 * @param	file		the file containing the region to send
+	 * @param	offset		the offset of the start of the region in the file
+	 * @param	fileLength	the length of the region
+	 * @param	nameToUse	the file name to suggest to the recipient
+	 * @param	contentType	the MIME type of the body
+	 * @exception	IOException
+	 */
+	final public void sendHeaderAndBodyOfFileRegion(OutputStream out,File file,long offset,long fileLength,String nameToUse,String contentType) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out,"UTF-8"));
+if (webServerDebugLevel > 0) System.err.println("RequestHandler.sendHeaderAndBodyOfFileRegion(): Offset = "+offset+" Length = "+fileLength);
+		HttpResponseOutputStream connection = out instanceof HttpResponseOutputStream ? (HttpResponseOutputStream)out : null;
+		long[] range = null;
+		if (connection != null && connection.getRequestHeader("Range") != null && connection.getRequestHeader("If-Range") == null) {	// we have no validator to compare with If-Range, so send the whole file
+			range = parseRange(connection.getRequestHeader("Range"),fileLength);
+		}
+		if (range != null && range.length == 0) {
+if (webServerDebugLevel > 0) System.err.println("RequestHandler.sendHeaderAndBodyOfFileRegion(): Range not satisfiable = "+connection.getRequestHeader("Range"));
+			writer.print("HTTP/1.1 416 Requested Range Not Satisfiable\r\n");
+			writer.print("Content-Range: bytes */"+fileLength+"\r\n");
+			writer.print("Content-Length: 0\r\n");
+			writer.print("\r\n");
+			writer.flush();
+			return;
+		}
+		long first = range == null ? 0 : range[0];
+		long count = range == null ? fileLength : range[1]-range[0]+1;
+		writer.print(range == null ? "HTTP/1.1 200 OK\r\n" : "HTTP/1.1 206 Partial Content\r\n");
+		writer.print("Content-Type: "+contentType+"\r\n");
+		writer.print("Content-Length: "+count+"\r\n");
+		if (range != null) {
+			writer.print("Content-Range: bytes "+range[0]+"-"+range[1]+"/"+fileLength+"\r\n");
+		}
+		if (connection != null) {
+			writer.print("Accept-Ranges: bytes\r\n");
+		}
 		writer.print("Content-Disposition: filename="+nameToUse+"\r\n");
 		writer.print("\r\n");
 		writer.flush();
-		CopyStream.copy(new BufferedInputStream(new FileInputStream(file)),out);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			if (connection != null) {
+				connection.transferFrom(in.getChannel(),offset+first,count);
+			}
+			else {
+				InputStream bin = new BufferedInputStream(in);
+				CopyStream.skipInsistently(bin,offset+first);
+				CopyStream.copy(bin,out,count);
+			}
+		}
+		finally {
+			in.close();
+		}
 		out.flush();
 	}
 
 	final public void sendHeaderAndBodyText(OutputStream out,String text,String nameToUse,String contentType) throws IOException {
 		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out,"UTF-8"));
-		long length = text.length();
+		long length = text.getBytes("UTF-8").length;		// not text.length(), which is wrong if there are non-ASCII characters
 		writer.print("HTTP/1.1 200 OK\r\n");
 		writer.print("Content-Type: "+contentType+"\r\n");
 		writer.print("Content-Length: "+length+"\r\n");
@@ -81,7 +232,9 @@ if (webServerDebugLevel > 0) System.err.println("RequestHandler.sendHeaderAndBod
 	static final public void send404NotFound(OutputStream out,String message) {
 		try {
 			PrintWriter writer = new PrintWriter(new OutputStreamWriter(out,"UTF-8"));
-			writer.print("HTTP/1.1 404 Not Found - "+message+"\r\n");
+			writer.print("HTTP/1.1 404 Not Found - "+(message == null ? "" : message.replace('\r',' ').replace('\n',' '))+"\r\n");
+			writer.print("Content-Length: 0\r\n");
+			writer.print("\r\n");
 			writer.flush();
 		}
 		catch (IOException e) {
@@ -59,6 +59,8 @@ public class RequestTypeServer extends HttpServer {
 	private String stylesheetPath;
 	private String requestTypeToUseForInstances;
 	private DatabaseInformationModel databaseInformationModel;
+	private RenderedImageCache renderedImageCache;		// null if default
+	private RenderedImageCache transcodedObjectCache;	// null if default
 	
 	protected class RequestTypeWorker extends Worker {
 		private PathRequestHandler pathRequestHandler = null;
@@ -83,7 +85,7 @@ if (webServerDebugLevel > 0) System.err.println("RequestTypeServer.RequestTypeWo
 				}
 				else if (requestType.equals("WADO")) {
 					if (wadoRequestHandler == null) {
-						wadoRequestHandler = new WadoRequestHandler(null,webServerDebugLevel);
+						wadoRequestHandler = new WadoRequestHandler(null,renderedImageCache,transcodedObjectCache,webServerDebugLevel);
 					}
 					wadoRequestHandler.generateResponseToGetRequest(databaseInformationModel,null,null,request,null,out);
 				}
@@ -127,6 +129,9 @@ if (webServerDebugLevel > 0) System.err.println("RequestTypeServer.RequestTypeWo
 					throw new Exception("Unrecognized requestType \""+requestType+"\"");
 				}
 			}
+			catch (ResponseAbandonedException e) {
+				throw e;
+			}
 			catch (Exception e) {
 				e.printStackTrace(System.err);
 if (webServerDebugLevel > 0) System.err.println("RequestTypeServer.RequestTypeWorker.generateResponseToGetRequest(): Sending 404 Not Found");
@@ -189,6 +194,18 @@ if (webServerDebugLevel > 0) System.err.println("Received: "+dicomFileName+" fro
 	
 	public RequestTypeServer(DatabaseInformationModel databaseInformationModel,WebServerApplicationProperties webServerApplicationProperties) {
 		super(webServerApplicationProperties.getWebServerDebugLevel());
+		String renderedImageCacheFolderName = webServerApplicationProperties.getRenderedImageCacheFolderName();
+		if (renderedImageCacheFolderName != null && renderedImageCacheFolderName.length() > 0) {
+			try {
+				renderedImageCache = new RenderedImageCache(new File(renderedImageCacheFolderName),".jpg",
+					((long)webServerApplicationProperties.getRenderedImageCacheMaximumSize())*1024*1024);
+				transcodedObjectCache = new RenderedImageCache(new File(renderedImageCacheFolderName,"Transcoded"),".dcm",
+					((long)webServerApplicationProperties.getRenderedImageCacheMaximumSize())*1024*1024);
+			}
+			catch (IOException e) {
+				e.printStackTrace(System.err);	// and use the default
+			}
+		}
 		doCommonConstructorStuff(databaseInformationModel,
 			webServerApplicationProperties.getListeningPort(),
 			webServerApplicationProperties.getRootURL(),
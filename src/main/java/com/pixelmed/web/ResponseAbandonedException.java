@@ -0,0 +1,21 @@
+/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.web;
+
+import java.io.IOException;
+
+/**
+ * <p>Thrown when a response fails after its header has already been sent, so that it is too late to send an error response instead,
+ * and the only way to tell the client that the response is incomplete is for the {@link com.pixelmed.web.HttpServer HttpServer} to close the connection.</p>
+ *
+ * @author	dclunie
+ */
+class ResponseAbandonedException extends IOException {
+
+	/**
+	 * @param	msg
+	 */
+	public ResponseAbandonedException(String msg) {
+		super(msg);
+	}
+}
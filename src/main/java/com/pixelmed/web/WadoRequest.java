@@ -85,6 +85,23 @@ public class WadoRequest extends WebRequest {
 		    && contentTypes[0][0].toLowerCase().equals("application/dicom");
 	}
 	
+	/*
+	 * <p>Is the contentType parameter a single application/octet-stream value ?</p>
+	 *
+	 * <p>This is not a standard WADO content type, but is used to request only the bulk data of the Pixel Data
+	 * of an object, or of a single frame of it.</p>
+	 *
+	 * @return	true if there is one contentType parameter value that is application/octet-stream
+	 */
+	public boolean isContentTypeOctetStream() {
+		return contentTypes != null
+		    && contentTypes.length == 1
+		    && contentTypes[0] != null
+		    && contentTypes[0].length >= 1
+		    && contentTypes[0][0] != null
+		    && contentTypes[0][0].toLowerCase().equals("application/octet-stream");
+	}
+	
 	/*
 	 * @return	the values of the charset parameter, as an array of String, or null if absent
 	 */
@@ -2,12 +2,13 @@
 
 package com.pixelmed.web;
 
+import java.awt.image.BufferedImage;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
 
 import com.pixelmed.database.DatabaseInformationModel;
@@ -25,39 +26,356 @@ import java.io.FileOutputStream;
 import com.pixelmed.dicom.TransferSyntax;
 import com.pixelmed.dicom.DicomStreamCopier;
 
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.IntegerStringAttribute;
+import com.pixelmed.dicom.OtherByteAttribute;
+import com.pixelmed.dicom.OtherByteAttributeOnDisk;
+import com.pixelmed.dicom.OtherWordAttribute;
+import com.pixelmed.dicom.OtherWordAttributeOnDisk;
+import com.pixelmed.dicom.SequenceAttribute;
+import com.pixelmed.dicom.TagFromName;
+
 /**
  * <p>The {@link com.pixelmed.web.WadoRequestHandler WadoRequestHandler} creates a response to an HHTP request for
  * a WADO request.</p>
  *
+ * <p>For a contentType of application/dicom, the object is sent in the requested transferSyntax, if any, transcoding it if necessary,
+ * which is supported between uncompressed transfer syntaxes only. A frameNumber may also be specified, in which case an object
+ * containing only that frame is sent. Transcoded objects are cached. If neither is requested, the stored object is sent as is.</p>
+ *
+ * <p>As an extension, a contentType of application/octet-stream requests only the value of the Pixel Data, in the stored (uncompressed) transfer syntax,
+ * or only that of the frame specified by frameNumber, which is sent directly from the stored file. In either case, a range of bytes
+ * may be requested with the HTTP Range header, so that large multi-frame objects may be retrieved progressively.</p>
+ *
  * @author	dclunie
  */
 class WadoRequestHandler extends RequestHandler {
 	private static final String identString = "@(#) $Header: /var/cvs-rep/pmedim/src/com/pixelmed/web/WadoRequestHandler.java,v 1.1.1.1 2011-05-21 10:08:47 nicola Exp $";
 
-	private static Map cacheOfConvertedFiles = new HashMap();	// OK to be static as long as we never delete files from cache that may be in use by other threads
-	
-	private void addToCacheOfConvertedFiles(Object key,String filename) {
-		synchronized (cacheOfConvertedFiles) {
-			cacheOfConvertedFiles.put(key,filename);
+	/**
+	 * <p>Writes to a response and a file in which to cache it at the same time.</p>
+	 *
+	 * <p>If the response cannot be written, such as when the client has gone away, writing to the file continues,
+	 * so that the cache is still populated for other requests.</p>
+	 */
+	private static class TeeOutputStream extends OutputStream {
+		private OutputStream response;
+		private OutputStream file;
+		private IOException responseFailure;
+
+		TeeOutputStream(OutputStream response,OutputStream file) {
+			this.response=response;
+			this.file=file;
+		}
+
+		public void write(int b) throws IOException {
+			if (responseFailure == null) {
+				try {
+					response.write(b);
+				}
+				catch (IOException e) {
+					responseFailure=e;
+				}
+			}
+			file.write(b);
+		}
+
+		public void write(byte[] b,int off,int len) throws IOException {
+			if (responseFailure == null) {
+				try {
+					response.write(b,off,len);
+				}
+				catch (IOException e) {
+					responseFailure=e;
+				}
+			}
+			file.write(b,off,len);
+		}
+
+		public void flush() throws IOException {
+			if (responseFailure == null) {
+				try {
+					response.flush();
+				}
+				catch (IOException e) {
+					responseFailure=e;
+				}
+			}
+			file.flush();
+		}
+
+		/**
+		 * @return	the exception that occurred when writing the response, or null if none
+		 */
+		IOException getResponseFailure() {
+			return responseFailure;
 		}
 	}
-	
-	private String getFromCacheOfConvertedFiles(Object key) {
-		String filename = null;
-		synchronized (cacheOfConvertedFiles) {
-			if (key != null) {
-				filename = (String)(cacheOfConvertedFiles.get(key));
+
+	/**
+	 * <p>The attributes of a stored object, read with the Pixel Data left on disk, and what is needed to find its frames.</p>
+	 */
+	private static class StoredObject {
+		AttributeList list;
+		String transferSyntaxUID;
+		Attribute pixelData;
+		int numberOfFrames;
+		long bytesPerFrame;		// 0 if frames cannot be located
+
+		StoredObject(File file) throws IOException, DicomException {
+			DicomInputStream i = new DicomInputStream(file);
+			try {
+				i.setLeavePixelDataOnDisk(true);
+				list = new AttributeList();
+				list.read(i);
+				TransferSyntax ts = i.getTransferSyntaxToReadDataSet();
+				if (ts == null) {
+					ts = i.getTransferSyntaxInUse();	// e.g., preamble but no Transfer Syntax UID in the meta information header
+				}
+				transferSyntaxUID = ts.getUID();
+			}
+			finally {
+				i.close();
+			}
+			pixelData = list.get(TagFromName.PixelData);
+			numberOfFrames = Attribute.getSingleIntegerValueOrDefault(list,TagFromName.NumberOfFrames,1);
+			int bitsAllocated = Attribute.getSingleIntegerValueOrDefault(list,TagFromName.BitsAllocated,0);
+			if (pixelData != null && bitsAllocated > 0 && bitsAllocated%8 == 0 && new TransferSyntax(transferSyntaxUID).isNotEncapsulated()) {
+				bytesPerFrame = (long)Attribute.getSingleIntegerValueOrDefault(list,TagFromName.Rows,0)
+					* Attribute.getSingleIntegerValueOrDefault(list,TagFromName.Columns,0)
+					* Attribute.getSingleIntegerValueOrDefault(list,TagFromName.SamplesPerPixel,1)
+					* (bitsAllocated/8);
+			}
+		}
+
+		/**
+		 * @param	frameNumber	the WADO frameNumber, from 1, or -1 if absent
+		 * @exception	Exception	if the frame is not in the object
+		 */
+		void checkFrameNumber(int frameNumber) throws Exception {
+			if (frameNumber != -1 && (frameNumber < 1 || frameNumber > numberOfFrames)) {
+				throw new Exception("frameNumber "+frameNumber+" not in range 1 to "+numberOfFrames);
+			}
+		}
+
+		/**
+		 * <p>Get the value of a single frame, as a new Pixel Data attribute in memory.</p>
+		 *
+		 * @param	frame			the frame, from 0
+		 * @return				the Pixel Data of the frame
+		 * @exception	DicomException	if the frames cannot be located
+		 */
+		Attribute getPixelDataForFrame(int frame) throws DicomException {
+			if (bytesPerFrame == 0) {
+				throw new DicomException("Cannot extract frames from missing, compressed or bit packed Pixel Data");
+			}
+			if (pixelData instanceof OtherWordAttributeOnDisk || pixelData instanceof OtherWordAttribute) {
+				if (bytesPerFrame%2 != 0) {
+					throw new DicomException("Cannot extract frames of odd length from OW Pixel Data");
+				}
+				int wordsPerFrame = (int)(bytesPerFrame/2);
+				short[] values = new short[wordsPerFrame];
+				if (pixelData instanceof OtherWordAttributeOnDisk) {
+					((OtherWordAttributeOnDisk)pixelData).getShortBufferForFrame(frame,wordsPerFrame).get(values);
+				}
+				else {
+					System.arraycopy(pixelData.getShortValues(),frame*wordsPerFrame,values,0,wordsPerFrame);
+				}
+				Attribute a = new OtherWordAttribute(TagFromName.PixelData);
+				a.setValues(values);
+				return a;
+			}
+			else {
+				byte[] values = new byte[(int)bytesPerFrame];
+				if (pixelData instanceof OtherByteAttributeOnDisk) {
+					((OtherByteAttributeOnDisk)pixelData).getByteBufferForFrame(frame,(int)bytesPerFrame).get(values);
+				}
+				else {
+					System.arraycopy(pixelData.getByteValues(),(int)(frame*bytesPerFrame),values,0,(int)bytesPerFrame);
+				}
+				Attribute a = new OtherByteAttribute(TagFromName.PixelData);
+				a.setValues(values);
+				return a;
 			}
 		}
-		return filename;
+
+		/**
+		 * <p>Replace the Pixel Data with that of a single frame, and the per-frame attributes with those of that frame.</p>
+		 *
+		 * @param	frame			the frame, from 0
+		 * @exception	DicomException	if the frames cannot be located
+		 */
+		void reduceToSingleFrame(int frame) throws DicomException {
+			list.put(getPixelDataForFrame(frame));
+			{ Attribute a = new IntegerStringAttribute(TagFromName.NumberOfFrames); a.addValue(1); list.put(a); }
+			Attribute perFrameFunctionalGroupsSequence = list.get(TagFromName.PerFrameFunctionalGroupsSequence);
+			if (perFrameFunctionalGroupsSequence instanceof SequenceAttribute && ((SequenceAttribute)perFrameFunctionalGroupsSequence).getNumberOfItems() > frame) {
+				SequenceAttribute a = new SequenceAttribute(TagFromName.PerFrameFunctionalGroupsSequence);
+				a.addItem(((SequenceAttribute)perFrameFunctionalGroupsSequence).getItem(frame));
+				list.put(a);
+			}
+		}
+	}
+
+	private RenderedImageCache renderedImageCache;	// may be shared with other threads, which is OK since files are not deleted while in use
+	private RenderedImageCache transcodedObjectCache;
+
+	/**
+	 * @param	stylesheetPath
+	 * @param	renderedImageCache	the cache of converted images to use, or null if the default
+	 * @param	transcodedObjectCache	the cache of transcoded DICOM objects to use, or null if the default
+	 * @param	webServerDebugLevel
+	 */
+	protected WadoRequestHandler(String stylesheetPath,RenderedImageCache renderedImageCache,RenderedImageCache transcodedObjectCache,int webServerDebugLevel) {
+		super(stylesheetPath,webServerDebugLevel);
+		this.renderedImageCache=renderedImageCache;
+		this.transcodedObjectCache=transcodedObjectCache;
 	}
 
-	private static final Object makeCacheKey(String objectUID,double windowCenter,double windowWidth,int columns,int rows,int quality) {
-		return objectUID+"#"+Double.toString(windowCenter)+"#"+Double.toString(windowWidth)+"#"+Integer.toString(columns)+"#"+Integer.toString(rows)+"#"+Integer.toString(quality);
+	/**
+	 * @param	stylesheetPath
+	 * @param	renderedImageCache	the cache of converted images to use, or null if the default
+	 * @param	webServerDebugLevel
+	 */
+	protected WadoRequestHandler(String stylesheetPath,RenderedImageCache renderedImageCache,int webServerDebugLevel) {
+		this(stylesheetPath,renderedImageCache,null,webServerDebugLevel);
 	}
 
 	protected WadoRequestHandler(String stylesheetPath,int webServerDebugLevel) {
-		super(stylesheetPath,webServerDebugLevel);
+		this(stylesheetPath,null,null,webServerDebugLevel);
+	}
+
+	/**
+	 * @param	transferSyntaxUID	a transfer syntax
+	 * @return				true if objects can be transcoded to the transfer syntax
+	 */
+	private static boolean isTranscodingSupportedTo(String transferSyntaxUID) {
+		return transferSyntaxUID.equals(TransferSyntax.ImplicitVRLittleEndian)
+		    || transferSyntaxUID.equals(TransferSyntax.ExplicitVRLittleEndian)
+		    || transferSyntaxUID.equals(TransferSyntax.ExplicitVRBigEndian)
+		    || transferSyntaxUID.equals(TransferSyntax.DeflatedExplicitVRLittleEndian);
+	}
+
+	/**
+	 * <p>Get the transfer syntax of a stored object, reading only as far as the end of the meta information header.</p>
+	 *
+	 * @param	file		the stored object
+	 * @return			the transfer syntax UID
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	private static String getStoredTransferSyntaxUID(File file) throws IOException, DicomException {
+		DicomInputStream i = new DicomInputStream(file);
+		try {
+			new AttributeList().readOnlyMetaInformationHeader(i);
+			TransferSyntax ts = i.getTransferSyntaxToReadDataSet();
+			if (ts == null) {
+				ts = i.getTransferSyntaxInUse();	// e.g., preamble but no Transfer Syntax UID in the meta information header
+			}
+			return ts.getUID();
+		}
+		finally {
+			i.close();
+		}
+	}
+
+	/**
+	 * <p>Send a DICOM object, or a single frame of it, in the requested transfer syntax.</p>
+	 *
+	 * <p>The stored file is sent as is, without parsing it, if neither a frame nor a different transfer syntax is requested.</p>
+	 *
+	 * @param	out				where to send the response
+	 * @param	file				the stored object
+	 * @param	objectUID			the SOP Instance UID
+	 * @param	frameNumber			the WADO frameNumber, from 1, or -1 if all frames
+	 * @param	requestedTransferSyntaxUID	the transfer syntax requested, or null if whatever is stored
+	 * @exception	Exception			if the frame is not present, or the object cannot be transcoded
+	 */
+	private void sendDicomObject(OutputStream out,File file,String objectUID,int frameNumber,String requestedTransferSyntaxUID) throws Exception {
+		if (frameNumber == -1 && (requestedTransferSyntaxUID == null || requestedTransferSyntaxUID.equals(getStoredTransferSyntaxUID(file)))) {
+if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.sendDicomObject(): sending stored file without parsing it");
+			sendHeaderAndBodyOfFile(out,file,objectUID+".dcm","application/dicom");
+			return;
+		}
+		final StoredObject stored = new StoredObject(file);
+		stored.checkFrameNumber(frameNumber);
+		final String transferSyntaxUID = requestedTransferSyntaxUID == null ? stored.transferSyntaxUID : requestedTransferSyntaxUID;
+		final int frame = (frameNumber == -1 || stored.numberOfFrames == 1) ? -1 : frameNumber-1;
+		if (frame == -1 && transferSyntaxUID.equals(stored.transferSyntaxUID)) {
+if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.sendDicomObject(): sending stored file");
+			sendHeaderAndBodyOfFile(out,file,objectUID+".dcm","application/dicom");
+			return;
+		}
+		if (new TransferSyntax(stored.transferSyntaxUID).isEncapsulated()) {
+			throw new Exception("Cannot extract frames from or transcode compressed transfer syntax "+stored.transferSyntaxUID);
+		}
+		if (!isTranscodingSupportedTo(transferSyntaxUID)) {
+			throw new Exception("Cannot transcode to transfer syntax "+transferSyntaxUID);
+		}
+		if (transcodedObjectCache == null) {
+			transcodedObjectCache = RenderedImageCache.getDefaultTranscodedObjectInstance();
+		}
+		String cacheKey = RenderedImageCache.makeKey(objectUID,frame == -1 ? -1 : frameNumber,transferSyntaxUID);
+		File transcodedFile = transcodedObjectCache.get(cacheKey,new RenderedImageCache.Renderer() {
+			public void render(File file) throws Exception {
+if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.sendDicomObject(): transcoding frame "+frame+" to "+transferSyntaxUID);
+				if (frame != -1) {
+					stored.reduceToSingleFrame(frame);
+				}
+				AttributeList list = stored.list;
+				list.removeMetaInformationHeaderAttributes();
+				list.removeGroupLengthAttributes();
+				FileMetaInformation.addFileMetaInformation(list,transferSyntaxUID,null);
+				list.write(file,transferSyntaxUID,true/*useMeta*/,true/*useBufferedStream*/);
+			}
+		});
+		try {
+			sendHeaderAndBodyOfFile(out,transcodedFile,objectUID+(frame == -1 ? "" : "_"+frameNumber)+".dcm","application/dicom");
+		}
+		finally {
+			transcodedObjectCache.release(cacheKey);
+if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.sendDicomObject(): "+transcodedObjectCache);
+		}
+	}
+
+	/**
+	 * <p>Send the value of the Pixel Data of a DICOM object, or of a single frame of it, directly from the stored file.</p>
+	 *
+	 * <p>The Content-Type specifies the transfer syntax of the stored file, which determines the byte order.</p>
+	 *
+	 * @param	out				where to send the response
+	 * @param	file				the stored object
+	 * @param	objectUID			the SOP Instance UID
+	 * @param	frameNumber			the WADO frameNumber, from 1, or -1 if all frames
+	 * @exception	Exception			if the frame is not present, or the Pixel Data is compressed
+	 */
+	private void sendPixelData(OutputStream out,File file,String objectUID,int frameNumber) throws Exception {
+		StoredObject stored = new StoredObject(file);
+		stored.checkFrameNumber(frameNumber);
+		long offset;
+		if (stored.pixelData instanceof OtherWordAttributeOnDisk) {
+			offset = ((OtherWordAttributeOnDisk)stored.pixelData).getByteOffset();
+		}
+		else if (stored.pixelData instanceof OtherByteAttributeOnDisk) {
+			offset = ((OtherByteAttributeOnDisk)stored.pixelData).getByteOffset();
+		}
+		else {
+			throw new Exception("Pixel Data missing, compressed or not stored in a form that can be sent directly");
+		}
+		long length = stored.pixelData.getVL();
+		if (frameNumber != -1) {
+			if (stored.bytesPerFrame == 0) {
+				throw new Exception("Cannot locate frames in Pixel Data");
+			}
+			offset += stored.bytesPerFrame*(frameNumber-1);
+			length = stored.bytesPerFrame;
+		}
+if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.sendPixelData(): offset "+offset+" length "+length);
+		sendHeaderAndBodyOfFileRegion(out,file,offset,length,objectUID+(frameNumber == -1 ? "" : "_"+frameNumber)+".raw",
+			"application/octet-stream; transfer-syntax="+stored.transferSyntaxUID);
 	}
 
 	protected void generateResponseToGetRequest(DatabaseInformationModel databaseInformationModel,String rootURL,String requestURI,WebRequest request,String requestType,OutputStream out) throws IOException {
@@ -77,16 +395,11 @@ if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResp
 if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): File exists");
 					if (wadoRequest.isContentTypeDicom()) {
 if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): is DICOM request");
-						// not paying any attention to requested Transfer Syntax; give them whatever we have
-						sendHeaderAndBodyOfFile(out,file,objectUID+".dcm","application/dicom");
-						
-						// make copy with IVRLE and no metaheader
-						//File convertedFile  = File.createTempFile("RequestTypeServer",".dcm");
-						//convertedFile.deleteOnExit();
-						//DicomInputStream  i = new DicomInputStream (new BufferedInputStream(new FileInputStream(file)));
-						//DicomOutputStream o = new DicomOutputStream(new BufferedOutputStream(new FileOutputStream(convertedFile)),null/*meta*/,TransferSyntax.ImplicitVRLittleEndian/*dataset*/);
-						//new DicomStreamCopier(i,o);
-						//sendHeaderAndBodyOfFile(out,convertedFile,objectUID+".dcm","application/dicom");
+						sendDicomObject(out,file,objectUID,wadoRequest.getFrameNumber(),wadoRequest.getTransferSyntax());
+					}
+					else if (wadoRequest.isContentTypeOctetStream()) {
+if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): is Pixel Data request");
+						sendPixelData(out,file,objectUID,wadoRequest.getFrameNumber());
 					}
 					else {
 if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): is non-DICOM request");
@@ -94,42 +407,80 @@ if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResp
 if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): SOP Class UID from database = "+sopClassUID);
 						if (sopClassUID != null) {
 							if (SOPClass.isImageStorage(sopClassUID)) {
-								double windowWidth = wadoRequest.getWindowWidth();
-								double windowCenter = wadoRequest.getWindowCenter();
-								int columns = wadoRequest.getColumns();
-								int rows = wadoRequest.getRows();
-								int quality = wadoRequest.getImageQuality();
-								String convertedFormat = "jpeg";
+								final double windowWidth = wadoRequest.getWindowWidth();
+								final double windowCenter = wadoRequest.getWindowCenter();
+								final int columns = wadoRequest.getColumns();
+								final int rows = wadoRequest.getRows();
+								final int quality = wadoRequest.getImageQuality();
+								final String convertedFormat = "jpeg";
+								final String annotation = ConsumerFormatImageMaker.ALL_ANNOTATIONS;
+								final String dicomFileName = filename;
+								final int frame = wadoRequest.getFrameNumber() > 0 ? wadoRequest.getFrameNumber()-1 : 0;	// WADO frame numbers are from 1
+								final String convertedExtension = ".jpg";
+								final String convertedContentType = "image/jpeg";
+								final String nameToUse = objectUID+convertedExtension;
+								final OutputStream response = out;
+								final boolean[] sentWhileRendering = new boolean[1];
+								final boolean sendWhileRendering = canSendChunkedBody(out);	// else the client cannot understand chunks, so send the cached file when complete
+								if (renderedImageCache == null) {
+									renderedImageCache = RenderedImageCache.getDefaultInstance();
+								}
+								String cacheKey = RenderedImageCache.makeKey(objectUID,wadoRequest.getFrameNumber(),windowCenter,windowWidth,columns,rows,quality,annotation);
 								File convertedFile = null;
-								Object cacheKey = makeCacheKey(objectUID,windowCenter,windowWidth,columns,rows,quality);
-								String convertedFileName = getFromCacheOfConvertedFiles(cacheKey);
 								try {
-									if (convertedFileName == null) {
+									convertedFile = renderedImageCache.get(cacheKey,new RenderedImageCache.Renderer() {
+										public void render(File file) throws Exception {
 if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): not in cache");
-										convertedFile = File.createTempFile("RequestTypeServer",".jpg");
-										convertedFile.deleteOnExit();
-										convertedFileName = convertedFile.getAbsolutePath();
-										ConsumerFormatImageMaker.convertFileToEightBitImage(
-											filename,convertedFileName,convertedFormat,windowCenter,windowWidth,columns,rows,quality,
-											ConsumerFormatImageMaker.ALL_ANNOTATIONS,
-											webServerDebugLevel);
-										addToCacheOfConvertedFiles(cacheKey,convertedFileName);
-									}
-									else {
-if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): in cache");
-										convertedFile = new File(convertedFileName);
-									}
-									String convertedExtension = ".jpg";
-									String convertedContentType = "image/jpeg";
-									sendHeaderAndBodyOfFile(out,convertedFile,objectUID+convertedExtension,convertedContentType);
+											// render in memory reading only the requested frame, then encode directly into the response as well as the cache,
+											// rather than encode into a file and read it back
+											BufferedImage renderedImage = ConsumerFormatImageMaker.makeEightBitImage(
+												dicomFileName,frame,windowCenter,windowWidth,columns,rows,
+												annotation,
+												webServerDebugLevel);
+											OutputStream cached = new BufferedOutputStream(new FileOutputStream(file));
+											if (!sendWhileRendering) {
+												try {
+													ConsumerFormatImageMaker.writeEightBitImage(renderedImage,cached,convertedFormat,quality,webServerDebugLevel);
+												}
+												finally {
+													cached.close();
+												}
+												return;
+											}
+											try {
+												OutputStream body = sendHeaderForChunkedBody(response,nameToUse,convertedContentType);
+												sentWhileRendering[0] = true;
+												TeeOutputStream tee = new TeeOutputStream(body,cached);
+												ConsumerFormatImageMaker.writeEightBitImage(renderedImage,tee,convertedFormat,quality,webServerDebugLevel);
+												if (tee.getResponseFailure() == null) {
+													body.close();
+												}
+												else {
+if (webServerDebugLevel > 0) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): response not sent but cached anyway: "+tee.getResponseFailure());
+												}
+											}
+											finally {
+												cached.close();
+											}
+										}
+									});
 								}
 								catch (Exception e) {
 									e.printStackTrace(System.err);
+									if (sentWhileRendering[0]) {
+										throw new ResponseAbandonedException("Failed to convert image to "+convertedFormat+" after response was started - "+e);	// too late to send an error response
+									}
 									throw new Exception("Cannot convert image to "+convertedFormat);
 								}
+								try {
+if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): convertedFile = "+convertedFile);
+									if (!sentWhileRendering[0]) {
+										sendHeaderAndBodyOfFile(out,convertedFile,nameToUse,convertedContentType);
+									}
+								}
 								finally {
-if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): convertedFileName = "+convertedFileName);
-									//convertedFile.delete();	// don't delete, since caching
+									renderedImageCache.release(cacheKey);
+if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): "+renderedImageCache);
 								}
 							}
 							else {
@@ -150,6 +501,9 @@ if (webServerDebugLevel > 1) System.err.println("WadoRequestHandler.generateResp
 				throw new Exception("Could not find SOP Instance "+objectUID);
 			}
 		}
+		catch (ResponseAbandonedException e) {
+			throw e;
+		}
 		catch (Exception e) {
 			e.printStackTrace(System.err);
 if (webServerDebugLevel > 0) System.err.println("WadoRequestHandler.generateResponseToGetRequest(): Sending 404 Not Found");
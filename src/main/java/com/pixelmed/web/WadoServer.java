@@ -57,6 +57,9 @@ public class WadoServer extends HttpServer {
 					throw new Exception("Unrecognized requestType \""+requestType+"\"");
 				}
 			}
+			catch (ResponseAbandonedException e) {
+				throw e;
+			}
 			catch (Exception e) {
 				e.printStackTrace(System.err);
 if (webServerDebugLevel > 0) System.err.println("WadoServer.WADOWorker.generateResponseToGetRequest(): Sending 404 Not Found");
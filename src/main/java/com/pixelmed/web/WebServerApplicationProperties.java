@@ -20,6 +20,8 @@ import java.util.Properties;
  * <p><code>WebServer.StylesheetPath</code></p>
  * <p><code>WebServer.DebugLevel</code> - for no debugging (silent), > 0 for more verbose levels of debugging</p>
  * <p><code>WebServer.InstanceNameForServiceAdvertising</code> - the name to use to advertise the service using DNS-SD (Bonjour)</p>
+ * <p><code>WebServer.RenderedImageCacheFolderName</code> - the folder in which to keep images rendered in response to WADO requests, and in a sub-folder "Transcoded" of which to keep transcoded DICOM objects (default is in the system temporary folder)</p>
+ * <p><code>WebServer.RenderedImageCacheMaximumSize</code> - the maximum total size in megabytes of the images rendered in response to WADO requests, and separately of the transcoded DICOM objects (default is 256)</p>
  *
  * @author	dclunie
  */
@@ -30,6 +32,7 @@ public class WebServerApplicationProperties {
 	private static final String defaultRootURL = "";
 	private static final String defaultStylesheetPath = "stylesheet.css";
 	private static final String defaultRequestTypeToUseForInstances = "IMAGEDISPLAY";
+	private static final int defaultRenderedImageCacheMaximumSize = 256;
 
 	private static final String propertyName_RootURL = "WebServer.RootURL";
 	private static final String propertyName_StylesheetPath = "WebServer.StylesheetPath";
@@ -37,6 +40,8 @@ public class WebServerApplicationProperties {
 	private static final String propertyName_RequestTypeToUseForInstances = "WebServer.RequestTypeToUseForInstances";
 	private static final String propertyName_WebServerDebugLevel = "WebServer.DebugLevel";
 	private static final String propertyName_InstanceNameForServiceAdvertising = "WebServer.InstanceNameForServiceAdvertising";
+	private static final String propertyName_RenderedImageCacheFolderName = "WebServer.RenderedImageCacheFolderName";
+	private static final String propertyName_RenderedImageCacheMaximumSize = "WebServer.RenderedImageCacheMaximumSize";
 	
 	private String rootURL;
 	private String stylesheetPath;
@@ -44,6 +49,8 @@ public class WebServerApplicationProperties {
 	private int port;
 	private int webServerDebugLevel;
 	private String instanceName;
+	private String renderedImageCacheFolderName;
+	private int renderedImageCacheMaximumSize;
 
 	/**
 	 * <p>Create default properties.</p>
@@ -55,6 +62,8 @@ public class WebServerApplicationProperties {
 		port = NetworkDefaultValues.DefaultWADOPort;
 		webServerDebugLevel = 0;
 		instanceName = NetworkDefaultValues.getDefaultDNSServiceInstanceName(port);
+		renderedImageCacheFolderName = null;
+		renderedImageCacheMaximumSize = defaultRenderedImageCacheMaximumSize;
 	}
 
 	/**
@@ -81,6 +90,8 @@ public class WebServerApplicationProperties {
 		if (instanceName == null) {
 			instanceName = NetworkDefaultValues.getDefaultDNSServiceInstanceName(port);
 		}
+		renderedImageCacheFolderName=properties.getProperty(propertyName_RenderedImageCacheFolderName);
+		renderedImageCacheMaximumSize = Integer.valueOf(properties.getProperty(propertyName_RenderedImageCacheMaximumSize,Integer.toString(defaultRenderedImageCacheMaximumSize))).intValue();
 	}
 	
 	/**
@@ -125,5 +136,19 @@ public class WebServerApplicationProperties {
 	 */
 	public String getInstanceName() { return instanceName; }
 	
+	/**
+	 * <p>Return the rendered image cache folder name.</p>
+	 *
+	 * @return	the rendered image cache folder name, or null if the default
+	 */
+	public String getRenderedImageCacheFolderName() { return renderedImageCacheFolderName; }
+	
+	/**
+	 * <p>Return the rendered image cache maximum size.</p>
+	 *
+	 * @return	the rendered image cache maximum size in megabytes
+	 */
+	public int getRenderedImageCacheMaximumSize() { return renderedImageCacheMaximumSize; }
+	
 }
 